@@ -6,7 +6,15 @@
  */
 package org.sipfoundry.sipxbridge;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import gov.nist.javax.sip.SipStackExt;
 import gov.nist.javax.sip.TransactionExt;
@@ -15,32 +23,28 @@ import gov.nist.javax.sip.header.extensions.ReplacesHeader;
 import gov.nist.javax.sip.header.ims.PAssertedIdentityHeader;
 import gov.nist.javax.sip.header.ims.PPreferredIdentityHeader;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.ServerTransaction;
 import javax.sip.SipProvider;
-import javax.sip.address.Hop;
 import javax.sip.address.SipURI;
 import javax.sip.header.FromHeader;
 import javax.sip.message.Request;
 import javax.sip.header.ViaHeader;
 
 import org.apache.log4j.Logger;
-import org.apache.xmlrpc.XmlRpcException;
+import org.sipfoundry.commons.util.IPAddressUtil;
 
 /**
  * Keeps a mapping of account ID to ItspAccountInfo and a mapping of account ID to sip pbx account
  * info.
  *
+ * Accounts are matched against requests through indexes that are rebuilt whenever the accounts
+ * change ( see ItspAccountIndex and ItspAddressIndex ) so that no DNS lookup or scan of the
+ * accounts is done on the call path.
+ *
  * @author M. Ranganathan
  *
  */
@@ -50,7 +54,20 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
 
     private static Logger logger = Logger.getLogger(AccountManagerImpl.class);
 
-    private HashSet<ItspAccountInfo> itspAccounts = new HashSet<ItspAccountInfo>();
+    /*
+     * How often the addresses of the ITSP proxies are resolved again.
+     */
+    private static final long ADDRESS_INDEX_REFRESH_SECONDS = 60;
+
+    private final CopyOnWriteArraySet<ItspAccountInfo> itspAccounts = new CopyOnWriteArraySet<ItspAccountInfo>();
+
+    private volatile ItspAccountIndex accountIndex = ItspAccountIndex.EMPTY;
+
+    private volatile ItspAddressIndex addressIndex = ItspAddressIndex.EMPTY;
+
+    private final AtomicBoolean addressIndexRebuildPending = new AtomicBoolean();
+
+    private ScheduledExecutorService addressIndexer;
 
     private BridgeConfiguration bridgeConfiguration;
 
@@ -78,6 +95,20 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
         }
     }
 
+    /**
+     * Resolve the addresses of the ITSP proxies and keep refreshing them in the background.
+     * Called at startup before inbound requests are accepted, requests are never held up by a
+     * DNS lookup.
+     */
+    void startAddressIndex() {
+        try {
+            rebuildAddressIndex();
+        } catch (Exception ex) {
+            logger.error("Problem resolving ITSP addresses", ex);
+        }
+        getAddressIndexer();
+    }
+
     /**
      * Get the default outbound ITSP account for outbound calls.
      */
@@ -85,23 +116,6 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
         return itspAccounts.iterator().next();
     }
 
-    // xx-4785
-    boolean checkSipxecsLineid(ArrayList<String> ids, SipURI uri) {
-
-        // label not found, we'll pick based on the proxyDomain only.
-        if (uri.getParameter(SIPXECS_LINEID) ==  null) {
-            return true;
-        }
-
-        // Otherwise, the label value has to match.
-        for (String sipxecsLineid : ids) {
-            if (uri.getParameter(SIPXECS_LINEID).equals(sipxecsLineid))
-                return true;
-        }
-
-        return false;
-    }
-
     /**
      * Get the outbound ITSP account for a specific outbund SipURI.
      */
@@ -120,61 +134,61 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
         }
         ItspAccountInfo accountFound = null;
         try {
-
-            for (ItspAccountInfo accountInfo : itspAccounts) {
-                if (accountInfo.getProxyDomain() != null && sipUri.getHost().endsWith(accountInfo.getProxyDomain())
-                        && checkSipxecsLineid(accountInfo.getSipxecsLineIds(), sipUri)) {
-                	if ( sipUri.getParameter(SIPXECS_LINEID) != null ) {
-                		return accountInfo;
-                	} else if (accountInfo.getCallerId() == null) {
-                        /*
-                         * A null override caller ID has been provided. This case occurs when you
-                         * override the default P-A-I to blank. (see XX-7159)
-                         */
-                        FromHeader fromHeader = (FromHeader) request.getHeader(FromHeader.NAME);
-
-                        String userStr = ((SipURI) fromHeader.getAddress().getURI()).getUser();
-
-                        if (accountInfo.getUserName() != null && userStr.equals(accountInfo.getUserName())) {
-                            accountFound = accountInfo;
-                            return accountInfo;
-                        }
+            List<ItspAccountIndex.DomainAccounts> domains = accountIndex.getDomainAccounts(sipUri
+                    .getHost());
+            String lineId = sipUri.getParameter(SIPXECS_LINEID);
+            if (lineId != null) {
+                for (ItspAccountIndex.DomainAccounts domainAccounts : domains) {
+                    accountFound = domainAccounts.getByLineId(lineId);
+                    if (accountFound != null) {
+                        return accountFound;
+                    }
+                }
+            } else if (!domains.isEmpty()) {
+                FromHeader fromHeader = (FromHeader) request.getHeader(FromHeader.NAME);
+                String userStr = ((SipURI) fromHeader.getAddress().getURI()).getUser();
+                String domainStr = ((SipURI) fromHeader.getAddress().getURI()).getHost();
+                /*
+                 * The user matched against the caller id of the accounts.
+                 */
+                String callerIdUser = userStr;
+                boolean anonymousWithoutPai = false;
+                if ("anonymous".equals(userStr) && "invalid".equals(domainStr)) {
+                    PAssertedIdentityHeader pai = (PAssertedIdentityHeader) request
+                            .getHeader(PAssertedIdentityHeader.NAME);
+                    if (pai == null) {
+                        anonymousWithoutPai = true;
                     } else {
-                        String callerId = accountInfo.getCallerId();
-                        FromHeader fromHeader = (FromHeader) request.getHeader(FromHeader.NAME);
-
-                        String userStr = ((SipURI) fromHeader.getAddress().getURI()).getUser();
-                        String domainStr = ((SipURI) fromHeader.getAddress().getURI()).getHost();
-                        if (userStr.equals("anonymous") && domainStr.equals("invalid")) {
-                            PAssertedIdentityHeader pai = (PAssertedIdentityHeader) request
-                                    .getHeader(PAssertedIdentityHeader.NAME);
-                            if (pai == null) {
-                                logger.warn("Anonymous call without P-Asserted-Identity ");
-                                // BUGBUG - this is really a mistake we should reject
-                                // the call if the PAI header is missing
-                                accountFound = accountInfo;
-                                return accountInfo;
-                            }
-                            userStr = ((SipURI) pai.getAddress().getURI()).getUser();
-                        }
-
-                        if (callerId.startsWith(userStr)) {
-                            accountFound = accountInfo;
-                            return accountInfo;
-                        }
-
+                        callerIdUser = ((SipURI) pai.getAddress().getURI()).getUser();
+                    }
+                }
+                for (ItspAccountIndex.DomainAccounts domainAccounts : domains) {
+                    /*
+                     * A null override caller ID has been provided. This case occurs when you
+                     * override the default P-A-I to blank. (see XX-7159)
+                     */
+                    accountFound = domainAccounts.getByUserName(userStr);
+                    if (accountFound != null) {
+                        return accountFound;
+                    }
+                    if (anonymousWithoutPai && domainAccounts.getFirstWithCallerId() != null) {
+                        logger.warn("Anonymous call without P-Asserted-Identity ");
+                        // BUGBUG - this is really a mistake we should reject
+                        // the call if the PAI header is missing
+                        accountFound = domainAccounts.getFirstWithCallerId();
+                        return accountFound;
+                    }
+                    accountFound = domainAccounts.getByCallerIdPrefix(callerIdUser);
+                    if (accountFound != null) {
+                        return accountFound;
                     }
                 }
             }
             // Fallback -- cannot find calling line id.
-            for (ItspAccountInfo accountInfo : itspAccounts) {
+            if (!domains.isEmpty()) {
                 logger.warn("Could not match user part of inbound request URI");
-                if (accountInfo.getProxyDomain() != null) {
-                    if (sipUri.getHost().endsWith(accountInfo.getProxyDomain())) {
-                        accountFound = accountInfo;
-                        return accountInfo;
-                    }
-                }
+                accountFound = domains.get(0).getFirst();
+                return accountFound;
             }
 
             String userName = ((SipURI) ((FromHeader) request.getHeader(FromHeader.NAME)).getAddress().getURI())
@@ -208,7 +222,7 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
      */
     Collection<ItspAccountInfo> getItspAccounts() {
 
-        return itspAccounts;
+        return Collections.unmodifiableCollection(itspAccounts);
     }
 
     /**
@@ -225,41 +239,17 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
         if (port == -1)
             port = 5060; // set default.
         try {
-            String viaHost = InetAddress.getByName(host).getHostAddress();
-            if ( logger.isDebugEnabled() ) logger.debug("viaHost = " + viaHost + "viaPort = " + port);
-            for (ItspAccountInfo accountInfo : this.getItspAccounts()) {
-                if (accountInfo.isRegisterOnInitialization()) {
-                    // Account needs registration.
-                    String registrarHost = accountInfo.getOutboundRegistrar();
-                    // We assume that the Registrar is the same as the INBOUND proxy
-                    // server.
-                    if ( logger.isDebugEnabled() ) logger.debug("registrarHost = " + registrarHost);
-                    try {
-                        Hop hop = accountInfo.getHopToRegistrar();
-                        if (hop != null && viaHost.equals(InetAddress.getByName(hop.getHost()).getHostAddress())) {
-                            if ( logger.isDebugEnabled() ) logger.debug("found account " + accountInfo.getProxyDomain());
-                            return accountInfo;
-
-                        }
-                    } catch (UnknownHostException ex) {
-                        logger.error("Cannot resolve host address " + registrarHost);
-                    }
-                } else {
-                    for (Hop hop : accountInfo.getInboundProxies()) {
-                        if (hop != null) {
-                           if ( logger.isDebugEnabled() ) logger.debug("Checking " + hop.getHost() + " port " + hop.getPort());
-                           try {
-                               if (viaHost.equals(InetAddress.getByName(hop.getHost()).getHostAddress())
-                                       && hop.getPort() == port) {
-                                   if ( logger.isDebugEnabled() ) logger.debug("Inbound request from : " + accountInfo.getProxyDomain());
-                                   return accountInfo;
-                               }
-                           } catch ( UnknownHostException ex) {
-                               logger.error("Cannot resolve host address " + hop.getHost());
-                           }
-                        }
-                    }
-                }
+            if ( logger.isDebugEnabled() ) logger.debug("viaHost = " + host + "viaPort = " + port);
+            /*
+             * A host name is matched against the names of the ITSP proxies, it is not resolved
+             * here.
+             */
+            ItspAddressIndex index = addressIndex;
+            ItspAccountInfo accountInfo = IPAddressUtil.isLiteralIPAddress(host) ? index.get(
+                    host, port) : index.getByName(host, port);
+            if (accountInfo != null) {
+                if ( logger.isDebugEnabled() ) logger.debug("found account " + accountInfo.getProxyDomain());
+                return accountInfo;
             }
         } catch (Exception ex) {
             logger.error("unexpected error parsing domain", ex);
@@ -315,7 +305,76 @@ public class AccountManagerImpl implements gov.nist.javax.sip.clientauthutils.Ac
      * Add an ITSP account to the account database ( method is accessed by the digester).
      */
     public void addItspAccount(ItspAccountInfo accountInfo) throws SipXbridgeException {
-        this.itspAccounts.add(accountInfo);
+        if (this.itspAccounts.add(accountInfo)) {
+            accountsChanged();
+        }
+    }
+
+    /**
+     * Remove an ITSP account from the account database.
+     */
+    void removeItspAccount(ItspAccountInfo accountInfo) {
+        if (this.itspAccounts.remove(accountInfo)) {
+            accountsChanged();
+        }
+    }
+
+    private synchronized void accountsChanged() {
+        this.accountIndex = new ItspAccountIndex(this.itspAccounts);
+        if (this.addressIndexer != null) {
+            scheduleAddressIndexRebuild();
+        }
+    }
+
+    /**
+     * Resolve the addresses of the ITSP proxies again in the background. Called when the
+     * accounts or the hops to their registrars change.
+     */
+    void scheduleAddressIndexRebuild() {
+        if (addressIndexRebuildPending.compareAndSet(false, true)) {
+            getAddressIndexer().execute(new Runnable() {
+                public void run() {
+                    try {
+                        rebuildAddressIndex();
+                    } catch (Exception ex) {
+                        logger.error("Problem resolving ITSP addresses", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private ItspAddressIndex rebuildAddressIndex() {
+        addressIndexRebuildPending.set(false);
+        ItspAddressIndex index = new ItspAddressIndex(this.itspAccounts);
+        this.addressIndex = index;
+        return index;
+    }
+
+    /*
+     * The thread that resolves the addresses of the ITSP proxies. Also refreshes them
+     * periodically since the DNS answers may change.
+     */
+    private synchronized ScheduledExecutorService getAddressIndexer() {
+        if (addressIndexer == null) {
+            addressIndexer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ItspAddressIndexer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            addressIndexer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        rebuildAddressIndex();
+                    } catch (Exception ex) {
+                        logger.error("Problem resolving ITSP addresses", ex);
+                    }
+                }
+            }, ADDRESS_INDEX_REFRESH_SECONDS, ADDRESS_INDEX_REFRESH_SECONDS, TimeUnit.SECONDS);
+        }
+        return addressIndexer;
     }
 
     /*
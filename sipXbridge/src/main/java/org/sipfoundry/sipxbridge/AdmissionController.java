@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import gov.nist.javax.sip.header.extensions.ReplacesHeader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.message.Request;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides which incoming requests are processed when the bridge is overloaded.
+ *
+ * Requests within a dialog ( and ACK, CANCEL, BYE, PRACK ) are always processed: they finish or
+ * tear down calls that are already using resources. New INVITEs ( and other requests outside a
+ * dialog ) are refused with a 503 and a Retry-After while the bridge is overloaded, before any
+ * B2BUA or relay resources are allocated for them. REGISTERs are rate limited and refused while
+ * the bridge is overloaded; the phones retry their refreshes later.
+ *
+ * The bridge is overloaded when too many requests are being processed at once ( counting the
+ * media setups waiting for the relay ) or when the smoothed processing time is too long. It
+ * stays overloaded until both have dropped to three quarters of their thresholds, so that it
+ * does not flap at the boundary.
+ */
+class AdmissionController {
+
+    private static Logger logger = Logger.getLogger(AdmissionController.class);
+
+    /*
+     * Weight of a new sample in the smoothed processing time is 1 / 2^LATENCY_SHIFT.
+     */
+    private static final int LATENCY_SHIFT = 3;
+
+    /*
+     * The smoothed processing time is ignored when no request was processed for this long (
+     * all new calls were refused ). The next new call then measures it again.
+     */
+    private static final long LATENCY_STALE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    enum Priority {
+        IN_DIALOG, NEW_INVITE, REGISTER, OTHER
+    }
+
+    private final BridgeConfiguration bridgeConfiguration;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong latencyMicros = new AtomicLong();
+
+    private volatile long lastSampleTime;
+
+    private volatile boolean overloaded;
+
+    /*
+     * REGISTER token bucket. Guarded by this.
+     */
+    private double registerTokens;
+
+    private long registerRefillTime = System.nanoTime();
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejectedInvites = new AtomicLong();
+
+    private final AtomicLong rejectedRegisters = new AtomicLong();
+
+    private final AtomicLong rejectedOther = new AtomicLong();
+
+    private final AtomicLong overloadPeriods = new AtomicLong();
+
+    AdmissionController(BridgeConfiguration bridgeConfiguration) {
+        this.bridgeConfiguration = bridgeConfiguration;
+        this.registerTokens = Math.max(bridgeConfiguration.getRegisterRateLimit(), 0);
+    }
+
+    static Priority classify(Request request) {
+        String method = request.getMethod();
+        if (method.equals(Request.ACK) || method.equals(Request.CANCEL)
+                || method.equals(Request.BYE) || method.equals(Request.PRACK)
+                || SipUtilities.getToTag(request) != null) {
+            return Priority.IN_DIALOG;
+        } else if (method.equals(Request.INVITE)) {
+            return Priority.NEW_INVITE;
+        } else if (method.equals(Request.REGISTER)) {
+            return Priority.REGISTER;
+        } else {
+            return Priority.OTHER;
+        }
+    }
+
+    /**
+     * Decide whether to process a request.
+     *
+     * @return null if the request is to be processed, otherwise the reason phrase of the 503 to
+     *         send.
+     */
+    String admit(Request request) {
+        Priority priority = classify(request);
+        if (priority == Priority.NEW_INVITE && request.getHeader(ReplacesHeader.NAME) == null
+                && isCallLimitReached(SipUtilities.getCallId(request))) {
+            rejectedInvites.incrementAndGet();
+            return "Call limit exceeded -- try later";
+        }
+        return admit(priority);
+    }
+
+    String admit(Priority priority) {
+        if (priority == Priority.IN_DIALOG) {
+            admitted.incrementAndGet();
+            return null;
+        }
+        if (isOverloaded()) {
+            if (priority == Priority.NEW_INVITE) {
+                rejectedInvites.incrementAndGet();
+            } else if (priority == Priority.REGISTER) {
+                rejectedRegisters.incrementAndGet();
+            } else {
+                rejectedOther.incrementAndGet();
+            }
+            return "Gateway is overloaded -- try later";
+        }
+        if (priority == Priority.REGISTER && !takeRegisterToken()) {
+            rejectedRegisters.incrementAndGet();
+            return "REGISTER rate exceeded -- try later";
+        }
+        admitted.incrementAndGet();
+        return null;
+    }
+
+    /*
+     * A new call that would be refused by the B2BUA factory anyway. Refusing it here avoids
+     * creating its dialog and server side state first.
+     */
+    private boolean isCallLimitReached(String callId) {
+        int callLimit = bridgeConfiguration.getCallLimit();
+        BackToBackUserAgentFactory factory = Gateway.getBackToBackUserAgentFactory();
+        return callLimit != -1 && factory != null
+                && factory.getBackToBackUserAgent(callId) == null
+                && factory.isCallLimitReached(callLimit);
+    }
+
+    private synchronized boolean takeRegisterToken() {
+        int rateLimit = bridgeConfiguration.getRegisterRateLimit();
+        if (rateLimit == -1) {
+            return true;
+        }
+        long now = System.nanoTime();
+        registerTokens = Math.min(rateLimit, registerTokens + (now - registerRefillTime)
+                * (double) rateLimit / TimeUnit.SECONDS.toNanos(1));
+        registerRefillTime = now;
+        if (registerTokens < 1) {
+            return false;
+        }
+        registerTokens--;
+        return true;
+    }
+
+    /**
+     * @return true if new calls are being refused.
+     */
+    boolean isOverloaded() {
+        int maxPending = bridgeConfiguration.getOverloadMaxPendingRequests();
+        long maxLatency = TimeUnit.MILLISECONDS.toMicros(bridgeConfiguration
+                .getOverloadMaxLatencyMilliseconds());
+        int depth = getQueueDepth();
+        long latency = getLatencyMicros();
+        boolean wasOverloaded = overloaded;
+        boolean isOverloaded;
+        if (wasOverloaded) {
+            isOverloaded = depth * 4 >= maxPending * 3 || latency * 4 >= maxLatency * 3;
+        } else {
+            isOverloaded = depth >= maxPending || latency >= maxLatency;
+        }
+        if (isOverloaded != wasOverloaded) {
+            overloaded = isOverloaded;
+            if (isOverloaded) {
+                overloadPeriods.incrementAndGet();
+                logger.warn("Overloaded -- refusing new calls. pending = " + depth
+                        + " latencyMillis = " + latency / 1000);
+            } else {
+                logger.warn("No longer overloaded -- accepting new calls");
+            }
+        }
+        return isOverloaded;
+    }
+
+    /*
+     * Requests being processed and media setups waiting for a worker.
+     */
+    private int getQueueDepth() {
+        return pending.get() + MediaControl.getQueueDepth();
+    }
+
+    private long getLatencyMicros() {
+        if (System.nanoTime() - lastSampleTime > LATENCY_STALE_NANOS) {
+            return 0;
+        }
+        return latencyMicros.get();
+    }
+
+    /**
+     * Call before processing an admitted request.
+     *
+     * @return the start time to pass to requestFinished.
+     */
+    long requestStarted() {
+        pending.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void requestFinished(long startTime) {
+        long now = System.nanoTime();
+        pending.decrementAndGet();
+        long sample = TimeUnit.NANOSECONDS.toMicros(now - startTime);
+        while (true) {
+            long current = latencyMicros.get();
+            long smoothed = current + ((sample - current) >> LATENCY_SHIFT);
+            if (latencyMicros.compareAndSet(current, smoothed)) {
+                break;
+            }
+        }
+        lastSampleTime = now;
+    }
+
+    /**
+     * @return the Retry-After ( seconds ) of the 503 sent for a refused request.
+     */
+    int getRetryAfter() {
+        return bridgeConfiguration.getOverloadRetryAfterSeconds();
+    }
+
+    /**
+     * @return the requests being processed, the smoothed processing time, whether new calls are
+     *         being refused and how many requests were admitted and refused.
+     */
+    Map<String, Integer> getStatistics() {
+        Map<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        retval.put("pending", pending.get());
+        retval.put("latencyMillis", (int) (getLatencyMicros() / 1000));
+        retval.put("overloaded", overloaded ? 1 : 0);
+        retval.put("overloadPeriods", (int) overloadPeriods.get());
+        retval.put("admitted", (int) admitted.get());
+        retval.put("rejectedInvites", (int) rejectedInvites.get());
+        retval.put("rejectedRegisters", (int) rejectedRegisters.get());
+        retval.put("rejectedOther", (int) rejectedOther.get());
+        return retval;
+    }
+
+}
@@ -20,14 +20,20 @@ import gov.nist.javax.sip.stack.SIPTransaction;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 
 import javax.sdp.SdpParseException;
 import javax.sdp.SessionDescription;
@@ -75,10 +81,10 @@ import javax.sip.message.Response;
 
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.siprouter.ProxyHop;
-import org.sipfoundry.sipxrelay.BridgeInterface;
+import org.sipfoundry.sipxrelay.BridgeImpl;
 import org.sipfoundry.sipxrelay.BridgeState;
 import org.sipfoundry.sipxrelay.KeepaliveMethod;
-import org.sipfoundry.sipxrelay.SymImpl;
+import org.sipfoundry.sipxrelay.Symmitron;
 import org.sipfoundry.sipxrelay.SymmitronClient;
 import org.sipfoundry.sipxrelay.SymmitronException;
 
@@ -177,9 +183,8 @@ public class BackToBackUserAgent implements Comparable {
     private Hop proxyAddress;
 
     /*
-     * This structure is pending garbage collection. There is a scanning thread that runs in the
-     * BackToBackUserAgentFactory that will garbage collect this structure when it is marked
-     * "pendingTermination".
+     * This structure is pending garbage collection. The BackToBackUserAgentFactory garbage
+     * collects this structure a while after it is marked "pendingTermination".
      */
     private boolean pendingTermination;
 
@@ -194,6 +199,27 @@ public class BackToBackUserAgent implements Comparable {
      * Dialogs that are not tracked for garbage collection.
      */
     private HashSet<Dialog> cleanupList = new HashSet<Dialog>();
+
+    /*
+     * The dialog contexts attached to this B2BUA. Whatever is still registered when the B2BUA is
+     * reaped is removed from the dialog context registry.
+     */
+    private final HashSet<DialogContext> dialogContexts = new HashSet<DialogContext>();
+
+    /*
+     * RTP sessions created at the relay ahead of the dialogs that will use them.
+     */
+    private final Queue<RtpSession> preparedRtpSessions = new ConcurrentLinkedQueue<RtpSession>();
+
+    /*
+     * RTP sessions created at the relay for a given dialog, with their destination set.
+     */
+    private final Map<Dialog, RtpSession> preparedDialogRtpSessions = new ConcurrentHashMap<Dialog, RtpSession>();
+
+    /*
+     * The initial INVITE waiting for its RTP sessions.
+     */
+    private volatile ProcessInviteContinuationData pendingInvite;
     
     
 
@@ -204,7 +230,7 @@ public class BackToBackUserAgent implements Comparable {
     // Inner classes.
     // ////////////////////////////////////////////////////////////////////////
 
-    public class DelayedByeSender extends TimerTask {
+    public class DelayedByeSender extends GatewayTimerTask {
         Dialog dialog;
         ServerTransaction serverTransaction;
 
@@ -265,7 +291,10 @@ public class BackToBackUserAgent implements Comparable {
                     + this.proxyAddress.getPort() + " relay load = " + load);
         }
 
-        BridgeInterface bridge = symmitronClient.createBridge();
+        /*
+         * The bridge is created at the relay along with the first sym.
+         */
+        BridgeImpl bridge = symmitronClient.createDeferredBridge();
         this.symmitronServerHandle = symmitronClient.getServerHandle();
         rtpBridge = new RtpBridge(request, bridge);
         if (itspAccountInfo == null || !itspAccountInfo.stripPrivateHeaders()) {
@@ -318,17 +347,13 @@ public class BackToBackUserAgent implements Comparable {
 
             if (Gateway.getLanProvider() == provider) {
                 if (dialogContext.getRtpSession() == null) {
-                        SymImpl symImpl = symmitronClient.createEvenSym();
-                        rtpSession = new RtpSession(symImpl);
-                        this.rtpBridge.addSym(rtpSession);
+                        rtpSession = this.takeRtpSession(dialog);
                         dialogContext.setRtpSession(rtpSession);
                    
                 }
             } else {
-                SymImpl symImpl = symmitronClient.createEvenSym();
-                rtpSession = new RtpSession(symImpl);
-                this.rtpBridge.addSym(rtpSession);
-                rtpSession.getReceiver().setGlobalAddress(symmitronClient.getPublicAddress());
+                rtpSession = this.takeRtpSession(dialog);
+                rtpSession.getReceiver().setGlobalAddress(symmitronClient.getLastKnownPublicAddress());
                 rtpSession.getReceiver().setUseGlobalAddressing(
                             dialogContext.getItspInfo() == null
                                     || dialogContext.getItspInfo().isGlobalAddressingUsed());
@@ -338,6 +363,171 @@ public class BackToBackUserAgent implements Comparable {
         return dialogContext.getRtpSession();
     }
 
+    /*
+     * Use an RTP session prepared by forwardInvite if there is one.
+     */
+    private RtpSession takeRtpSession(Dialog dialog) {
+        RtpSession rtpSession = this.preparedDialogRtpSessions.remove(dialog);
+        if (rtpSession == null) {
+            rtpSession = this.preparedRtpSessions.poll();
+        }
+        return rtpSession != null ? rtpSession : this.rtpBridge.createRtpSession();
+    }
+
+    /*
+     * The sym spec of the call leg the INVITE came in on: the media address of the caller is
+     * in the INVITE. Null if the INVITE has no usable SDP.
+     */
+    private static Map<String, Object> createInboundSymSpec(Request request,
+            ItspAccountInfo itspAccountInfo) {
+        if (request.getRawContent() == null) {
+            return null;
+        }
+        try {
+            SessionDescription sessionDescription = SipUtilities.getSessionDescription(request);
+            String ipAddress = SipUtilities.getSessionDescriptionMediaIpAddress(sessionDescription);
+            if (ipAddress == null) {
+                return null;
+            }
+            int port = SipUtilities.getSessionDescriptionMediaPort(sessionDescription);
+            KeepaliveMethod keepaliveMethod = itspAccountInfo != null ? itspAccountInfo
+                    .getRtpKeepaliveMethod() : KeepaliveMethod.NONE;
+            Map<String, Object> symSpec = SymmitronClient.createSymSpec(ipAddress, port, Gateway
+                    .getMediaKeepaliveMilisec(), keepaliveMethod);
+            /*
+             * The caller sends with the payload types it offers.
+             */
+            symSpec.put(Symmitron.RTP_MAP, SipUtilities.getRtpClockRates(sessionDescription));
+            return symSpec;
+        } catch (Exception ex) {
+            logger.debug("No usable SDP in the INVITE", ex);
+            return null;
+        }
+    }
+
+    /*
+     * Whether createRtpSession would find an existing session for the dialog.
+     */
+    private boolean hasRtpSession(Dialog dialog) {
+        DialogContext dialogContext = DialogContext.get(dialog);
+        if (dialogContext == null) {
+            return false;
+        }
+        if (dialogContext.getRtpSession() != null) {
+            return true;
+        }
+        String clid = dialogContext.getCallLegId();
+        for (Dialog dlg : this.dialogTable) {
+            DialogContext context = DialogContext.get(dlg);
+            if (context != null && context.getRtpSession() != null
+                    && context.getCallLegId().equals(clid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forward an initial INVITE to the ITSP or to the sipx proxy.
+     *
+     * The RTP sessions of both call legs are first created at the relay in a single round trip
+     * on a media control thread. The INVITE is then forwarded from that thread, so a slow relay
+     * does not hold up the SIP thread. INVITEs that reuse existing RTP sessions ( spirals,
+     * INVITEs with Replaces ) are forwarded right away.
+     *
+     * @param continuation -- the INVITE and where to send it.
+     */
+    void forwardInvite(final ProcessInviteContinuationData continuation) throws SipException {
+        final ServerTransaction serverTransaction = continuation.getServerTransaction();
+        Request request = serverTransaction.getRequest();
+        int count = 0;
+        if (request.getHeader(ReplacesHeader.NAME) == null
+                && !SipUtilities.isOriginatorSipXbridge(request)) {
+            count = this.hasRtpSession(serverTransaction.getDialog()) ? 1 : 2;
+        }
+        if (count == 0 || !this.preparedRtpSessions.isEmpty()
+                || !this.preparedDialogRtpSessions.isEmpty()) {
+            continuation.resume();
+            return;
+        }
+        /*
+         * When both legs are new the caller's media address is already known: its sym gets its
+         * destination and keepalive, and the bridge is started, in the same request.
+         */
+        final Dialog inboundDialog = serverTransaction.getDialog();
+        Map[] symSpecs = new Map[count];
+        for (int i = 0; i < count; i++) {
+            symSpecs[i] = new HashMap<String, Object>();
+        }
+        Map<String, Object> inboundSymSpec = count == 2 ? createInboundSymSpec(request,
+                continuation.getItspAccountInfo()) : null;
+        final boolean inboundPrepared = inboundSymSpec != null && inboundDialog != null;
+        if (inboundPrepared) {
+            symSpecs[0] = inboundSymSpec;
+        }
+        /*
+         * The caller can CANCEL once it has seen a provisional response, so the INVITE must be
+         * found pending by then.
+         */
+        this.pendingInvite = continuation;
+        try {
+            CallControlUtilities.sendTryingResponse(serverTransaction);
+        } catch (SipException ex) {
+            this.pendingInvite = null;
+            throw ex;
+        }
+        this.rtpBridge.createRtpSessionsAsync(symSpecs, inboundPrepared,
+                new MediaControl.Completion<List<RtpSession>>() {
+                    public void completed(Future<List<RtpSession>> future) {
+                        try {
+                            List<RtpSession> rtpSessions = MediaControl.join(future);
+                            if (inboundPrepared) {
+                                preparedDialogRtpSessions.put(inboundDialog, rtpSessions.get(0));
+                                rtpSessions = rtpSessions.subList(1, rtpSessions.size());
+                            }
+                            preparedRtpSessions.addAll(rtpSessions);
+                        } catch (RuntimeException ex) {
+                            logger.error("Could not create the RTP sessions", ex);
+                            if (continuation.cancel()) {
+                                CallControlUtilities.sendServiceUnavailableError(
+                                        serverTransaction, ex);
+                            }
+                            pendingInvite = null;
+                            return;
+                        }
+                        resumePendingInvite(continuation);
+                    }
+                });
+    }
+
+    /**
+     * Forward an INVITE whose RTP sessions are ready. It stays pending until it has been sent:
+     * a CANCEL that comes in meanwhile waits for the forward in cancelPendingInvite and then
+     * cancels the forwarded INVITE.
+     */
+    void resumePendingInvite(ProcessInviteContinuationData continuation) {
+        try {
+            continuation.resume();
+        } finally {
+            this.pendingInvite = null;
+        }
+    }
+
+    /**
+     * Drop an INVITE that is waiting for its RTP sessions.
+     *
+     * @return true if the INVITE was pending and will not be forwarded.
+     */
+    boolean cancelPendingInvite(ServerTransaction serverTransaction) {
+        ProcessInviteContinuationData continuation = this.pendingInvite;
+        if (continuation != null && continuation.getServerTransaction() == serverTransaction
+                && continuation.cancel()) {
+            this.pendingInvite = null;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * This method handles an Invite with a replaces header in it. It is invoked for consultative
      * transfers. It does a Dialog splicing and media splicing on the Refer dialog. Here is the
@@ -442,7 +632,7 @@ public class BackToBackUserAgent implements Comparable {
             hisBridge.pause();
 
             Set<RtpSession> hisRtpSessions = hisBridge.getSyms();
-            BridgeInterface bridge = symmitronClient.createBridge();
+            BridgeImpl bridge = symmitronClient.createBridge();
 
             RtpBridge newBridge = new RtpBridge(bridge);
 
@@ -567,7 +757,7 @@ public class BackToBackUserAgent implements Comparable {
         if (this.dialogTable.size() == 1 ) {
             // This could be a stuck call. We can never have a situation
             // Wait for 4 seconds. If we still have no dialogs, we are done.
-            Gateway.getTimer().schedule(new TimerTask() {
+            Gateway.getScheduler().schedule(new GatewayTimerTask() {
                 @Override
                 public void run() {
                     if (dialogTable.size() == 1) {
@@ -606,6 +796,7 @@ public class BackToBackUserAgent implements Comparable {
      * Let go of references early for reduced memory consumption.
      */
     void cleanReferences() {
+        this.removeDialogContexts();
         this.musicOnHoldDialog = null;
         if ( cleanupList != null ) {
             this.cleanupList.clear();
@@ -625,6 +816,31 @@ public class BackToBackUserAgent implements Comparable {
 
     
 
+    /**
+     * Record a dialog context attached to this B2BUA.
+     */
+    synchronized void addDialogContext(DialogContext dialogContext) {
+        this.dialogContexts.add(dialogContext);
+    }
+
+    /*
+     * Remove the dialog contexts of this B2BUA that were not removed when their dialog
+     * terminated.
+     */
+    private void removeDialogContexts() {
+        List<DialogContext> contexts;
+        synchronized (this) {
+            contexts = new ArrayList<DialogContext>(this.dialogContexts);
+            this.dialogContexts.clear();
+        }
+        for (DialogContext dialogContext : contexts) {
+            if (DialogContext.getRegistry().remove(dialogContext)) {
+                logger.warn("Removed leaked dialog context created at "
+                        + dialogContext.getCreationPointStackTrace());
+            }
+        }
+    }
+
     /**
      * Add a dialog entry to the b2bua. This implies that the given dialog holds a pointer to this
      * structure.
@@ -649,8 +865,7 @@ public class BackToBackUserAgent implements Comparable {
 
         this.dialogTable.add(dialog);
         dialogContext.recordInsertionPoint();
-        String callId = dialog.getCallId().getCallId();
-        this.myCallIds.add(callId);
+        this.addCallId(dialog.getCallId().getCallId());
         dialogContext.setBackToBackUserAgent(this);
         if ( logger.isDebugEnabled()) {
         	if ( logger.isDebugEnabled() ) {
@@ -667,6 +882,23 @@ public class BackToBackUserAgent implements Comparable {
 
     }
 
+    /**
+     * Associate a call id with this structure so that inbound dialog forming requests with that
+     * call id are routed here.
+     */
+    synchronized void addCallId(String callId) {
+        if (this.myCallIds.add(callId)) {
+            BackToBackUserAgentFactory.getInstance().addCallId(callId, this);
+        }
+    }
+
+    /**
+     * @return a copy of the call ids associated with this structure.
+     */
+    synchronized Collection<String> getCallIds() {
+        return new ArrayList<String>(this.myCallIds);
+    }
+
     /**
      * Add a dialog to the cleanup list. This is the list we clean up after all external dialog
      * references are gone.
@@ -2271,7 +2503,7 @@ public class BackToBackUserAgent implements Comparable {
                 	 TransactionContext transactionContext = new TransactionContext(cancelCtx,Operation.CANCEL_INVITE);
                 	 cancelCtx.sendRequest();
                 }
-                Gateway.getTimer().schedule(new DelayedByeSender(peer, st), 1000);
+                Gateway.getScheduler().schedule(new DelayedByeSender(peer, st), 1000);
                 Response response = SipUtilities.createResponse(st, Response.OK);
                 try {
 					st.sendResponse(response);
@@ -2483,7 +2715,11 @@ public class BackToBackUserAgent implements Comparable {
     }
 
     void setPendingTermination(boolean pendingTermination) {
+        boolean wasPending = this.pendingTermination;
         this.pendingTermination = pendingTermination;
+        if (pendingTermination && !wasPending) {
+            BackToBackUserAgentFactory.getInstance().scheduleRemoval(this);
+        }
     }
 
     /**
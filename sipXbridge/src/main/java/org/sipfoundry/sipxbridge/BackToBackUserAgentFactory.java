@@ -10,14 +10,13 @@
 
 package org.sipfoundry.sipxbridge;
 
-import gov.nist.javax.sip.SipStackExt;
-
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sip.Dialog;
-import javax.sip.DialogState;
 import javax.sip.ServerTransaction;
 import javax.sip.SipProvider;
 import javax.sip.header.ViaHeader;
@@ -38,56 +37,57 @@ public class BackToBackUserAgentFactory {
 	private static final Logger logger = Logger
 			.getLogger(BackToBackUserAgentFactory.class);
 	
-	private ConcurrentLinkedQueue<BackToBackUserAgent> backToBackUserAgentTable = new ConcurrentLinkedQueue<BackToBackUserAgent> ();
+	/*
+	 * How long a B2BUA that is pending termination is kept around so that retries of a
+	 * declined call can be detected.
+	 */
+	private static final long REAP_DELAY = 10 * 1000;
+
+	/*
+	 * The active B2BUAs.
+	 */
+	private final Set<BackToBackUserAgent> backToBackUserAgentTable = Collections
+			.newSetFromMap(new ConcurrentHashMap<BackToBackUserAgent, Boolean>());
+
+	/*
+	 * The B2BUAs indexed by the call ids of their dialogs.
+	 */
+	private final ConcurrentHashMap<String, BackToBackUserAgent> callIdTable = new ConcurrentHashMap<String, BackToBackUserAgent>();
+
+	/*
+	 * The number of B2BUAs that are active or being created. Checked against the call limit.
+	 */
+	private final AtomicInteger callCount = new AtomicInteger();
 
     private static BackToBackUserAgentFactory instance;
 	
-	class Scanner extends TimerTask {
+	/*
+	 * Garbage collects a B2BUA that was marked pending termination.
+	 */
+	class Reaper extends GatewayTimerTask {
+	    private final BackToBackUserAgent b2bua;
+
+	    Reaper(BackToBackUserAgent b2bua) {
+	        this.b2bua = b2bua;
+	    }
 
 	    @Override
 	    public void run() {
 	        try {
-	            Iterator<BackToBackUserAgent> iter = backToBackUserAgentTable.iterator();
-	            boolean removed = false;
-	            while( iter.hasNext() ) {
-	                BackToBackUserAgent b2bua = iter.next();
-	                if ( b2bua.isPendingTermination() ) {
-	                    b2bua.cleanReferences();
-	                    if ( logger.isDebugEnabled() ) logger.debug("Removing BackToBackUserAgent");
-	                    iter.remove();
-	                    removed = true;
-	                }
-	            }
-	            /*
-	             * Check for dialog leaks. This us useful for unit testing.
-	             */
-	            if ( logger.isDebugEnabled() && removed ) {
-	                if ( logger.isDebugEnabled() ) logger.debug("Dialog Table : ");
-	                for (Dialog dialog : ( (SipStackExt) ProtocolObjects.getSipStack()).getDialogs() ) {
-	                    if ( logger.isDebugEnabled() ) logger.debug("Dialog " + dialog + " dialogState = " + dialog.getState() ); 
-	                    if ( dialog.getState() != DialogState.TERMINATED ) {
-	                        if ( DialogContext.get(dialog) != null ) {
-	                            if ( logger.isDebugEnabled() ) logger.debug("Dialog was allocated at " + DialogContext.get(dialog).getCreationPointStackTrace());
-	                        } else {
-	                            if ( logger.isDebugEnabled() ) logger.debug("Null dialog context!");
-	                        }
-	                    }
-	                }
+	            if (removeBackToBackUserAgent(b2bua)) {
+	                if ( logger.isDebugEnabled() ) logger.debug("Removing BackToBackUserAgent");
+	                b2bua.cleanReferences();
 	            }
 	        } catch (Exception ex) {
 	            logger.error("Exception caught in Timer task",ex);
 	        }
-
 	    }
-
-
 	}
 	
 	private BackToBackUserAgentFactory() {
-	    Gateway.getTimer().schedule(new Scanner(), 10*1000, 10*1000);
 	}
 	
-	public static BackToBackUserAgentFactory getInstance() {
+	public static synchronized BackToBackUserAgentFactory getInstance() {
 	    if (instance == null ) {
 	        instance = new BackToBackUserAgentFactory();
 	    }
@@ -154,16 +154,7 @@ public class BackToBackUserAgentFactory {
 			if (dialogContext == null) {
 			    String callId = SipUtilities.getCallId(request);
 
-			    /*
-			     * Linear search here but avoids having to keep a reference to 
-			     * the b2bua here. Keeping a reference can lead to reference management
-			     * problems ( leaks ) and hence this quick search is worthwhile.
-			     */
-			    for (BackToBackUserAgent backtobackua : backToBackUserAgentTable) {
-			        if (backtobackua.managesCallId(callId)) {
-			            b2bua = backtobackua;
-			        }
-			    }
+			    b2bua = callIdTable.get(callId);
 
 			    /*
 			     * Could not find an existing call so go ahead and create one.
@@ -171,12 +162,18 @@ public class BackToBackUserAgentFactory {
 			     * result in throwing an exception which will, in turn be reported
 			     * as a Server Failure to the calling party.
 			     */
-			    if (b2bua == null && 
-			            (Gateway.getBridgeConfiguration().getCallLimit() == -1 ||
-			                    backToBackUserAgentTable.size() < Gateway.getBridgeConfiguration().getCallLimit())) {
-			        b2bua = new BackToBackUserAgent(provider, request, dialog,
-			                accountInfo);
-			        this.backToBackUserAgentTable.add(b2bua);
+			    if (b2bua == null && reserveCall(Gateway.getBridgeConfiguration().getCallLimit())) {
+			        boolean created = false;
+			        try {
+			            b2bua = new BackToBackUserAgent(provider, request, dialog,
+			                    accountInfo);
+			            this.addBackToBackUserAgent(b2bua);
+			            created = true;
+			        } finally {
+			            if (!created) {
+			                callCount.decrementAndGet();
+			            }
+			        }
 			    }
 
 			    /*
@@ -207,20 +204,67 @@ public class BackToBackUserAgentFactory {
 	
 	
 
+    /**
+     * Reserve room for a new B2BUA.
+     *
+     * @param callLimit -- the maximum number of concurrent calls or -1 for no limit.
+     * @return false if the call limit has been reached.
+     */
+    boolean reserveCall(int callLimit) {
+        if (callLimit == -1) {
+            callCount.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int count = callCount.get();
+            if (count >= callLimit) {
+                return false;
+            }
+            if (callCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param callLimit -- the maximum number of concurrent calls or -1 for no limit.
+     * @return true if reserveCall would fail.
+     */
+    boolean isCallLimitReached(int callLimit) {
+        return callLimit != -1 && callCount.get() >= callLimit;
+    }
+
+    /**
+     * Add a B2BUA for which room was reserved with reserveCall.
+     */
+    void addBackToBackUserAgent(BackToBackUserAgent backToBackUserAgent) {
+        backToBackUserAgentTable.add(backToBackUserAgent);
+    }
+
+    /**
+     * Index a B2BUA by one of its call ids. Nothing is indexed if the B2BUA has already been
+     * removed.
+     */
+    void addCallId(String callId, BackToBackUserAgent backToBackUserAgent) {
+        callIdTable.put(callId, backToBackUserAgent);
+        if (!backToBackUserAgentTable.contains(backToBackUserAgent)) {
+            callIdTable.remove(callId, backToBackUserAgent);
+        }
+    }
+
+    /**
+     * Garbage collect a B2BUA that is pending termination once the grace period for
+     * detecting retries has passed.
+     */
+    void scheduleRemoval(BackToBackUserAgent backToBackUserAgent) {
+        Gateway.getScheduler().schedule(new Reaper(backToBackUserAgent), REAP_DELAY);
+    }
+
     /**
     * Get the structure corresponding to a given callId
     */
 	public BackToBackUserAgent getBackToBackUserAgent(String callId) {
-	    /*
-	     * Linear search here but avoids having to keep a reference to 
-	     * the b2bua here. Keeping a reference can lead to reference management
-	     * problems ( leaks ) and hence this quick search is worthwhile.
-	     */
-	    for(BackToBackUserAgent b2bua : this.backToBackUserAgentTable ) {
-	        if ( b2bua.managesCallId(callId)) return b2bua;
-	    }
-
-	    return null;
+	    return callIdTable.get(callId);
 	}
 
    /**
@@ -234,9 +278,17 @@ public class BackToBackUserAgentFactory {
 	 * Remove the B2BUA from the table of B2BUA.
 	 * 
 	 * @param backToBackUserAgent
+	 * @return true if the B2BUA was in the table.
 	 */
-      public void removeBackToBackUserAgent(BackToBackUserAgent backToBackUserAgent) {
-           backToBackUserAgentTable.remove(backToBackUserAgent);
+      public boolean removeBackToBackUserAgent(BackToBackUserAgent backToBackUserAgent) {
+           if (!backToBackUserAgentTable.remove(backToBackUserAgent)) {
+               return false;
+           }
+           callCount.decrementAndGet();
+           for (String callId : backToBackUserAgent.getCallIds()) {
+               callIdTable.remove(callId, backToBackUserAgent);
+           }
+           return true;
       }
 
 
@@ -54,6 +54,10 @@ public class BridgeConfiguration {
     private String sipxSupervisorHost;
     private int sipxSupervisorXmlRpcPort;
     private int callLimit = -1;
+    private int overloadMaxPendingRequests = 200;
+    private int overloadMaxLatencyMilliseconds = 500;
+    private int overloadRetryAfterSeconds = 5;
+    private int registerRateLimit = 50;
     private boolean strictProtocolEnforcement = true;
     private boolean enableBridgeProxyRelay = false;
     private static Logger logger = Logger.getLogger(BridgeConfiguration.class);
@@ -535,6 +539,53 @@ public class BridgeConfiguration {
         return callLimit;
     }
 
+    /**
+     * @param maxPending -- the number of requests being processed ( including media setups
+     *        waiting for the relay ) above which new calls are refused.
+     */
+    public void setOverloadMaxPendingRequests(int maxPending) {
+        this.overloadMaxPendingRequests = maxPending;
+    }
+
+    public int getOverloadMaxPendingRequests() {
+        return overloadMaxPendingRequests;
+    }
+
+    /**
+     * @param maxLatency -- the smoothed request processing time above which new calls are
+     *        refused.
+     */
+    public void setOverloadMaxLatencyMilliseconds(int maxLatency) {
+        this.overloadMaxLatencyMilliseconds = maxLatency;
+    }
+
+    public int getOverloadMaxLatencyMilliseconds() {
+        return overloadMaxLatencyMilliseconds;
+    }
+
+    /**
+     * @param retryAfter -- the Retry-After of the 503 sent for refused requests.
+     */
+    public void setOverloadRetryAfterSeconds(int retryAfter) {
+        this.overloadRetryAfterSeconds = retryAfter;
+    }
+
+    public int getOverloadRetryAfterSeconds() {
+        return overloadRetryAfterSeconds;
+    }
+
+    /**
+     * @param rateLimit -- the number of REGISTER requests per second forwarded to the ITSPs
+     *        or -1 for no limit.
+     */
+    public void setRegisterRateLimit(int rateLimit) {
+        this.registerRateLimit = rateLimit;
+    }
+
+    public int getRegisterRateLimit() {
+        return registerRateLimit;
+    }
+
     public boolean isStrictProtocolEnforcement() {
        return this.strictProtocolEnforcement ;
     }
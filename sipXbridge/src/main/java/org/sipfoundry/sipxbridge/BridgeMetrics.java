@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+import org.sipfoundry.commons.xmlrpc.XmlRpcConnectionPool;
+
+/**
+ * The metrics of the bridge: counters and latency histograms recorded on the call processing
+ * path, and the statistics the bridge components already keep ( dialog contexts, timers, media
+ * control, relay connections ), sampled when the metrics are read.
+ *
+ * The metrics are read over HTTP ( GET /metrics on the XML-RPC port, in the Prometheus text
+ * format ) and over JMX ( org.sipfoundry.sipxbridge:type=Metrics ).
+ */
+public final class BridgeMetrics implements DynamicMBean {
+
+    private static Logger logger = Logger.getLogger(BridgeMetrics.class);
+
+    static final String OBJECT_NAME = "org.sipfoundry.sipxbridge:type=Metrics";
+
+    private static final String PREFIX = "sipxbridge_";
+
+    /*
+     * Label values beyond this many in one family are counted under "other" so that a peer
+     * cannot grow the registry without bound.
+     */
+    private static final int MAX_LABEL_VALUES = 100;
+
+    private static final String OTHER = "other";
+
+    private static final List<Family< ? >> families = new CopyOnWriteArrayList<Family< ? >>();
+
+    /**
+     * Metrics of one name, one per value of the label ( if the family has a label ).
+     */
+    abstract static class Family<T> {
+        final String name;
+
+        final String labelName;
+
+        final String help;
+
+        final ConcurrentHashMap<String, T> children = new ConcurrentHashMap<String, T>();
+
+        Family(String name, String labelName, String help) {
+            this.name = name;
+            this.labelName = labelName;
+            this.help = help;
+            families.add(this);
+        }
+
+        abstract T create();
+
+        abstract String getType();
+
+        /**
+         * @param labelValue -- the label value. Null or empty for a family without a label.
+         */
+        T get(String labelValue) {
+            String key = labelValue == null ? "" : labelValue;
+            T child = children.get(key);
+            if (child == null) {
+                if (children.size() >= MAX_LABEL_VALUES) {
+                    key = OTHER;
+                    child = children.get(key);
+                    if (child != null) {
+                        return child;
+                    }
+                }
+                T created = create();
+                child = children.putIfAbsent(key, created);
+                if (child == null) {
+                    child = created;
+                }
+            }
+            return child;
+        }
+
+        T get() {
+            return get(null);
+        }
+
+        String getLabels(String labelValue) {
+            return labelName == null || labelValue.length() == 0 ? "" : labelName + "=\""
+                    + escape(labelValue) + "\"";
+        }
+    }
+
+    static final class CounterFamily extends Family<AtomicLong> {
+        CounterFamily(String name, String labelName, String help) {
+            super(name, labelName, help);
+        }
+
+        AtomicLong create() {
+            return new AtomicLong();
+        }
+
+        String getType() {
+            return "counter";
+        }
+    }
+
+    static final class HistogramFamily extends Family<LatencyHistogram> {
+        HistogramFamily(String name, String labelName, String help) {
+            super(name, labelName, help);
+        }
+
+        LatencyHistogram create() {
+            return new LatencyHistogram();
+        }
+
+        String getType() {
+            return "histogram";
+        }
+    }
+
+    static final HistogramFamily ITSP_INVITE_SETUP = new HistogramFamily(
+            "itsp_invite_setup_seconds", "account",
+            "From the INVITE sent to the ITSP to its 200 OK");
+
+    static final CounterFamily ITSP_INVITE_FAILURES = new CounterFamily(
+            "itsp_invite_failures_total", "account",
+            "INVITEs to the ITSP that got a final error response");
+
+    static final CounterFamily AUTH_CHALLENGES = new CounterFamily("auth_challenges_total",
+            "account", "401 and 407 responses received");
+
+    static final HistogramFamily REQUEST_PROCESSING = new HistogramFamily(
+            "request_processing_seconds", "method",
+            "Time spent in CallControlManager processing a request");
+
+    static final HistogramFamily RESPONSE_PROCESSING = new HistogramFamily(
+            "response_processing_seconds", "method",
+            "Time spent in CallControlManager processing a response");
+
+    static final HistogramFamily TIMER_LAG = new HistogramFamily("timer_lag_seconds", null,
+            "Time between the expiry of a timer and the start of its task");
+
+    private static final BridgeMetrics instance = new BridgeMetrics();
+
+    private static boolean registered;
+
+    private BridgeMetrics() {
+    }
+
+    /**
+     * Register with the platform MBean server.
+     */
+    static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (Exception ex) {
+            logger.warn("Could not register metrics MBean", ex);
+        }
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.US, "%.6f", micros / 1e6);
+    }
+
+    private static String series(String name, String labels) {
+        return labels.length() == 0 ? name : name + "{" + labels + "}";
+    }
+
+    private static String join(String labels, String label) {
+        return labels.length() == 0 ? label : labels + "," + label;
+    }
+
+    /*
+     * The statistics maps of the components. They are read when the metrics are read.
+     */
+    private static Map<String, Map<String, Integer>> sampleStatistics() {
+        Map<String, Map<String, Integer>> retval = new LinkedHashMap<String, Map<String, Integer>>();
+        if (Gateway.getBackToBackUserAgentFactory() != null) {
+            Map<String, Integer> b2buas = new LinkedHashMap<String, Integer>();
+            b2buas.put("live", Gateway.getBackToBackUserAgentFactory()
+                    .getBackToBackUserAgentCount());
+            retval.put("back_to_back_user_agents", b2buas);
+        }
+        retval.put("dialog_contexts", DialogContext.getStatistics());
+        retval.put("timers", Gateway.getScheduler().getStatistics());
+        retval.put("media_control", MediaControl.getStatistics());
+        retval.put("relay_connections", XmlRpcConnectionPool.getInstance().getStatistics());
+        if (Gateway.getAdmissionController() != null) {
+            retval.put("admission", Gateway.getAdmissionController().getStatistics());
+        }
+        return retval;
+    }
+
+    /**
+     * Write all the metrics in the Prometheus text exposition format.
+     */
+    static void writeText(PrintWriter writer) {
+        for (Family< ? > family : families) {
+            String name = PREFIX + family.name;
+            writer.println("# HELP " + name + " " + family.help);
+            writer.println("# TYPE " + name + " " + family.getType());
+            for (Map.Entry<String, ? > entry : family.children.entrySet()) {
+                String labels = family.getLabels(entry.getKey());
+                if (entry.getValue() instanceof AtomicLong) {
+                    writer.println(series(name, labels) + " "
+                            + ((AtomicLong) entry.getValue()).get());
+                } else {
+                    writeHistogram(writer, name, labels, (LatencyHistogram) entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Integer>> group : sampleStatistics().entrySet()) {
+            String name = PREFIX + group.getKey();
+            writer.println("# TYPE " + name + " gauge");
+            for (Map.Entry<String, Integer> entry : group.getValue().entrySet()) {
+                writer.println(name + "{statistic=\"" + escape(entry.getKey()) + "\"} "
+                        + entry.getValue());
+            }
+        }
+        String name = PREFIX + "relay_rpc";
+        writer.println("# TYPE " + name + " gauge");
+        for (Map.Entry<String, Map<String, Integer>> method : XmlRpcConnectionPool.getInstance()
+                .getMethodStatistics().entrySet()) {
+            for (Map.Entry<String, Integer> entry : method.getValue().entrySet()) {
+                writer.println(name + "{method=\"" + escape(method.getKey())
+                        + "\",statistic=\"" + escape(entry.getKey()) + "\"} "
+                        + entry.getValue());
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeHistogram(PrintWriter writer, String name, String labels,
+            LatencyHistogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+            cumulative += histogram.getBucketCount(i);
+            writer.println(name + "_bucket{"
+                    + join(labels, "le=\"" + seconds(LatencyHistogram.BOUNDS[i]) + "\"") + "} "
+                    + cumulative);
+        }
+        cumulative += histogram.getBucketCount(LatencyHistogram.BOUNDS.length);
+        writer.println(name + "_bucket{" + join(labels, "le=\"+Inf\"") + "} " + cumulative);
+        writer.println(series(name + "_sum", labels) + " "
+                + seconds(histogram.getTotalMicros()));
+        writer.println(series(name + "_count", labels) + " " + cumulative);
+    }
+
+    /**
+     * @return the metrics as JMX attributes: counters and statistics as they are, histograms
+     *         summarized ( count, mean, 50th, 95th and 99th percentile and maximum in
+     *         milliseconds ).
+     */
+    static Map<String, Number> getAttributeValues() {
+        Map<String, Number> retval = new LinkedHashMap<String, Number>();
+        for (Family< ? > family : families) {
+            for (Map.Entry<String, ? > entry : family.children.entrySet()) {
+                String labels = family.getLabels(entry.getKey());
+                if (entry.getValue() instanceof AtomicLong) {
+                    retval.put(series(family.name, labels),
+                            ((AtomicLong) entry.getValue()).get());
+                } else {
+                    LatencyHistogram histogram = (LatencyHistogram) entry.getValue();
+                    String series = series(family.name.replaceFirst("_seconds$", ""), labels);
+                    long count = histogram.getCount();
+                    retval.put(series + ".count", count);
+                    retval.put(series + ".meanMillis", count == 0 ? 0.0 : histogram
+                            .getTotalMicros()
+                            / 1000.0 / count);
+                    retval.put(series + ".p50Millis", histogram.getPercentileMicros(50) / 1000.0);
+                    retval.put(series + ".p95Millis", histogram.getPercentileMicros(95) / 1000.0);
+                    retval.put(series + ".p99Millis", histogram.getPercentileMicros(99) / 1000.0);
+                    retval.put(series + ".maxMillis", histogram.getMaximumMicros() / 1000.0);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Integer>> group : sampleStatistics().entrySet()) {
+            for (Map.Entry<String, Integer> entry : group.getValue().entrySet()) {
+                retval.put(group.getKey() + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, Integer>> method : XmlRpcConnectionPool.getInstance()
+                .getMethodStatistics().entrySet()) {
+            for (Map.Entry<String, Integer> entry : method.getValue().entrySet()) {
+                retval.put("relay_rpc{method=\"" + method.getKey() + "\"}." + entry.getKey(),
+                        entry.getValue());
+            }
+        }
+        return retval;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = getAttributeValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = getAttributeValues();
+        AttributeList retval = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                retval.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return retval;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read only attribute " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * The attributes are the metrics there are when the info is asked for: label values appear
+     * as the bridge sees them.
+     */
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> entry : getAttributeValues().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass()
+                    .getName(), entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(BridgeMetrics.class.getName(), "sipXbridge metrics", attributes
+                .toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+}
@@ -25,7 +25,6 @@ import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
-import java.util.TimerTask;
 import java.util.Iterator;
 
 import javax.sdp.SessionDescription;
@@ -86,7 +85,7 @@ class CallControlManager implements SymmitronResetHandler {
      * and re-tries the INVITE.
      *
      */
-    class RequestPendingTimerTask extends TimerTask {
+    class RequestPendingTimerTask extends GatewayTimerTask {
 
         private final TransactionContext transactionContext;
 
@@ -146,7 +145,7 @@ class CallControlManager implements SymmitronResetHandler {
      * Timer task to tear down the replaced dialog in case the other end went away and left us
      * hanging.
      */
-    class TearDownReplacedDialogTimerTask extends TimerTask {
+    class TearDownReplacedDialogTimerTask extends GatewayTimerTask {
         Dialog replacedDialog;
 
         public TearDownReplacedDialogTimerTask(Dialog dialog) {
@@ -169,7 +168,7 @@ class CallControlManager implements SymmitronResetHandler {
         }
     }
 
-    class NotifyReferDialogTimerTask extends TimerTask {
+    class NotifyReferDialogTimerTask extends GatewayTimerTask {
 
         private final Request referRequest;
         private final Dialog referDialog;
@@ -619,10 +618,12 @@ class CallControlManager implements SymmitronResetHandler {
                 /*
                  * Send the call setup invite out.
                  */
-                btobua.sendInviteToItsp(requestEvent, serverTransaction, toDomain);
+                btobua.forwardInvite(new ProcessInviteContinuationData(requestEvent,
+                        serverTransaction, btobua, toDomain, itspAccount));
             } else {
                 if ( logger.isDebugEnabled() ) logger.debug("request received from Wan side");
-                btobua.sendInviteToSipxProxy(requestEvent, serverTransaction);
+                btobua.forwardInvite(new ProcessInviteContinuationData(requestEvent,
+                        serverTransaction, btobua, null, itspAccount));
 
             }
 
@@ -1118,6 +1119,16 @@ class CallControlManager implements SymmitronResetHandler {
                         inviteServerTransaction.getState()));
                 return;
             }
+            /*
+             * The INVITE may not have been forwarded yet ( its media is being set up ).
+             */
+            BackToBackUserAgent b2bua = DialogContext.getBackToBackUserAgent(dialog);
+            if (b2bua != null && b2bua.cancelPendingInvite(inviteServerTransaction)) {
+                Response requestTerminatedResponse = SipUtilities.createResponse(
+                        inviteServerTransaction, Response.REQUEST_TERMINATED);
+                inviteServerTransaction.sendResponse(requestTerminatedResponse);
+                return;
+            }
             TransactionContext tad = (TransactionContext) inviteServerTransaction
                     .getApplicationData();
             if (tad == null) {
@@ -1678,7 +1689,7 @@ class CallControlManager implements SymmitronResetHandler {
          * already have been done, we schedule a timer to do so in due course.
          */
         if (response.getStatusCode() == Response.OK) {
-            Gateway.getTimer().schedule(new TearDownReplacedDialogTimerTask(replacedDialog),
+            Gateway.getScheduler().schedule(new TearDownReplacedDialogTimerTask(replacedDialog),
                     30 * 1000);
         }
 
@@ -2812,7 +2823,7 @@ class CallControlManager implements SymmitronResetHandler {
                  * bad error code and hence this check for BAD_REQUEST.
                  */
                 transactionContext.counter++;
-                Gateway.getTimer()
+                Gateway.getScheduler()
                         .schedule(new RequestPendingTimerTask(transactionContext), 1000);
             } else if (response.getStatusCode() == Response.INTERVAL_TOO_BRIEF) {
                 MinSE minSe = (MinSE) response.getHeader(MinSE.NAME);
@@ -3057,6 +3068,7 @@ class CallControlManager implements SymmitronResetHandler {
      * Process an incoming request.
      */
     void processRequest(RequestEvent requestEvent) {
+        long start = System.nanoTime();
         Request request = requestEvent.getRequest();
         String method = request.getMethod();
         if (method.equals(Request.INVITE)) {
@@ -3073,7 +3085,10 @@ class CallControlManager implements SymmitronResetHandler {
             processRefer(requestEvent);
         } else if (method.equals(Request.PRACK)) {
             processPrack(requestEvent);
+        } else {
+            return;
         }
+        BridgeMetrics.REQUEST_PROCESSING.get(method).recordSince(start);
 
     }
 
@@ -3081,6 +3096,7 @@ class CallControlManager implements SymmitronResetHandler {
      * Process an incoming response
      */
     void processResponse(ResponseEvent responseEvent) {
+        long start = System.nanoTime();
         Response response = responseEvent.getResponse();
         String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME)).getMethod();
         if (method.equals(Request.INVITE)) {
@@ -3095,7 +3111,10 @@ class CallControlManager implements SymmitronResetHandler {
             processReferResponse(responseEvent);
         } else if (method.equals(Request.OPTIONS)) {
             processOptionsResponse(responseEvent);
+        } else {
+            return;
         }
+        BridgeMetrics.RESPONSE_PROCESSING.get(method).recordSince(start);
     }
 
     /**
@@ -105,6 +105,26 @@ public class ConfigurationParser {
                     Integer.class
                 });
 
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "overload-max-pending-requests"),
+                "setOverloadMaxPendingRequests", 0, new Class[] {
+                    Integer.class
+                });
+
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "overload-max-latency-milliseconds"),
+                "setOverloadMaxLatencyMilliseconds", 0, new Class[] {
+                    Integer.class
+                });
+
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "overload-retry-after-seconds"),
+                "setOverloadRetryAfterSeconds", 0, new Class[] {
+                    Integer.class
+                });
+
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "register-rate-limit"),
+                "setRegisterRateLimit", 0, new Class[] {
+                    Integer.class
+                });
+
 
 
         digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "secure-xml-rpc"),
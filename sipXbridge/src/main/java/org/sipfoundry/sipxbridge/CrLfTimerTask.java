@@ -10,7 +10,6 @@ package org.sipfoundry.sipxbridge;
 import gov.nist.javax.sip.ListeningPointExt;
 
 import java.net.InetAddress;
-import java.util.TimerTask;
 
 import javax.sip.SipProvider;
 
@@ -22,7 +21,7 @@ import org.apache.log4j.Logger;
  * @author mranga
  *
  */
-class CrLfTimerTask extends TimerTask {
+class CrLfTimerTask extends GatewayTimerTask {
     private static Logger logger = Logger.getLogger(CrLfTimerTask.class);
     private ItspAccountInfo accountInfo; 
     private SipProvider provider;
@@ -19,10 +19,9 @@ import gov.nist.javax.sip.header.ims.PPreferredIdentityHeader;
 import gov.nist.javax.sip.message.SIPResponse;
 
 import java.text.ParseException;
-import java.util.HashMap;
 import java.util.ListIterator;
-import java.util.Random;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sdp.SessionDescription;
 import javax.sip.ClientTransaction;
@@ -59,7 +58,18 @@ class DialogContext {
 
     private static Logger logger = Logger.getLogger(DialogContext.class);
 
-    private static HashMap<String,DialogContext> dialogContextTable = new HashMap<String,DialogContext>();
+    private static final DialogContextRegistry registry = new DialogContextRegistry();
+
+    /*
+     * Where this context is in its life cycle ( see DialogContextRegistry ).
+     */
+    private final AtomicReference<DialogContextState> state = new AtomicReference<DialogContextState>(
+            DialogContextState.CREATED);
+
+    /*
+     * When this context was created.
+     */
+    private final long creationTime = System.currentTimeMillis();
 
     /*
      * Drives what to do for this dialog when a response is seen for an in-dialog response.
@@ -188,8 +198,6 @@ class DialogContext {
 	private ServerTransaction pendingReInvite;
 
     private MohTimer mohTimer;
-    
-    private static int taskCounter;
 
 
 
@@ -201,7 +209,7 @@ class DialogContext {
     /**
      * The session timer task -- sends Re-INVITE to the associated dialog at specific intervals.
      */
-    class SessionTimerTask extends TimerTask {
+    class SessionTimerTask extends GatewayTimerTask {
 
         String method;
 
@@ -309,11 +317,6 @@ class DialogContext {
             if ( logger.isDebugEnabled() ) logger.debug("Terminating session Timer Task for " + dialog);
             this.method = null;
             this.cancel();
-            // Purge the gateway timer every 100 tasks.
-            if (taskCounter % 100 == 0 ) {
-                taskCounter ++;
-                Gateway.getTimer().purge();
-            }
             DialogContext.this.sessionTimer = null;
         }
     }
@@ -324,7 +327,7 @@ class DialogContext {
      * that the INVITE waiting for the ACK can proceed.
      *
      */
-    class MohTimer extends TimerTask {
+    class MohTimer extends GatewayTimerTask {
 
         private ClientTransaction mohCtx;
 
@@ -376,7 +379,7 @@ class DialogContext {
        this.sessionTimer = new SessionTimerTask(Gateway.getSessionTimerMethod());
        this.sessionExpires = sessionTimeout;
        int time = (this.sessionExpires - Gateway.TIMER_ADVANCE) * 1000;
-       Gateway.getTimer().schedule(this.sessionTimer,time,time);
+       Gateway.getScheduler().schedule(this.sessionTimer,time,time);
     }
 
    public boolean isSessionTimerStarted() {
@@ -387,8 +390,7 @@ class DialogContext {
      * Constructor.
      */
     private DialogContext(Dialog dialog) {
-        this.dialogContextId = Integer.toHexString(Math.abs(new Random().nextInt()));
-        dialogContextTable.put(this.dialogContextId, this);
+        this.dialogContextId = registry.register(this);
         this.sessionExpires = Gateway.DEFAULT_SESSION_TIMER_INTERVAL;
         this.dialog = dialog;
         this.creationPointStackTrace = SipUtilities.getStackTrace();
@@ -397,14 +399,28 @@ class DialogContext {
      * Get the dialog context for a given ID.
      */
     public static DialogContext getDialogContext(String id) {
-        return dialogContextTable.get(id);
+        return registry.get(id);
     }
 
     /**
-     * Remove the dialog context.
+     * Remove the dialog context. Removing it again has no effect.
      */
     public static void removeDialogContext(DialogContext dialogContext) {
-        dialogContextTable.remove(dialogContext.dialogContextId);
+        registry.remove(dialogContext);
+    }
+
+    /**
+     * Get the registry of live dialog contexts.
+     */
+    static DialogContextRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Count and age of the live dialog contexts.
+     */
+    static Map<String, Integer> getStatistics() {
+        return registry.getStatistics();
     }
 
     /**
@@ -465,6 +481,7 @@ class DialogContext {
         dialogContext.request = request;
         dialogContext.setBackToBackUserAgent(backToBackUserAgent);
         dialog.setApplicationData(dialogContext);
+        dialogContext.setState(DialogContextState.ATTACHED);
         return dialogContext;
     }
 
@@ -541,6 +558,7 @@ class DialogContext {
      */
     void setBackToBackUserAgent(BackToBackUserAgent backToBackUserAgent) {
         this.backToBackUserAgent = backToBackUserAgent;
+        backToBackUserAgent.addDialogContext(this);
     }
 
     /**
@@ -959,7 +977,7 @@ class DialogContext {
         /*
          * Fire off a timer to reap this guy if he does not die in 8 seconds.
          */
-        Gateway.getTimer().schedule(new TimerTask() {
+        Gateway.getScheduler().schedule(new GatewayTimerTask() {
             @Override
             public void run() {
                 try {
@@ -1014,7 +1032,7 @@ class DialogContext {
      */
     void sendMohInvite(ClientTransaction mohClientTransaction) {
         this.mohTimer = new MohTimer(mohClientTransaction);
-        Gateway.getTimer().schedule(this.mohTimer,
+        Gateway.getScheduler().schedule(this.mohTimer,
                 Gateway.getMusicOnHoldDelayMiliseconds());
     }
 
@@ -1246,6 +1264,7 @@ class DialogContext {
      * Detach this structure from the associated dialog.
      */
     public void detach() {
+      registry.remove(this);
       this.dialog.setApplicationData(null);
       this.dialog = null;
       this.pendingAction = PendingDialogAction.NONE;
@@ -1301,6 +1320,34 @@ class DialogContext {
        return dialogContextId;
     }
 
+    /**
+     * Move this context to a new life cycle state. A REMOVED context stays REMOVED.
+     *
+     * @return true if the state changed.
+     */
+    boolean setState(DialogContextState newState) {
+        while (true) {
+            DialogContextState current = this.state.get();
+            if (current == newState || current == DialogContextState.REMOVED) {
+                return false;
+            }
+            if (this.state.compareAndSet(current, newState)) {
+                return true;
+            }
+        }
+    }
+
+    DialogContextState getState() {
+        return this.state.get();
+    }
+
+    /**
+     * @return the time ( milliseconds ) when this context was created.
+     */
+    long getCreationTime() {
+        return this.creationTime;
+    }
+
     /**
      * Get a pending re-INVITE.
      * @return
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The live dialog contexts, keyed by dialog context id. The id is carried in the Via of the
+ * requests we send so that a request coming back to us can be matched with the dialog that sent
+ * it.
+ *
+ * The registry is accessed from the stack event threads, the gateway timer and the XML-RPC
+ * threads. A context is removed exactly once: the first removal moves it to the REMOVED state and
+ * later ones are ignored.
+ */
+final class DialogContextRegistry {
+
+    private static final Logger logger = Logger.getLogger(DialogContextRegistry.class);
+
+    /*
+     * Upper bounds ( milliseconds ) and names of the age histogram buckets. The last bucket is
+     * open ended.
+     */
+    private static final long[] AGE_BOUNDS = { 60 * 1000L, 5 * 60 * 1000L, 30 * 60 * 1000L,
+            2 * 60 * 60 * 1000L, 8 * 60 * 60 * 1000L };
+
+    private static final String[] AGE_NAMES = { "age<1m", "age<5m", "age<30m", "age<2h",
+            "age<8h", "age>=8h" };
+
+    private final ConcurrentHashMap<String, DialogContext> contextTable = new ConcurrentHashMap<String, DialogContext>();
+
+    private final Random random = new Random();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong removed = new AtomicLong();
+
+    /**
+     * Add a context to the registry.
+     *
+     * @return the id assigned to the context.
+     */
+    String register(DialogContext dialogContext) {
+        String id;
+        do {
+            id = Integer.toHexString(random.nextInt() & Integer.MAX_VALUE);
+        } while (contextTable.putIfAbsent(id, dialogContext) != null);
+        created.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * @return the live context with the given id or null if there is none.
+     */
+    DialogContext get(String id) {
+        return contextTable.get(id);
+    }
+
+    /**
+     * Remove a context from the registry.
+     *
+     * @return true if the context was live.
+     */
+    boolean remove(DialogContext dialogContext) {
+        if (!dialogContext.setState(DialogContextState.REMOVED)) {
+            return false;
+        }
+        contextTable.remove(dialogContext.getDialogContextId(), dialogContext);
+        removed.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("removed dialog context " + dialogContext.getDialogContextId()
+                    + " live = " + contextTable.size());
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of live contexts.
+     */
+    int size() {
+        return contextTable.size();
+    }
+
+    /**
+     * @return the live context count, the created and removed totals and the number of live
+     *         contexts per age bucket.
+     */
+    Map<String, Integer> getStatistics() {
+        int[] histogram = new int[AGE_NAMES.length];
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        int live = 0;
+        for (DialogContext dialogContext : contextTable.values()) {
+            long age = now - dialogContext.getCreationTime();
+            int bucket = 0;
+            while (bucket < AGE_BOUNDS.length && age >= AGE_BOUNDS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+            oldest = Math.max(oldest, age);
+            live++;
+        }
+        Map<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        retval.put("live", live);
+        retval.put("created", (int) created.get());
+        retval.put("removed", (int) removed.get());
+        retval.put("oldestSeconds", (int) (oldest / 1000));
+        for (int i = 0; i < AGE_NAMES.length; i++) {
+            retval.put(AGE_NAMES[i], histogram[i]);
+        }
+        return retval;
+    }
+
+}
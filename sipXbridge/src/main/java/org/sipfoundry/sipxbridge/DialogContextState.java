@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+/**
+ * The life cycle of a DialogContext in the DialogContextRegistry. A context is CREATED when it
+ * is registered, ATTACHED once it is the application data of its dialog and REMOVED when the
+ * dialog terminates or the B2BUA is reaped. A REMOVED context never goes back.
+ */
+enum DialogContextState {
+
+    CREATED, ATTACHED, REMOVED;
+
+}
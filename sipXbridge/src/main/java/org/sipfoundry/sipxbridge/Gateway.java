@@ -15,8 +15,6 @@ import java.io.File;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.PriorityQueue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Handler;
 
@@ -122,9 +120,15 @@ public class Gateway {
     private static final int STUN_PORT = 3478;
 
     /*
-     * A table of timers for re-registration
+     * Runs the session, MOH, registration and keepalive timers.
      */
-    private static Timer timer = new Timer();
+    private static GatewayScheduler scheduler = new GatewayScheduler("GatewayScheduler", 10,
+            1024, 4);
+
+    /*
+     * Refuses new calls when the bridge is overloaded.
+     */
+    private static AdmissionController admissionController;
 
     /*
      * The Music on hold URL
@@ -429,7 +433,7 @@ public class Gateway {
     static void startRediscoveryTimer() {
         int rediscoveryTime = Gateway.accountManager.getBridgeConfiguration()
                 .getGlobalAddressRediscoveryPeriod();
-        TimerTask ttask = new TimerTask() {
+        GatewayTimerTask ttask = new GatewayTimerTask() {
             boolean alarmSent;
 
             @Override
@@ -473,7 +477,7 @@ public class Gateway {
 
         Gateway.discoverAddress();
 
-        Gateway.getTimer().schedule(ttask, rediscoveryTime * 1000,
+        Gateway.getScheduler().schedule(ttask, rediscoveryTime * 1000,
                 rediscoveryTime * 1000);
     }
 
@@ -604,6 +608,8 @@ public class Gateway {
 
             backToBackUserAgentFactory = BackToBackUserAgentFactory.getInstance();
 
+            admissionController = new AdmissionController(Gateway.getBridgeConfiguration());
+
         } catch (Throwable ex) {
             ex.printStackTrace();
             logger.error("Cannot initialize gateway", ex);
@@ -803,7 +809,7 @@ public class Gateway {
          * Remove all the bad accounts from the collection of accounts.
          */
         for (ItspAccountInfo badAccount : invalidItspAccounts) {
-            Gateway.accountManager.getItspAccounts().remove(badAccount);
+            Gateway.accountManager.removeItspAccount(badAccount);
 logger.info("FOUND BAD ACCOUNT");
         }
 
@@ -825,9 +831,9 @@ logger.info("FOUND BAD ACCOUNT");
                                 + itspAccount.getProxyDomain(), ex);
                         // Maybe an route could not be found so start a timer to
                         // keep trying
-                        TimerTask ttask = new RegistrationTimerTask(itspAccount,null,1L);
+                        GatewayTimerTask ttask = new RegistrationTimerTask(itspAccount,null,1L);
                         // Retry after 60 seconds.
-                        timer.schedule(ttask, 60 * 1000);
+                        scheduler.schedule(ttask, 60 * 1000);
                         if (!itspAccount.isAlarmSent()) {
                             Gateway.getAlarmClient()
                                     .raiseAlarm(
@@ -1053,6 +1059,11 @@ logger.info("FOUND BAD ACCOUNT");
          */
         startAddressDiscovery();
 
+        /*
+         * Resolve the ITSP addresses before the first inbound request.
+         */
+        Gateway.accountManager.startAddressIndex();
+
         /*
          * Register the sip listener with the provider.
          */
@@ -1118,8 +1129,6 @@ logger.info("FOUND BAD ACCOUNT");
         Gateway.state = GatewayState.STOPPING;
 
         if ( logger.isDebugEnabled() ) logger.debug("Stopping Gateway");
-        // Purge the timer.
-        getTimer().purge();
         try {
             /*
              * De-register from all ITSP accounts.
@@ -1246,10 +1255,17 @@ logger.info("FOUND BAD ACCOUNT");
     }
 
     /**
-     * @return the timer
+     * @return the scheduler that runs the gateway timers.
+     */
+    static GatewayScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the admission controller ( null until the gateway is initialized ).
      */
-    static Timer getTimer() {
-        return timer;
+    static AdmissionController getAdmissionController() {
+        return admissionController;
     }
 
     /**
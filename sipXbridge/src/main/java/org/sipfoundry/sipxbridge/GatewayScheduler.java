@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the sipXbridge timers ( session timers, MOH timers, registration, CRLF keepalives, ... ).
+ *
+ * The timers are kept in a hashed timing wheel so that scheduling and cancelling are O(1) no
+ * matter how many dialogs are up. The wheel thread only keeps time. Expired tasks run on a small
+ * pool of worker threads so that a slow task ( one that sends a request synchronously, say ) does
+ * not hold up the other timers.
+ *
+ * The bucket lists are only touched by the wheel thread. Schedule and cancel requests from other
+ * threads are queued and picked up at the next tick.
+ */
+class GatewayScheduler implements Runnable {
+
+    private static Logger logger = Logger.getLogger(GatewayScheduler.class);
+
+    /*
+     * Upper bounds ( milliseconds ) and names of the lag histogram buckets. The last bucket is
+     * open ended.
+     */
+    private static final long[] LAG_BOUNDS = { 20, 100, 1000 };
+
+    private static final String[] LAG_NAMES = { "lag<20ms", "lag<100ms", "lag<1s", "lag>=1s" };
+
+    /*
+     * A doubly linked list of tasks.
+     */
+    static class Bucket {
+        private GatewayTimerTask head;
+
+        private GatewayTimerTask tail;
+
+        void add(GatewayTimerTask task) {
+            task.bucket = this;
+            task.prev = tail;
+            task.next = null;
+            if (tail == null) {
+                head = task;
+            } else {
+                tail.next = task;
+            }
+            tail = task;
+        }
+
+        void remove(GatewayTimerTask task) {
+            if (task.prev == null) {
+                head = task.next;
+            } else {
+                task.prev.next = task.next;
+            }
+            if (task.next == null) {
+                tail = task.prev;
+            } else {
+                task.next.prev = task.prev;
+            }
+            task.next = null;
+            task.prev = null;
+            task.bucket = null;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final Bucket[] buckets;
+
+    private final int mask;
+
+    private final long startTime;
+
+    private long tick;
+
+    private final Queue<GatewayTimerTask> newTasks = new ConcurrentLinkedQueue<GatewayTimerTask>();
+
+    private final Queue<GatewayTimerTask> cancelledTasks = new ConcurrentLinkedQueue<GatewayTimerTask>();
+
+    private final List<GatewayTimerTask> rescheduled = new ArrayList<GatewayTimerTask>();
+
+    private final Thread wheelThread;
+
+    private final ThreadPoolExecutor workers;
+
+    private volatile boolean running = true;
+
+    /*
+     * Tasks in the wheel. Only written by the wheel thread.
+     */
+    private volatile int pendingTasks;
+
+    private final AtomicLong executed = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong totalLagMillis = new AtomicLong();
+
+    private final AtomicLong maximumLagMillis = new AtomicLong();
+
+    private final AtomicLong[] lagHistogram = new AtomicLong[LAG_NAMES.length];
+
+    /**
+     * Create and start a scheduler.
+     *
+     * @param name -- the name of the wheel thread. The workers are named after it.
+     * @param tickMillis -- the resolution of the wheel.
+     * @param wheelSize -- the number of buckets ( rounded up to a power of two ).
+     * @param workerCount -- the number of threads that run the tasks.
+     */
+    GatewayScheduler(final String name, long tickMillis, int wheelSize, int workerCount) {
+        if (tickMillis <= 0 || wheelSize <= 0 || workerCount <= 0) {
+            throw new IllegalArgumentException("Bad tick, wheel size or worker count "
+                    + tickMillis + "/" + wheelSize + "/" + workerCount);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new Bucket();
+        }
+        for (int i = 0; i < lagHistogram.length; i++) {
+            lagHistogram[i] = new AtomicLong();
+        }
+        this.mask = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startTime = System.nanoTime();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "Worker-"
+                                + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.wheelThread = new Thread(this, name);
+        this.wheelThread.setDaemon(true);
+        this.wheelThread.start();
+    }
+
+    /**
+     * Schedule a one shot task. Can be called from any thread.
+     *
+     * @param task -- the task to run.
+     * @param delay -- the delay ( milliseconds ).
+     */
+    void schedule(GatewayTimerTask task, long delay) {
+        schedule(task, delay, 0);
+    }
+
+    /**
+     * Schedule a task. Can be called from any thread.
+     *
+     * @param task -- the task to run.
+     * @param delay -- the initial delay ( milliseconds ).
+     * @param period -- the period ( milliseconds ) or 0 for a one shot task.
+     */
+    void schedule(GatewayTimerTask task, long delay, long period) {
+        if (delay < 0 || period < 0) {
+            throw new IllegalArgumentException("Negative delay or period " + delay + "/" + period);
+        }
+        if (task.scheduler != null) {
+            throw new IllegalStateException("Task already scheduled");
+        }
+        if (task.isCancelled()) {
+            throw new IllegalStateException("Task already cancelled");
+        }
+        task.period = TimeUnit.MILLISECONDS.toNanos(period);
+        task.deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+        task.scheduler = this;
+        newTasks.add(task);
+    }
+
+    /**
+     * Called by GatewayTimerTask.cancel().
+     */
+    void cancelled(GatewayTimerTask task) {
+        cancelledTasks.add(task);
+    }
+
+    /**
+     * Stop the wheel and the workers. Pending tasks are dropped.
+     */
+    void stop() {
+        this.running = false;
+        this.wheelThread.interrupt();
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * @return the number of tasks waiting for their timer to expire.
+     */
+    int getPendingTaskCount() {
+        return pendingTasks;
+    }
+
+    /**
+     * @return the number of timers and the time between the expiry of a timer and the start of
+     *         its run ( lag ). A lag that keeps growing means the workers cannot keep up.
+     */
+    Map<String, Integer> getStatistics() {
+        Map<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        long count = executed.get();
+        retval.put("pending", pendingTasks);
+        retval.put("queued", workers.getQueue().size());
+        retval.put("active", workers.getActiveCount());
+        retval.put("executed", (int) count);
+        retval.put("failures", (int) failures.get());
+        retval.put("skipped", (int) skipped.get());
+        retval.put("averageLagMillis", count == 0 ? 0 : (int) (totalLagMillis.get() / count));
+        retval.put("maximumLagMillis", (int) maximumLagMillis.get());
+        for (int i = 0; i < LAG_NAMES.length; i++) {
+            retval.put(LAG_NAMES[i], (int) lagHistogram[i].get());
+        }
+        return retval;
+    }
+
+    /*
+     * Run an expired task on a worker thread.
+     */
+    private void dispatch(final GatewayTimerTask task) {
+        task.dueTime = task.deadline;
+        workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    recordLag(System.nanoTime() - startTime - task.dueTime);
+                    if (!task.isCancelled()) {
+                        task.run();
+                    }
+                } catch (Throwable ex) {
+                    failures.incrementAndGet();
+                    logger.error("Unexpected exception in timer task " + task, ex);
+                } finally {
+                    task.dispatched.set(false);
+                }
+            }
+        });
+    }
+
+    private void recordLag(long lagNanos) {
+        BridgeMetrics.TIMER_LAG.get().record(lagNanos);
+        long lag = TimeUnit.NANOSECONDS.toMillis(Math.max(lagNanos, 0));
+        executed.incrementAndGet();
+        totalLagMillis.addAndGet(lag);
+        long maximum = maximumLagMillis.get();
+        while (lag > maximum && !maximumLagMillis.compareAndSet(maximum, lag)) {
+            maximum = maximumLagMillis.get();
+        }
+        int bucket = 0;
+        while (bucket < LAG_BOUNDS.length && lag >= LAG_BOUNDS[bucket]) {
+            bucket++;
+        }
+        lagHistogram[bucket].incrementAndGet();
+    }
+
+    /*
+     * firstTick is the first tick whose bucket is still to be expired. A deadline that has
+     * already passed goes into that bucket.
+     */
+    private void place(GatewayTimerTask task, long firstTick) {
+        long slot = Math.max(task.deadline / tickNanos, firstTick);
+        task.remainingRounds = (slot - firstTick) / buckets.length;
+        buckets[(int) (slot & mask)].add(task);
+    }
+
+    private void expire(Bucket bucket) {
+        GatewayTimerTask task = bucket.head;
+        while (task != null) {
+            GatewayTimerTask next = task.next;
+            if (task.remainingRounds > 0) {
+                task.remainingRounds--;
+            } else {
+                bucket.remove(task);
+                if (task.dispatched.compareAndSet(false, true)) {
+                    try {
+                        dispatch(task);
+                    } catch (Exception ex) {
+                        task.dispatched.set(false);
+                        logger.error("Unexpected exception dispatching timer task", ex);
+                    }
+                } else {
+                    skipped.incrementAndGet();
+                }
+                if (task.period > 0 && !task.isCancelled()) {
+                    task.deadline += task.period;
+                    rescheduled.add(task);
+                } else {
+                    task.hasRun = true;
+                    pendingTasks--;
+                }
+            }
+            task = next;
+        }
+        /*
+         * Periodic tasks are put back once the current bucket is done.
+         */
+        for (GatewayTimerTask periodic : rescheduled) {
+            place(periodic, tick + 1);
+        }
+        rescheduled.clear();
+    }
+
+    public void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+            try {
+                for (GatewayTimerTask task = newTasks.poll(); task != null; task = newTasks
+                        .poll()) {
+                    if (!task.isCancelled()) {
+                        place(task, tick);
+                        pendingTasks++;
+                    }
+                }
+                for (GatewayTimerTask task = cancelledTasks.poll(); task != null; task = cancelledTasks
+                        .poll()) {
+                    if (task.bucket != null) {
+                        task.bucket.remove(task);
+                        pendingTasks--;
+                    }
+                }
+                expire(buckets[(int) (tick & mask)]);
+            } catch (Exception ex) {
+                logger.error("Unexpected exception in timer wheel", ex);
+            }
+            tick++;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A task that can be scheduled on the GatewayScheduler. Cancelling the task is O(1) and can be
+ * done from any thread, including from the task itself. A periodic task never runs concurrently
+ * with itself: an expiry that comes while the previous run is still queued or running is
+ * skipped.
+ */
+abstract class GatewayTimerTask extends TimerTask {
+
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    /*
+     * Set from the expiry until the end of the run.
+     */
+    final AtomicBoolean dispatched = new AtomicBoolean(false);
+
+    /*
+     * The following are owned by the scheduler.
+     */
+    volatile GatewayScheduler scheduler;
+
+    volatile boolean hasRun;
+
+    long deadline;
+
+    long period;
+
+    long remainingRounds;
+
+    /*
+     * The deadline of the expiry being run ( for the lag ).
+     */
+    volatile long dueTime;
+
+    GatewayScheduler.Bucket bucket;
+
+    GatewayTimerTask next;
+
+    GatewayTimerTask prev;
+
+    /**
+     * Cancel the task. The task will not run again once this returns unless it is already
+     * running.
+     *
+     * @return true if this prevented a run.
+     */
+    @Override
+    public boolean cancel() {
+        super.cancel();
+        if (!cancelled.compareAndSet(false, true)) {
+            return false;
+        }
+        GatewayScheduler gatewayScheduler = this.scheduler;
+        if (gatewayScheduler == null) {
+            return false;
+        }
+        gatewayScheduler.cancelled(this);
+        return period > 0 || !hasRun;
+    }
+
+    boolean isCancelled() {
+        return cancelled.get();
+    }
+
+}
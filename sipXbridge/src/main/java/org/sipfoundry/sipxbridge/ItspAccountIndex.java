@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes of the ITSP accounts used to pick the account of an outbound request. Built from a
+ * snapshot of the accounts and never modified afterwards -- the AccountManagerImpl builds a new
+ * one whenever the accounts change.
+ *
+ * The accounts are grouped by proxy domain. The groups are found through a trie of the reversed
+ * domains ( a request URI host matches every domain it ends with ). Within a group the accounts
+ * are indexed by sipxecs-lineid, by user name ( accounts without a caller id ) and by caller id
+ * prefix.
+ */
+final class ItspAccountIndex {
+
+    /**
+     * The accounts of one proxy domain.
+     */
+    static final class DomainAccounts {
+        private final String proxyDomain;
+
+        private final List<ItspAccountInfo> accounts = new ArrayList<ItspAccountInfo>();
+
+        private final Map<String, ItspAccountInfo> lineIdTable = new HashMap<String, ItspAccountInfo>();
+
+        private final Map<String, ItspAccountInfo> userNameTable = new HashMap<String, ItspAccountInfo>();
+
+        private final Trie<ItspAccountInfo> callerIdTrie = new Trie<ItspAccountInfo>();
+
+        private ItspAccountInfo firstWithCallerId;
+
+        DomainAccounts(String proxyDomain) {
+            this.proxyDomain = proxyDomain;
+        }
+
+        private void add(ItspAccountInfo accountInfo) {
+            accounts.add(accountInfo);
+            for (String lineId : accountInfo.getSipxecsLineIds()) {
+                if (!lineIdTable.containsKey(lineId)) {
+                    lineIdTable.put(lineId, accountInfo);
+                }
+            }
+            if (accountInfo.getCallerId() == null) {
+                if (accountInfo.getUserName() != null
+                        && !userNameTable.containsKey(accountInfo.getUserName())) {
+                    userNameTable.put(accountInfo.getUserName(), accountInfo);
+                }
+            } else {
+                callerIdTrie.put(accountInfo.getCallerId(), accountInfo);
+                if (firstWithCallerId == null) {
+                    firstWithCallerId = accountInfo;
+                }
+            }
+        }
+
+        String getProxyDomain() {
+            return proxyDomain;
+        }
+
+        /**
+         * @return the first account configured for the domain.
+         */
+        ItspAccountInfo getFirst() {
+            return accounts.get(0);
+        }
+
+        /**
+         * @return an account that has the given sipxecs-lineid.
+         */
+        ItspAccountInfo getByLineId(String lineId) {
+            return lineIdTable.get(lineId);
+        }
+
+        /**
+         * @return an account without caller id whose user name is the given user.
+         */
+        ItspAccountInfo getByUserName(String userName) {
+            return userName == null ? null : userNameTable.get(userName);
+        }
+
+        /**
+         * @return an account whose caller id starts with the given user.
+         */
+        ItspAccountInfo getByCallerIdPrefix(String user) {
+            return user == null ? null : callerIdTrie.getFirstWithPrefix(user);
+        }
+
+        /**
+         * @return the first account that has a caller id.
+         */
+        ItspAccountInfo getFirstWithCallerId() {
+            return firstWithCallerId;
+        }
+    }
+
+    /**
+     * A character trie. Each node remembers the first value stored at or below it so that the
+     * first value whose key starts with a prefix is found in time proportional to the prefix.
+     */
+    static final class Trie<V> {
+        private final Map<Character, Trie<V>> children = new HashMap<Character, Trie<V>>(4);
+
+        private V value;
+
+        private V firstInSubtree;
+
+        void put(CharSequence key, V value) {
+            Trie<V> node = this;
+            for (int i = 0; i < key.length(); i++) {
+                if (node.firstInSubtree == null) {
+                    node.firstInSubtree = value;
+                }
+                Character c = Character.valueOf(key.charAt(i));
+                Trie<V> child = node.children.get(c);
+                if (child == null) {
+                    child = new Trie<V>();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            if (node.firstInSubtree == null) {
+                node.firstInSubtree = value;
+            }
+            if (node.value == null) {
+                node.value = value;
+            }
+        }
+
+        V getFirstWithPrefix(CharSequence prefix) {
+            Trie<V> node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(Character.valueOf(prefix.charAt(i)));
+            }
+            return node == null ? null : node.firstInSubtree;
+        }
+
+        /**
+         * @return the values of the keys that are prefixes of the given key, longest first.
+         */
+        List<V> getPrefixValues(CharSequence key) {
+            List<V> values = null;
+            Trie<V> node = this;
+            for (int i = 0; node != null; i++) {
+                if (node.value != null) {
+                    if (values == null) {
+                        values = new ArrayList<V>(2);
+                    }
+                    values.add(0, node.value);
+                }
+                if (i == key.length()) {
+                    break;
+                }
+                node = node.children.get(Character.valueOf(key.charAt(i)));
+            }
+            return values == null ? Collections.<V> emptyList() : values;
+        }
+    }
+
+    static final ItspAccountIndex EMPTY = new ItspAccountIndex(Collections
+            .<ItspAccountInfo> emptyList());
+
+    /*
+     * Keyed by the reversed proxy domain.
+     */
+    private final Trie<DomainAccounts> domainTrie = new Trie<DomainAccounts>();
+
+    ItspAccountIndex(Collection<ItspAccountInfo> accounts) {
+        Map<String, DomainAccounts> domains = new HashMap<String, DomainAccounts>();
+        for (ItspAccountInfo accountInfo : accounts) {
+            String proxyDomain = accountInfo.getProxyDomain();
+            if (proxyDomain == null) {
+                continue;
+            }
+            DomainAccounts domainAccounts = domains.get(proxyDomain);
+            if (domainAccounts == null) {
+                domainAccounts = new DomainAccounts(proxyDomain);
+                domains.put(proxyDomain, domainAccounts);
+                domainTrie.put(new StringBuilder(proxyDomain).reverse(), domainAccounts);
+            }
+            domainAccounts.add(accountInfo);
+        }
+    }
+
+    /**
+     * @return the account groups whose proxy domain the host ends with, longest domain first.
+     */
+    List<DomainAccounts> getDomainAccounts(String host) {
+        return domainTrie.getPrefixValues(new StringBuilder(host).reverse());
+    }
+
+}
@@ -12,7 +12,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sip.SipProvider;
@@ -248,7 +247,7 @@ public class ItspAccountInfo  {
     /*
      * This scans the failure counter table and removes records after a timeout period.
      */
-    class FailureCounterScanner extends TimerTask {
+    class FailureCounterScanner extends GatewayTimerTask {
 
         public FailureCounterScanner() {
 
@@ -294,7 +293,7 @@ public class ItspAccountInfo  {
 
     public void startFailureCounterScanner() {
         FailureCounterScanner fcs = new FailureCounterScanner();
-        Gateway.getTimer().schedule(fcs, 5000, 5000);
+        Gateway.getScheduler().schedule(fcs, 5000, 5000);
     }
 
     public String getOutboundProxy() {
@@ -540,7 +539,7 @@ public class ItspAccountInfo  {
             if ( logger.isDebugEnabled() ) logger.debug("ItspAccountInfo: startCrLfTimerTask() : "
                     + this.getProxyDomain() + " keepalive = "
                     + Gateway.getSipKeepaliveSeconds());
-            Gateway.getTimer().schedule(crlfTimerTask,
+            Gateway.getScheduler().schedule(crlfTimerTask,
                     Gateway.getSipKeepaliveSeconds() * 1000,
                     Gateway.getSipKeepaliveSeconds() * 1000);
         }
@@ -617,7 +616,7 @@ public class ItspAccountInfo  {
     /**
      * @return the configured inboundProxy
      */
-    private String getConfiguredInboundProxy() {
+    String getConfiguredInboundProxy() {
         return this.inboundProxy == null ? getConfiguredOutboundProxy() : inboundProxy;
     }
 
@@ -861,7 +860,16 @@ public class ItspAccountInfo  {
      * @param hop
      */
     public void setHopToRegistrar(Hop hop) {
+       Hop previous = this.hopToRegistrar;
        this.hopToRegistrar = hop;
+       if (hop != null && (previous == null || !hop.getHost().equals(previous.getHost())
+               || hop.getPort() != previous.getPort())
+               && Gateway.getAccountManager() != null) {
+           /*
+            * Inbound requests are matched against the address of the registrar.
+            */
+           Gateway.getAccountManager().scheduleAddressIndexRebuild();
+       }
     }
 
     /**
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sip.address.Hop;
+
+import org.apache.log4j.Logger;
+import org.sipfoundry.commons.util.IPAddressUtil;
+
+/**
+ * The resolved addresses of the ITSP proxies used to find the account of an inbound request.
+ * Accounts that register are found by the address of their registrar alone, the others by the
+ * address and port of their inbound proxies. The proxies are also indexed by name so that a
+ * request whose Via carries a host name is matched without resolving it.
+ *
+ * Building the index resolves the proxy names so it is done off the call path. The index is not
+ * modified once built. Names are resolved through the system resolver so that /etc/hosts and
+ * nsswitch apply as they do for the rest of the bridge.
+ */
+final class ItspAddressIndex {
+
+    private static final Logger logger = Logger.getLogger(ItspAddressIndex.class);
+
+    /*
+     * Keyed by ip:port.
+     */
+    private final Map<String, ItspAccountInfo> inboundProxyTable = new HashMap<String, ItspAccountInfo>();
+
+    /*
+     * Keyed by ip.
+     */
+    private final Map<String, ItspAccountInfo> registrarTable = new HashMap<String, ItspAccountInfo>();
+
+    /*
+     * The same keyed by lower case host name.
+     */
+    private final Map<String, ItspAccountInfo> inboundProxyNameTable = new HashMap<String, ItspAccountInfo>();
+
+    private final Map<String, ItspAccountInfo> registrarNameTable = new HashMap<String, ItspAccountInfo>();
+
+    static final ItspAddressIndex EMPTY = new ItspAddressIndex(Collections
+            .<ItspAccountInfo> emptySet());
+
+    ItspAddressIndex(Collection<ItspAccountInfo> accounts) {
+        for (ItspAccountInfo accountInfo : accounts) {
+            try {
+                if (accountInfo.isRegisterOnInitialization()) {
+                    // We assume that the Registrar is the same as the INBOUND proxy server.
+                    Hop hop = accountInfo.getHopToRegistrar();
+                    if (hop == null) {
+                        continue;
+                    }
+                    putName(registrarNameTable, accountInfo.getProxyDomain(), accountInfo);
+                    putName(registrarNameTable, hop.getHost(), accountInfo);
+                    InetAddress address = resolve(hop.getHost());
+                    if (address == null) {
+                        logger.error("Cannot resolve host address " + hop.getHost());
+                    } else if (!registrarTable.containsKey(address.getHostAddress())) {
+                        registrarTable.put(address.getHostAddress(), accountInfo);
+                    }
+                } else {
+                    String inboundProxy = accountInfo.getConfiguredInboundProxy();
+                    if (inboundProxy != null) {
+                        putName(inboundProxyNameTable, inboundProxy + ":"
+                                + accountInfo.getInboundProxyPort(), accountInfo);
+                    }
+                    Collection<Hop> hops = accountInfo.getInboundProxies();
+                    if (hops == null) {
+                        continue;
+                    }
+                    for (Hop hop : hops) {
+                        if (hop == null) {
+                            continue;
+                        }
+                        putName(inboundProxyNameTable, hop.getHost() + ":" + hop.getPort(),
+                                accountInfo);
+                        InetAddress address = resolve(hop.getHost());
+                        if (address == null) {
+                            logger.error("Cannot resolve host address " + hop.getHost());
+                            continue;
+                        }
+                        String key = address.getHostAddress() + ":" + hop.getPort();
+                        if (!inboundProxyTable.containsKey(key)) {
+                            inboundProxyTable.put(key, accountInfo);
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                logger.error("Cannot index the addresses of " + accountInfo.getProxyDomain(), ex);
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("registrars = " + registrarTable.keySet() + " "
+                    + registrarNameTable.keySet() + " inbound proxies = "
+                    + inboundProxyTable.keySet() + " " + inboundProxyNameTable.keySet());
+        }
+    }
+
+    /*
+     * The first account wins, as for the addresses.
+     */
+    private static void putName(Map<String, ItspAccountInfo> table, String name,
+            ItspAccountInfo accountInfo) {
+        if (name != null && !IPAddressUtil.isLiteralIPAddress(name)) {
+            String key = name.toLowerCase();
+            if (!table.containsKey(key)) {
+                table.put(key, accountInfo);
+            }
+        }
+    }
+
+    /**
+     * Resolve a host name through the system resolver.
+     *
+     * @param host -- the name or literal address of the host.
+     * @return the address of the host or null if it cannot be resolved.
+     */
+    static InetAddress resolve(String host) {
+        try {
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param ip -- the address of the sender.
+     * @param port -- the port of the sender.
+     * @return the account of the ITSP at that address or null if there is none.
+     */
+    ItspAccountInfo get(String ip, int port) {
+        ItspAccountInfo accountInfo = inboundProxyTable.get(ip + ":" + port);
+        if (accountInfo == null) {
+            accountInfo = registrarTable.get(ip);
+        }
+        return accountInfo;
+    }
+
+    /**
+     * @param host -- the host name of the sender.
+     * @param port -- the port of the sender.
+     * @return the account of the ITSP with that name or null if there is none.
+     */
+    ItspAccountInfo getByName(String host, int port) {
+        String name = host.toLowerCase();
+        ItspAccountInfo accountInfo = inboundProxyNameTable.get(name + ":" + port);
+        if (accountInfo == null) {
+            accountInfo = registrarNameTable.get(name);
+        }
+        return accountInfo;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed buckets. Recording is a few comparisons and atomic adds, with
+ * no locks and no allocation, so it can sit on the SIP processing path.
+ */
+class LatencyHistogram {
+
+    /*
+     * Upper bounds ( microseconds ) of the buckets. The last bucket is open ended.
+     */
+    static final long[] BOUNDS = { 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+            250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maximumMicros = new AtomicLong();
+
+    /**
+     * @param nanos -- the latency.
+     */
+    void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long maximum = maximumMicros.get();
+        while (micros > maximum && !maximumMicros.compareAndSet(maximum, micros)) {
+            maximum = maximumMicros.get();
+        }
+    }
+
+    /**
+     * @param startNanos -- a System.nanoTime() taken at the start of the operation.
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotalMicros() {
+        return totalMicros.get();
+    }
+
+    long getMaximumMicros() {
+        return maximumMicros.get();
+    }
+
+    /**
+     * @return the number of samples in a bucket ( not cumulative ).
+     */
+    long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @return the upper bound of the bucket the percentile falls in ( the maximum for the open
+     *         ended bucket ). An estimate that is never below the true value.
+     */
+    long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], maximumMicros.get());
+            }
+        }
+        return maximumMicros.get();
+    }
+
+}
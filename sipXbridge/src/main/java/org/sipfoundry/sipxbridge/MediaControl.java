@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs relay ( sym and bridge ) operations off the SIP threads. A slow relay then holds up the
+ * calls that are waiting for it and not the processing of the SIP messages of other calls.
+ *
+ * An operation returns a future. The completion, if any, runs on the worker thread as soon as
+ * the operation is done ( successfully or not ) and is where the SIP processing that needed the
+ * media is resumed.
+ */
+class MediaControl {
+
+    private static Logger logger = Logger.getLogger(MediaControl.class);
+
+    /*
+     * As many workers as calls that may be in progress to one relay.
+     */
+    private static final int WORKER_COUNT = 16;
+
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_COUNT,
+            WORKER_COUNT, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MediaControl-"
+                            + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong completed = new AtomicLong();
+
+    private static final AtomicLong failures = new AtomicLong();
+
+    private static final AtomicLong totalMillis = new AtomicLong();
+
+    private static final AtomicLong maximumMillis = new AtomicLong();
+
+    /**
+     * Called on the worker thread once an operation is done.
+     */
+    interface Completion<T> {
+        void completed(Future<T> future);
+    }
+
+    private MediaControl() {
+    }
+
+    /**
+     * Start a relay operation.
+     *
+     * @param operation -- the operation.
+     * @param completion -- called on the worker thread once the operation is done. Can be null.
+     * @return the result of the operation.
+     */
+    static <T> Future<T> submit(Callable<T> operation, final Completion<T> completion) {
+        final long start = System.currentTimeMillis();
+        FutureTask<T> task = new FutureTask<T>(operation) {
+            @Override
+            protected void done() {
+                record(System.currentTimeMillis() - start, this);
+                if (completion != null) {
+                    try {
+                        completion.completed(this);
+                    } catch (Exception ex) {
+                        logger.error("Unexpected exception completing media operation", ex);
+                    }
+                }
+            }
+        };
+        workers.execute(task);
+        return task;
+    }
+
+    /**
+     * Wait for an operation that was started earlier.
+     *
+     * @return the result of the operation.
+     * @throws RuntimeException -- the exception thrown by the operation ( typically a
+     *         SymmitronException ).
+     */
+    static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new SipXbridgeException("Interrupted waiting for the relay", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new SipXbridgeException("Relay operation failed", ex.getCause());
+        }
+    }
+
+    /**
+     * @return the number of operations waiting for a worker.
+     */
+    static int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return the number of operations waiting and in progress, and how long they took.
+     */
+    static Map<String, Integer> getStatistics() {
+        Map<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        long count = completed.get();
+        retval.put("queued", workers.getQueue().size());
+        retval.put("active", workers.getActiveCount());
+        retval.put("completed", (int) count);
+        retval.put("failures", (int) failures.get());
+        retval.put("averageMillis", count == 0 ? 0 : (int) (totalMillis.get() / count));
+        retval.put("maximumMillis", (int) maximumMillis.get());
+        return retval;
+    }
+
+    private static void record(long millis, Future<?> future) {
+        completed.incrementAndGet();
+        try {
+            future.get();
+        } catch (Exception ex) {
+            failures.incrementAndGet();
+        }
+        totalMillis.addAndGet(millis);
+        long maximum = maximumMillis.get();
+        while (millis > maximum && !maximumMillis.compareAndSet(maximum, millis)) {
+            maximum = maximumMillis.get();
+        }
+    }
+
+}
@@ -1,10 +1,10 @@
 /*
- * 
- * 
- * Copyright (C) 2008 Pingtel Corp., certain elements licensed under a Contributor Agreement.  
+ *
+ *
+ * Copyright (C) 2008 Pingtel Corp., certain elements licensed under a Contributor Agreement.
  * Contributors retain copyright to elements licensed under a Contributor Agreement.
  * Licensed to the User under the LGPL license.
- * 
+ *
  *
  */
 
@@ -12,25 +12,61 @@ package org.sipfoundry.sipxbridge;
 
 import javax.sip.Dialog;
 import javax.sip.RequestEvent;
+import javax.sip.ServerTransaction;
+
+import org.apache.log4j.Logger;
 
 /**
  * Continuation data for Invite Processing.
  * This is used to avoid collisions (requestPending) from
  * the ITSP.
- * 
+ *
+ * It also carries an initial INVITE while the media for the call is set up at the relay. The
+ * INVITE is forwarded from the media control thread once the RTP sessions are there.
  */
 public class ProcessInviteContinuationData implements ContinuationData {
-    
+
+    private static Logger logger = Logger.getLogger(ProcessInviteContinuationData.class);
+
     private RequestEvent requestEvent;
 
+    private ServerTransaction serverTransaction;
+
+    private BackToBackUserAgent backToBackUserAgent;
+
+    /*
+     * Where to send the INVITE if it goes to the ITSP. Null if it goes to the sipx proxy.
+     */
+    private String toDomain;
+
+    /*
+     * The ITSP account of the call, if any.
+     */
+    private ItspAccountInfo itspAccountInfo;
+
+    private boolean cancelled;
+
+    private boolean resumed;
+
     public ProcessInviteContinuationData(RequestEvent requestEvent) {
         this.requestEvent = requestEvent;
+        this.serverTransaction = requestEvent.getServerTransaction();
+    }
+
+    ProcessInviteContinuationData(RequestEvent requestEvent, ServerTransaction serverTransaction,
+            BackToBackUserAgent backToBackUserAgent, String toDomain,
+            ItspAccountInfo itspAccountInfo) {
+        this.requestEvent = requestEvent;
+        this.serverTransaction = serverTransaction;
+        this.backToBackUserAgent = backToBackUserAgent;
+        this.toDomain = toDomain;
+        this.itspAccountInfo = itspAccountInfo;
     }
 
     /* (non-Javadoc)
      * @see org.sipfoundry.sipxbridge.ContinuationData#getOperation()
      */
-  
+
     public Operation getOperation() {
         return Operation.PROCESS_INVITE;
     }
@@ -38,14 +74,64 @@ public class ProcessInviteContinuationData implements ContinuationData {
     /* (non-Javadoc)
      * @see org.sipfoundry.sipxbridge.ContinuationData#getRequestEvent()
      */
-   
+
     public RequestEvent getRequestEvent() {
-       
+
         return requestEvent;
     }
-    
+
     public Dialog getDialog() {
-        return requestEvent.getDialog();
+        return serverTransaction != null ? serverTransaction.getDialog() : requestEvent
+                .getDialog();
+    }
+
+    ServerTransaction getServerTransaction() {
+        return serverTransaction;
+    }
+
+    ItspAccountInfo getItspAccountInfo() {
+        return itspAccountInfo;
+    }
+
+    /**
+     * Give up the INVITE ( it was CANCELled while the media was being set up ).
+     *
+     * Waits for a forward in progress to finish, so that a CANCEL that comes too late finds the
+     * client transaction of the INVITE in place.
+     *
+     * @return false if it is too late: the INVITE has already been forwarded.
+     */
+    synchronized boolean cancel() {
+        if (resumed) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    /**
+     * Forward the INVITE. The monitor is held until it is sent, see cancel.
+     */
+    synchronized void resume() {
+        if (cancelled) {
+            if (logger.isDebugEnabled()) logger.debug("INVITE cancelled before it was forwarded");
+            return;
+        }
+        resumed = true;
+        try {
+            forward();
+        } catch (Exception ex) {
+            logger.error("Error processing request " + requestEvent.getRequest(), ex);
+            CallControlUtilities.sendInternalError(serverTransaction, ex);
+        }
+    }
+
+    void forward() throws Exception {
+        if (toDomain != null) {
+            backToBackUserAgent.sendInviteToItsp(requestEvent, serverTransaction, toDomain);
+        } else {
+            backToBackUserAgent.sendInviteToSipxProxy(requestEvent, serverTransaction);
+        }
     }
 
 }
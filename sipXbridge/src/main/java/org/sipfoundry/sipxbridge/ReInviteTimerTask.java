@@ -5,7 +5,6 @@
  */
 package org.sipfoundry.sipxbridge;
 
-import java.util.TimerTask;
 
 import javax.sip.Dialog;
 import javax.sip.DialogState;
@@ -21,7 +20,7 @@ import org.apache.log4j.Logger;
 /**
  * A timer task that schedules a re-INVITE retry. This can happen when we are switching to MOH mid call transfer.
  */
-class ReInviteTimerTask extends TimerTask {
+class ReInviteTimerTask extends GatewayTimerTask {
 	
 	private RtpSession rtpSession;
 	private ServerTransaction serverTransaction;
@@ -10,7 +10,6 @@ import gov.nist.javax.sip.ClientTransactionExt;
 
 import java.text.ParseException;
 import java.util.ListIterator;
-import java.util.TimerTask;
 
 import javax.sip.ClientTransaction;
 import javax.sip.InvalidArgumentException;
@@ -220,7 +219,7 @@ public class RegistrationManager {
                 String callId = SipUtilities.getCallId(response);
                 long cseq = SipUtilities.getSeqNumber(response);
                 ttask = new RegistrationTimerTask(itspAccount,callId,cseq);
-                Gateway.getTimer().schedule(ttask, time * 1000);
+                Gateway.getScheduler().schedule(ttask, time * 1000);
             }
       } else {
             if (response.getStatusCode() == Response.FORBIDDEN) {
@@ -239,7 +238,7 @@ public class RegistrationManager {
                  */
                 if ((ttask = itspAccount.registrationTimerTask ) != null) ttask.cancel();         
                 ttask = new RegistrationTimerTask(itspAccount,null,1L);
-                Gateway.getTimer().schedule(ttask, 60 * 1000);
+                Gateway.getScheduler().schedule(ttask, 60 * 1000);
                 
             } else if (response.getStatusCode() == Response.REQUEST_TIMEOUT) {
                 if (itspAccount.getSipKeepaliveMethod().equals("CR-LF")) {
@@ -262,7 +261,7 @@ public class RegistrationManager {
                 if ((ttask = itspAccount.registrationTimerTask) != null) ttask.cancel();
               
                 ttask = new RegistrationTimerTask(itspAccount,null,1L);
-                Gateway.getTimer().schedule(ttask, 60 * 1000);
+                Gateway.getScheduler().schedule(ttask, 60 * 1000);
                
             } else if (response.getStatusCode() / 100 == 5
                     || response.getStatusCode() / 100 == 6
@@ -286,7 +285,7 @@ public class RegistrationManager {
                 if ((ttask = itspAccount.registrationTimerTask) != null)  ttask.cancel();
                        
                 ttask = new RegistrationTimerTask(itspAccount,null,1L);
-                Gateway.getTimer().schedule(ttask, 60 * 1000);
+                Gateway.getScheduler().schedule(ttask, 60 * 1000);
                
             } else {
                 if (response.getStatusCode() != 100) {
@@ -317,7 +316,7 @@ public class RegistrationManager {
             ttask.cancel();
         }
         ttask = new RegistrationTimerTask(itspAccount,null,1L);
-        Gateway.getTimer().schedule(ttask, 60 * 1000);
+        Gateway.getScheduler().schedule(ttask, 60 * 1000);
          try {
             if (!itspAccount.isAlarmSent()) {
                 Gateway.getAlarmClient().raiseAlarm(
@@ -6,7 +6,6 @@
  */
 package org.sipfoundry.sipxbridge;
 
-import java.util.TimerTask;
 
 import org.apache.log4j.Logger;
 
@@ -16,7 +15,7 @@ import org.apache.log4j.Logger;
  * @author mranga
  *
  */
-public class RegistrationTimerTask extends TimerTask {
+public class RegistrationTimerTask extends GatewayTimerTask {
 	private static Logger logger = Logger.getLogger(RegistrationTimerTask.class);
 
     ItspAccountInfo itspAccount;
@@ -39,7 +38,7 @@ public class RegistrationTimerTask extends TimerTask {
             Gateway.getRegistrationManager().sendRegister(itspAccount,callId,cseq+1);
         } catch (Exception ex) {
             RegistrationTimerTask ttask = new RegistrationTimerTask(itspAccount, null, 1L);
-            Gateway.getTimer().schedule(ttask, 60 * 1000);
+            Gateway.getScheduler().schedule(ttask, 60 * 1000);
             try {
                 if (!itspAccount.isAlarmSent()) {
                     Gateway.getAlarmClient().raiseAlarm(
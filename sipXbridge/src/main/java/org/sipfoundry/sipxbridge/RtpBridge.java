@@ -8,19 +8,26 @@ package org.sipfoundry.sipxbridge;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.sdp.SdpParseException;
 import javax.sdp.SessionDescription;
 import javax.sip.message.Request;
 
-import org.sipfoundry.sipxrelay.BridgeInterface;
+import org.sipfoundry.sipxrelay.BridgeImpl;
 import org.sipfoundry.sipxrelay.BridgeState;
+import org.sipfoundry.sipxrelay.SymImpl;
 
 class RtpBridge  {
     
     SessionDescription sessionDescription;
-    private BridgeInterface bridge;
+    private BridgeImpl bridge;
     
     private HashSet<RtpSession> syms = new HashSet<RtpSession> ();
     
@@ -30,7 +37,7 @@ class RtpBridge  {
      * @param itspAccountInfo
      * @throws IOException
      */
-    RtpBridge(Request request, BridgeInterface bridge) throws IOException {
+    RtpBridge(Request request, BridgeImpl bridge) throws IOException {
         
         try {
 
@@ -43,7 +50,7 @@ class RtpBridge  {
         }
     }
     
-    RtpBridge(BridgeInterface bridge) {
+    RtpBridge(BridgeImpl bridge) {
         this.bridge = bridge;
     }
     
@@ -51,6 +58,73 @@ class RtpBridge  {
         return this.syms;
     }
 
+    /**
+     * Create a new RTP session that belongs to this bridge. The sym is created and added to the
+     * bridge in a single request to the relay.
+     */
+    public RtpSession createRtpSession() {
+        RtpSession rtpSession = new RtpSession(bridge.createSym());
+        synchronized (this) {
+            this.syms.add(rtpSession);
+        }
+        return rtpSession;
+    }
+
+    /**
+     * Create several RTP sessions that belong to this bridge in a single request to the relay.
+     */
+    public List<RtpSession> createRtpSessions(int count) {
+        Map[] symSpecs = new Map[count];
+        for (int i = 0; i < count; i++) {
+            symSpecs[i] = new HashMap<String, Object>();
+        }
+        return createRtpSessions(symSpecs, false);
+    }
+
+    /**
+     * Create RTP sessions whose destinations are already known ( see
+     * SymmitronClient.createSymSpec ) and optionally start the bridge, in a single request to
+     * the relay.
+     */
+    public List<RtpSession> createRtpSessions(Map[] symSpecs, boolean startBridge) {
+        List<RtpSession> rtpSessions = new ArrayList<RtpSession>(symSpecs.length);
+        for (SymImpl sym : bridge.createSyms(symSpecs, startBridge)) {
+            rtpSessions.add(new RtpSession(sym));
+        }
+        synchronized (this) {
+            this.syms.addAll(rtpSessions);
+        }
+        return rtpSessions;
+    }
+
+    /**
+     * Create RTP sessions without blocking the caller.
+     *
+     * @param count -- the number of sessions.
+     * @param completion -- called on the media control thread once the sessions are created
+     *        or the creation failed.
+     */
+    public Future<List<RtpSession>> createRtpSessionsAsync(final int count,
+            MediaControl.Completion<List<RtpSession>> completion) {
+        return MediaControl.submit(new Callable<List<RtpSession>>() {
+            public List<RtpSession> call() {
+                return createRtpSessions(count);
+            }
+        }, completion);
+    }
+
+    /**
+     * Create RTP sessions from sym specs without blocking the caller.
+     */
+    public Future<List<RtpSession>> createRtpSessionsAsync(final Map[] symSpecs,
+            final boolean startBridge, MediaControl.Completion<List<RtpSession>> completion) {
+        return MediaControl.submit(new Callable<List<RtpSession>>() {
+            public List<RtpSession> call() {
+                return createRtpSessions(symSpecs, startBridge);
+            }
+        }, completion);
+    }
+
     public void addSym(RtpSession rtpSession) {
         bridge.addSym(rtpSession.getSym());
         this.syms.add(rtpSession);
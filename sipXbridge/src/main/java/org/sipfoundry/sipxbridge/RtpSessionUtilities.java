@@ -7,7 +7,6 @@
 package org.sipfoundry.sipxbridge;
 
 import java.text.ParseException;
-import java.util.TimerTask;
 
 import gov.nist.javax.sip.DialogExt;
 import gov.nist.javax.sip.header.extensions.ReferencesHeader;
@@ -70,7 +69,7 @@ public class RtpSessionUtilities {
 				ReInviteTimerTask ttask = new ReInviteTimerTask(rtpSession,
 						serverTransaction, dialog);
 
-				Gateway.getTimer().schedule(ttask,
+				Gateway.getScheduler().schedule(ttask,
 						500, 500);
 
 			} else {
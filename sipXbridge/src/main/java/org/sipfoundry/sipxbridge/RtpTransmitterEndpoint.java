@@ -153,7 +153,15 @@ class RtpTransmitterEndpoint {
                         + " Setting port " + port +  " isOffer = " + isOffer);
             }
 
-            if (this.sessionDescription == null || !this.ipAddress.equals(ipAddress)
+            if (this.sessionDescription == null && ipAddress != null
+                    && ipAddress.equals(this.symTransmitter.getIpAddress())
+                    && port == this.symTransmitter.getPort()) {
+                /*
+                 * The destination was set when the sym was created at the relay.
+                 */
+                this.ipAddress = ipAddress;
+                this.port = port;
+            } else if (this.sessionDescription == null || !this.ipAddress.equals(ipAddress)
                     || this.port != port  ) {
                 this.symTransmitter.setIpAddressAndPort(ipAddress, port, keepAliveInterval,
                         keepAliveMethod);
@@ -13,7 +13,6 @@ import gov.nist.javax.sip.TransactionExt;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.TimerTask;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
@@ -184,11 +183,11 @@ public class SipListenerImpl implements SipListenerExt {
                  * Try again to register after 10 minutes ( maybe somebody pulled the
                  * plug or is trying to reconfigure the system).
                  */
-                TimerTask ttask = null;
+                GatewayTimerTask ttask = null;
                 if ( (ttask = accountInfo.registrationTimerTask) != null ) ttask.cancel();
                 
                  ttask = new RegistrationTimerTask(accountInfo,null,1L);
-                 Gateway.getTimer().schedule(ttask, 10 * 60 * 1000);
+                 Gateway.getScheduler().schedule(ttask, 10 * 60 * 1000);
                
             }
             return;
@@ -323,7 +322,12 @@ public class SipListenerImpl implements SipListenerExt {
                 logger.debug("processDialogTerminated: dialog inserted at " + dialogContext.getInsertionPointStackTrace());
                 logger.debug("processDialogTerminated: Created by request: " + dialogContext.getRequest());
             }
-            DialogContext.removeDialogContext(dialogContext);
+            if (dialogContext.getDialog() == dte.getDialog()) {
+                /*
+                 * The context may have moved to a new dialog ( see setDialog ).
+                 */
+                DialogContext.removeDialogContext(dialogContext);
+            }
             dialogContext.cancelSessionTimer();
             BackToBackUserAgent b2bua = dialogContext.getBackToBackUserAgent();
             if (b2bua != null) {
@@ -415,6 +419,24 @@ public class SipListenerImpl implements SipListenerExt {
                 return;
 
             }
+
+            /*
+             * Refuse new work when overloaded, before anything is allocated for it. The server
+             * transaction absorbs the retransmissions.
+             */
+            String overloadReason = Gateway.getAdmissionController().admit(request);
+            if (overloadReason != null) {
+                ServerTransaction st = requestEvent.getServerTransaction();
+                if (st == null) {
+                    st = provider.getNewServerTransaction(request);
+                }
+                Response response = SipUtilities.createResponse(st, Response.SERVICE_UNAVAILABLE);
+                response.setReasonPhrase(overloadReason);
+                response.setHeader(ProtocolObjects.headerFactory.createRetryAfterHeader(Gateway
+                        .getAdmissionController().getRetryAfter()));
+                st.sendResponse(response);
+                return;
+            }
             
             /*
              * Find the ITSP account and check if enabled. If so, then proceed, otherwise
@@ -446,9 +468,19 @@ public class SipListenerImpl implements SipListenerExt {
                     || method.equals(Request.OPTIONS)
                     || method.equals(Request.REFER)
                     || method.equals(Request.PRACK)) {
-                Gateway.getCallControlManager().processRequest(requestEvent);
+                long startTime = Gateway.getAdmissionController().requestStarted();
+                try {
+                    Gateway.getCallControlManager().processRequest(requestEvent);
+                } finally {
+                    Gateway.getAdmissionController().requestFinished(startTime);
+                }
             } else if ( method.equals(Request.REGISTER) && provider == Gateway.getLanProvider() ) {       
-                Gateway.getRegistrationManager().proxyRegisterRequest(requestEvent,itspAccount);
+                long startTime = Gateway.getAdmissionController().requestStarted();
+                try {
+                    Gateway.getRegistrationManager().proxyRegisterRequest(requestEvent,itspAccount);
+                } finally {
+                    Gateway.getAdmissionController().requestFinished(startTime);
+                }
            } else {
                 try {
                     Response response = ProtocolObjects.messageFactory
@@ -596,19 +628,36 @@ public class SipListenerImpl implements SipListenerExt {
             /*
              * Handle proxy challenge.
              */
+            TransactionContext transactionContext = null;
+            ItspAccountInfo accountInfo = null;
+
+            if (responseEvent.getClientTransaction() != null
+                    && ((TransactionContext) responseEvent
+                            .getClientTransaction().getApplicationData()) != null) {
+                transactionContext = (TransactionContext) responseEvent.getClientTransaction()
+                        .getApplicationData();
+                accountInfo = transactionContext.getItspAccountInfo();
+            }
+
             if (response.getStatusCode() == Response.PROXY_AUTHENTICATION_REQUIRED
                     || response.getStatusCode() == Response.UNAUTHORIZED) {
+                BridgeMetrics.AUTH_CHALLENGES.get(
+                        accountInfo == null ? "unknown" : accountInfo.getProxyDomain())
+                        .incrementAndGet();
                 handleAuthenticationChallenge(responseEvent);
                 return;
             }
 
-            ItspAccountInfo accountInfo = null;
-
-            if (responseEvent.getClientTransaction() != null
-                    && ((TransactionContext) responseEvent
-                            .getClientTransaction().getApplicationData()) != null) {
-                accountInfo = ((TransactionContext) responseEvent.getClientTransaction()
-                        .getApplicationData()).getItspAccountInfo();
+            if (method.equals(Request.INVITE) && accountInfo != null
+                    && (transactionContext.getOperation() == Operation.SEND_INVITE_TO_ITSP
+                    || transactionContext.getOperation() == Operation.SPIRAL_BLIND_TRANSFER_INVITE_TO_ITSP)) {
+                if (response.getStatusCode() / 100 == 2) {
+                    BridgeMetrics.ITSP_INVITE_SETUP.get(accountInfo.getProxyDomain())
+                            .recordSince(transactionContext.getCreationTime());
+                } else if (response.getStatusCode() >= 300) {
+                    BridgeMetrics.ITSP_INVITE_FAILURES.get(accountInfo.getProxyDomain())
+                            .incrementAndGet();
+                }
             }
 
             String callId = SipUtilities.getCallId(response);
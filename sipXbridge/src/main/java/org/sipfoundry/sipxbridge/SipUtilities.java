@@ -7,6 +7,7 @@
 package org.sipfoundry.sipxbridge;
 
 import gov.nist.javax.sdp.MediaDescriptionImpl;
+import gov.nist.javax.sdp.SessionDescriptionImpl;
 import gov.nist.javax.sdp.fields.AttributeField;
 import gov.nist.javax.sip.DialogExt;
 import gov.nist.javax.sip.TransactionExt;
@@ -24,6 +25,7 @@ import gov.nist.javax.sip.message.Content;
 import gov.nist.javax.sip.message.MessageExt;
 import gov.nist.javax.sip.message.MultipartMimeContent;
 import gov.nist.javax.sip.message.RequestExt;
+import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.message.SIPRequest;
  
@@ -33,12 +35,15 @@ import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
@@ -112,6 +117,22 @@ class SipUtilities {
 
 	private static final String SDP = "sdp";
 
+	/*
+	 * The SDP parsed out of a message, kept as the application data of the
+	 * message so that the body is parsed once no matter how many times the
+	 * SDP is asked for. The parsed SDP is never handed out, only copies of it.
+	 */
+	private static final class ParsedSessionDescription {
+		private final byte[] content;
+		private final SessionDescription sessionDescription;
+
+		ParsedSessionDescription(byte[] content,
+				SessionDescription sessionDescription) {
+			this.content = content;
+			this.sessionDescription = sessionDescription;
+		}
+	}
+
 	/**
 	 * Create the UA header.
 	 *
@@ -938,10 +959,38 @@ class SipUtilities {
 		}
 	}
 
+	/**
+	 * Get the SDP of a message. The body is parsed the first time and the
+	 * result is kept with the message; later calls return a copy of it. The
+	 * caller may modify the returned session description.
+	 */
 	static SessionDescription getSessionDescription(Message message)
 			throws SdpParseException, ParseException {
-		if (message.getRawContent() == null)
+		byte[] rawContent = message.getRawContent();
+		if (rawContent == null)
 			throw new SdpParseException(0, 0, "Missing sdp body");
+		Object applicationData = null;
+		if (message instanceof SIPMessage) {
+			applicationData = ((SIPMessage) message).getApplicationData();
+			if (applicationData instanceof ParsedSessionDescription) {
+				ParsedSessionDescription parsed = (ParsedSessionDescription) applicationData;
+				if (Arrays.equals(parsed.content, rawContent)) {
+					return cloneSessionDescription(parsed.sessionDescription);
+				}
+			}
+		}
+		SessionDescription sd = parseSessionDescription(message);
+		if (message instanceof SIPMessage
+				&& (applicationData == null || applicationData instanceof ParsedSessionDescription)) {
+			((SIPMessage) message).setApplicationData(new ParsedSessionDescription(
+					rawContent.clone(), sd));
+			return cloneSessionDescription(sd);
+		}
+		return sd;
+	}
+
+	private static SessionDescription parseSessionDescription(Message message)
+			throws SdpParseException, ParseException {
 		ContentTypeHeader cth = (ContentTypeHeader) message
 				.getHeader(ContentTypeHeader.NAME);
 		if (cth.getContentType().equalsIgnoreCase(APPLICATION)
@@ -1319,6 +1368,43 @@ class SipUtilities {
 
 	}
 
+	/**
+	 * @return the clock rate of each payload type of the media, from its rtpmap attributes,
+	 *         keyed by payload type ( see Symmitron.RTP_MAP ).
+	 */
+	static Map<String, Integer> getRtpClockRates(SessionDescription sessionDescription) {
+		Map<String, Integer> clockRates = new HashMap<String, Integer>();
+		try {
+			MediaDescription mediaDescription = getMediaDescription(sessionDescription);
+			Vector attributes = mediaDescription == null ? null : mediaDescription
+					.getAttributes(false);
+			if (attributes == null) {
+				return clockRates;
+			}
+			for (Object attribute : attributes) {
+				Attribute attr = (Attribute) attribute;
+				if (!attr.getName().equalsIgnoreCase("rtpmap") || attr.getValue() == null) {
+					continue;
+				}
+				/*
+				 * <payload type> <encoding name>/<clock rate>[/<encoding parameters>]
+				 */
+				String[] fields = attr.getValue().trim().split("[ /]+");
+				try {
+					if (fields.length >= 3) {
+						clockRates.put(Integer.toString(Integer.parseInt(fields[0])), Integer
+								.parseInt(fields[2]));
+					}
+				} catch (NumberFormatException ex) {
+					logger.warn("could not parse RTP Map " + attr.getValue());
+				}
+			}
+		} catch (SdpParseException ex) {
+			logger.warn("could not parse the RTP Maps", ex);
+		}
+		return clockRates;
+	}
+
 	static int getSessionDescriptionMediaPort(
 			SessionDescription sessionDescription) {
 		try {
@@ -1766,8 +1852,17 @@ class SipUtilities {
 		}
 	}
 
+	/**
+	 * Copy a session description. The copy shares nothing with the original.
+	 * A structural copy is much cheaper than printing and re-parsing, but the
+	 * NIST copy constructor mangles the u= field ( "u=u=...\r\n" ) so an SDP
+	 * that has one is re-parsed.
+	 */
 	static SessionDescription cloneSessionDescription(SessionDescription sd) {
 		try {
+			if (sd instanceof SessionDescriptionImpl && sd.getURI() == null) {
+				return new SessionDescriptionImpl(sd);
+			}
 			return SdpFactory.getInstance().createSessionDescription(
 					sd.toString());
 		} catch (Exception ex) {
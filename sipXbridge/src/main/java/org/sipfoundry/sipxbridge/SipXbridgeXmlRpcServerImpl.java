@@ -71,6 +71,8 @@ public class SipXbridgeXmlRpcServerImpl implements SipXbridgeXmlRpcServer {
 
 				webServer.start();
 
+				BridgeMetrics.register();
+
 				if ( logger.isDebugEnabled() ) logger.debug("Web server started.");
 
 			}
@@ -129,6 +131,30 @@ public class SipXbridgeXmlRpcServerImpl implements SipXbridgeXmlRpcServer {
 		return new Integer(retval);
 	}
 
+	public Map<String, Integer> getDialogContextStatistics() throws ServletException {
+		try {
+			return DialogContext.getStatistics();
+		} catch (Exception ex) {
+		    throw new ServletException(formatStackTrace(ex), ex);
+		}
+	}
+
+	public Map<String, Integer> getTimerStatistics() throws ServletException {
+		try {
+			return Gateway.getScheduler().getStatistics();
+		} catch (Exception ex) {
+		    throw new ServletException(formatStackTrace(ex), ex);
+		}
+	}
+
+	public Map<String, Integer> getAdmissionStatistics() throws ServletException {
+		try {
+			return Gateway.getAdmissionController().getStatistics();
+		} catch (Exception ex) {
+		    throw new ServletException(formatStackTrace(ex), ex);
+		}
+	}
+
 	public Boolean start() throws ServletException {
 
 		if ( logger.isDebugEnabled() ) logger.debug("Gateway.start()");
@@ -68,4 +68,22 @@ public class SipxbridgeServlet extends HttpServlet {
 
 	    }
 
+	    /*
+	     * (non-Javadoc)
+	     *
+	     * GET /metrics returns the bridge metrics in the Prometheus text format.
+	     *
+	     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest,
+	     *      javax.servlet.http.HttpServletResponse)
+	     */
+	    public void doGet(HttpServletRequest request, HttpServletResponse response)
+	            throws ServletException, IOException {
+	        if (!"/metrics".equals(request.getPathInfo())) {
+	            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+	            return;
+	        }
+	        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+	        BridgeMetrics.writeText(response.getWriter());
+	    }
+
 }
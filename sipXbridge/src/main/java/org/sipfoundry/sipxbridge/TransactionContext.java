@@ -121,6 +121,12 @@ class TransactionContext {
 
     private Collection<Hop> proxyAddresses;
 
+    /*
+     * When the context was created ( System.nanoTime() ): for an INVITE to the ITSP, when the
+     * INVITE was sent. The context is kept across an authentication challenge.
+     */
+    private final long creationTime = System.nanoTime();
+
     static TransactionContext attach(Transaction transaction,
             Operation operation) {
         if ( transaction.getApplicationData() != null ) {
@@ -182,6 +188,13 @@ class TransactionContext {
         }
     }
 
+    /**
+     * @return the System.nanoTime() at which the context was created.
+     */
+    long getCreationTime() {
+        return creationTime;
+    }
+
     /**
      * @return the serverTransaction
      */
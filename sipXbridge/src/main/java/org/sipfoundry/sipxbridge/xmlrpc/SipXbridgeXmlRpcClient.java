@@ -17,6 +17,7 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.sipfoundry.commons.xmlrpc.PooledXmlRpcTransportFactory;
 
 /**
  *
@@ -39,6 +40,7 @@ public class SipXbridgeXmlRpcClient {
             config.setServerURL(new URL(url));
             this.client = new XmlRpcClient();
             this.client.setConfig(config);
+            this.client.setTransportFactory(new PooledXmlRpcTransportFactory(this.client));
         } catch (Exception ex) {
             throw new SipXbridgeClientException(ex);
         }
@@ -95,6 +97,48 @@ public class SipXbridgeXmlRpcClient {
         return retval;
     }
 
+    /**
+     * Get the number of live dialog contexts and how long they have been alive.
+     *
+     * @return a map of counter name to value.
+     */
+    public Map<String, Integer> getDialogContextStatistics() {
+        try {
+            return (Map<String, Integer>) client.execute(SipXbridgeXmlRpcServer.SERVER + "."
+                    + "getDialogContextStatistics", (Object[]) null);
+        } catch (Exception ex) {
+            throw new SipXbridgeClientException(ex);
+        }
+    }
+
+    /**
+     * Get the number of pending timers and how late they run.
+     *
+     * @return a map of counter name to value.
+     */
+    public Map<String, Integer> getTimerStatistics() {
+        try {
+            return (Map<String, Integer>) client.execute(SipXbridgeXmlRpcServer.SERVER + "."
+                    + "getTimerStatistics", (Object[]) null);
+        } catch (Exception ex) {
+            throw new SipXbridgeClientException(ex);
+        }
+    }
+
+    /**
+     * Get the number of requests being processed and how many were refused for overload.
+     *
+     * @return a map of counter name to value.
+     */
+    public Map<String, Integer> getAdmissionStatistics() {
+        try {
+            return (Map<String, Integer>) client.execute(SipXbridgeXmlRpcServer.SERVER + "."
+                    + "getAdmissionStatistics", (Object[]) null);
+        } catch (Exception ex) {
+            throw new SipXbridgeClientException(ex);
+        }
+    }
+
     public void start() {
         try {
             client.execute(SipXbridgeXmlRpcServer.SERVER + "."
@@ -38,6 +38,30 @@ public interface SipXbridgeXmlRpcServer {
      * 
      */
     public Integer getCallCount() throws ServletException;
+
+    /**
+     * Returns the number of live dialog contexts ( "live" ), the number created and removed
+     * since startup ( "created", "removed" ), the age in seconds of the oldest one
+     * ( "oldestSeconds" ) and a histogram of their ages ( "age<1m" ... "age>=8h" ).
+     * @throws ServletException
+     */
+    public Map<String, Integer> getDialogContextStatistics() throws ServletException;
+
+    /**
+     * Returns the number of pending timers ( "pending" ), the tasks waiting for a worker
+     * ( "queued" ), the tasks run and failed, and the lag between the expiry of a timer and
+     * the start of its task ( "averageLagMillis", "maximumLagMillis", "lag<20ms" ... "lag>=1s" ).
+     * @throws ServletException
+     */
+    public Map<String, Integer> getTimerStatistics() throws ServletException;
+
+    /**
+     * Returns the number of requests being processed ( "pending" ), the smoothed processing
+     * time ( "latencyMillis" ), whether new calls are being refused ( "overloaded" ) and the
+     * number of requests admitted and refused ( "admitted", "rejectedInvites", ... ).
+     * @throws ServletException
+     */
+    public Map<String, Integer> getAdmissionStatistics() throws ServletException;
     
     /**
      * Start the bridge.
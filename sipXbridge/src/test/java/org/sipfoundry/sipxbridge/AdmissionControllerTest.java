@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.sipfoundry.sipxbridge.AdmissionController.Priority;
+
+/**
+ * Tests the overload decisions of the AdmissionController.
+ */
+public class AdmissionControllerTest extends TestCase {
+
+    private BridgeConfiguration bridgeConfiguration;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        bridgeConfiguration = new BridgeConfiguration();
+        bridgeConfiguration.setOverloadMaxPendingRequests(4);
+        bridgeConfiguration.setOverloadMaxLatencyMilliseconds(50);
+        bridgeConfiguration.setRegisterRateLimit(2);
+    }
+
+    public void testPendingRequests() {
+        AdmissionController controller = new AdmissionController(bridgeConfiguration);
+        long[] started = new long[4];
+        for (int i = 0; i < started.length; i++) {
+            assertNull(controller.admit(Priority.NEW_INVITE));
+            started[i] = controller.requestStarted();
+        }
+        assertNotNull(controller.admit(Priority.NEW_INVITE));
+        assertNotNull(controller.admit(Priority.OTHER));
+        assertNull("In dialog requests are never refused", controller.admit(Priority.IN_DIALOG));
+
+        /*
+         * Stays overloaded until the depth drops to three quarters of the threshold.
+         */
+        controller.requestFinished(started[0]);
+        assertTrue(controller.isOverloaded());
+        controller.requestFinished(started[1]);
+        assertFalse(controller.isOverloaded());
+        assertNull(controller.admit(Priority.NEW_INVITE));
+
+        assertEquals(1, (int) controller.getStatistics().get("overloadPeriods"));
+        assertEquals(1, (int) controller.getStatistics().get("rejectedInvites"));
+        assertEquals(1, (int) controller.getStatistics().get("rejectedOther"));
+    }
+
+    public void testLatency() {
+        AdmissionController controller = new AdmissionController(bridgeConfiguration);
+        controller.requestFinished(System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+        assertTrue(controller.isOverloaded());
+        assertNotNull(controller.admit(Priority.NEW_INVITE));
+        assertNull(controller.admit(Priority.IN_DIALOG));
+
+        /*
+         * Fast requests bring the smoothed processing time back down.
+         */
+        for (int i = 0; i < 50 && controller.isOverloaded(); i++) {
+            controller.requestFinished(controller.requestStarted());
+        }
+        assertFalse(controller.isOverloaded());
+        assertNull(controller.admit(Priority.NEW_INVITE));
+    }
+
+    public void testRegisterRate() throws Exception {
+        AdmissionController controller = new AdmissionController(bridgeConfiguration);
+        assertNull(controller.admit(Priority.REGISTER));
+        assertNull(controller.admit(Priority.REGISTER));
+        assertNotNull(controller.admit(Priority.REGISTER));
+        Thread.sleep(600);
+        assertNull(controller.admit(Priority.REGISTER));
+        assertEquals(1, (int) controller.getStatistics().get("rejectedRegisters"));
+
+        bridgeConfiguration.setRegisterRateLimit(-1);
+        for (int i = 0; i < 100; i++) {
+            assertNull(controller.admit(Priority.REGISTER));
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the call id index of the BackToBackUserAgentFactory and that the cost of handling a new
+ * INVITE ( call id lookup, call limit check, B2BUA registration and removal ) does not grow with
+ * the number of calls in progress.
+ */
+public class BackToBackUserAgentLookupTest extends TestCase {
+
+    private static final int INVITES = 200000;
+
+    private BackToBackUserAgentFactory factory;
+
+    private List<BackToBackUserAgent> created = new ArrayList<BackToBackUserAgent>();
+
+    private int callIdCounter;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        factory = BackToBackUserAgentFactory.getInstance();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        for (BackToBackUserAgent b2bua : created) {
+            factory.removeBackToBackUserAgent(b2bua);
+        }
+    }
+
+    /*
+     * The real constructor needs a relay and a SIP stack.
+     */
+    private BackToBackUserAgent newBackToBackUserAgent() throws Exception {
+        Constructor<BackToBackUserAgent> constructor = BackToBackUserAgent.class
+                .getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private BackToBackUserAgent addCall() throws Exception {
+        assertTrue(factory.reserveCall(-1));
+        BackToBackUserAgent b2bua = newBackToBackUserAgent();
+        factory.addBackToBackUserAgent(b2bua);
+        b2bua.addCallId("call-" + callIdCounter++);
+        b2bua.addCallId("call-" + callIdCounter++);
+        created.add(b2bua);
+        return b2bua;
+    }
+
+    public void testIndex() throws Exception {
+        BackToBackUserAgent b2bua = addCall();
+        for (String callId : b2bua.getCallIds()) {
+            assertSame(b2bua, factory.getBackToBackUserAgent(callId));
+        }
+        assertNull(factory.getBackToBackUserAgent("unknown"));
+
+        List<String> callIds = new ArrayList<String>(b2bua.getCallIds());
+        assertTrue(factory.removeBackToBackUserAgent(b2bua));
+        assertFalse(factory.removeBackToBackUserAgent(b2bua));
+        for (String callId : callIds) {
+            assertNull(factory.getBackToBackUserAgent(callId));
+        }
+
+        /*
+         * A dialog that shows up after the B2BUA is gone must not leak an index entry.
+         */
+        b2bua.addCallId("late-call");
+        assertNull(factory.getBackToBackUserAgent("late-call"));
+    }
+
+    public void testCallLimit() throws Exception {
+        int base = factory.getBackToBackUserAgentCount();
+        BackToBackUserAgent first = addCall();
+        addCall();
+        assertFalse(factory.reserveCall(base + 2));
+        assertTrue(factory.removeBackToBackUserAgent(first));
+        assertTrue(factory.reserveCall(base + 2));
+        BackToBackUserAgent third = newBackToBackUserAgent();
+        factory.addBackToBackUserAgent(third);
+        created.add(third);
+        assertFalse(factory.reserveCall(base + 2));
+    }
+
+    /*
+     * @return nanoseconds per INVITE with the given number of calls in progress.
+     */
+    private long measureInvite(int activeCalls) throws Exception {
+        while (created.size() < activeCalls) {
+            addCall();
+        }
+        BackToBackUserAgent[] b2buas = new BackToBackUserAgent[INVITES];
+        for (int i = 0; i < INVITES; i++) {
+            b2buas[i] = newBackToBackUserAgent();
+        }
+        long startTime = System.nanoTime();
+        for (int i = 0; i < INVITES; i++) {
+            String callId = "invite-" + activeCalls + "-" + i;
+            assertNull(factory.getBackToBackUserAgent(callId));
+            assertTrue(factory.reserveCall(activeCalls + 1));
+            factory.addBackToBackUserAgent(b2buas[i]);
+            b2buas[i].addCallId(callId);
+            assertSame(b2buas[i], factory.getBackToBackUserAgent(callId));
+            factory.removeBackToBackUserAgent(b2buas[i]);
+        }
+        return (System.nanoTime() - startTime) / INVITES;
+    }
+
+    public void testInviteCostIsFlat() throws Exception {
+        /*
+         * Warm up.
+         */
+        measureInvite(10);
+        long[] costs = new long[4];
+        int[] activeCalls = {
+            10, 100, 1000, 10000
+        };
+        for (int i = 0; i < activeCalls.length; i++) {
+            costs[i] = measureInvite(activeCalls[i]);
+            System.out.println(String.format("%6d calls : %6d ns per INVITE", activeCalls[i],
+                    costs[i]));
+        }
+        /*
+         * A linear scan would be 1000 times slower at 10000 calls than at 10.
+         */
+        assertTrue("INVITE cost grows with the number of calls",
+                costs[3] < 10 * Math.max(costs[0], 100));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the LatencyHistogram and the text and JMX views of BridgeMetrics.
+ */
+public class BridgeMetricsTest extends TestCase {
+
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(200));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(30));
+        }
+        histogram.record(-1);
+        assertEquals(101, histogram.getCount());
+        assertEquals(91, histogram.getBucketCount(0));
+        assertEquals(250, histogram.getPercentileMicros(50));
+        assertEquals(30000, histogram.getPercentileMicros(99));
+        assertEquals(30000, histogram.getMaximumMicros());
+        assertEquals(90 * 200 + 10 * 30000, histogram.getTotalMicros());
+    }
+
+    public void testOpenEndedBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.SECONDS.toNanos(20));
+        assertEquals(1, histogram.getBucketCount(LatencyHistogram.BOUNDS.length));
+        assertEquals(20000000, histogram.getPercentileMicros(50));
+    }
+
+    public void testLabelOverflow() {
+        BridgeMetrics.CounterFamily family = BridgeMetrics.AUTH_CHALLENGES;
+        for (int i = 0; i < 200; i++) {
+            family.get("overflow" + i + ".example.com").incrementAndGet();
+        }
+        assertTrue(family.children.size() <= 101);
+        assertTrue(family.get("other").get() >= 100);
+    }
+
+    public void testText() {
+        BridgeMetrics.ITSP_INVITE_SETUP.get("itsp\"test").record(
+                TimeUnit.MILLISECONDS.toNanos(3));
+        BridgeMetrics.ITSP_INVITE_FAILURES.get("itsp\"test").incrementAndGet();
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        BridgeMetrics.writeText(writer);
+        writer.flush();
+        String output = text.toString();
+        assertTrue(output, output.contains("# TYPE sipxbridge_itsp_invite_setup_seconds histogram"));
+        assertTrue(output, output
+                .contains("sipxbridge_itsp_invite_setup_seconds_bucket{account=\"itsp\\\"test\",le=\"0.005000\"} 1"));
+        assertTrue(output, output
+                .contains("sipxbridge_itsp_invite_setup_seconds_count{account=\"itsp\\\"test\"} 1"));
+        assertTrue(output, output
+                .contains("sipxbridge_itsp_invite_failures_total{account=\"itsp\\\"test\"} 1"));
+
+        Map<String, Number> attributes = BridgeMetrics.getAttributeValues();
+        assertEquals(1L, attributes.get(
+                "itsp_invite_setup{account=\"itsp\\\"test\"}.count"));
+    }
+
+}
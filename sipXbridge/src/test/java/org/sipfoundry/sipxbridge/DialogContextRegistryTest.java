@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.Dialog;
+
+import junit.framework.TestCase;
+
+/**
+ * Creates and terminates dialog contexts from several threads and checks that none is lost or
+ * leaked.
+ */
+public class DialogContextRegistryTest extends TestCase {
+
+    private static final int THREADS = 8;
+
+    private static final int DIALOGS = 100000;
+
+    /*
+     * A dialog that only holds its application data.
+     */
+    private static Dialog newDialog() {
+        return (Dialog) Proxy.newProxyInstance(Dialog.class.getClassLoader(),
+                new Class[] { Dialog.class }, new InvocationHandler() {
+                    private Object applicationData;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("setApplicationData")) {
+                            applicationData = args[0];
+                        } else if (name.equals("getApplicationData")) {
+                            return applicationData;
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("toString")) {
+                            return "Dialog@" + Integer.toHexString(System.identityHashCode(proxy));
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /*
+     * The real constructor needs a relay and a SIP stack.
+     */
+    private static BackToBackUserAgent newBackToBackUserAgent() throws Exception {
+        Constructor<BackToBackUserAgent> constructor = BackToBackUserAgent.class
+                .getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    public void testLifeCycle() throws Exception {
+        DialogContextRegistry registry = DialogContext.getRegistry();
+        int live = registry.size();
+        Dialog dialog = newDialog();
+        DialogContext dialogContext = DialogContext.attach(newBackToBackUserAgent(), dialog,
+                null, null);
+        assertSame(dialogContext, DialogContext.get(dialog));
+        assertSame(DialogContextState.ATTACHED, dialogContext.getState());
+        assertSame(dialogContext, DialogContext.getDialogContext(dialogContext
+                .getDialogContextId()));
+        assertEquals(live + 1, registry.size());
+
+        assertTrue(registry.remove(dialogContext));
+        assertFalse(registry.remove(dialogContext));
+        assertSame(DialogContextState.REMOVED, dialogContext.getState());
+        assertFalse(dialogContext.setState(DialogContextState.ATTACHED));
+        assertNull(DialogContext.getDialogContext(dialogContext.getDialogContextId()));
+        assertEquals(live, registry.size());
+    }
+
+    public void testStatistics() throws Exception {
+        Dialog dialog = newDialog();
+        DialogContext dialogContext = DialogContext.attach(newBackToBackUserAgent(), dialog,
+                null, null);
+        Map<String, Integer> statistics = DialogContext.getStatistics();
+        assertTrue(statistics.get("live") >= 1);
+        assertTrue(statistics.get("age<1m") >= 1);
+        int total = 0;
+        for (String key : statistics.keySet()) {
+            if (key.startsWith("age")) {
+                total += statistics.get(key);
+            }
+        }
+        assertEquals(statistics.get("live").intValue(), total);
+        DialogContext.removeDialogContext(dialogContext);
+    }
+
+    /*
+     * Half of the dialogs terminate normally. The others are left behind and removed when their
+     * B2BUA is reaped.
+     */
+    public void testConcurrentCreateAndTerminate() throws Exception {
+        final DialogContextRegistry registry = DialogContext.getRegistry();
+        final AtomicInteger errors = new AtomicInteger();
+        int live = registry.size();
+        long start = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        BackToBackUserAgent b2bua = newBackToBackUserAgent();
+                        for (int i = 0; i < DIALOGS / THREADS; i++) {
+                            if (i % 100 == 0) {
+                                b2bua.cleanReferences();
+                                b2bua = newBackToBackUserAgent();
+                            }
+                            Dialog dialog = newDialog();
+                            DialogContext dialogContext = DialogContext.attach(b2bua, dialog,
+                                    null, null);
+                            if (DialogContext.getDialogContext(dialogContext
+                                    .getDialogContextId()) != dialogContext) {
+                                errors.incrementAndGet();
+                            }
+                            if (i % 2 == 0) {
+                                DialogContext.removeDialogContext(dialogContext);
+                                if (DialogContext.getDialogContext(dialogContext
+                                        .getDialogContextId()) != null) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                        b2bua.cleanReferences();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals("Dialog contexts leaked", live, registry.size());
+        System.out.println("created and terminated " + DIALOGS + " dialogs in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the GatewayScheduler timing wheel and worker pool.
+ */
+public class GatewaySchedulerTest extends TestCase {
+
+    private GatewayScheduler scheduler;
+
+    static class CountingTask extends GatewayTimerTask {
+        final AtomicInteger runs = new AtomicInteger();
+
+        final CountDownLatch latch;
+
+        CountingTask(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        public void run() {
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = new GatewayScheduler("TestScheduler", 10, 64, 2);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        scheduler.stop();
+    }
+
+    public void testOneShot() throws Exception {
+        CountingTask task = new CountingTask(1);
+        long start = System.currentTimeMillis();
+        scheduler.schedule(task, 100);
+        assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        Thread.sleep(100);
+        assertEquals(1, task.runs.get());
+        assertFalse("Cancelling a task that ran", task.cancel());
+        assertEquals(0, scheduler.getPendingTaskCount());
+    }
+
+    public void testLongDelay() throws Exception {
+        /*
+         * More than one turn of the wheel ( 64 x 10 ms ).
+         */
+        CountingTask task = new CountingTask(1);
+        scheduler.schedule(task, 1500);
+        assertFalse(task.latch.await(1200, TimeUnit.MILLISECONDS));
+        assertTrue(task.latch.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testPeriodicAndCancel() throws Exception {
+        CountingTask task = new CountingTask(3);
+        scheduler.schedule(task, 50, 50);
+        assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+        int runs = task.runs.get();
+        Thread.sleep(200);
+        assertTrue(task.runs.get() <= runs + 1);
+        assertEquals(0, scheduler.getPendingTaskCount());
+
+        CountingTask cancelled = new CountingTask(1);
+        scheduler.schedule(cancelled, 50);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.latch.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testSlowTaskDoesNotDelayOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.schedule(new GatewayTimerTask() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        }, 10);
+        CountingTask task = new CountingTask(1);
+        scheduler.schedule(task, 100);
+        assertTrue(task.latch.await(1, TimeUnit.SECONDS));
+        release.countDown();
+
+        Map<String, Integer> statistics = scheduler.getStatistics();
+        assertEquals(2, statistics.get("executed").intValue());
+        assertTrue(statistics.get("maximumLagMillis") < 500);
+    }
+
+    public void testFailingTask() throws Exception {
+        scheduler.schedule(new GatewayTimerTask() {
+            public void run() {
+                throw new RuntimeException("expected");
+            }
+        }, 10);
+        CountingTask task = new CountingTask(1);
+        scheduler.schedule(task, 50);
+        assertTrue(task.latch.await(1, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getStatistics().get("failures").intValue());
+    }
+
+    /*
+     * Session timers are scheduled and cancelled for every call. The cost must not depend on
+     * the number of live timers.
+     */
+    public void testScheduleAndCancelChurn() throws Exception {
+        for (int live : new int[] { 10000, 100000 }) {
+            List<GatewayTimerTask> tasks = new ArrayList<GatewayTimerTask>();
+            for (int i = 0; i < live; i++) {
+                CountingTask task = new CountingTask(1);
+                scheduler.schedule(task, 60 * 60 * 1000);
+                tasks.add(task);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                CountingTask task = new CountingTask(1);
+                scheduler.schedule(task, 30 * 60 * 1000);
+                task.cancel();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(live + " live timers: schedule+cancel "
+                    + elapsed / 100000 + " ns");
+            for (GatewayTimerTask task : tasks) {
+                task.cancel();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (scheduler.getPendingTaskCount() != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, scheduler.getPendingTaskCount());
+        }
+    }
+
+}
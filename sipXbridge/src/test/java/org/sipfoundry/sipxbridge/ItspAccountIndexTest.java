@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the account indexes select the same accounts as matching the request against each
+ * account in turn.
+ */
+public class ItspAccountIndexTest extends TestCase {
+
+    private static ItspAccountInfo account(String proxyDomain, String userName, String callerId,
+            String... lineIds) {
+        ItspAccountInfo accountInfo = new ItspAccountInfo();
+        accountInfo.setProxyDomain(proxyDomain);
+        accountInfo.setUserName(userName);
+        accountInfo.setCallerId(callerId);
+        for (String lineId : lineIds) {
+            accountInfo.setSipxecsLineId(lineId);
+        }
+        return accountInfo;
+    }
+
+    public void testDomainSuffix() {
+        ItspAccountInfo itsp = account("itsp.com", "user", null);
+        ItspAccountInfo sub = account("sub.itsp.com", "user", null);
+        List<ItspAccountInfo> accounts = new ArrayList<ItspAccountInfo>();
+        accounts.add(itsp);
+        accounts.add(sub);
+        ItspAccountIndex index = new ItspAccountIndex(accounts);
+
+        List<ItspAccountIndex.DomainAccounts> domains = index.getDomainAccounts("a.sub.itsp.com");
+        assertEquals(2, domains.size());
+        assertSame(sub, domains.get(0).getFirst());
+        assertSame(itsp, domains.get(1).getFirst());
+
+        /*
+         * Suffix as in String.endsWith.
+         */
+        assertEquals(1, index.getDomainAccounts("myitsp.com").size());
+        assertTrue(index.getDomainAccounts("itsp.org").isEmpty());
+        assertTrue(index.getDomainAccounts("com").isEmpty());
+    }
+
+    public void testSelection() {
+        ItspAccountInfo byUser = account("itsp.com", "alice", null);
+        ItspAccountInfo byCallerId = account("itsp.com", "bob", "5551234");
+        ItspAccountInfo byLineId = account("itsp.com", "carol", "5559999", "line1", "line2");
+        List<ItspAccountInfo> accounts = new ArrayList<ItspAccountInfo>();
+        accounts.add(byUser);
+        accounts.add(byCallerId);
+        accounts.add(byLineId);
+        ItspAccountIndex.DomainAccounts domain = new ItspAccountIndex(accounts).getDomainAccounts(
+                "itsp.com").get(0);
+
+        assertSame(byUser, domain.getFirst());
+        assertSame(byUser, domain.getByUserName("alice"));
+        assertNull("Accounts with a caller id are matched by caller id", domain
+                .getByUserName("bob"));
+        assertSame(byLineId, domain.getByLineId("line2"));
+        assertNull(domain.getByLineId("line3"));
+
+        /*
+         * The user only has to be a prefix of the caller id.
+         */
+        assertSame(byCallerId, domain.getByCallerIdPrefix("5551234"));
+        assertSame(byCallerId, domain.getByCallerIdPrefix("555"));
+        assertSame(byLineId, domain.getByCallerIdPrefix("5559"));
+        assertNull(domain.getByCallerIdPrefix("55512345"));
+        assertNull(domain.getByCallerIdPrefix(null));
+        assertSame(byCallerId, domain.getFirstWithCallerId());
+    }
+
+    public void testManyAccounts() {
+        List<ItspAccountInfo> accounts = new ArrayList<ItspAccountInfo>();
+        for (int i = 0; i < 10000; i++) {
+            accounts.add(account("itsp" + i + ".com", "user" + i, i % 2 == 0 ? null : "1555"
+                    + i));
+        }
+        ItspAccountIndex index = new ItspAccountIndex(accounts);
+        for (int i = 0; i < 10000; i++) {
+            ItspAccountInfo expected = accounts.get(i);
+            for (ItspAccountIndex.DomainAccounts domain : index.getDomainAccounts("sip.itsp" + i
+                    + ".com")) {
+                ItspAccountInfo found = i % 2 == 0 ? domain.getByUserName("user" + i) : domain
+                        .getByCallerIdPrefix("1555" + i);
+                assertSame(expected, found);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.net.InetAddress;
+import java.util.Collections;
+
+import gov.nist.javax.sip.stack.HopImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that ITSP host names are resolved the way the system resolver does it and that
+ * requests are matched against the index without resolving anything.
+ */
+public class ItspAddressIndexTest extends TestCase {
+
+    public void testResolveFromHostsFile() {
+        /*
+         * localhost comes from /etc/hosts, not from DNS.
+         */
+        InetAddress address = ItspAddressIndex.resolve("localhost");
+        assertNotNull(address);
+        assertTrue(address.isLoopbackAddress());
+    }
+
+    public void testResolveLiteral() {
+        assertEquals("192.0.2.1", ItspAddressIndex.resolve("192.0.2.1").getHostAddress());
+    }
+
+    public void testResolveUnknownHost() {
+        assertNull(ItspAddressIndex.resolve("no-such-host.invalid"));
+    }
+
+    private static ItspAccountInfo createRegisteringAccount(String proxyDomain, String registrar) {
+        ItspAccountInfo accountInfo = new ItspAccountInfo();
+        accountInfo.setProxyDomain(proxyDomain);
+        accountInfo.setRegisterOnInitialization(true);
+        accountInfo.setHopToRegistrar(new HopImpl(registrar, 5060, "udp"));
+        return accountInfo;
+    }
+
+    public void testLookupByAddressAndName() {
+        ItspAccountInfo accountInfo = createRegisteringAccount("itsp.example.com", "localhost");
+        ItspAddressIndex index = new ItspAddressIndex(Collections.singleton(accountInfo));
+        assertSame(accountInfo, index.get("127.0.0.1", 5060));
+        assertSame(accountInfo, index.getByName("LocalHost", 5080));
+        assertSame(accountInfo, index.getByName("itsp.example.com", 5060));
+        assertNull(index.getByName("other.example.com", 5060));
+    }
+
+    /*
+     * The account manager does not resolve a Via host and does not build the index on the call
+     * path.
+     */
+    public void testAccountManagerLooksUpNamesOnly() {
+        AccountManagerImpl accountManager = new AccountManagerImpl();
+        ItspAccountInfo accountInfo = createRegisteringAccount("itsp.example.com", "localhost");
+        accountManager.addItspAccount(accountInfo);
+        assertNull(accountManager.getItspAccount("127.0.0.1", 5060));
+
+        accountManager.startAddressIndex();
+        assertSame(accountInfo, accountManager.getItspAccount("127.0.0.1", 5060));
+        assertSame(accountInfo, accountManager.getItspAccount("localhost", 5060));
+        assertNull(accountManager.getItspAccount("localhost.localdomain", 5060));
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.sipfoundry.sipxrelay.BridgeState;
+import org.sipfoundry.sipxrelay.KeepaliveMethod;
+import org.sipfoundry.sipxrelay.SymmitronClient;
+import org.sipfoundry.sipxrelay.SymmitronException;
+
+/**
+ * Call setup against a slow relay: a stand-in for the sipXrelay XML-RPC interface that takes
+ * RELAY_DELAY to answer every call.
+ */
+public class MediaControlTest extends TestCase {
+
+    private static final long RELAY_DELAY = 100;
+
+    private static final int CALLS = 8;
+
+    private ServerSocket serverSocket;
+
+    private final AtomicInteger symCounter = new AtomicInteger();
+
+    private final AtomicInteger relayCalls = new AtomicInteger();
+
+    private volatile boolean failing;
+
+    private volatile String lastRequest;
+
+    private SymmitronClient symmitronClient;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        Thread worker = new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        worker.setDaemon(true);
+                        worker.start();
+                    }
+                } catch (IOException ex) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        symmitronClient = new SymmitronClient("test", "127.0.0.1", serverSocket.getLocalPort(),
+                false, null);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        serverSocket.close();
+    }
+
+    private static String member(String name, String value) {
+        return "<member><name>" + name + "</name><value>" + value + "</value></member>";
+    }
+
+    private String reply(String method, String body) {
+        StringBuilder struct = new StringBuilder("<struct>");
+        struct.append(member("instance-handle", "relay:1"));
+        if (failing) {
+            struct.append(member("status-code", "error"));
+            struct.append(member("faultString", "relay failure"));
+        } else {
+            struct.append(member("status-code", "ok"));
+        }
+        if (method.equals("sipXrelay.createBridgedSyms")) {
+            /*
+             * One ( empty ) struct per sym requested.
+             */
+            int count = body.split("<struct", -1).length - 1;
+            struct.append(member("bridge-id", "bridge:1"));
+            struct.append(member("public-address", "192.0.2.1"));
+            StringBuilder syms = new StringBuilder("<array><data>");
+            for (int i = 0; i < count; i++) {
+                int id = symCounter.incrementAndGet();
+                syms.append("<value><struct>").append(member("id", "sym:" + id)).append(
+                        member("receiver", "<struct>" + member("ipAddress", "10.0.0.1")
+                                + member("port", "<i4>" + (30000 + 2 * id) + "</i4>")
+                                + member("id", "receiver:" + id) + "</struct>")).append(
+                        "</struct></value>");
+            }
+            syms.append("</data></array>");
+            struct.append(member("sym", syms.toString()));
+        }
+        struct.append("</struct>");
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodResponse><params><param>"
+                + "<value>" + struct + "</value></param></params></methodResponse>";
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (readLine(in) != null) {
+                int length = 0;
+                String line;
+                while ((line = readLine(in)).length() != 0) {
+                    if (line.toLowerCase(Locale.ENGLISH).startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                byte[] body = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    body[i] = (byte) in.read();
+                }
+                String request = new String(body, "UTF-8");
+                String method = request.substring(request.indexOf("<methodName>") + 12, request
+                        .indexOf("</methodName>"));
+                if (!method.equals("sipXrelay.signIn") && !method.equals("sipXrelay.ping")) {
+                    lastRequest = request;
+                    relayCalls.incrementAndGet();
+                    Thread.sleep(RELAY_DELAY);
+                }
+                byte[] reply = reply(method, request).getBytes("UTF-8");
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: "
+                        + reply.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                out.write(reply);
+                out.flush();
+            }
+            socket.close();
+        } catch (Exception ex) {
+        }
+    }
+
+    public void testBothLegsInOneRoundTrip() throws Exception {
+        RtpBridge rtpBridge = new RtpBridge(symmitronClient.createDeferredBridge());
+        List<RtpSession> rtpSessions = rtpBridge.createRtpSessions(2);
+        assertEquals(2, rtpSessions.size());
+        assertEquals(1, relayCalls.get());
+        assertEquals(2, rtpBridge.getSyms().size());
+        assertNotSame(rtpSessions.get(0).getSym(), rtpSessions.get(1).getSym());
+        assertNotNull(rtpSessions.get(1).getReceiver());
+    }
+
+    /*
+     * The destination of the caller's sym is known from the INVITE: it is set and the bridge
+     * started in the request that creates the syms.
+     */
+    public void testKnownDestinationInOneRoundTrip() throws Exception {
+        RtpBridge rtpBridge = new RtpBridge(symmitronClient.createDeferredBridge());
+        Map[] symSpecs = new Map[] {
+            SymmitronClient.createSymSpec("192.0.2.10", 4000, 20000, KeepaliveMethod.NONE),
+            new HashMap<String, Object>()
+        };
+        List<RtpSession> rtpSessions = rtpBridge.createRtpSessions(symSpecs, true);
+        assertEquals(2, rtpSessions.size());
+        assertEquals(1, relayCalls.get());
+        assertTrue(lastRequest.contains("192.0.2.10"));
+        assertTrue(lastRequest.contains("<boolean>1</boolean>"));
+        assertEquals(BridgeState.RUNNING, rtpBridge.getState());
+
+        /*
+         * Neither setting the same destination again nor starting the bridge goes to the relay.
+         */
+        symmitronClient.createSymTransmitter(rtpSessions.get(0).getSym()).setIpAddressAndPort(
+                "192.0.2.10", 4000, 20000, KeepaliveMethod.NONE);
+        rtpBridge.start();
+        assertEquals(1, relayCalls.get());
+    }
+
+    public void testFailureReachesCompletion() throws Exception {
+        failing = true;
+        RtpBridge rtpBridge = new RtpBridge(symmitronClient.createDeferredBridge());
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        rtpBridge.createRtpSessionsAsync(2, new MediaControl.Completion<List<RtpSession>>() {
+            public void completed(Future<List<RtpSession>> future) {
+                try {
+                    MediaControl.join(future);
+                } catch (SymmitronException ex) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, failures.get());
+    }
+
+    /*
+     * CALLS INVITEs arrive together on one SIP thread. Before, each one held the thread for two
+     * relay round trips. Now the thread only starts the media setup.
+     */
+    public void testSlowRelay() throws Exception {
+        long start = System.currentTimeMillis();
+        long blockingTotal = 0;
+        for (int i = 0; i < CALLS; i++) {
+            RtpBridge rtpBridge = new RtpBridge(symmitronClient.createDeferredBridge());
+            rtpBridge.createRtpSession();
+            rtpBridge.createRtpSession();
+            blockingTotal += System.currentTimeMillis() - start;
+        }
+        long blockingAverage = blockingTotal / CALLS;
+
+        final CountDownLatch done = new CountDownLatch(CALLS);
+        final AtomicLong asyncTotal = new AtomicLong();
+        final long asyncStart = System.currentTimeMillis();
+        for (int i = 0; i < CALLS; i++) {
+            RtpBridge rtpBridge = new RtpBridge(symmitronClient.createDeferredBridge());
+            rtpBridge.createRtpSessionsAsync(2, new MediaControl.Completion<List<RtpSession>>() {
+                public void completed(Future<List<RtpSession>> future) {
+                    assertEquals(2, MediaControl.join(future).size());
+                    asyncTotal.addAndGet(System.currentTimeMillis() - asyncStart);
+                    done.countDown();
+                }
+            });
+        }
+        long sipThreadBusy = System.currentTimeMillis() - asyncStart;
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long asyncAverage = asyncTotal.get() / CALLS;
+
+        System.out.println("relay delay " + RELAY_DELAY + " ms, " + CALLS
+                + " calls: average setup " + blockingAverage + " ms blocking, " + asyncAverage
+                + " ms asynchronous ( SIP thread busy " + sipThreadBusy + " ms )");
+        assertTrue(sipThreadBusy < 2 * RELAY_DELAY);
+        assertTrue(asyncAverage * 2 < blockingAverage);
+        assertTrue(MediaControl.getStatistics().get("completed") >= CALLS);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * A CANCEL for an INVITE that is waiting for its RTP sessions, arriving before or while the
+ * INVITE is forwarded.
+ */
+public class PendingInviteCancelTest extends TestCase {
+
+    private BackToBackUserAgent b2bua;
+
+    private final CountDownLatch forwarding = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /*
+     * Stands for the client transaction being attached to the INVITE.
+     */
+    private final AtomicBoolean forwarded = new AtomicBoolean();
+
+    private ProcessInviteContinuationData continuation;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        /*
+         * The real constructor needs a relay and a SIP stack.
+         */
+        Constructor<BackToBackUserAgent> constructor = BackToBackUserAgent.class
+                .getDeclaredConstructor();
+        constructor.setAccessible(true);
+        b2bua = constructor.newInstance();
+        continuation = new ProcessInviteContinuationData(null, null, b2bua, null, null) {
+            @Override
+            void forward() throws Exception {
+                forwarding.countDown();
+                release.await();
+                forwarded.set(true);
+            }
+        };
+        Field pendingInvite = BackToBackUserAgent.class.getDeclaredField("pendingInvite");
+        pendingInvite.setAccessible(true);
+        pendingInvite.set(b2bua, continuation);
+    }
+
+    public void testCancelBeforeForward() throws Exception {
+        assertTrue(b2bua.cancelPendingInvite(null));
+        release.countDown();
+        b2bua.resumePendingInvite(continuation);
+        assertFalse(forwarded.get());
+    }
+
+    public void testCancelDuringForward() throws Exception {
+        Thread media = new Thread() {
+            public void run() {
+                b2bua.resumePendingInvite(continuation);
+            }
+        };
+        media.start();
+        assertTrue(forwarding.await(5, TimeUnit.SECONDS));
+
+        final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>();
+        final AtomicBoolean forwardedWhenCancelled = new AtomicBoolean();
+        Thread sip = new Thread() {
+            public void run() {
+                cancelled.set(b2bua.cancelPendingInvite(null));
+                forwardedWhenCancelled.set(forwarded.get());
+            }
+        };
+        sip.start();
+        sip.join(200);
+        assertTrue("CANCEL did not wait for the forward", sip.isAlive());
+
+        release.countDown();
+        sip.join(5000);
+        media.join(5000);
+        /*
+         * Too late to drop it: the CANCEL goes on to cancel the forwarded INVITE.
+         */
+        assertEquals(Boolean.FALSE, cancelled.get());
+        assertTrue(forwardedWhenCancelled.get());
+        assertFalse(b2bua.cancelPendingInvite(null));
+    }
+
+}
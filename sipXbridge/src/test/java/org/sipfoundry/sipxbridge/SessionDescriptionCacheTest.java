@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge;
+
+import javax.sdp.MediaDescription;
+import javax.sdp.SdpFactory;
+import javax.sdp.SessionDescription;
+import javax.sip.SipFactory;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the SDP of a message is parsed once, that callers get independent copies and
+ * compares the cost with parsing the body every time.
+ */
+public class SessionDescriptionCacheTest extends TestCase {
+
+    private static final String SDP = "v=0\r\n" + "o=- 12345 2 IN IP4 10.0.0.1\r\n" + "s=-\r\n"
+            + "c=IN IP4 10.0.0.1\r\n" + "t=0 0\r\n" + "m=audio 5004 RTP/AVP 0 8 18 101\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n" + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:18 G729/8000\r\n" + "a=fmtp:18 annexb=no\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n" + "a=fmtp:101 0-15\r\n"
+            + "a=ptime:20\r\n" + "a=sendrecv\r\n";
+
+    /*
+     * Every field type, at session and media level.
+     */
+    private static final String FULL_SDP = "v=0\r\n" + "o=- 12345 2 IN IP4 10.0.0.1\r\n"
+            + "s=call\r\n" + "i=info\r\n" + "u=http://www.example.com/call\r\n"
+            + "e=alice@example.com\r\n" + "p=+1 555 0100\r\n" + "c=IN IP4 10.0.0.1\r\n"
+            + "b=AS:64\r\n" + "t=3034423619 3042462419\r\n" + "r=604800s 3600s 0s 90000s\r\n"
+            + "z=2882844526 -1h 2898848070 +0s\r\n" + "k=clear:secret\r\n" + "a=recvonly\r\n"
+            + "m=audio 5004 RTP/AVP 0 101\r\n" + "i=audio\r\n" + "c=IN IP4 10.0.0.2\r\n"
+            + "b=AS:32\r\n" + "k=prompt\r\n" + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n" + "a=fmtp:101 0-15\r\n"
+            + "m=video 5006 RTP/AVP 31\r\n" + "a=inactive\r\n";
+
+    private static final String INVITE = "INVITE sip:bob@10.0.0.2 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK1234\r\n"
+            + "From: <sip:alice@10.0.0.1>;tag=1\r\n" + "To: <sip:bob@10.0.0.2>\r\n"
+            + "Call-ID: 1234@10.0.0.1\r\n" + "CSeq: 1 INVITE\r\n" + "Max-Forwards: 70\r\n"
+            + "Contact: <sip:alice@10.0.0.1>\r\n" + "Content-Type: application/sdp\r\n"
+            + "Content-Length: " + SDP.length() + "\r\n\r\n" + SDP;
+
+    private MessageFactory messageFactory;
+
+    private HeaderFactory headerFactory;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        messageFactory = SipFactory.getInstance().createMessageFactory();
+        headerFactory = SipFactory.getInstance().createHeaderFactory();
+    }
+
+    public void testCopiesAreIndependent() throws Exception {
+        Request request = messageFactory.createRequest(INVITE);
+        SessionDescription first = SipUtilities.getSessionDescription(request);
+        assertEquals(SDP, first.toString());
+
+        SipUtilities.setDuplexity(first, "sendonly");
+        SipUtilities.incrementSessionVersion(first);
+        ((MediaDescription) first.getMediaDescriptions(false).get(0)).getMedia()
+                .getMediaFormats(false).remove(0);
+
+        SessionDescription second = SipUtilities.getSessionDescription(request);
+        assertNotSame(first, second);
+        assertEquals(SDP, second.toString());
+
+        SessionDescription clone = SipUtilities.cloneSessionDescription(first);
+        assertEquals(first.toString(), clone.toString());
+        clone.getConnection().setAddress("10.9.9.9");
+        assertEquals("10.0.0.1", first.getConnection().getAddress());
+    }
+
+    public void testCloneRoundTrip() throws Exception {
+        SessionDescription sd = SdpFactory.getInstance().createSessionDescription(FULL_SDP);
+        assertEquals(FULL_SDP, sd.toString());
+        SessionDescription clone = SipUtilities.cloneSessionDescription(sd);
+        assertEquals(FULL_SDP, clone.toString());
+        assertEquals(FULL_SDP, SipUtilities.cloneSessionDescription(
+                SdpFactory.getInstance().createSessionDescription(clone.toString())).toString());
+
+        String withoutUri = FULL_SDP.replace("u=http://www.example.com/call\r\n", "");
+        sd = SdpFactory.getInstance().createSessionDescription(withoutUri);
+        assertEquals(withoutUri, SipUtilities.cloneSessionDescription(sd).toString());
+    }
+
+    public void testNewBodyIsParsed() throws Exception {
+        Request request = messageFactory.createRequest(INVITE);
+        SipUtilities.getSessionDescription(request);
+        ContentTypeHeader cth = headerFactory.createContentTypeHeader("application", "sdp");
+        request.setContent(SDP.replace("10.0.0.1", "10.0.0.3"), cth);
+        assertEquals("10.0.0.3", SipUtilities.getSessionDescription(request).getConnection()
+                .getAddress());
+    }
+
+    /*
+     * A re-INVITE asks for the SDP of the same message several times.
+     */
+    public void testCost() throws Exception {
+        Request request = messageFactory.createRequest(INVITE);
+        int count = 20000;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                SdpFactory.getInstance().createSessionDescription(
+                        new String(request.getRawContent()));
+            }
+            long parse = (System.nanoTime() - start) / count;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                SipUtilities.getSessionDescription(request);
+            }
+            long cached = (System.nanoTime() - start) / count;
+            if (round == 1) {
+                System.out.println("parse " + parse + " ns, cached copy " + cached + " ns");
+                assertTrue(cached < parse);
+            }
+        }
+    }
+
+}
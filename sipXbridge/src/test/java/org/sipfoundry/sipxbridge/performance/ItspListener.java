@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package org.sipfoundry.sipxbridge.performance;
 
@@ -12,6 +12,8 @@ import gov.nist.javax.sip.SipProviderExt;
 import gov.nist.javax.sip.message.RequestExt;
 import gov.nist.javax.sip.message.ResponseExt;
 
+import java.util.concurrent.TimeUnit;
+
 import javax.sip.DialogTerminatedEvent;
 import javax.sip.IOExceptionEvent;
 import javax.sip.RequestEvent;
@@ -20,15 +22,24 @@ import javax.sip.SipProvider;
 import javax.sip.TimeoutEvent;
 import javax.sip.Transaction;
 import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
 import javax.sip.header.CSeqHeader;
+import javax.sip.header.ContentTypeHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
+import org.apache.log4j.Logger;
 
+/**
+ * The ITSP. Rings, answers, streams audio back and follows the re-INVITEs of sipXbridge ( hold,
+ * and the offer solicited for a transfer ).
+ */
 public class ItspListener implements SipListenerExt {
 
+    private static Logger logger = Logger.getLogger(ItspListener.class);
+
     /**
-     * 
+     *
      */
     private SipProviderExt sipProvider;
     private ListeningPointExt listeningPoint;
@@ -38,67 +49,147 @@ public class ItspListener implements SipListenerExt {
         this.sipProvider = sipProvider;
     }
 
+    /*
+     * The RTP stream of the ITSP side of a dialog.
+     */
+    static class Leg {
+        final LoadCall call;
+
+        final RtpStream media;
+
+        volatile boolean held;
+
+        Leg(LoadCall call, RtpStream media) {
+            this.call = call;
+            this.media = media;
+        }
+    }
+
     @Override
     public void processDialogTimeout(DialogTimeoutEvent dte) {
-        System.err.println("Dialog timed out. Test failed");
+        Leg leg = (Leg) dte.getDialog().getApplicationData();
+        if (leg != null && leg.call != null) {
+            leg.call.fail("ITSP: dialog timeout ( no ACK )");
+        }
     }
 
     @Override
     public void processDialogTerminated(DialogTerminatedEvent dte) {
-        PerformanceTester.itspCompletedCalls++;
-       if ( PerformanceTester.itspCompletedCalls % 1000 == 0)
-            System.out.println("Completed " + PerformanceTester.itspCompletedCalls);
-      
     }
 
     @Override
-    public void processIOException(IOExceptionEvent arg0) {
-        // TODO Auto-generated method stub
-
+    public void processIOException(IOExceptionEvent ioex) {
+        logger.error("ITSP: IO exception talking to " + ioex.getHost() + ":" + ioex.getPort());
     }
 
     @Override
     public void processRequest(RequestEvent requestEvent) {
         try {
             RequestExt request = (RequestExt) requestEvent.getRequest();
+            if (request.getMethod().equals(Request.ACK)) {
+                Leg leg = requestEvent.getDialog() == null ? null : (Leg) requestEvent
+                        .getDialog().getApplicationData();
+                if (leg != null) {
+                    if (request.getRawContent() != null) {
+                        leg.media.setRemoteAddress(PerformanceTester.getMediaAddress(request
+                                .getRawContent()));
+                    }
+                    if (!leg.held) {
+                        leg.media.resume();
+                    }
+                }
+                return;
+            }
             ServerTransactionExt serverTransaction;
             serverTransaction = (ServerTransactionExt) requestEvent
                     .getServerTransaction();
-           
+
             if (serverTransaction == null) {
                 SipProvider sipProvider = (SipProvider) requestEvent
                         .getSource();
                 serverTransaction = (ServerTransactionExt) sipProvider
                         .getNewServerTransaction(request);
             }
-            
+
             if ( serverTransaction == null ) {
                  System.out.println("dropping request no server transaction ");
                  return;
             }
+            DialogExt dialog = (DialogExt) serverTransaction.getDialog();
             if (request.getMethod().equals(Request.INVITE)) {
-                
-                if (requestEvent.getServerTransaction() == null) {
-                    PerformanceTester.timer.schedule( new RingingTimerTask(serverTransaction,
-                            listeningPoint),PerformanceTester.RING_TIME);
+                Leg leg = (Leg) dialog.getApplicationData();
+                if (leg == null) {
+                    String number = ((SipURI) request.getRequestURI()).getUser();
+                    LoadCall call = PerformanceTester.calls.get(number);
+                    leg = new Leg(call, new RtpStream(listeningPoint.getIPAddress(),
+                            PerformanceTester.itspAudio));
+                    dialog.setApplicationData(leg);
+                    if (call != null) {
+                        call.setItspLeg(dialog, leg.media);
+                    }
+                    updateMedia(leg, request);
+                    PerformanceTester.timer.schedule(new RingingTimerTask(serverTransaction,
+                            listeningPoint, leg.media), PerformanceTester.profile.ringTime,
+                            TimeUnit.MILLISECONDS);
+                } else {
+                    processReInvite(serverTransaction, leg);
                 }
             } else if (request.getMethod().equals(Request.BYE)) {
                 Response response = PerformanceTester.messageFactory.createResponse(
                         Response.OK, request);
                 serverTransaction.sendResponse(response);
-
-            } else if ( request.getMethod().equals(Request.ACK)) {
-                SipProvider sipProvider = (SipProvider) requestEvent
-                .getSource();
-                PerformanceTester.timer.schedule(new ByeTimerTask(requestEvent,
-                            listeningPoint),PerformanceTester.CALL_TIME);
+                Leg leg = (Leg) dialog.getApplicationData();
+                if (leg != null) {
+                    if (leg.call != null) {
+                        leg.call.itspReleased();
+                    } else {
+                        leg.media.close();
+                    }
+                }
+            } else {
+                serverTransaction.sendResponse(PerformanceTester.messageFactory.createResponse(
+                        Response.OK, request));
             }
         } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
+            logger.error("ITSP: error processing request", ex);
         }
     }
 
+    /*
+     * Take the address and direction from the offer. The media starts ( or, when held, stops )
+     * with the ACK.
+     */
+    private static String updateMedia(Leg leg, Request request) throws Exception {
+        String direction = PerformanceTester.getDirection(request.getRawContent());
+        leg.media.setRemoteAddress(PerformanceTester.getMediaAddress(request.getRawContent()));
+        leg.held = direction.equals("sendonly") || direction.equals("inactive");
+        if (leg.held) {
+            leg.media.pause();
+            return direction.equals("sendonly") ? "recvonly" : "inactive";
+        }
+        return "sendrecv";
+    }
+
+    /*
+     * Hold and retrieve come with an offer. The re-INVITE sipXbridge uses to start a transfer
+     * has none: the offer then goes in the 200 OK and the answer in the ACK.
+     */
+    private void processReInvite(ServerTransactionExt serverTransaction, Leg leg)
+            throws Exception {
+        Request request = serverTransaction.getRequest();
+        String direction = "sendrecv";
+        if (request.getRawContent() != null) {
+            direction = updateMedia(leg, request);
+        }
+        Response response = PerformanceTester.messageFactory.createResponse(Response.OK, request);
+        ContentTypeHeader cth = PerformanceTester.headerFactory.createContentTypeHeader(
+                "application", "sdp");
+        response.setContent(PerformanceTester.createSessionDescription(
+                listeningPoint.getIPAddress(), leg.media.getPort(), direction).toString(), cth);
+        response.setHeader(listeningPoint.createContactHeader());
+        serverTransaction.sendResponse(response);
+    }
+
     @Override
     public void processResponse(ResponseEvent responseEvent) {
         try {
@@ -114,8 +205,7 @@ public class ItspListener implements SipListenerExt {
 
             }
         } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
+            logger.error("ITSP: error processing response", ex);
         }
     }
 
@@ -123,8 +213,10 @@ public class ItspListener implements SipListenerExt {
     public void processTimeout(TimeoutEvent timeout) {
         Transaction tr = timeout.getClientTransaction() == null ? timeout.getServerTransaction() :
                 timeout.getClientTransaction();
-        System.out.println("Timeout occured stopping test " + tr.getRequest() );
-        System.exit(0);
+        Leg leg = tr.getDialog() == null ? null : (Leg) tr.getDialog().getApplicationData();
+        if (leg != null && leg.call != null) {
+            leg.call.fail("ITSP: timeout on " + tr.getRequest().getMethod());
+        }
     }
 
     @Override
@@ -133,4 +225,4 @@ public class ItspListener implements SipListenerExt {
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge.performance;
+
+import gov.nist.javax.sip.DialogExt;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.DialogState;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One call of the load test, from the INVITE of the phone to the BYE seen by the ITSP. The two
+ * sides are matched up by the number called ( the user part of the request URI, which
+ * sipXbridge keeps ).
+ *
+ * Once answered the call is put on hold and back, transferred and hung up by the phone at fixed
+ * fractions of its duration. After the hang up the call is checked: did the ITSP see the BYE
+ * and did every leg receive audio.
+ */
+class LoadCall {
+
+    private static Logger logger = Logger.getLogger(LoadCall.class);
+
+    /*
+     * How long the ITSP has to see the BYE once the phone has hung up.
+     */
+    private static final long RELEASE_WAIT = 2000;
+
+    private final PhoneListener phoneListener;
+
+    private final String number;
+
+    private final long duration;
+
+    private final boolean hold;
+
+    private final boolean transfer;
+
+    private final long inviteTime = System.nanoTime();
+
+    private boolean ringing;
+
+    private boolean answered;
+
+    private boolean transferring;
+
+    private boolean hungUp;
+
+    private boolean finished;
+
+    private boolean itspReleased;
+
+    private DialogExt phoneDialog;
+
+    private DialogExt transferDialog;
+
+    private DialogExt itspDialog;
+
+    private DialogExt hangUpDialog;
+
+    private RtpStream phoneMedia;
+
+    private RtpStream transferMedia;
+
+    private RtpStream itspMedia;
+
+    LoadCall(PhoneListener phoneListener, String number, long duration, boolean hold,
+            boolean transfer) {
+        this.phoneListener = phoneListener;
+        this.number = number;
+        this.duration = duration;
+        this.hold = hold;
+        this.transfer = transfer;
+    }
+
+    String getNumber() {
+        return number;
+    }
+
+    /**
+     * The user the phone transfers the call to.
+     */
+    String getTransferTarget() {
+        return "xfer" + number;
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized void setPhoneLeg(DialogExt dialog, RtpStream media) {
+        this.phoneDialog = dialog;
+        this.phoneMedia = media;
+    }
+
+    synchronized void setItspLeg(DialogExt dialog, RtpStream media) {
+        this.itspDialog = dialog;
+        this.itspMedia = media;
+    }
+
+    synchronized void setTransferLeg(DialogExt dialog, RtpStream media) {
+        this.transferDialog = dialog;
+        this.transferMedia = media;
+    }
+
+    synchronized void setHangUpDialog(DialogExt dialog) {
+        this.hangUpDialog = dialog;
+    }
+
+    /**
+     * @return the dialog of the final BYE of the phone.
+     */
+    synchronized DialogExt getHangUpDialog() {
+        return hangUpDialog;
+    }
+
+    /**
+     * @return the media of the phone leg the dialog belongs to.
+     */
+    synchronized RtpStream getPhoneMedia(DialogExt dialog) {
+        return dialog == transferDialog ? transferMedia : phoneMedia;
+    }
+
+    synchronized void ringing() {
+        if (!ringing && !answered) {
+            ringing = true;
+            PerformanceTester.statistics.recordRinging(TimeUnit.NANOSECONDS.toMillis(System
+                    .nanoTime()
+                    - inviteTime));
+        }
+    }
+
+    /**
+     * The phone got the 200 OK: schedule what happens during the call.
+     */
+    synchronized void answered() {
+        if (answered || finished) {
+            return;
+        }
+        answered = true;
+        PerformanceTester.statistics.answered.incrementAndGet();
+        PerformanceTester.statistics.recordAnswer(TimeUnit.NANOSECONDS.toMillis(System
+                .nanoTime()
+                - inviteTime));
+        if (hold) {
+            schedule(duration / 5, new Runnable() {
+                public void run() {
+                    phoneListener.sendReInvite(LoadCall.this, phoneDialog, "sendonly");
+                }
+            });
+            schedule(2 * duration / 5, new Runnable() {
+                public void run() {
+                    PerformanceTester.statistics.held.incrementAndGet();
+                    phoneListener.sendReInvite(LoadCall.this, phoneDialog, "sendrecv");
+                }
+            });
+        }
+        if (transfer) {
+            schedule(3 * duration / 5, new Runnable() {
+                public void run() {
+                    synchronized (LoadCall.this) {
+                        transferring = true;
+                    }
+                    phoneListener.sendRefer(LoadCall.this, phoneDialog);
+                }
+            });
+        }
+        schedule(duration, new Runnable() {
+            public void run() {
+                hangUp();
+            }
+        });
+    }
+
+    private void schedule(long delay, final Runnable action) {
+        PerformanceTester.timer.schedule(new Runnable() {
+            public void run() {
+                if (!isFinished()) {
+                    action.run();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The transfer target answered.
+     */
+    synchronized void transferred() {
+        if (!transferring) {
+            return;
+        }
+        PerformanceTester.statistics.transferred.incrementAndGet();
+        transferring = false;
+        /*
+         * The transferor leaves. sipXbridge does not pass this BYE on.
+         */
+        PerformanceTester.sendBye(phoneDialog);
+    }
+
+    private void hangUp() {
+        DialogExt dialog;
+        synchronized (this) {
+            if (transferring) {
+                fail("transfer: target not reached before hang up");
+                return;
+            }
+            dialog = transferDialog != null ? transferDialog : phoneDialog;
+        }
+        phoneListener.sendBye(this, dialog);
+    }
+
+    /**
+     * The BYE of the phone was answered. Give the ITSP time to see it and then check the call.
+     */
+    synchronized void hungUp() {
+        if (hungUp || finished) {
+            return;
+        }
+        hungUp = true;
+        PerformanceTester.timer.schedule(new Runnable() {
+            public void run() {
+                complete();
+            }
+        }, RELEASE_WAIT, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void itspReleased() {
+        itspReleased = true;
+        if (itspMedia != null) {
+            itspMedia.pause();
+        }
+    }
+
+    /**
+     * The phone got a BYE: sipXbridge tore down the call.
+     */
+    synchronized void released(DialogExt dialog) {
+        if (!finished && !hungUp && (dialog == phoneDialog && !transferring && transferDialog == null
+                || dialog == transferDialog)) {
+            fail("BYE from sipXbridge");
+        }
+    }
+
+    synchronized void fail(String reason) {
+        if (finished) {
+            return;
+        }
+        if (logger.isDebugEnabled()) logger.debug("call " + number + " failed: " + reason);
+        PerformanceTester.statistics.recordFailure(reason);
+        checkMedia();
+        /*
+         * Do not leave the call up at sipXbridge.
+         */
+        for (DialogExt dialog : new DialogExt[] {
+            phoneDialog, transferDialog
+        }) {
+            if (dialog != null && dialog.getState() == DialogState.CONFIRMED) {
+                PerformanceTester.sendBye(dialog);
+            }
+        }
+        if (itspDialog != null && !itspReleased && itspDialog.getState() == DialogState.CONFIRMED) {
+            PerformanceTester.sendBye(itspDialog);
+        }
+        finish();
+    }
+
+    private synchronized void complete() {
+        if (finished) {
+            return;
+        }
+        checkMedia();
+        if (!itspReleased) {
+            PerformanceTester.statistics.recordFailure("ITSP leg not released");
+        } else {
+            PerformanceTester.statistics.completed.incrementAndGet();
+        }
+        finish();
+    }
+
+    /*
+     * One-way audio detection. Only for answered calls: before that there is no media to check.
+     */
+    private void checkMedia() {
+        if (!answered) {
+            return;
+        }
+        int minimum = PerformanceTester.profile.audioMinPackets;
+        if (itspMedia == null) {
+            PerformanceTester.statistics
+                    .recordAudioProblem("ITSP leg not found ( number changed by sipXbridge? )");
+            return;
+        }
+        boolean phoneHears = phoneMedia.getPacketsReceived() >= minimum;
+        boolean itspHears = itspMedia.getPacketsReceived() >= minimum;
+        if (!phoneHears && !itspHears) {
+            PerformanceTester.statistics.recordAudioProblem("no audio either way");
+        } else if (!phoneHears) {
+            PerformanceTester.statistics.recordAudioProblem("one-way audio: phone hears nothing");
+        } else if (!itspHears) {
+            PerformanceTester.statistics.recordAudioProblem("one-way audio: ITSP hears nothing");
+        }
+        if (transferMedia != null && transferMedia.getPacketsReceived() < minimum) {
+            PerformanceTester.statistics
+                    .recordAudioProblem("one-way audio: transfer target hears nothing");
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        for (RtpStream media : new RtpStream[] {
+            phoneMedia, transferMedia, itspMedia
+        }) {
+            if (media != null) {
+                PerformanceTester.statistics.packetsSent.addAndGet(media.getPacketsSent());
+                PerformanceTester.statistics.packetsReceived.addAndGet(media.getPacketsReceived());
+                PerformanceTester.statistics.packetsLost.addAndGet(media.getPacketsLost());
+                media.close();
+            }
+        }
+        PerformanceTester.statistics.inProgress.decrementAndGet();
+        PerformanceTester.calls.remove(number);
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge.performance;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * What load to offer. Read from system properties ( -Dload.cps=20 ... ):
+ *
+ * <pre>
+ * load.cps                 calls per second once the ramp is over ( 5 )
+ * load.ramp.start.cps      calls per second at the start of the ramp ( 1 )
+ * load.ramp.seconds        how long the call rate takes to get from the one to the other ( 0 )
+ * load.max.calls           calls in progress at most; new calls wait while there are more ( 100 )
+ * load.calls               calls to make in all ( 1000 )
+ * load.duration            how long calls last ( ms ), one of fixed:N, uniform:MIN:MAX or
+ *                          exponential:MEAN ( fixed:10000 )
+ * load.ring.time           how long the ITSP rings before it answers ( ms ) ( 100 )
+ * load.hold.percent        calls that are put on hold and taken off it again ( 0 )
+ * load.transfer.percent    calls that are blind transferred by the phone ( 0 )
+ * load.media.phone         audio the phones send ( WAV or raw mu-law, default a 440 Hz tone )
+ * load.media.itsp          audio the ITSP sends ( WAV or raw mu-law, default a 1 kHz tone )
+ * load.audio.min.packets   RTP packets a side must receive for it to count as having audio ( 10 )
+ * load.report.seconds      how often to print progress ( 10 )
+ * load.number.prefix       the numbers called are the prefix followed by the call number ( 1555 )
+ * </pre>
+ */
+class LoadProfile {
+
+    private final Random random = new Random();
+
+    final double callsPerSecond;
+
+    final double rampStartCallsPerSecond;
+
+    final long rampMillis;
+
+    final int maxCalls;
+
+    final int calls;
+
+    final String durationDistribution;
+
+    private final char distribution;
+
+    private final long durationMinimum;
+
+    private final long durationMaximum;
+
+    final long ringTime;
+
+    final int holdPercent;
+
+    final int transferPercent;
+
+    final String phoneMedia;
+
+    final String itspMedia;
+
+    final int audioMinPackets;
+
+    final long reportMillis;
+
+    final String numberPrefix;
+
+    LoadProfile(Properties properties) {
+        callsPerSecond = Double.parseDouble(properties.getProperty("load.cps", "5"));
+        rampStartCallsPerSecond = Math.min(callsPerSecond, Double.parseDouble(properties
+                .getProperty("load.ramp.start.cps", "1")));
+        rampMillis = (long) (Double.parseDouble(properties.getProperty("load.ramp.seconds",
+                "0")) * 1000);
+        maxCalls = Integer.parseInt(properties.getProperty("load.max.calls", "100"));
+        calls = Integer.parseInt(properties.getProperty("load.calls", "1000"));
+        durationDistribution = properties.getProperty("load.duration", "fixed:10000");
+        ringTime = Long.parseLong(properties.getProperty("load.ring.time", "100"));
+        holdPercent = Integer.parseInt(properties.getProperty("load.hold.percent", "0"));
+        transferPercent = Integer.parseInt(properties.getProperty("load.transfer.percent", "0"));
+        phoneMedia = properties.getProperty("load.media.phone");
+        itspMedia = properties.getProperty("load.media.itsp");
+        audioMinPackets = Integer.parseInt(properties.getProperty("load.audio.min.packets",
+                "10"));
+        reportMillis = (long) (Double.parseDouble(properties.getProperty(
+                "load.report.seconds", "10")) * 1000);
+        numberPrefix = properties.getProperty("load.number.prefix", "1555");
+
+        if (callsPerSecond <= 0 || maxCalls <= 0 || calls <= 0) {
+            throw new IllegalArgumentException(
+                    "load.cps, load.max.calls and load.calls must be positive");
+        }
+        if (holdPercent < 0 || transferPercent < 0 || holdPercent > 100
+                || transferPercent > 100) {
+            throw new IllegalArgumentException(
+                    "load.hold.percent and load.transfer.percent must be between 0 and 100");
+        }
+        String[] parts = durationDistribution.split(":");
+        try {
+            if (parts[0].equals("fixed") && parts.length == 2) {
+                distribution = 'f';
+                durationMinimum = durationMaximum = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("uniform") && parts.length == 3) {
+                distribution = 'u';
+                durationMinimum = Long.parseLong(parts[1]);
+                durationMaximum = Long.parseLong(parts[2]);
+            } else if (parts[0].equals("exponential") && parts.length == 2) {
+                distribution = 'e';
+                durationMinimum = durationMaximum = Long.parseLong(parts[1]);
+            } else {
+                throw new IllegalArgumentException("Bad load.duration " + durationDistribution);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad load.duration " + durationDistribution, ex);
+        }
+        if (durationMinimum <= 0 || durationMaximum < durationMinimum) {
+            throw new IllegalArgumentException("Bad load.duration " + durationDistribution);
+        }
+    }
+
+    /**
+     * @param elapsed -- time since the start of the test ( ms ).
+     * @return the call rate to offer now.
+     */
+    double getCallsPerSecond(long elapsed) {
+        if (elapsed >= rampMillis) {
+            return callsPerSecond;
+        }
+        return rampStartCallsPerSecond + (callsPerSecond - rampStartCallsPerSecond) * elapsed
+                / rampMillis;
+    }
+
+    /**
+     * @return how long the next call lasts ( ms ) from the moment it is answered.
+     */
+    synchronized long nextDuration() {
+        switch (distribution) {
+        case 'u':
+            return durationMinimum
+                    + (long) (random.nextDouble() * (durationMaximum - durationMinimum));
+        case 'e':
+            /*
+             * At least a second so that there is time to check the media.
+             */
+            long duration = (long) (-durationMinimum * Math.log(1 - random.nextDouble()));
+            return Math.min(getMaximumDuration(), Math.max(1000, duration));
+        default:
+            return durationMinimum;
+        }
+    }
+
+    /**
+     * @return the longest a call could take ( to know how long to wait for the last ones ).
+     */
+    long getMaximumDuration() {
+        return distribution == 'e' ? 10 * durationMaximum : durationMaximum;
+    }
+
+    synchronized boolean nextHold() {
+        return random.nextInt(100) < holdPercent;
+    }
+
+    synchronized boolean nextTransfer() {
+        return random.nextInt(100) < transferPercent;
+    }
+
+    public String toString() {
+        String ramp = rampMillis > 0 ? " ( ramp from " + rampStartCallsPerSecond + " over "
+                + rampMillis / 1000 + " s )" : "";
+        return "cps " + callsPerSecond + ramp + ", at most " + maxCalls
+                + " calls in progress, " + calls + " calls, duration " + durationDistribution
+                + " ms, hold " + holdPercent + "%, transfer " + transferPercent + "%";
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge.performance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What happened to the calls: counts, setup latency percentiles, why calls failed and which
+ * calls had audio in one direction only.
+ */
+class LoadStatistics {
+
+    private static final double[] PERCENTILES = { 50, 90, 95, 99, 100 };
+
+    final AtomicInteger attempted = new AtomicInteger();
+
+    final AtomicInteger answered = new AtomicInteger();
+
+    final AtomicInteger completed = new AtomicInteger();
+
+    final AtomicInteger failed = new AtomicInteger();
+
+    final AtomicInteger held = new AtomicInteger();
+
+    final AtomicInteger transferred = new AtomicInteger();
+
+    final AtomicInteger inProgress = new AtomicInteger();
+
+    final AtomicLong packetsSent = new AtomicLong();
+
+    final AtomicLong packetsReceived = new AtomicLong();
+
+    final AtomicLong packetsLost = new AtomicLong();
+
+    /*
+     * INVITE to 180 and INVITE to 200 ( ms ).
+     */
+    private final List<Long> ringingLatency = new ArrayList<Long>();
+
+    private final List<Long> answerLatency = new ArrayList<Long>();
+
+    private final Map<String, AtomicInteger> failureReasons = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final Map<String, AtomicInteger> audioProblems = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private static void count(Map<String, AtomicInteger> map, String key) {
+        AtomicInteger counter = map.get(key);
+        if (counter == null) {
+            synchronized (map) {
+                counter = map.get(key);
+                if (counter == null) {
+                    counter = new AtomicInteger();
+                    map.put(key, counter);
+                }
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    synchronized void recordRinging(long millis) {
+        ringingLatency.add(millis);
+    }
+
+    synchronized void recordAnswer(long millis) {
+        answerLatency.add(millis);
+    }
+
+    void recordFailure(String reason) {
+        failed.incrementAndGet();
+        count(failureReasons, reason);
+    }
+
+    void recordAudioProblem(String problem) {
+        count(audioProblems, problem);
+    }
+
+    /**
+     * @return the given percentiles of the samples ( nearest rank ). Zeros if there are none.
+     */
+    static long[] percentiles(List<Long> samples, double[] percentiles) {
+        long[] retval = new long[percentiles.length];
+        if (samples.isEmpty()) {
+            return retval;
+        }
+        Long[] sorted = samples.toArray(new Long[samples.size()]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length);
+            retval[i] = sorted[Math.max(0, rank - 1)];
+        }
+        return retval;
+    }
+
+    private synchronized String formatLatency(List<Long> samples) {
+        long[] values = percentiles(samples, PERCENTILES);
+        StringBuilder retval = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            retval.append(i == PERCENTILES.length - 1 ? "max" : "p" + (int) PERCENTILES[i]);
+            retval.append(' ').append(values[i]).append(i == PERCENTILES.length - 1 ? " ms" : ", ");
+        }
+        retval.append(" ( " + samples.size() + " calls )");
+        return retval.toString();
+    }
+
+    private static String formatCounts(Map<String, AtomicInteger> map) {
+        List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<Map.Entry<String, AtomicInteger>>(
+                map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicInteger>>() {
+            public int compare(Map.Entry<String, AtomicInteger> a, Map.Entry<String, AtomicInteger> b) {
+                return b.getValue().get() - a.getValue().get();
+            }
+        });
+        StringBuilder retval = new StringBuilder();
+        for (Map.Entry<String, AtomicInteger> entry : entries) {
+            retval.append(String.format("    %6d  %s%n", entry.getValue().get(), entry.getKey()));
+        }
+        return retval.toString();
+    }
+
+    /**
+     * One line of progress.
+     */
+    String formatProgress(long elapsed) {
+        return String.format("%6ds: attempted %d, in progress %d, completed %d, failed %d, "
+                + "one-way or no audio %d", elapsed / 1000, attempted.get(), inProgress.get(),
+                completed.get(), failed.get(), getAudioProblemCount());
+    }
+
+    int getAudioProblemCount() {
+        int retval = 0;
+        for (AtomicInteger count : audioProblems.values()) {
+            retval += count.get();
+        }
+        return retval;
+    }
+
+    /**
+     * The report at the end of the test.
+     */
+    String formatReport(long elapsed) {
+        StringBuilder retval = new StringBuilder();
+        retval.append(String.format("%nCalls: attempted %d, answered %d, completed %d, failed %d, "
+                + "still in progress %d ( %.1f cps over %d s )%n", attempted.get(), answered
+                .get(), completed.get(), failed.get(), inProgress.get(), elapsed == 0 ? 0.0
+                : attempted.get() * 1000.0 / elapsed, elapsed / 1000));
+        retval.append(String.format("Held %d, transferred %d%n", held.get(), transferred.get()));
+        retval.append("Setup latency INVITE to 180: " + formatLatency(ringingLatency)
+                + String.format("%n"));
+        retval.append("Setup latency INVITE to 200: " + formatLatency(answerLatency)
+                + String.format("%n"));
+        retval.append(String.format("RTP: sent %d, received %d, lost %d%n", packetsSent.get(),
+                packetsReceived.get(), packetsLost.get()));
+        if (!audioProblems.isEmpty()) {
+            retval.append(String.format("Audio problems:%n")).append(formatCounts(audioProblems));
+        }
+        if (!failureReasons.isEmpty()) {
+            retval.append(String.format("Failed calls:%n")).append(formatCounts(failureReasons));
+        }
+        return retval.toString();
+    }
+
+}
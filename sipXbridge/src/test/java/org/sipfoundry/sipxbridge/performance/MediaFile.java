@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge.performance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The audio streamed by the emulated phones and ITSP: G.711 mu-law at 8000 samples a second.
+ *
+ * Reads a WAV file ( mu-law or 16 bit linear, mono, 8 kHz ) or a raw mu-law file ( .ul, .raw ).
+ * Without a file, a tone is generated so that there is still something to listen to in a packet
+ * capture.
+ */
+class MediaFile {
+
+    static final int SAMPLE_RATE = 8000;
+
+    private static final int WAVE_FORMAT_PCM = 1;
+
+    private static final int WAVE_FORMAT_MULAW = 7;
+
+    private MediaFile() {
+    }
+
+    /**
+     * @param fileName -- the file to read. Null for a tone.
+     * @param frequency -- the frequency of the tone ( Hz ).
+     * @return the mu-law samples.
+     */
+    static byte[] load(String fileName, int frequency) throws IOException {
+        if (fileName == null || fileName.length() == 0) {
+            return tone(frequency, SAMPLE_RATE);
+        }
+        byte[] content = read(new File(fileName));
+        byte[] samples;
+        if (content.length >= 12 && new String(content, 0, 4, "ISO-8859-1").equals("RIFF")
+                && new String(content, 8, 4, "ISO-8859-1").equals("WAVE")) {
+            samples = parseWave(fileName, content);
+        } else {
+            samples = content;
+        }
+        if (samples.length < RtpStream.FRAME_SIZE) {
+            throw new IOException(fileName + ": less than one frame of audio");
+        }
+        return samples;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readShort(byte[] content, int offset) {
+        return (content[offset] & 0xff) | (content[offset + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] content, int offset) {
+        return readShort(content, offset) | readShort(content, offset + 2) << 16;
+    }
+
+    private static byte[] parseWave(String fileName, byte[] content) throws IOException {
+        int format = -1;
+        int bitsPerSample = 0;
+        int offset = 12;
+        while (offset + 8 <= content.length) {
+            String chunk = new String(content, offset, 4, "ISO-8859-1");
+            int length = readInt(content, offset + 4);
+            int start = offset + 8;
+            if (chunk.equals("fmt ")) {
+                format = readShort(content, start);
+                int channels = readShort(content, start + 2);
+                int sampleRate = readInt(content, start + 4);
+                bitsPerSample = readShort(content, start + 14);
+                if (channels != 1 || sampleRate != SAMPLE_RATE) {
+                    throw new IOException(fileName + ": need mono audio at " + SAMPLE_RATE
+                            + " Hz");
+                }
+            } else if (chunk.equals("data")) {
+                length = Math.min(length, content.length - start);
+                if (format == WAVE_FORMAT_MULAW) {
+                    byte[] samples = new byte[length];
+                    System.arraycopy(content, start, samples, 0, length);
+                    return samples;
+                } else if (format == WAVE_FORMAT_PCM && bitsPerSample == 16) {
+                    byte[] samples = new byte[length / 2];
+                    for (int i = 0; i < samples.length; i++) {
+                        samples[i] = linearToMulaw((short) readShort(content, start + 2 * i));
+                    }
+                    return samples;
+                } else {
+                    throw new IOException(fileName
+                            + ": need mu-law or 16 bit linear audio ( format " + format + " )");
+                }
+            }
+            offset = start + length + (length & 1);
+        }
+        throw new IOException(fileName + ": no audio data");
+    }
+
+    /**
+     * G.711 mu-law encoding of one linear sample.
+     */
+    static byte linearToMulaw(short sample) {
+        final int bias = 0x84;
+        final int clip = 32635;
+        int value = sample;
+        int sign = (value >> 8) & 0x80;
+        if (sign != 0) {
+            value = -value;
+        }
+        if (value > clip) {
+            value = clip;
+        }
+        value += bias;
+        int exponent = 7;
+        for (int mask = 0x4000; (value & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (value >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | exponent << 4 | mantissa);
+    }
+
+    private static byte[] tone(int frequency, int samples) {
+        byte[] retval = new byte[samples];
+        for (int i = 0; i < samples; i++) {
+            double value = Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+            retval[i] = linearToMulaw((short) (value * 8000));
+        }
+        return retval;
+    }
+
+}
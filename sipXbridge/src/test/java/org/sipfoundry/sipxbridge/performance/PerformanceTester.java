@@ -1,16 +1,24 @@
 package org.sipfoundry.sipxbridge.performance;
 
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Timer;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
+import javax.sdp.Attribute;
+import javax.sdp.Connection;
+import javax.sdp.MediaDescription;
 import javax.sdp.SdpFactory;
 import javax.sdp.SessionDescription;
-import javax.sip.Dialog;
-import javax.sip.PeerUnavailableException;
+import javax.sip.ClientTransaction;
 import javax.sip.SipFactory;
 import javax.sip.address.AddressFactory;
-import javax.sip.header.Header;
+import javax.sip.message.Request;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -22,82 +30,234 @@ import org.sipfoundry.commons.log4j.StackLoggerImpl;
 import org.sipfoundry.sipxbridge.AccountManagerImpl;
 import org.sipfoundry.sipxbridge.BridgeConfiguration;
 import org.sipfoundry.sipxbridge.ConfigurationParser;
-import org.sipfoundry.sipxbridge.Gateway;
 import org.sipfoundry.sipxbridge.ItspAccountInfo;
 
-import junit.framework.TestCase;
-
+import gov.nist.javax.sip.DialogExt;
 import gov.nist.javax.sip.ListeningPointExt;
 import gov.nist.javax.sip.SipProviderExt;
 import gov.nist.javax.sip.SipStackExt;
 import gov.nist.javax.sip.header.HeaderFactoryExt;
 import gov.nist.javax.sip.message.MessageFactoryExt;
 
+/**
+ * Load generator for sipXbridge and sipXrelay. Emulates the phones ( as if behind the sipx
+ * proxy ) and the ITSP, all on this machine: the phones call through sipXbridge to the ITSP,
+ * both sides stream RTP through sipXrelay, and the calls are held, transferred and hung up
+ * according to the LoadProfile.
+ *
+ * At the end it reports the setup latency percentiles, why calls failed and which calls had
+ * audio one way only. The exit status is 1 if any call failed or had an audio problem.
+ *
+ * <pre>
+ * java -Dconf.dir=./ -Dload.cps=20 -Dload.duration=uniform:5000:30000 ... PerformanceTester
+ * </pre>
+ *
+ * The load.* properties can also come from a file: -Dload.properties=FILE.
+ */
 public class PerformanceTester {
 
     private static SipStackExt userAgentStack;
     private static SipStackExt itspStack;
-  
+
     static Logger logger = Logger.getLogger(PerformanceTester.class);
 
     static HeaderFactoryExt headerFactory;
     static MessageFactoryExt messageFactory;
     static AddressFactory addressFactory;
 
-    static Timer timer = new Timer();
+    static ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
 
-    static int RING_TIME = 100;
-    static int CALL_TIME = 2 * 1000;
-    
-    static long startTime  = System.currentTimeMillis() ;
-  
-    static int itspCompletedCalls;
+    static LoadProfile profile;
+
+    static final LoadStatistics statistics = new LoadStatistics();
+
+    /*
+     * The calls in progress by number called.
+     */
+    static final ConcurrentHashMap<String, LoadCall> calls = new ConcurrentHashMap<String, LoadCall>();
 
-    private static int baseMediaPort = 20000;
-    
-    private static int counter = 0;
+    static byte[] phoneAudio;
+
+    static byte[] itspAudio;
+
+    /*
+     * How long the last calls have to finish ( beyond their duration ) before they are reported
+     * as in progress.
+     */
+    private static final long DRAIN_TIME = 64 * 1000;
 
     static BridgeConfiguration bridgeConfiguration;
-    public static int phoneDialogCompletions;
 
     private static String sdpBodyFormat = "v=0\r\n" + "o=- %s 1 IN IP4 %s\r\n"
             + "s=iBridge\r\n" + "c=IN IP4 %s\r\n" + "t=0 0\r\n"
-            + "a=direction:active\r\n"
-            + "m=audio %d RTP/AVP 3 97 98 110 8 0 101\r\n"
-            + "a=rtpmap:3 GSM/8000\r\n" + "a=rtpmap:97 iLBC/8000\r\n"
-            + "a=rtpmap:98 iLBC/8000\r\n" + "a=fmtp:98 mode=20\r\n"
-            + "a=rtpmap:110 speex/8000\r\n" + "a=rtpmap:8 PCMA/8000\r\n"
+            + "m=audio %d RTP/AVP 0 101\r\n"
             + "a=rtpmap:0 PCMU/8000\r\n"
             + "a=rtpmap:101 telephone-event/8000\r\n"
-            + "a=fmtp:101 0-11,16\r\n";
+            + "a=fmtp:101 0-11,16\r\n"
+            + "a=%s\r\n";
    static ItspAccountInfo itspAccountInfo;
 
-    public static int getMediaPort() {
-        return baseMediaPort + counter++ % 1000;
-    }
-
-    static SessionDescription createSessionDescription(String ipAddress) {
+    /**
+     * @param direction -- sendrecv, sendonly ( hold ), recvonly or inactive.
+     */
+    static SessionDescription createSessionDescription(String ipAddress, int mediaPort,
+            String direction) {
         try {
-            int mediaPort = getMediaPort();
             String origin = Long.toString(Math.abs(new Random().nextLong()));
 
             String sdpBody = String.format(sdpBodyFormat, origin, ipAddress,
-                    ipAddress, mediaPort);
+                    ipAddress, mediaPort, direction);
             SessionDescription sd = SdpFactory.getInstance()
                     .createSessionDescription(sdpBody);
 
             return sd;
 
         } catch (Exception ex) {
-            TestCase.fail("Cannot create session description");
-            return null;
+            throw new IllegalArgumentException("Cannot create session description", ex);
+        }
+
+    }
+
+    private static MediaDescription getMediaDescription(SessionDescription sd)
+            throws Exception {
+        Vector mediaDescriptions = sd.getMediaDescriptions(false);
+        if (mediaDescriptions == null || mediaDescriptions.isEmpty()) {
+            throw new IllegalArgumentException("No media in SDP " + sd);
+        }
+        return (MediaDescription) mediaDescriptions.get(0);
+    }
+
+    /**
+     * @return where to send the RTP to, from an SDP body.
+     */
+    static InetSocketAddress getMediaAddress(byte[] sdp) throws Exception {
+        SessionDescription sd = SdpFactory.getInstance().createSessionDescription(
+                new String(sdp));
+        MediaDescription md = getMediaDescription(sd);
+        Connection connection = md.getConnection() != null ? md.getConnection() : sd
+                .getConnection();
+        return new InetSocketAddress(connection.getAddress(), md.getMedia().getMediaPort());
+    }
+
+    /**
+     * @return the direction attribute of an SDP body ( sendrecv if there is none ).
+     */
+    static String getDirection(byte[] sdp) throws Exception {
+        SessionDescription sd = SdpFactory.getInstance().createSessionDescription(
+                new String(sdp));
+        Vector[] attributeLists = {
+            getMediaDescription(sd).getAttributes(false), sd.getAttributes(false)
+        };
+        for (Vector attributes : attributeLists) {
+            if (attributes == null) {
+                continue;
+            }
+            for (Object attribute : attributes) {
+                String name = ((Attribute) attribute).getName();
+                if (name.equals("sendonly") || name.equals("recvonly")
+                        || name.equals("inactive") || name.equals("sendrecv")) {
+                    return name;
+                }
+            }
+        }
+        return "sendrecv";
+    }
+
+    /**
+     * @return false if the BYE could not be sent.
+     */
+    static boolean sendBye(DialogExt dialog) {
+        try {
+            Request bye = dialog.createRequest(Request.BYE);
+            ClientTransaction ct = dialog.getSipProvider().getNewClientTransaction(bye);
+            dialog.sendRequest(ct);
+            return true;
+        } catch (Exception ex) {
+            logger.error("Error sending BYE", ex);
+            return false;
+        }
+    }
+
+    private static Properties loadProperties() throws Exception {
+        Properties properties = new Properties();
+        String fileName = System.getProperty("load.properties");
+        if (fileName != null) {
+            InputStream in = new FileInputStream(fileName);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        properties.putAll(System.getProperties());
+        return properties;
+    }
+
+    private static void startCall(PhoneListener phoneListener, int counter) {
+        String number = profile.numberPrefix + String.format("%06d", counter);
+        LoadCall call = new LoadCall(phoneListener, number, profile.nextDuration(), profile
+                .nextHold(), profile.nextTransfer());
+        calls.put(number, call);
+        statistics.attempted.incrementAndGet();
+        statistics.inProgress.incrementAndGet();
+        try {
+            phoneListener.sendInvite(call);
+        } catch (Exception ex) {
+            logger.error("Error sending INVITE", ex);
+            call.fail("INVITE not sent: " + ex.getMessage());
         }
+    }
 
+    /*
+     * Offer the calls at the rate of the profile, never more than load.max.calls at a time.
+     */
+    private static void generateLoad(PhoneListener phoneListener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long last = start;
+        long nextReport = start + profile.reportMillis;
+        double credit = 0;
+        int counter = 0;
+        while (counter < profile.calls) {
+            Thread.sleep(5);
+            long now = System.currentTimeMillis();
+            credit += profile.getCallsPerSecond(now - start) * (now - last) / 1000;
+            last = now;
+            while (credit >= 1 && counter < profile.calls) {
+                if (statistics.inProgress.get() >= profile.maxCalls) {
+                    /*
+                     * The calls wait. They are not made up for in a burst later.
+                     */
+                    credit = 1;
+                    break;
+                }
+                credit -= 1;
+                startCall(phoneListener, counter++);
+            }
+            if (now >= nextReport) {
+                System.out.println(statistics.formatProgress(now - start));
+                nextReport += profile.reportMillis;
+            }
+        }
+        long deadline = System.currentTimeMillis() + profile.getMaximumDuration() + DRAIN_TIME;
+        while (statistics.inProgress.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                System.out.println(statistics.formatProgress(now - start));
+                nextReport += profile.reportMillis;
+            }
+        }
+        System.out.println(statistics.formatReport(System.currentTimeMillis() - start));
     }
 
     public static void main(String[] args ) throws Exception {
         
         System.out.println("Performance tester");
+        profile = new LoadProfile(loadProperties());
+        System.out.println(profile);
+        phoneAudio = MediaFile.load(profile.phoneMedia, 440);
+        itspAudio = MediaFile.load(profile.itspMedia, 1000);
+        RtpStream.startThreads();
         SipFactory sipFactory = null;
         sipFactory = SipFactory.getInstance();
         sipFactory.setPathName("gov.nist");
@@ -186,29 +346,23 @@ public class PerformanceTester {
             // If you want to use UDP then uncomment this.
             properties.setProperty("javax.sip.STACK_NAME", "org.sipfoundry.sipxbridge.performance.itsp");
             itspStack = (SipStackExt)sipFactory.createSipStack(properties);
-             ListeningPointExt itspListeningPoint  = (ListeningPointExt)userAgentStack.createListeningPoint(itspAccountInfo.getOutboundProxy(), 
+             ListeningPointExt itspListeningPoint  = (ListeningPointExt)itspStack.createListeningPoint(itspAccountInfo.getOutboundProxy(), 
                     itspAccountInfo.getOutboundProxyPort(), itspAccountInfo.getOutboundTransport());
              SipProviderExt itspProvider = (SipProviderExt) itspStack.createSipProvider(itspListeningPoint);
                  
             ItspListener itspListener = new ItspListener(itspListeningPoint,itspProvider);
             itspProvider.addSipListener(itspListener);
-            System.out.println("Sending INVITE");
-            for ( int i = 0; i < 1000000 ; i++) {
-                phoneListener.sendInvite();
-                Thread.sleep(150);
-            }
-            
-            Thread.sleep(120*1000);
-            System.out.println("Done!");
-            System.exit(0);
-         
+            generateLoad(phoneListener);
+            System.exit(statistics.failed.get() == 0 && statistics.getAudioProblemCount() == 0
+                    && statistics.inProgress.get() == 0 ? 0 : 1);
+
         } catch (Exception e) {
             // could not find
             // gov.nist.jain.protocol.ip.sip.SipStackImpl
             // in the classpath
             e.printStackTrace();
             System.err.println(e.getMessage());
-            System.exit(0);
+            System.exit(1);
         }
 
 
@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package org.sipfoundry.sipxbridge.performance;
 
@@ -14,12 +14,14 @@ import gov.nist.javax.sip.message.ResponseExt;
 import java.util.ArrayList;
 import java.util.Random;
 
+import javax.sip.ClientTransaction;
 import javax.sip.DialogTerminatedEvent;
 import javax.sip.IOExceptionEvent;
 import javax.sip.RequestEvent;
 import javax.sip.ResponseEvent;
 import javax.sip.ServerTransaction;
 import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
 import javax.sip.TransactionTerminatedEvent;
 import javax.sip.address.Address;
 import javax.sip.address.SipURI;
@@ -29,14 +31,24 @@ import javax.sip.header.ContactHeader;
 import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.FromHeader;
 import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ReferToHeader;
 import javax.sip.header.RouteHeader;
 import javax.sip.header.ToHeader;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
+import org.apache.log4j.Logger;
+
+/**
+ * The phones behind the sipx proxy. Places the calls ( routed straight to sipXbridge ), puts
+ * them on hold, transfers them and hangs them up. Also answers as the transfer target: the
+ * INVITEs that sipXbridge sends to the proxy.
+ */
 public class PhoneListener implements SipListenerExt {
 
+    private static Logger logger = Logger.getLogger(PhoneListener.class);
+
     private ListeningPointExt listeningPoint;
     private SipProviderExt sipProvider;
     private String transport = "tcp";
@@ -47,80 +59,248 @@ public class PhoneListener implements SipListenerExt {
         this.sipProvider = sipProvider;
     }
 
+    private static LoadCall getLoadCall(Transaction transaction) {
+        if (transaction == null || transaction.getDialog() == null) {
+            return null;
+        }
+        return (LoadCall) transaction.getDialog().getApplicationData();
+    }
+
     @Override
     public void processDialogTimeout(DialogTimeoutEvent dte) {
-        System.out.println("Dialog Timeout occured - aborting test");
-        System.exit(0);
-
+        LoadCall call = (LoadCall) dte.getDialog().getApplicationData();
+        if (call != null) {
+            call.fail("phone: dialog timeout ( no ACK )");
+        }
     }
 
     @Override
     public void processDialogTerminated(DialogTerminatedEvent dte) {
-        PerformanceTester.phoneDialogCompletions++;
     }
 
     @Override
-    public void processIOException(IOExceptionEvent arg0) {
-        System.err.println("unexpected IOEx");
-        System.exit(0);
+    public void processIOException(IOExceptionEvent ioex) {
+        logger.error("phone: IO exception talking to " + ioex.getHost() + ":" + ioex.getPort());
     }
 
     @Override
     public void processRequest(RequestEvent requestEvent) {
         try {
+            Request request = requestEvent.getRequest();
+            if (request.getMethod().equals(Request.ACK)) {
+                DialogExt dialog = (DialogExt) requestEvent.getDialog();
+                LoadCall call = dialog == null ? null : (LoadCall) dialog.getApplicationData();
+                if (call != null && !call.isFinished() && request.getRawContent() != null) {
+                    call.getPhoneMedia(dialog).start(
+                            PerformanceTester.getMediaAddress(request.getRawContent()));
+                }
+                return;
+            }
             ServerTransaction st = requestEvent.getServerTransaction();
-            Response response = PerformanceTester.messageFactory
-                    .createResponse(Response.OK, requestEvent.getRequest());
-            st.sendResponse(response);
+            if (st == null) {
+                st = sipProvider.getNewServerTransaction(request);
+            }
+            DialogExt dialog = (DialogExt) st.getDialog();
+            LoadCall call = dialog == null ? null : (LoadCall) dialog.getApplicationData();
+            if (request.getMethod().equals(Request.INVITE)) {
+                processInvite(st, dialog, call);
+            } else if (request.getMethod().equals(Request.NOTIFY)) {
+                st.sendResponse(PerformanceTester.messageFactory.createResponse(Response.OK,
+                        request));
+                processNotify(request, call);
+            } else if (request.getMethod().equals(Request.BYE)) {
+                st.sendResponse(PerformanceTester.messageFactory.createResponse(Response.OK,
+                        request));
+                if (call != null) {
+                    call.released(dialog);
+                }
+            } else {
+                st.sendResponse(PerformanceTester.messageFactory.createResponse(Response.OK,
+                        request));
+            }
         } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
+            logger.error("phone: error processing request", ex);
         }
 
     }
 
+    /*
+     * A re-INVITE from sipXbridge or the INVITE to the transfer target.
+     */
+    private void processInvite(ServerTransaction st, DialogExt dialog, LoadCall call)
+            throws Exception {
+        Request request = st.getRequest();
+        RtpStream media;
+        if (call == null) {
+            String user = ((SipURI) request.getRequestURI()).getUser();
+            LoadCall transferred = null;
+            for (LoadCall candidate : PerformanceTester.calls.values()) {
+                if (candidate.getTransferTarget().equals(user)) {
+                    transferred = candidate;
+                    break;
+                }
+            }
+            if (transferred == null || transferred.isFinished()) {
+                st.sendResponse(PerformanceTester.messageFactory.createResponse(
+                        Response.NOT_FOUND, request));
+                return;
+            }
+            call = transferred;
+            media = new RtpStream(listeningPoint.getIPAddress(), PerformanceTester.phoneAudio);
+            dialog.setApplicationData(call);
+            call.setTransferLeg(dialog, media);
+        } else {
+            media = call.getPhoneMedia(dialog);
+        }
+        if (request.getRawContent() != null) {
+            media.start(PerformanceTester.getMediaAddress(request.getRawContent()));
+        }
+        Response response = PerformanceTester.messageFactory.createResponse(Response.OK, request);
+        ContentTypeHeader cth = PerformanceTester.headerFactory.createContentTypeHeader(
+                "application", "sdp");
+        response.setContent(PerformanceTester.createSessionDescription(
+                listeningPoint.getIPAddress(), media.getPort(), "sendrecv").toString(), cth);
+        response.setHeader(listeningPoint.createContactHeader());
+        st.sendResponse(response);
+    }
+
+    /*
+     * Progress of the transfer, as a sipfrag.
+     */
+    private void processNotify(Request request, LoadCall call) {
+        if (call == null || request.getRawContent() == null) {
+            return;
+        }
+        String sipfrag = new String(request.getRawContent()).trim();
+        String[] statusLine = sipfrag.split("\\s+", 3);
+        if (statusLine.length < 2 || !statusLine[0].equals("SIP/2.0")) {
+            return;
+        }
+        int statusCode = Integer.parseInt(statusLine[1]);
+        if (statusCode / 100 == 2) {
+            call.transferred();
+        } else if (statusCode >= 300) {
+            call.fail("transfer: " + sipfrag.split("\r?\n")[0]);
+        }
+    }
+
     @Override
     public void processResponse(ResponseEvent responseEvent) {
         try {
             DialogExt dialog = (DialogExt) responseEvent.getDialog();
             ResponseExt response = (ResponseExt) responseEvent.getResponse();
             CSeqHeader cseqHeader = response.getCSeqHeader();
-            if (response.getStatusCode() == Response.OK
-                    && cseqHeader.getMethod().equals(Request.INVITE)) {
-                long cseqNo = cseqHeader.getSeqNumber();
-                Request ackRequest = dialog.createAck(cseqNo);
-                dialog
-                        .setApplicationData(new DialogContext(
-                                (DialogExt) dialog));
-                dialog.sendAck(ackRequest);
-
+            LoadCall call = dialog == null ? null : (LoadCall) dialog.getApplicationData();
+            if (call == null || responseEvent.getClientTransaction() == null) {
+                return;
+            }
+            String method = cseqHeader.getMethod();
+            int statusCode = response.getStatusCode();
+            if (method.equals(Request.INVITE)) {
+                if (statusCode / 100 == 2) {
+                    /*
+                     * Always ACK, even a call that failed meanwhile: it is then hung up.
+                     */
+                    Request ackRequest = dialog.createAck(cseqHeader.getSeqNumber());
+                    dialog.sendAck(ackRequest);
+                    if (call.isFinished()) {
+                        PerformanceTester.sendBye(dialog);
+                        return;
+                    }
+                    call.getPhoneMedia(dialog).start(
+                            PerformanceTester.getMediaAddress(response.getRawContent()));
+                    call.answered();
+                } else if (statusCode == Response.RINGING
+                        || statusCode == Response.SESSION_PROGRESS) {
+                    call.ringing();
+                } else if (statusCode >= 300) {
+                    call.fail((cseqHeader.getSeqNumber() == 1 ? "INVITE: " : "re-INVITE: ")
+                            + statusCode + " " + response.getReasonPhrase());
+                }
+            } else if (method.equals(Request.BYE)) {
+                if (statusCode / 100 == 2) {
+                    if (dialog == call.getHangUpDialog()) {
+                        call.hungUp();
+                    }
+                } else if (statusCode >= 300) {
+                    call.fail("BYE: " + statusCode + " " + response.getReasonPhrase());
+                }
+            } else if (statusCode >= 300) {
+                call.fail(method + ": " + statusCode + " " + response.getReasonPhrase());
             }
         } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
+            logger.error("phone: error processing response", ex);
         }
     }
 
     @Override
-    public void processTimeout(TimeoutEvent arg0) {
-        System.out.println("Timeout recorded");
-        System.exit(0);
-
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        Transaction transaction = timeoutEvent.isServerTransaction() ? timeoutEvent
+                .getServerTransaction() : timeoutEvent.getClientTransaction();
+        LoadCall call = getLoadCall(transaction);
+        if (call != null) {
+            call.fail("phone: timeout on " + transaction.getRequest().getMethod());
+        }
     }
 
     @Override
     public void processTransactionTerminated(TransactionTerminatedEvent arg0) {
-        // TODO Auto-generated method stub
+    }
+
+    /**
+     * Put the call on hold ( sendonly ) or take it off hold ( sendrecv ).
+     */
+    void sendReInvite(LoadCall call, DialogExt dialog, String direction) {
+        try {
+            Request request = dialog.createRequest(Request.INVITE);
+            RtpStream media = call.getPhoneMedia(dialog);
+            ContentTypeHeader cth = PerformanceTester.headerFactory.createContentTypeHeader(
+                    "application", "sdp");
+            request.setContent(PerformanceTester.createSessionDescription(
+                    listeningPoint.getIPAddress(), media.getPort(), direction).toString(), cth);
+            request.setHeader(listeningPoint.createContactHeader());
+            ClientTransaction ct = sipProvider.getNewClientTransaction(request);
+            dialog.sendRequest(ct);
+        } catch (Exception ex) {
+            call.fail("re-INVITE not sent: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Blind transfer to the transfer target of the call ( reached through the sipx proxy ).
+     */
+    void sendRefer(LoadCall call, DialogExt dialog) {
+        try {
+            Request request = dialog.createRequest(Request.REFER);
+            SipURI target = PerformanceTester.addressFactory.createSipURI(call
+                    .getTransferTarget(), PerformanceTester.bridgeConfiguration
+                    .getSipxProxyDomain());
+            target.setPort(PerformanceTester.bridgeConfiguration.getSipxProxyPort());
+            ReferToHeader referTo = PerformanceTester.headerFactory
+                    .createReferToHeader(PerformanceTester.addressFactory.createAddress(target));
+            request.setHeader(referTo);
+            request.setHeader(listeningPoint.createContactHeader());
+            ClientTransaction ct = sipProvider.getNewClientTransaction(request);
+            dialog.sendRequest(ct);
+        } catch (Exception ex) {
+            call.fail("REFER not sent: " + ex.getMessage());
+        }
+    }
 
+    void sendBye(LoadCall call, DialogExt dialog) {
+        call.setHangUpDialog(dialog);
+        if (!PerformanceTester.sendBye(dialog)) {
+            call.fail("BYE not sent");
+        }
     }
 
-    public void sendInvite() throws Exception {
+    public void sendInvite(LoadCall call) throws Exception {
         String fromName = "BigGuy";
         String fromSipAddress = "here.com";
         String fromDisplayName = "The Master Blaster";
 
         String toSipAddress = "ot.bandwidth.com";
-        String toUser = "LittleGuy";
+        String toUser = call.getNumber();
         String toDisplayName = "The Little Blister";
 
         // create >From Header
@@ -180,10 +360,6 @@ public class PhoneListener implements SipListenerExt {
         // Create contact headers
         String host = ipAddress;
 
-        SipURI contactUrl = PerformanceTester.addressFactory.createSipURI(
-                fromName, host);
-        contactUrl.setPort(listeningPoint.getPort());
-
         // Create the contact name address.
         SipURI contactURI = PerformanceTester.addressFactory.createSipURI(
                 fromName, host);
@@ -200,7 +376,7 @@ public class PhoneListener implements SipListenerExt {
         request.addHeader(contactHeader);
 
         SipURI routeURI = PerformanceTester.addressFactory.createSipURI(null,
-                PerformanceTester.bridgeConfiguration.getExternalAddress());
+                PerformanceTester.bridgeConfiguration.getLocalAddress());
 
         int proxyPort = PerformanceTester.bridgeConfiguration.getLocalPort();
 
@@ -215,8 +391,9 @@ public class PhoneListener implements SipListenerExt {
 
         request.setHeader(routeHeader);
 
-        String sdpData = PerformanceTester.createSessionDescription(
-                listeningPoint.getIPAddress()).toString();
+        RtpStream media = new RtpStream(ipAddress, PerformanceTester.phoneAudio);
+        String sdpData = PerformanceTester.createSessionDescription(ipAddress,
+                media.getPort(), "sendrecv").toString();
         byte[] contents = sdpData.getBytes();
 
         request.setContent(contents, contentTypeHeader);
@@ -224,9 +401,12 @@ public class PhoneListener implements SipListenerExt {
         // Create the client transaction.
         ClientTransactionExt inviteTid = (ClientTransactionExt) sipProvider
                 .getNewClientTransaction(request);
+        DialogExt dialog = (DialogExt) inviteTid.getDialog();
+        dialog.setApplicationData(call);
+        call.setPhoneLeg(dialog, media);
 
         // send the request out.
         inviteTid.sendRequest();
     }
 
-}
\ No newline at end of file
+}
@@ -1,11 +1,10 @@
 /**
- * 
+ *
  */
 package org.sipfoundry.sipxbridge.performance;
 
 import gov.nist.javax.sip.ListeningPointExt;
 import gov.nist.javax.sip.ServerTransactionExt;
-import gov.nist.javax.sip.SipProviderExt;
 
 import java.util.TimerTask;
 
@@ -15,19 +14,23 @@ import javax.sip.header.ContentTypeHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
+import org.apache.log4j.Logger;
+
 class RingingTimerTask extends TimerTask {
 
+    private static Logger logger = Logger.getLogger(RingingTimerTask.class);
+
     private ServerTransactionExt serverTransaction;
     private Request request;
     private ListeningPointExt listeningPoint;
+    private RtpStream media;
 
     public RingingTimerTask(ServerTransactionExt serverTransaction,
-            ListeningPointExt lp) throws Exception {
+            ListeningPointExt lp, RtpStream media) throws Exception {
         this.serverTransaction = serverTransaction;
         this.request = serverTransaction.getRequest();
         this.listeningPoint = lp;
-        SipProviderExt sipProvider = (SipProviderExt) this.serverTransaction
-                .getSipProvider();
+        this.media = media;
         Response response = PerformanceTester.messageFactory.createResponse(Response.RINGING,
                 request);
         serverTransaction.sendResponse(response);
@@ -39,7 +42,8 @@ class RingingTimerTask extends TimerTask {
             Response response = PerformanceTester.messageFactory.createResponse(Response.OK,
                     request);
             String ipAddress = listeningPoint.getIPAddress();
-            SessionDescription sdp = PerformanceTester.createSessionDescription(ipAddress);
+            SessionDescription sdp = PerformanceTester.createSessionDescription(ipAddress,
+                    media.getPort(), "sendrecv");
             ContentTypeHeader cth = PerformanceTester.headerFactory.createContentTypeHeader(
                     "application", "sdp");
             response.setContent(sdp.toString().getBytes(), cth);
@@ -49,10 +53,9 @@ class RingingTimerTask extends TimerTask {
             serverTransaction.sendResponse(response);
 
         } catch (Exception ex) {
-            ex.printStackTrace();
-            System.exit(0);
+            logger.error("ITSP: error answering", ex);
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxbridge.performance;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One RTP stream of an emulated phone or ITSP: sends PCMU frames from a media file every 20 ms
+ * and counts what comes back.
+ *
+ * All the streams share one sender thread ( paced on a fixed rate schedule ) and one receiver
+ * thread ( a selector ), so thousands of calls cost two threads.
+ */
+class RtpStream {
+
+    private static Logger logger = Logger.getLogger(RtpStream.class);
+
+    static final int FRAME_MILLIS = 20;
+
+    static final int FRAME_SIZE = MediaFile.SAMPLE_RATE * FRAME_MILLIS / 1000;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int PAYLOAD_TYPE_PCMU = 0;
+
+    private static final Random random = new Random();
+
+    private static final Set<RtpStream> sending = Collections
+            .newSetFromMap(new ConcurrentHashMap<RtpStream, Boolean>());
+
+    private static final ConcurrentLinkedQueue<RtpStream> registrations = new ConcurrentLinkedQueue<RtpStream>();
+
+    private static Selector selector;
+
+    private static ScheduledExecutorService sender;
+
+    private final DatagramChannel channel;
+
+    private final byte[] media;
+
+    private int position;
+
+    private final ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + FRAME_SIZE);
+
+    private final int ssrc = random.nextInt();
+
+    private short sequenceNumber = (short) random.nextInt();
+
+    private int timestamp = random.nextInt();
+
+    private volatile InetSocketAddress remoteAddress;
+
+    private volatile long packetsSent;
+
+    private volatile long packetsReceived;
+
+    private volatile long packetsLost;
+
+    private int expectedSequenceNumber = -1;
+
+    /**
+     * Start the shared sender and receiver threads.
+     */
+    static synchronized void startThreads() throws IOException {
+        if (selector != null) {
+            return;
+        }
+        selector = Selector.open();
+        Thread receiver = new Thread("RtpStream-receiver") {
+            public void run() {
+                receive();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RtpStream-sender");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+        sender.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                for (RtpStream stream : sending) {
+                    stream.sendFrame();
+                }
+            }
+        }, FRAME_MILLIS, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param ipAddress -- the local address to receive on ( a free port is picked ).
+     * @param media -- the mu-law samples to send. The stream starts at a random place in it.
+     */
+    RtpStream(String ipAddress, byte[] media) throws IOException {
+        this.media = media;
+        this.position = random.nextInt(media.length / FRAME_SIZE) * FRAME_SIZE;
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.socket().bind(new InetSocketAddress(ipAddress, 0));
+        registrations.add(this);
+        selector.wakeup();
+    }
+
+    int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Send to the given address ( from the SDP of the other side ). Updating the address of a
+     * stream that is already sending re-targets it.
+     */
+    void start(InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+        sending.add(this);
+    }
+
+    void setRemoteAddress(InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Send ( again ) to the address set earlier.
+     */
+    void resume() {
+        if (remoteAddress != null) {
+            sending.add(this);
+        }
+    }
+
+    /**
+     * Stop sending ( on hold ) but keep receiving.
+     */
+    void pause() {
+        sending.remove(this);
+    }
+
+    void close() {
+        sending.remove(this);
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.debug("Error closing RTP channel", ex);
+        }
+    }
+
+    long getPacketsSent() {
+        return packetsSent;
+    }
+
+    long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /*
+     * Runs on the sender thread.
+     */
+    private void sendFrame() {
+        InetSocketAddress destination = remoteAddress;
+        if (destination == null) {
+            return;
+        }
+        packet.clear();
+        packet.put((byte) 0x80);
+        packet.put((byte) PAYLOAD_TYPE_PCMU);
+        packet.putShort(sequenceNumber++);
+        packet.putInt(timestamp);
+        packet.putInt(ssrc);
+        if (position + FRAME_SIZE > media.length) {
+            position = 0;
+        }
+        packet.put(media, position, FRAME_SIZE);
+        position += FRAME_SIZE;
+        timestamp += FRAME_SIZE;
+        packet.flip();
+        try {
+            if (channel.send(packet, destination) != 0) {
+                packetsSent++;
+            }
+        } catch (IOException ex) {
+            /*
+             * Nothing listening ( ICMP port unreachable ) or the stream was closed under us.
+             */
+            if (logger.isDebugEnabled()) logger.debug("Error sending RTP to " + destination, ex);
+        }
+    }
+
+    /*
+     * Runs on the receiver thread.
+     */
+    private void packetReceived(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE || (buffer.get(0) & 0xc0) != 0x80) {
+            return;
+        }
+        int received = buffer.getShort(2) & 0xffff;
+        if (expectedSequenceNumber != -1) {
+            int gap = (received - expectedSequenceNumber) & 0xffff;
+            /*
+             * A small forward jump is loss. Anything else is reordering or a new source ( the
+             * relay re-targeted after a transfer ).
+             */
+            if (gap < 1000) {
+                packetsLost += gap;
+            }
+        }
+        expectedSequenceNumber = (received + 1) & 0xffff;
+        packetsReceived++;
+    }
+
+    private static void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        while (true) {
+            try {
+                selector.select();
+                RtpStream stream;
+                while ((stream = registrations.poll()) != null) {
+                    if (stream.channel.isOpen()) {
+                        stream.channel.register(selector, SelectionKey.OP_READ, stream);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    stream = (RtpStream) key.attachment();
+                    try {
+                        while (true) {
+                            buffer.clear();
+                            if (stream.channel.receive(buffer) == null) {
+                                break;
+                            }
+                            buffer.flip();
+                            stream.packetReceived(buffer);
+                        }
+                    } catch (IOException ex) {
+                        key.cancel();
+                    }
+                }
+            } catch (Exception ex) {
+                logger.error("Unexpected exception receiving RTP", ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ *
+ *
+ * Copyright (C) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package org.sipfoundry.commons.freeswitch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the bytes FreeSwitch sends on the event socket into FreeSwitchEvents.
+ *
+ * A frame is a block of header lines ended by a blank line, followed by Content-Length bytes of
+ * content if there is a Content-Length header. The bytes are kept in one buffer and a frame is
+ * cut out of it only once it is complete, so the decoder never waits for more data: decode
+ * returns null until the rest of the frame has been appended. Only the Content-Length header is
+ * looked at here; the other headers are left as one string for FreeSwitchEvent to search when
+ * asked.
+ *
+ * Not thread safe.
+ */
+class EslFrameDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CONTENT_LENGTH = "content-length:";
+    private static final int INITIAL_SIZE = 8192;
+
+    private byte[] m_buffer = new byte[INITIAL_SIZE];
+    // Unconsumed data is m_buffer[m_start, m_end)
+    private int m_start;
+    private int m_end;
+    // Where the search for the blank line resumes
+    private int m_scan;
+    // Once the headers of the frame are complete: their end and the start of the content
+    private int m_headEnd = -1;
+    private int m_contentStart;
+    private int m_contentLength;
+
+    /**
+     * Read what is available from the stream ( blocks if nothing is ).
+     *
+     * @return the number of bytes read, -1 at end of stream.
+     */
+    int read(InputStream in) throws IOException {
+        makeRoom(1);
+        int count = in.read(m_buffer, m_end, m_buffer.length - m_end);
+        if (count > 0) {
+            m_end += count;
+        }
+        return count;
+    }
+
+    /**
+     * Add bytes received by other means ( a non-blocking channel for example ).
+     */
+    void append(byte[] bytes, int offset, int length) {
+        makeRoom(length);
+        System.arraycopy(bytes, offset, m_buffer, m_end, length);
+        m_end += length;
+    }
+
+    /**
+     * @return the next complete frame, or null if more bytes are needed.
+     */
+    FreeSwitchEvent decode() {
+        if (m_headEnd < 0) {
+            // Stray line ends between frames are not frames
+            while (m_start < m_end && (m_buffer[m_start] == '\n' || m_buffer[m_start] == '\r')) {
+                m_start++;
+            }
+            if (m_scan < m_start) {
+                m_scan = m_start;
+            }
+            if (!findHeadEnd()) {
+                return null;
+            }
+            m_contentLength = parseContentLength();
+        }
+        if (m_end - m_contentStart < m_contentLength) {
+            return null;
+        }
+        String content = null;
+        if (m_contentLength > 0) {
+            content = new String(m_buffer, m_contentStart, m_contentLength, UTF8);
+        }
+        FreeSwitchEvent event = new FreeSwitchEvent(head(m_headEnd), content);
+        m_start = m_contentStart + m_contentLength;
+        m_scan = m_start;
+        m_headEnd = -1;
+        if (m_start == m_end) {
+            m_start = 0;
+            m_end = 0;
+            m_scan = 0;
+        }
+        return event;
+    }
+
+    /**
+     * The stream has ended: the partial frame left, if any, like the line reader used to return.
+     *
+     * @return the partial frame or null.
+     */
+    FreeSwitchEvent finish() {
+        FreeSwitchEvent event = null;
+        if (m_headEnd >= 0) {
+            String content = null;
+            if (m_end > m_contentStart) {
+                content = new String(m_buffer, m_contentStart, m_end - m_contentStart, UTF8);
+            }
+            event = new FreeSwitchEvent(head(m_headEnd), content);
+        } else {
+            int end = m_end;
+            while (end > m_start && (m_buffer[end - 1] == '\n' || m_buffer[end - 1] == '\r')) {
+                end--;
+            }
+            if (end > m_start) {
+                event = new FreeSwitchEvent(head(end), null);
+            }
+        }
+        m_start = 0;
+        m_end = 0;
+        m_scan = 0;
+        m_headEnd = -1;
+        return event;
+    }
+
+    /*
+     * Look for the blank line ( "\n\n" or "\n\r\n" ) that ends the headers.
+     */
+    private boolean findHeadEnd() {
+        for (int i = m_scan; i < m_end; i++) {
+            if (m_buffer[i] != '\n') {
+                continue;
+            }
+            int next = i + 1;
+            if (next < m_end && m_buffer[next] == '\r') {
+                next++;
+            }
+            if (next >= m_end) {
+                // Can't tell yet, look at this line end again when more has arrived
+                m_scan = i;
+                return false;
+            }
+            if (m_buffer[next] == '\n') {
+                m_headEnd = i;
+                m_contentStart = next + 1;
+                return true;
+            }
+        }
+        m_scan = m_end;
+        return false;
+    }
+
+    private int parseContentLength() {
+        int lineStart = m_start;
+        while (lineStart < m_headEnd) {
+            if (startsWithIgnoreCase(lineStart, CONTENT_LENGTH)) {
+                int length = 0;
+                for (int i = lineStart + CONTENT_LENGTH.length(); i < m_headEnd; i++) {
+                    byte b = m_buffer[i];
+                    if (b >= '0' && b <= '9') {
+                        length = length * 10 + (b - '0');
+                    } else if (b != ' ' && b != '\t') {
+                        break;
+                    }
+                }
+                return length;
+            }
+            while (lineStart < m_headEnd && m_buffer[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return 0;
+    }
+
+    private boolean startsWithIgnoreCase(int offset, String prefix) {
+        if (m_headEnd - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) m_buffer[offset + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The header lines from m_start to end, separated by "\n".
+     */
+    private String head(int end) {
+        String head = new String(m_buffer, m_start, end - m_start, UTF8);
+        if (head.indexOf('\r') >= 0) {
+            head = head.replace("\r", "");
+        }
+        return head;
+    }
+
+    /*
+     * Make room for needed more bytes after m_end: move the unconsumed bytes to the front of the
+     * buffer, and grow it if they still do not fit.
+     */
+    private void makeRoom(int needed) {
+        if (m_buffer.length - m_end >= needed) {
+            return;
+        }
+        int used = m_end - m_start;
+        int size = m_buffer.length;
+        while (size - used < needed) {
+            size *= 2;
+        }
+        byte[] buffer = size == m_buffer.length ? m_buffer : new byte[size];
+        System.arraycopy(m_buffer, m_start, buffer, 0, used);
+        m_buffer = buffer;
+        m_end -= m_start;
+        m_scan -= m_start;
+        if (m_headEnd >= 0) {
+            m_headEnd -= m_start;
+            m_contentStart -= m_start;
+        }
+        m_start = 0;
+    }
+}
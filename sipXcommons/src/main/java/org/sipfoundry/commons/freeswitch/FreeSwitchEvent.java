@@ -23,15 +23,22 @@ import org.sipfoundry.commons.util.RFC2396UrlDecoder;
  * an asynchronous occurrence. The event may contain a "content-type" header, and if so there is
  * also a String of content (based on the "content-length" header).
  *
+ * Headers and event values are looked up by searching the lines for the name asked for, without
+ * splitting them all up first: most events are only asked for their Content-Type and Event-Name.
+ *
  */
 public class FreeSwitchEvent {
+    private static final String SIPX_PICKUP = "sipx_pickup";
+    private static final String EVENT_NAME = "event-name";
+    private static final String DTMF_DIGIT = "dtmf-digit";
+
     private Vector<String> m_response;
+    private String m_head;
     private String m_content;
     private Exception m_exception;
-    private HashMap<String, String> m_headers;
-    private HashMap<String, String> m_eventContent;
-    private String m_contentType = "(unknown)";
+    private String m_contentType;
     private String m_eventName = "(unknown)";
+    private boolean m_eventNameFound;
 
     /**
      * Given all the pieces parts (plus some error that occurred), build the event
@@ -57,14 +64,55 @@ public class FreeSwitchEvent {
         setContent(content);
     }
 
+    /**
+     * Build the event from the header lines as read ( separated by "\n" ).
+     *
+     * @param head
+     * @param content
+     */
+    FreeSwitchEvent(String head, String content) {
+        m_head = head;
+        setContent(content);
+    }
+
     void setResponse(Vector<String> response) {
         this.m_response = response;
+        this.m_head = null;
     }
 
     public Vector<String> getResponse() {
+        if (m_response == null) {
+            m_response = new Vector<String>();
+            int start = 0;
+            while (start < m_head.length()) {
+                int end = m_head.indexOf('\n', start);
+                if (end < 0) {
+                    end = m_head.length();
+                }
+                m_response.add(m_head.substring(start, end));
+                start = end + 1;
+            }
+        }
         return m_response;
     }
 
+    /**
+     * @return the header lines separated by "\n".
+     */
+    public String getHead() {
+        if (m_head == null) {
+            StringBuilder head = new StringBuilder();
+            for (String line : m_response) {
+                if (head.length() > 0) {
+                    head.append('\n');
+                }
+                head.append(line);
+            }
+            m_head = head.toString();
+        }
+        return m_head;
+    }
+
     void setContent(String content) {
         this.m_content = content;
     }
@@ -78,7 +126,7 @@ public class FreeSwitchEvent {
     }
 
     public boolean isEmpty() {
-        return m_response.size() == 0;
+        return m_head != null ? m_head.length() == 0 : m_response.size() == 0;
     }
 
     /**
@@ -110,7 +158,7 @@ public class FreeSwitchEvent {
                 value = "";
             }
 
-            if(name.equals("sipx_pickup")) {
+            if(name.equals(SIPX_PICKUP)) {
                 isInterruptEvt = true;
             }
 
@@ -119,13 +167,70 @@ public class FreeSwitchEvent {
 
         if(isInterruptEvt) {
             // modify event data to reflect a DTMF digit event with a digit of 'i'
-            headers.put("event-name", "DTMF");
-            headers.put("dtmf-digit", "i");
+            headers.put(EVENT_NAME, "DTMF");
+            headers.put(DTMF_DIGIT, "i");
         }
 
         return headers;
     }
 
+    /**
+     * Find the value of one header in a block of header lines, with the same result as
+     * parseHeaders(lines).get(name) but without splitting up the other lines. The block ends at
+     * its first blank line.
+     *
+     * @param lines header lines separated by "\n"
+     * @param name
+     * @return null if not found, "" if no value, or the value.
+     */
+    static String findHeader(String lines, String name) {
+        int valueStart = -1;
+        int valueEnd = -1;
+        boolean isInterruptEvt = false;
+        int start = 0;
+        int length = lines.length();
+        while (start < length) {
+            int end = lines.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = end;
+            if (lineEnd > start && lines.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == start) {
+                break;
+            }
+            int colon = lines.indexOf(':', start);
+            int nameEnd = colon > start && colon < lineEnd ? colon : lineEnd;
+            if (isName(lines, start, nameEnd, name)) {
+                valueStart = nameEnd == lineEnd ? lineEnd : colon + 1;
+                valueEnd = lineEnd;
+            }
+            if (isName(lines, start, nameEnd, SIPX_PICKUP)) {
+                isInterruptEvt = true;
+            }
+            start = end + 1;
+        }
+
+        if (isInterruptEvt) {
+            if (name.equalsIgnoreCase(EVENT_NAME)) {
+                return "DTMF";
+            } else if (name.equalsIgnoreCase(DTMF_DIGIT)) {
+                return "i";
+            }
+        }
+        if (valueStart < 0) {
+            return null;
+        }
+        // Unescape URL escaped values
+        return RFC2396UrlDecoder.decode(lines.substring(valueStart, valueEnd).trim());
+    }
+
+    private static boolean isName(String lines, int start, int end, String name) {
+        return end - start == name.length() && lines.regionMatches(true, start, name, 0, name.length());
+    }
+
     /**
      * Given a header name, find the corresponding value.
      *
@@ -133,11 +238,7 @@ public class FreeSwitchEvent {
      * @return null if not found, "" if no value, or the value.
      */
     public String getHeader(String name) {
-        // Parse the headers if it hasn't already been done
-        if (m_headers == null) {
-            m_headers = parseHeaders(getResponse());
-        }
-        return m_headers.get(name.toLowerCase());
+        return findHeader(getHead(), name);
     }
 
     /**
@@ -182,7 +283,9 @@ public class FreeSwitchEvent {
      * @return
      */
     public String getContentType() {
-        m_contentType = getHeader("Content-Type", "(None)");
+        if (m_contentType == null) {
+            m_contentType = getHeader("Content-Type", "(None)");
+        }
         return m_contentType;
     }
 
@@ -194,17 +297,17 @@ public class FreeSwitchEvent {
      * @return null if not found, else the value.
      */
     public String getEventValue(String name) {
-        if (!getContentType().contentEquals("text/event-plain")) {
+        if (!getContentType().contentEquals("text/event-plain") || m_content == null) {
             return null;
         }
-        if (m_eventContent == null) {
-            m_eventContent = parseHeaders(parseEventContent());
-            m_eventName = m_eventContent.get("event-name");
+        if (!m_eventNameFound) {
+            m_eventNameFound = true;
+            m_eventName = findHeader(m_content, EVENT_NAME);
             if (m_eventName == null) {
                 m_eventName = "(Unknown)";
             }
         }
-        return m_eventContent.get(name.toLowerCase());
+        return findHeader(m_content, name);
     }
 
     /**
@@ -8,25 +8,54 @@
  */
 package org.sipfoundry.commons.freeswitch;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.LinkedList;
 import java.util.Vector;
 
 /**
  * The nitty-gritty handling of data to and from the socket that came from a FreeSwitch "outbound"
  * call.
- * 
+ *
  * Deals with marshalling the data into FreeSwitchEvents, and blocks waiting for commands to
  * finish.
- * 
+ *
+ * FreeSwitch answers the commands in the order they were sent, so the replies are matched to the
+ * commands by keeping the commands waiting for a reply in a queue. This lets several commands be
+ * sent before waiting for the first reply ( see sendCommand ).
+ *
  */
 public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
+    /*
+     * Stands for the commands sent with cmd, whose replies are passed on as events.
+     */
+    private static final PendingReply EVENT_REPLY = new PendingReply(null);
+
     private Socket m_clientSocket;
-    private PrintWriter m_out;
-    private BufferedReader m_in;
+    private OutputStream m_out;
+    private InputStream m_in;
+    private final EslFrameDecoder m_decoder = new EslFrameDecoder();
+    private final LinkedList<PendingReply> m_pendingReplies = new LinkedList<PendingReply>();
+    private boolean m_endOfStream;
+
+    /**
+     * A command sent with sendCommand. Its reply is set aside when it arrives, and collected with
+     * awaitReply.
+     */
+    public static class PendingReply {
+        private final String m_command;
+        private FreeSwitchEvent m_reply;
+
+        PendingReply(String command) {
+            m_command = command;
+        }
+
+        public boolean isDone() {
+            return m_reply != null;
+        }
+    }
 
     public FreeSwitchEventSocket(FreeSwitchConfigurationInterface config) {
         super(config);
@@ -36,7 +65,7 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
     /**
      * Given the socket from a FreeSwitch "outbound" call, do the "connect" dance to collect all
      * the variables FreeSwitch reports.
-     * 
+     *
      * Enable FreeSwitch to report async events of interest.
      */
     public boolean connect(Socket socket) throws IOException {
@@ -46,13 +75,13 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
     /**
      * Given the socket from a FreeSwitch "outbound" call, do the "connect" dance to collect all
      * the variables FreeSwitch reports.
-     * 
+     *
      * Enable FreeSwitch to report async events of interest.
      */
     public boolean connect(Socket socket, String authPassword) throws IOException {
         m_clientSocket = socket;
-        m_out = new PrintWriter(m_clientSocket.getOutputStream(), true);
-        setIn(new BufferedReader(new InputStreamReader(m_clientSocket.getInputStream())));
+        setOut(m_clientSocket.getOutputStream());
+        setIn(m_clientSocket.getInputStream());
 
         if (authPassword != null) {
             cmdResponse("auth " + authPassword);
@@ -64,7 +93,9 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
             return false;
         }
 
-        LOG.debug(event.getResponse());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(event.getResponse());
+        }
         setVariables(FreeSwitchEvent.parseHeaders(event.getResponse()));
 
         String UUID = getVariable("caller-unique-id");
@@ -73,8 +104,10 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
         // Enable reporting of interesting events
 
         if (UUID != null) {
-            cmdResponse("event plain all");
-            cmdResponse("filter Unique-ID " + UUID);
+            PendingReply events = sendCommand("event plain all");
+            PendingReply filter = sendCommand("filter Unique-ID " + UUID);
+            awaitReply(events);
+            awaitReply(filter);
         } else {
             cmdResponse("myevents");
         }
@@ -84,120 +117,113 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
 
     /**
      * Send a command to FreeSwitch.
+     *
+     * The reply is passed on as an event.
      */
     public void cmd(String cmd) {
         LOG.debug("FSES::cmd " + cmd);
         // Send the command
-        m_out.printf("%s%n%n", cmd);
+        write(cmd, EVENT_REPLY);
     }
 
     /**
      * Send a command to FreeSwitch and await the response.
-     * 
+     *
      * Any events sent before the response arrives are queued on the eventQueue.
-     * 
+     *
      */
     public FreeSwitchEvent cmdResponse(String cmd) {
         LOG.debug("FSES::cmdResponse " + cmd);
-        // Send the command
-        m_out.printf("%s%n%n", cmd);
-
-        // Read events off the socket until the command/reply is seen.
-        // Other events are queued onto the eventQueue
-        for (;;) {
-            FreeSwitchEvent event = awaitLiveEvent();
-
-            if (event.isEmpty()) {
-                // Hey! FS closed the socket on us!
-                return event;
-            } else if (event.getContentType().contentEquals("command/reply")) {
-                LOG.debug(String.format("FSES::cmdResponse cmd (%s) response (%s)", cmd,
-                        event.getHeader("Reply-Text", "(No Reply-Text)")));
-                return event;
-            } else {
-                // Push non reply event onto the queue for someone else to deal with.
-                getEventQueue().add(event);
-            }
-        }
+        return awaitReply(sendCommand(cmd));
     }
 
     /**
      * Send an api command to FreeSwitch and await the response.
-     * 
+     *
      * Any events sent before the response arrives are queued on the eventQueue.
-     * 
+     *
      */
     public FreeSwitchEvent apiCmdResponse(String cmd) {
         LOG.debug("FSES::apiCmdResponse " + cmd);
-        // Send the command
-        m_out.printf("api %s%n%n", cmd);
+        return awaitReply(sendCommand("api " + cmd));
+    }
 
-        // Read events off the socket until the api/response is seen.
-        // Other events are queued onto the eventQueue
-        for (;;) {
-            FreeSwitchEvent event = awaitLiveEvent();
+    /**
+     * Send a command to FreeSwitch without waiting for the response. More commands can be sent
+     * before the responses are collected with awaitReply.
+     *
+     * @return the command, to collect its response with.
+     */
+    public PendingReply sendCommand(String cmd) {
+        PendingReply pending = new PendingReply(cmd);
+        write(cmd, pending);
+        return pending;
+    }
 
-            if (event.isEmpty()) {
+    /**
+     * Await the response to a command sent with sendCommand.
+     *
+     * Any events sent before the response arrives are queued on the eventQueue.
+     *
+     * @return the response, or an empty event if FreeSwitch closed the socket first.
+     */
+    public FreeSwitchEvent awaitReply(PendingReply pending) {
+        // Read events off the socket until the command/reply is seen.
+        // Other events are queued onto the eventQueue
+        while (!pending.isDone()) {
+            FreeSwitchEvent event = nextEvent();
+            if (event == null) {
+                // A reply, maybe this one
+                continue;
+            } else if (event.isEmpty()) {
                 // Hey! FS closed the socket on us!
                 return event;
-            } else if (event.getContentType().contentEquals("api/response")) {
-                LOG.debug(String.format("FSES::apiCmdResponse cmd (%s) response (%s)", cmd,
-                        event.getHeader("Reply-Text", "(No Reply-Text)")));
-                return event;
-            } else {
-                // Push non reply event onto the queue for someone else to deal with.
-                getEventQueue().add(event);
             }
+            // Push non reply event onto the queue for someone else to deal with.
+            getEventQueue().add(event);
         }
+        LOG.debug(String.format("FSES::awaitReply cmd (%s) response (%s)", pending.m_command,
+                pending.m_reply.getHeader("Reply-Text", "(No Reply-Text)")));
+        return pending.m_reply;
     }
 
     /**
      * Block waiting for an event to arrive on the socket.
-     * 
+     *
+     * Responses to commands sent with sendCommand are set aside for awaitReply rather than
+     * returned.
+     *
      */
     public FreeSwitchEvent awaitLiveEvent() {
-        FreeSwitchEvent event = null;
-        Vector<String> response = new Vector<String>();
-        String content = null;
-
-        String contentLength = null;
-
-        try {
-            for (;;) {
-                String line = getIn().readLine();
-                if (line == null || line.equals("")) {
-                    break;
-                }
-                response.add(line);
-                LOG.debug("::awaitLiveEvent event: " + line);
-                if (line.startsWith("Content-Length:")) {
-                    contentLength = line;
-                }
+        for (;;) {
+            FreeSwitchEvent event = nextEvent();
+            if (event != null) {
+                return event;
             }
-        } catch (Exception e) {
-            LOG.error("FSES::awaitLiveEvent readLine exception", e);
-            return new FreeSwitchEvent(response, null, e);
         }
+    }
 
-        if (contentLength != null) {
-            int length = Integer.parseInt(contentLength.substring(16));
-            if (length > 0) {
-                try {
-                    char[] cbuf = new char[length];
-                    int actual = getIn().read(cbuf, 0, length);
-                    if (actual >= 0) {
-                        content = new String(cbuf);
-                    }
-                } catch (Exception e) {
-                    LOG.error("FSES::awaitEvent content exception", e);
-                    return new FreeSwitchEvent(response, null, e);
-                }
+    /*
+     * Read one event off the socket.
+     *
+     * @return the event, or null if it was the response to a command sent with sendCommand.
+     */
+    private FreeSwitchEvent nextEvent() {
+        FreeSwitchEvent event = readEvent();
+        if (!event.isEmpty() && isReply(event) && !m_pendingReplies.isEmpty()) {
+            PendingReply pending = m_pendingReplies.removeFirst();
+            if (pending != EVENT_REPLY) {
+                pending.m_reply = event;
+                return null;
             }
         }
-        event = new FreeSwitchEvent(response, content);
-        LOG.debug(String.format("FSES::awaitEvent live response (%s) Event-Name (%s) Application (%s)",
-                event.getContentType(), event.getEventValue("Event-Name", "(null)"),
-                event.getEventValue("Application", "(null)")));
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("::awaitLiveEvent event: " + event.getHead());
+            LOG.debug(String.format("FSES::awaitEvent live response (%s) Event-Name (%s) Application (%s)",
+                    event.getContentType(), event.getEventValue("Event-Name", "(null)"),
+                    event.getEventValue("Application", "(null)")));
+        }
 
         // Look for a "uuid_bridge" operation which indicates that this FS session
         // is a consultative transfer target.
@@ -214,20 +240,62 @@ public class FreeSwitchEventSocket extends FreeSwitchEventSocketInterface {
         return event;
     }
 
+    private static boolean isReply(FreeSwitchEvent event) {
+        String contentType = event.getContentType();
+        return contentType.contentEquals("command/reply") || contentType.contentEquals("api/response");
+    }
+
+    /*
+     * The next frame from the socket, or an empty event once the socket is closed.
+     */
+    private FreeSwitchEvent readEvent() {
+        try {
+            for (;;) {
+                FreeSwitchEvent event = m_decoder.decode();
+                if (event != null) {
+                    return event;
+                }
+                if (m_endOfStream || m_decoder.read(m_in) < 0) {
+                    m_endOfStream = true;
+                    event = m_decoder.finish();
+                    return event != null ? event : new FreeSwitchEvent(new Vector<String>(), null);
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("FSES::awaitLiveEvent read exception", e);
+            m_endOfStream = true;
+            return new FreeSwitchEvent(new Vector<String>(), null, e);
+        }
+    }
+
+    private void write(String cmd, PendingReply pending) {
+        m_pendingReplies.add(pending);
+        try {
+            m_out.write((cmd + "\n\n").getBytes("UTF-8"));
+            m_out.flush();
+        } catch (IOException e) {
+            // The closed socket is noticed when reading the reply
+            LOG.debug("FSES::write " + e.getMessage());
+        }
+    }
+
     /**
      * Close the connection to FreeSwitch (ends the call)
-     * 
+     *
      */
     public void close() throws IOException {
         m_clientSocket.close();
     }
 
-    public void setIn(BufferedReader in) {
+    public void setIn(InputStream in) {
         m_in = in;
     }
 
-    public BufferedReader getIn() {
+    public InputStream getIn() {
         return m_in;
     }
 
+    public void setOut(OutputStream out) {
+        m_out = out;
+    }
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.siprouter;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Cache;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * A shared cache of DNS answers used by FindSipServer.
+ * <p>
+ * Answers are kept for the smallest TTL of their records. Names and types that do not exist are
+ * cached for the negative TTL. An entry that is about to expire is refreshed in the background
+ * and the cached answer is returned meanwhile, so only the first lookup of a name blocks. If a
+ * refresh fails ( resolver timeout, SERVFAIL ) the last good answer is kept and retried later.
+ * Entries that have not been refreshed for longer than the maximum stale time are looked up
+ * again in the caller's thread. Concurrent lookups of the same name and type share one query.
+ */
+public class DnsCache {
+
+    private static final Logger logger = Logger.getLogger(DnsCache.class);
+
+    private static DnsCache instance;
+
+    /*
+     * Time to keep the answer for a name or type that does not exist.
+     */
+    private long negativeTtl = 60 * 1000;
+
+    /*
+     * Time to wait before retrying a lookup that failed.
+     */
+    private long retryInterval = 10 * 1000;
+
+    /*
+     * Bounds on the time an answer is kept regardless of the TTL.
+     */
+    private long minimumTtl = 1000;
+
+    private long maximumTtl = 24 * 60 * 60 * 1000;
+
+    /*
+     * How long an expired answer may be returned while it is being refreshed.
+     */
+    private long maximumStale = 60 * 60 * 1000;
+
+    /*
+     * A refresh starts when this fraction of the TTL is left.
+     */
+    private static final int REFRESH_AHEAD_PERCENT = 10;
+
+    private final Resolver resolver;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final ConcurrentHashMap<String, FutureTask<Entry>> pendingLookups = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private final ExecutorService refresher = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DnsCacheRefresher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /*
+     * A cached answer. records is null for a negative answer.
+     */
+    private static class Entry {
+        final Record[] records;
+        final long refreshTime;
+        final long expiryTime;
+        final boolean failed;
+
+        Entry(Record[] records, long ttl, boolean failed) {
+            long now = System.currentTimeMillis();
+            this.records = records;
+            this.expiryTime = now + ttl;
+            this.refreshTime = now + ttl - ttl * REFRESH_AHEAD_PERCENT / 100;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * @return the cache shared by the process. It uses the default resolver of dnsjava.
+     */
+    public static synchronized DnsCache getInstance() {
+        if (instance == null) {
+            instance = new DnsCache(null);
+        }
+        return instance;
+    }
+
+    /**
+     * @param resolver -- the resolver to query or null for the default resolver of dnsjava.
+     */
+    public DnsCache(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Look up the records of a name.
+     *
+     * @return the records or null if there are none or they cannot be found.
+     */
+    public Record[] lookup(String name, int type) throws TextParseException {
+        Name.fromString(name);
+        String key = name.toLowerCase() + "/" + type;
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry == null || now > entry.expiryTime + maximumStale) {
+            misses.incrementAndGet();
+            entry = resolve(key, name, type, entry);
+        } else {
+            if (entry.records == null) {
+                negativeHits.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            if (now >= entry.refreshTime) {
+                refresh(key, name, type, entry);
+            }
+        }
+        return entry.records;
+    }
+
+    /**
+     * Look up the address of a host. The A records are tried first, then the AAAA records.
+     *
+     * @return the first address found or null if there is none.
+     */
+    public InetAddress getByName(String name) {
+        if (Address.isDottedQuad(name)) {
+            try {
+                return Address.getByAddress(name);
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+        try {
+            Record[] records = lookup(name, Type.A);
+            if (records != null) {
+                for (Record record : records) {
+                    if (record instanceof ARecord) {
+                        return ((ARecord) record).getAddress();
+                    }
+                }
+            }
+            records = lookup(name, Type.AAAA);
+            if (records != null) {
+                for (Record record : records) {
+                    if (record instanceof AAAARecord) {
+                        return ((AAAARecord) record).getAddress();
+                    }
+                }
+            }
+        } catch (TextParseException ex) {
+            logger.debug("Bad host name " + name);
+        }
+        return null;
+    }
+
+    /*
+     * Look up a name in the caller's thread, sharing the query with any other thread looking up
+     * the same name.
+     */
+    private Entry resolve(String key, String name, int type, Entry previous) {
+        FutureTask<Entry> lookup = newLookup(key, name, type, previous);
+        FutureTask<Entry> pending = pendingLookups.putIfAbsent(key, lookup);
+        if (pending == null) {
+            lookup.run();
+            pending = lookup;
+        }
+        try {
+            return pending.get();
+        } catch (Exception ex) {
+            logger.error("DNS lookup failed for " + name, ex);
+            return previous != null ? previous : new Entry(null, retryInterval, true);
+        }
+    }
+
+    /*
+     * Look up a name in the background unless a lookup is already under way.
+     */
+    private void refresh(String key, String name, int type, Entry previous) {
+        FutureTask<Entry> lookup = newLookup(key, name, type, previous);
+        if (pendingLookups.putIfAbsent(key, lookup) == null) {
+            refreshes.incrementAndGet();
+            refresher.execute(lookup);
+        }
+    }
+
+    private FutureTask<Entry> newLookup(final String key, final String name, final int type,
+            final Entry previous) {
+        return new FutureTask<Entry>(new Callable<Entry>() {
+            public Entry call() throws Exception {
+                try {
+                    Entry entry = query(name, type, previous);
+                    entries.put(key, entry);
+                    return entry;
+                } finally {
+                    pendingLookups.remove(key);
+                }
+            }
+        });
+    }
+
+    private Entry query(String name, int type, Entry previous) throws TextParseException {
+        Lookup lookup = new Lookup(name, type);
+        if (resolver != null) {
+            lookup.setResolver(resolver);
+        }
+        /*
+         * We do the caching ourselves.
+         */
+        lookup.setCache(new Cache());
+        Record[] records = lookup.run();
+        int result = lookup.getResult();
+        if (result == Lookup.SUCCESSFUL && records != null && records.length > 0) {
+            long ttl = Long.MAX_VALUE;
+            for (Record record : records) {
+                ttl = Math.min(ttl, record.getTTL() * 1000);
+            }
+            return new Entry(records, Math.max(minimumTtl, Math.min(ttl, maximumTtl)), false);
+        } else if (result == Lookup.HOST_NOT_FOUND || result == Lookup.TYPE_NOT_FOUND) {
+            return new Entry(null, negativeTtl, false);
+        } else {
+            failures.incrementAndGet();
+            logger.debug("DNS lookup of " + name + " failed : " + lookup.getErrorString());
+            if (previous != null && !previous.failed) {
+                /*
+                 * Keep the last good answer and try again later.
+                 */
+                return new Entry(previous.records, retryInterval, false);
+            }
+            return new Entry(null, retryInterval, true);
+        }
+    }
+
+    /**
+     * Drop all the cached answers.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of cached names.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the lookups answered with cached records.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the lookups answered with a cached negative answer.
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return the lookups that had to query the DNS server before returning.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the background refreshes started.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return the queries that failed ( as opposed to returning no records ).
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @param negativeTtl -- time in milliseconds to keep a negative answer.
+     */
+    public void setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @param retryInterval -- time in milliseconds before a failed query is retried.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * @param minimumTtl -- the shortest time in milliseconds an answer is kept.
+     */
+    public void setMinimumTtl(long minimumTtl) {
+        this.minimumTtl = minimumTtl;
+    }
+
+    /**
+     * @param maximumTtl -- the longest time in milliseconds an answer is kept.
+     */
+    public void setMaximumTtl(long maximumTtl) {
+        this.maximumTtl = maximumTtl;
+    }
+
+    /**
+     * @param maximumStale -- how long in milliseconds an expired answer may still be returned
+     *        while it is refreshed.
+     */
+    public void setMaximumStale(long maximumStale) {
+        this.maximumStale = maximumStale;
+    }
+
+}
@@ -10,7 +10,6 @@ package org.sipfoundry.commons.siprouter;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.PriorityQueue;
@@ -21,7 +20,6 @@ import javax.sip.address.SipURI;
 
 import org.apache.log4j.Logger;
 import org.xbill.DNS.Address;
-import org.xbill.DNS.Lookup;
 import org.xbill.DNS.NAPTRRecord;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SRVRecord;
@@ -34,7 +32,8 @@ import org.xbill.DNS.Type;
  * Specifically uses NAPTR records to find SRV records, And SRV records to find
  * A records.
  * 
- * Uses DNSJava to do DNS lookups.
+ * Uses DNSJava to do DNS lookups. Answers are cached by the shared DnsCache
+ * which honours the TTLs and refreshes them in the background.
  * 
  * Doesn't do any weighting or priority, possibly DNSJava already does that.
  * 
@@ -56,30 +55,39 @@ public class FindSipServer {
 
 	Logger LOG;
 
+	private final DnsCache dnsCache;
+
 	public FindSipServer(Logger log) {
+		this(log, DnsCache.getInstance());
+	}
+
+	/**
+	 * @param log
+	 * @param dnsCache -- the cache to resolve names with.
+	 */
+	public FindSipServer(Logger log, DnsCache dnsCache) {
 		LOG = log;
+		this.dnsCache = dnsCache;
 	}
 
 	/**
-	 * Lookup A records for name in DNS using JavaDNS
+	 * Lookup A records for name through the DNS cache
 	 * 
 	 * @param name
 	 * @return The first InetAddress that was found, or null it none can be
 	 *         found.
 	 */
 	InetAddress getByName(String name) {
-		try {
-			InetAddress addr = Address.getByName(name);
-			return addr;
-		} catch (UnknownHostException e) {
+		InetAddress addr = dnsCache.getByName(name);
+		if (addr == null) {
 			LOG.debug("FindSipServer::getByName Cannot resolve A record for "
 					+ name);
-			return null;
 		}
+		return addr;
 	}
 
 	/**
-	 * Lookup NAPTR records for name in DNS using JavaDNS
+	 * Lookup NAPTR records for name through the DNS cache
 	 * 
 	 * @param name
 	 * @return An array of NAPTR records, or null if none found or understood.
@@ -88,7 +96,7 @@ public class FindSipServer {
 		Record[] records = null;
 
 		try {
-			records = new Lookup(name, Type.NAPTR).run();
+			records = dnsCache.lookup(name, Type.NAPTR);
 		} catch (TextParseException e) {
 			LOG
 					.warn("FindSipServer::getNaptrRecords Error parsing NAPTR record for "
@@ -99,7 +107,7 @@ public class FindSipServer {
 	}
 
 	/**
-	 * Lookup SRV records for name using JavaDNS
+	 * Lookup SRV records for name through the DNS cache
 	 * 
 	 * @param name
 	 * @return An array of SRV records, or null if none found or understood.
@@ -108,7 +116,7 @@ public class FindSipServer {
 		Record[] records = null;
 
 		try {
-			records = new Lookup(name, Type.SRV).run();
+			records = dnsCache.lookup(name, Type.SRV);
 		} catch (TextParseException e) {
 			LOG
 					.warn("FindSipServer::getSrvRecords Error parsing SRV record for "
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.util;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Send and receive several datagrams with one system call.
+ * <p>
+ * Using native methods built on the Linux recvmmsg and sendmmsg calls, move a batch of
+ * IPv4 datagrams between a non blocking datagram channel and a direct buffer divided into
+ * fixed size slots. If native support is not available, then isAvailable returns false and the
+ * caller has to fall back to DatagramChannel.receive and send.
+ * <p>
+ * A socket address is passed as a long holding the IPv4 address ( network order as an
+ * unsigned int ) in bits 16 to 47 and the port in bits 0 to 15.
+ */
+public class DatagramBatch {
+    private static boolean nativeLoaded = false;
+
+    private static Field fdValField;
+
+    static {
+        try {
+            LibraryLoader.loadLibrary("datagrambatch");
+            nativeLoaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            nativeLoaded = false;
+            System.err.println("Datagram batch support not available: " + e.getMessage());
+        }
+        if (nativeLoaded) {
+            try {
+                Class< ? > datagramChannelImplClass = Class.forName("sun.nio.ch.DatagramChannelImpl");
+                fdValField = datagramChannelImplClass.getDeclaredField("fdVal");
+                fdValField.setAccessible(true);
+            } catch (Exception e) {
+                fdValField = null;
+                System.err.println("Datagram batch support not available: " + e.getMessage());
+            }
+        }
+    }
+
+    private native static int recvmmsg(int fd, ByteBuffer slots, int slotSize, int count,
+            int[] lengths, long[] addresses);
+
+    private native static int sendmmsg(int fd, ByteBuffer slots, int slotSize, int offset,
+            int count, int[] lengths, long[] addresses);
+
+    /**
+     * @return true if batched I/O can be used.
+     */
+    public static boolean isAvailable() {
+        return nativeLoaded && fdValField != null;
+    }
+
+    /**
+     * @return the file descriptor of the channel or -1 if it cannot be determined.
+     */
+    public static int getFileDescriptor(DatagramChannel channel) {
+        if (fdValField == null || !fdValField.getDeclaringClass().isInstance(channel)) {
+            return -1;
+        }
+        try {
+            return fdValField.getInt(channel);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Receive up to count datagrams. Datagram i is stored at slot i ( offset i * slotSize ) of
+     * the buffer.
+     *
+     * @param fd -- the file descriptor of a non blocking channel.
+     * @param slots -- a direct buffer of at least count * slotSize bytes.
+     * @param slotSize -- the size of a slot.
+     * @param count -- the maximum number of datagrams to receive.
+     * @param lengths -- receives the length of each datagram.
+     * @param addresses -- receives the source address of each datagram.
+     * @return the number of datagrams received, 0 if none was available or -errno on error.
+     */
+    public static int receive(int fd, ByteBuffer slots, int slotSize, int count, int[] lengths,
+            long[] addresses) {
+        return recvmmsg(fd, slots, slotSize, count, lengths, addresses);
+    }
+
+    /**
+     * Send the datagrams held in slots offset to offset + count - 1 of the buffer.
+     *
+     * @return the number of datagrams sent, 0 if the socket buffer is full or -errno on error.
+     */
+    public static int send(int fd, ByteBuffer slots, int slotSize, int offset, int count,
+            int[] lengths, long[] addresses) {
+        return sendmmsg(fd, slots, slotSize, offset, count, lengths, addresses);
+    }
+
+    /**
+     * Encode an IPv4 address and port.
+     */
+    public static long toLong(byte[] address, int port) {
+        long ip = ((address[0] & 0xffL) << 24) | ((address[1] & 0xffL) << 16)
+                | ((address[2] & 0xffL) << 8) | (address[3] & 0xffL);
+        return (ip << 16) | (port & 0xffff);
+    }
+
+    /**
+     * @return the IPv4 address of an encoded socket address.
+     */
+    public static byte[] getAddress(long socketAddress) {
+        long ip = socketAddress >>> 16;
+        return new byte[] {
+            (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip
+        };
+    }
+
+    /**
+     * @return the port of an encoded socket address.
+     */
+    public static int getPort(long socketAddress) {
+        return (int) (socketAddress & 0xffff);
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.xmlrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * An XML-RPC transport that sends the requests over the persistent connections of the
+ * XmlRpcConnectionPool.
+ *
+ * The request is always buffered so that it goes out with a Content-Length. A request that fails
+ * on a reused connection because the connection was closed or reset before any part of the reply
+ * came back is sent once more on a new connection: the server closed the idle connection under
+ * us. A reply that times out is not retried, the server may still be executing the call.
+ */
+public class PooledXmlRpcTransport extends XmlRpcHttpTransport {
+
+    private static Logger logger = Logger.getLogger(PooledXmlRpcTransport.class);
+
+    private static final String USER_AGENT_STRING = USER_AGENT + " (Pooled HTTP Transport)";
+
+    /*
+     * Bytes of unread reply body that are drained to keep a connection.
+     */
+    private static final int MAX_DRAIN = 8192;
+
+    private static final int MAX_LINE = 8192;
+
+    private final XmlRpcConnectionPool pool;
+
+    private final Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+
+    private XmlRpcConnectionPool.Endpoint endpoint;
+
+    private XmlRpcConnectionPool.Connection connection;
+
+    private URL url;
+
+    private int connectTimeout;
+
+    private int readTimeout;
+
+    private ReqWriter reqWriter;
+
+    private ResponseBody responseBody;
+
+    private boolean keepAlive;
+
+    private boolean gzipped;
+
+    /**
+     * The body of a reply: delimited by Content-Length, chunked or up to the end of the
+     * connection. Closing it does not close the connection.
+     */
+    static class ResponseBody extends InputStream {
+        private final InputStream in;
+
+        private final boolean chunked;
+
+        private long remaining;
+
+        private boolean finished;
+
+        ResponseBody(InputStream in, long contentLength, boolean chunked) {
+            this.in = in;
+            this.chunked = chunked;
+            this.remaining = chunked ? 0 : contentLength;
+            this.finished = !chunked && contentLength == 0;
+        }
+
+        /*
+         * Prepare the next chunk. Returns false at the end of the body.
+         */
+        private boolean nextChunk() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            if (!chunked) {
+                if (remaining == 0) {
+                    finished = true;
+                }
+                return remaining < 0;
+            }
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed in chunk header");
+            }
+            int semicolon = line.indexOf(';');
+            String size = (semicolon < 0 ? line : line.substring(0, semicolon)).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad chunk size " + line);
+            }
+            if (remaining == 0) {
+                /*
+                 * Skip the trailers.
+                 */
+                while ((line = readLine(in)) != null && line.length() != 0) {
+                }
+                finished = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void consumed(int count) throws IOException {
+            if (remaining > 0) {
+                remaining -= count;
+                if (remaining == 0 && chunked) {
+                    String crlf = readLine(in);
+                    if (crlf == null || crlf.length() != 0) {
+                        throw new IOException("Missing CRLF after chunk");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                return endOfStream();
+            }
+            consumed(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = remaining > 0 ? (int) Math.min(length, remaining) : length;
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                return endOfStream();
+            }
+            consumed(read);
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (finished) {
+                return 0;
+            }
+            int available = in.available();
+            return remaining > 0 ? (int) Math.min(available, remaining) : available;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private int endOfStream() throws IOException {
+            if (remaining > 0) {
+                throw new EOFException("Connection closed with " + remaining
+                        + " bytes of the reply unread");
+            }
+            finished = true;
+            return -1;
+        }
+
+        /**
+         * Read what is left of a short body so that the connection can be reused.
+         *
+         * @return true if the whole body has been read.
+         */
+        boolean drain(int limit) {
+            try {
+                byte[] buffer = new byte[512];
+                int total = 0;
+                while (total <= limit) {
+                    int read = read(buffer, 0, buffer.length);
+                    if (read == -1) {
+                        return true;
+                    }
+                    total += read;
+                }
+            } catch (IOException ex) {
+                if (logger.isDebugEnabled()) logger.debug("Error draining reply", ex);
+            }
+            return false;
+        }
+
+        boolean isDelimited() {
+            return chunked || remaining >= 0;
+        }
+    }
+
+    /**
+     * Create a transport.
+     *
+     * @param client -- the client using the transport.
+     * @param pool -- the pool giving the connections.
+     */
+    public PooledXmlRpcTransport(XmlRpcClient client, XmlRpcConnectionPool pool) {
+        super(client, USER_AGENT_STRING);
+        this.pool = pool;
+    }
+
+    @Override
+    public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+        XmlRpcHttpClientConfig config = (XmlRpcHttpClientConfig) request.getConfig();
+        this.url = config.getServerURL();
+        this.connectTimeout = config.getConnectionTimeout() > 0 ? config.getConnectionTimeout()
+                : pool.getConnectTimeout();
+        this.readTimeout = config.getReplyTimeout() > 0 ? config.getReplyTimeout() : pool
+                .getReadTimeout();
+        this.endpoint = pool.getEndpoint(url);
+        this.requestHeaders.clear();
+
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            if (!pool.beginCall(endpoint, readTimeout)) {
+                throw new XmlRpcClientException("Too many calls in progress to " + endpoint.key,
+                        null);
+            }
+        } catch (InterruptedException ex) {
+            throw new XmlRpcClientException("Interrupted waiting to call " + endpoint.key, ex);
+        }
+        try {
+            Object result = super.sendRequest(request);
+            success = true;
+            return result;
+        } finally {
+            releaseConnection(false);
+            pool.endCall(endpoint);
+            pool.recordCall(request.getMethodName(), System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    protected boolean isUsingByteArrayOutput(XmlRpcHttpClientConfig config) {
+        return true;
+    }
+
+    @Override
+    protected void setRequestHeader(String header, String value) {
+        requestHeaders.put(header, value);
+    }
+
+    @Override
+    protected void writeRequest(ReqWriter writer) throws XmlRpcException, IOException,
+            SAXException {
+        this.reqWriter = writer;
+        this.connection = pool.getConnection(endpoint, connectTimeout);
+        try {
+            send();
+        } catch (IOException ex) {
+            if (!connection.reused) {
+                throw ex;
+            }
+            retry(ex);
+        }
+    }
+
+    @Override
+    protected InputStream getInputStream() throws XmlRpcException {
+        try {
+            try {
+                return readResponseHead();
+            } catch (StaleConnectionException ex) {
+                if (!connection.reused) {
+                    throw (IOException) ex.getCause();
+                }
+                retry(ex);
+                return readResponseHead();
+            }
+        } catch (StaleConnectionException ex) {
+            throw new XmlRpcClientException("Failed to read server's response: "
+                    + ex.getCause().getMessage(), ex.getCause());
+        } catch (IOException ex) {
+            throw new XmlRpcClientException("Failed to read server's response: "
+                    + ex.getMessage(), ex);
+        } catch (SAXException ex) {
+            throw new XmlRpcClientException("Failed to write request: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    protected boolean isResponseGzipCompressed(XmlRpcStreamRequestConfig config) {
+        return gzipped;
+    }
+
+    @Override
+    protected void close() throws XmlRpcClientException {
+        releaseConnection(true);
+    }
+
+    /*
+     * Send the request again on a new connection.
+     */
+    private void retry(Exception cause) throws XmlRpcException, IOException, SAXException {
+        if (logger.isDebugEnabled()) logger.debug("Reused connection to " + endpoint.key
+                + " failed, retrying on a new connection : " + cause.getMessage());
+        pool.recordRetry();
+        pool.releaseConnection(connection, false);
+        connection = null;
+        connection = pool.openConnection(endpoint, connectTimeout);
+        send();
+    }
+
+    private void send() throws XmlRpcException, IOException, SAXException {
+        connection.socket.setSoTimeout(readTimeout);
+        StringBuilder head = new StringBuilder(256);
+        String file = url.getFile();
+        head.append("POST ").append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        final OutputStream out = connection.outputStream;
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        /*
+         * The writer closes the stream it is given.
+         */
+        reqWriter.write(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        out.flush();
+    }
+
+    /*
+     * Read the status line and the headers.
+     *
+     * Only an end of stream or a reset before the first byte of the reply means the server
+     * closed the connection without reading the request. Anything else, a read timeout in
+     * particular, may come after the server executed the call and is not a stale connection.
+     */
+    private InputStream readResponseHead() throws IOException, XmlRpcException {
+        InputStream in = connection.inputStream;
+        int first;
+        try {
+            first = in.read();
+        } catch (SocketException ex) {
+            throw new StaleConnectionException(ex);
+        }
+        if (first == -1) {
+            throw new StaleConnectionException(new EOFException("Connection closed by "
+                    + endpoint.key));
+        }
+        String statusLine = readLine(in, first);
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Bad status line " + statusLine);
+        }
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Bad status line " + statusLine);
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() != 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line
+                        .substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed in reply headers");
+        }
+
+        String connectionHeader = headers.get("connection");
+        if (status[0].equals("HTTP/1.0")) {
+            keepAlive = connectionHeader != null
+                    && connectionHeader.equalsIgnoreCase("keep-alive");
+        } else {
+            keepAlive = connectionHeader == null || !connectionHeader.equalsIgnoreCase("close");
+        }
+        String encoding = headers.get("content-encoding");
+        gzipped = encoding != null && encoding.equalsIgnoreCase("gzip");
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            responseBody = new ResponseBody(in, -1, true);
+        } else if (contentLength != null) {
+            try {
+                responseBody = new ResponseBody(in, Long.parseLong(contentLength), false);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad Content-Length " + contentLength);
+            }
+        } else {
+            responseBody = new ResponseBody(in, -1, false);
+        }
+
+        if (statusCode < 200 || statusCode > 299) {
+            throw new XmlRpcClientException("HTTP server returned unexpected status: "
+                    + statusLine.substring(status[0].length()).trim(), null);
+        }
+        return responseBody;
+    }
+
+    /*
+     * Give the connection back. It is only kept if the reply has been read to its end.
+     */
+    private void releaseConnection(boolean completed) {
+        if (connection == null) {
+            return;
+        }
+        boolean reusable = completed && keepAlive && responseBody != null
+                && responseBody.isDelimited() && responseBody.drain(MAX_DRAIN);
+        pool.releaseConnection(connection, reusable);
+        connection = null;
+        responseBody = null;
+        reqWriter = null;
+    }
+
+    /*
+     * Read a CRLF ( or LF ) terminated line. Returns null if the stream ends before the first
+     * byte.
+     */
+    static String readLine(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+        return readLine(in, b);
+    }
+
+    /*
+     * Read the rest of a line whose first byte has already been read.
+     */
+    private static String readLine(InputStream in, int first) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b = first;
+        while (b != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed in the middle of a line");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+            if (line.size() > MAX_LINE) {
+                throw new IOException("Line too long");
+            }
+            b = in.read();
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    /*
+     * The connection was closed or reset before anything came back on it.
+     */
+    static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.xmlrpc;
+
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+
+/**
+ * Makes an XmlRpcClient use pooled, persistent connections:
+ *
+ * <pre>
+ * client.setTransportFactory(new PooledXmlRpcTransportFactory(client));
+ * </pre>
+ */
+public class PooledXmlRpcTransportFactory extends XmlRpcTransportFactoryImpl {
+
+    private final XmlRpcConnectionPool pool;
+
+    /**
+     * Use the process wide pool.
+     */
+    public PooledXmlRpcTransportFactory(XmlRpcClient client) {
+        this(client, XmlRpcConnectionPool.getInstance());
+    }
+
+    public PooledXmlRpcTransportFactory(XmlRpcClient client, XmlRpcConnectionPool pool) {
+        super(client);
+        this.pool = pool;
+    }
+
+    /**
+     * A transport carries one call at a time, so every call gets its own.
+     */
+    public XmlRpcTransport getTransport() {
+        return new PooledXmlRpcTransport(getClient(), pool);
+    }
+
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.xmlrpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent HTTP/1.1 connections for the XML-RPC clients ( sipXbridge to sipXrelay and the
+ * sipXbridge configuration client ).
+ *
+ * Connections are kept per endpoint ( scheme, host and port ) and handed out most recently used
+ * first. TLS connections are created from the default SSL socket factory with the peer host and
+ * port, so that a new connection to the same peer resumes the cached TLS session instead of doing
+ * a full handshake.
+ *
+ * The pool also bounds the number of calls in progress per endpoint and keeps a latency
+ * histogram per XML-RPC method.
+ *
+ * The limits are read when an endpoint is first used. Set them at startup.
+ */
+public class XmlRpcConnectionPool {
+
+    private static Logger logger = Logger.getLogger(XmlRpcConnectionPool.class);
+
+    /*
+     * Upper bounds ( milliseconds ) and names of the latency histogram buckets. The last bucket
+     * is open ended.
+     */
+    private static final long[] LATENCY_BOUNDS = { 1, 5, 20, 100, 500 };
+
+    private static final String[] LATENCY_NAMES = { "latency<1ms", "latency<5ms",
+        "latency<20ms", "latency<100ms", "latency<500ms", "latency>=500ms" };
+
+    private static XmlRpcConnectionPool instance;
+
+    /**
+     * A pooled connection.
+     */
+    static class Connection {
+        final Endpoint endpoint;
+
+        final Socket socket;
+
+        final InputStream inputStream;
+
+        final OutputStream outputStream;
+
+        /*
+         * Set when the connection is handed out again after a call.
+         */
+        boolean reused;
+
+        long lastUsed;
+
+        Connection(Endpoint endpoint, Socket socket) throws IOException {
+            this.endpoint = endpoint;
+            this.socket = socket;
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
+            this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                if (logger.isDebugEnabled()) logger.debug("Error closing connection", ex);
+            }
+        }
+    }
+
+    /**
+     * The connections and the calls in progress to one server.
+     */
+    static class Endpoint {
+        final String key;
+
+        final boolean secure;
+
+        final String host;
+
+        final int port;
+
+        final int maxInFlight;
+
+        final Semaphore inFlight;
+
+        /*
+         * Idle connections, most recently used first. Guarded by the pool.
+         */
+        final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+        Endpoint(String key, boolean secure, String host, int port, int maxInFlight) {
+            this.key = key;
+            this.secure = secure;
+            this.host = host;
+            this.port = port;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore(maxInFlight, true);
+        }
+    }
+
+    static class MethodStatistics {
+        final AtomicLong calls = new AtomicLong();
+
+        final AtomicLong errors = new AtomicLong();
+
+        final AtomicLong totalMicros = new AtomicLong();
+
+        final AtomicLong maximumMicros = new AtomicLong();
+
+        final AtomicLong[] histogram = new AtomicLong[LATENCY_NAMES.length];
+
+        MethodStatistics() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new AtomicLong();
+            }
+        }
+    }
+
+    private int maxIdlePerEndpoint = 8;
+
+    private int maxInFlightPerEndpoint = 16;
+
+    private int maxConnections = 64;
+
+    private long idleTimeout = 15000;
+
+    private int connectTimeout = 5000;
+
+    private int readTimeout = 30000;
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    private final ConcurrentHashMap<String, MethodStatistics> methodStatistics = new ConcurrentHashMap<String, MethodStatistics>();
+
+    /*
+     * Open connections, busy or idle. Guarded by the pool.
+     */
+    private int openConnections;
+
+    private int idleConnections;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final AtomicLong connectionsReused = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong rejectedCalls = new AtomicLong();
+
+    /**
+     * @return the pool shared by the XML-RPC clients of this process.
+     */
+    public static synchronized XmlRpcConnectionPool getInstance() {
+        if (instance == null) {
+            instance = new XmlRpcConnectionPool();
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxIdlePerEndpoint -- the number of idle connections kept per endpoint.
+     */
+    public void setMaxIdlePerEndpoint(int maxIdlePerEndpoint) {
+        this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+    }
+
+    /**
+     * @param maxInFlightPerEndpoint -- the number of calls that can be in progress to one
+     *        endpoint. Further calls wait for the read timeout and then fail.
+     */
+    public void setMaxInFlightPerEndpoint(int maxInFlightPerEndpoint) {
+        if (maxInFlightPerEndpoint <= 0) {
+            throw new IllegalArgumentException("Bad in flight limit " + maxInFlightPerEndpoint);
+        }
+        this.maxInFlightPerEndpoint = maxInFlightPerEndpoint;
+    }
+
+    /**
+     * @param maxConnections -- the number of connections open at any time, all endpoints
+     *        together.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Bad connection limit " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param idleTimeout -- the time ( milliseconds ) after which an idle connection is closed
+     *        rather than reused.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param connectTimeout -- the default connect timeout ( milliseconds ).
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param readTimeout -- the default reply timeout ( milliseconds ).
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    Endpoint getEndpoint(URL url) {
+        String scheme = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        boolean secure = scheme.equals("https");
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String host = url.getHost();
+        String key = scheme + "://" + host.toLowerCase(Locale.ENGLISH) + ":" + port;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            synchronized (endpoints) {
+                endpoint = endpoints.get(key);
+                if (endpoint == null) {
+                    endpoint = new Endpoint(key, secure, host, port, maxInFlightPerEndpoint);
+                    endpoints.put(key, endpoint);
+                }
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Wait for a free call slot on the endpoint.
+     *
+     * @return false if none became free within the timeout.
+     */
+    boolean beginCall(Endpoint endpoint, long timeoutMillis) throws InterruptedException {
+        if (endpoint.inFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        rejectedCalls.incrementAndGet();
+        return false;
+    }
+
+    void endCall(Endpoint endpoint) {
+        endpoint.inFlight.release();
+    }
+
+    /**
+     * Get an idle connection to the endpoint or open a new one.
+     */
+    Connection getConnection(Endpoint endpoint, int connectTimeout) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Connection connection;
+            while ((connection = endpoint.idle.pollFirst()) != null) {
+                idleConnections--;
+                if (now - connection.lastUsed < idleTimeout && !connection.socket.isClosed()) {
+                    connection.reused = true;
+                    connectionsReused.incrementAndGet();
+                    return connection;
+                }
+                closeConnection(connection);
+            }
+        }
+        return openConnection(endpoint, connectTimeout);
+    }
+
+    /**
+     * Open a new connection, evicting idle connections to other endpoints if the pool is full.
+     */
+    Connection openConnection(Endpoint endpoint, int connectTimeout) throws IOException {
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + connectTimeout;
+            while (openConnections >= maxConnections) {
+                if (evictIdleConnection()) {
+                    continue;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Too many open XML-RPC connections ( " + openConnections
+                            + " ) to reach " + endpoint.key);
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted waiting for a connection to " + endpoint.key);
+                }
+            }
+            openConnections++;
+        }
+        boolean success = false;
+        try {
+            Connection connection = new Connection(endpoint, connect(endpoint, connectTimeout));
+            connectionsOpened.incrementAndGet();
+            if (logger.isDebugEnabled()) logger.debug("Opened connection to " + endpoint.key);
+            success = true;
+            return connection;
+        } finally {
+            if (!success) {
+                synchronized (this) {
+                    openConnections--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a connection after a call.
+     *
+     * @param reusable -- false if the connection is not in a state to carry another request.
+     */
+    void releaseConnection(Connection connection, boolean reusable) {
+        synchronized (this) {
+            Endpoint endpoint = connection.endpoint;
+            if (reusable && endpoint.idle.size() < maxIdlePerEndpoint) {
+                connection.lastUsed = System.currentTimeMillis();
+                endpoint.idle.addFirst(connection);
+                idleConnections++;
+                notifyAll();
+            } else {
+                closeConnection(connection);
+            }
+        }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordCall(String methodName, long elapsedNanos, boolean success) {
+        MethodStatistics statistics = methodStatistics.get(methodName);
+        if (statistics == null) {
+            statistics = new MethodStatistics();
+            MethodStatistics previous = methodStatistics.putIfAbsent(methodName, statistics);
+            if (previous != null) {
+                statistics = previous;
+            }
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        statistics.calls.incrementAndGet();
+        if (!success) {
+            statistics.errors.incrementAndGet();
+        }
+        statistics.totalMicros.addAndGet(micros);
+        long maximum = statistics.maximumMicros.get();
+        while (micros > maximum && !statistics.maximumMicros.compareAndSet(maximum, micros)) {
+            maximum = statistics.maximumMicros.get();
+        }
+        long millis = micros / 1000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && millis >= LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        statistics.histogram[bucket].incrementAndGet();
+    }
+
+    /**
+     * @return the connection counters.
+     */
+    public Map<String, Integer> getStatistics() {
+        Map<String, Integer> retval = new LinkedHashMap<String, Integer>();
+        synchronized (this) {
+            retval.put("open", openConnections);
+            retval.put("idle", idleConnections);
+        }
+        int inFlight = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            inFlight += endpoint.maxInFlight - endpoint.inFlight.availablePermits();
+        }
+        retval.put("inFlight", inFlight);
+        retval.put("opened", (int) connectionsOpened.get());
+        retval.put("reused", (int) connectionsReused.get());
+        retval.put("retries", (int) retries.get());
+        retval.put("rejected", (int) rejectedCalls.get());
+        return retval;
+    }
+
+    /**
+     * @return per XML-RPC method: calls, errors, average and maximum latency ( microseconds )
+     *         and the latency histogram.
+     */
+    public Map<String, Map<String, Integer>> getMethodStatistics() {
+        Map<String, Map<String, Integer>> retval = new LinkedHashMap<String, Map<String, Integer>>();
+        for (Map.Entry<String, MethodStatistics> entry : methodStatistics.entrySet()) {
+            MethodStatistics statistics = entry.getValue();
+            Map<String, Integer> method = new LinkedHashMap<String, Integer>();
+            long calls = statistics.calls.get();
+            method.put("calls", (int) calls);
+            method.put("errors", (int) statistics.errors.get());
+            method.put("averageMicros", calls == 0 ? 0 : (int) (statistics.totalMicros.get() / calls));
+            method.put("maximumMicros", (int) statistics.maximumMicros.get());
+            for (int i = 0; i < LATENCY_NAMES.length; i++) {
+                method.put(LATENCY_NAMES[i], (int) statistics.histogram[i].get());
+            }
+            retval.put(entry.getKey(), method);
+        }
+        return retval;
+    }
+
+    /**
+     * Close the idle connections.
+     */
+    public synchronized void closeIdleConnections() {
+        for (Endpoint endpoint : endpoints.values()) {
+            Connection connection;
+            while ((connection = endpoint.idle.pollFirst()) != null) {
+                idleConnections--;
+                closeConnection(connection);
+            }
+        }
+    }
+
+    /*
+     * Called with the pool locked.
+     */
+    private void closeConnection(Connection connection) {
+        connection.close();
+        openConnections--;
+        notifyAll();
+    }
+
+    /*
+     * Close the least recently used idle connection. Called with the pool locked.
+     */
+    private boolean evictIdleConnection() {
+        Connection oldest = null;
+        for (Endpoint endpoint : endpoints.values()) {
+            Connection connection = endpoint.idle.peekLast();
+            if (connection != null && (oldest == null || connection.lastUsed < oldest.lastUsed)) {
+                oldest = connection;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        oldest.endpoint.idle.removeLast();
+        idleConnections--;
+        closeConnection(oldest);
+        return true;
+    }
+
+    private Socket connect(Endpoint endpoint, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        boolean success = false;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), connectTimeout);
+            if (endpoint.secure) {
+                /*
+                 * Naming the peer lets the socket factory find the cached session.
+                 */
+                SSLSocketFactory factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, endpoint.host,
+                        endpoint.port, true);
+                sslSocket.setSoTimeout(connectTimeout);
+                sslSocket.startHandshake();
+                verifyHostname(endpoint.host, sslSocket.getSession());
+                socket = sslSocket;
+            }
+            success = true;
+            return socket;
+        } finally {
+            if (!success) {
+                socket.close();
+            }
+        }
+    }
+
+    private static void verifyHostname(String host, SSLSession session) throws IOException {
+        if (matchesCertificate(host, session)
+                || HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session)) {
+            return;
+        }
+        throw new SSLPeerUnverifiedException("Host name " + host
+                + " does not match the certificate of the peer");
+    }
+
+    /*
+     * The checks of RFC 2818: the DNS or IP subject alternative names, or the most specific
+     * common name if there are no DNS names.
+     */
+    static boolean matchesCertificate(String host, SSLSession session) throws IOException {
+        Certificate[] certificates = session.getPeerCertificates();
+        if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+            return false;
+        }
+        X509Certificate certificate = (X509Certificate) certificates[0];
+        String name = host.toLowerCase(Locale.ENGLISH);
+        boolean hasDnsName = false;
+        Collection<List<?>> alternativeNames;
+        try {
+            alternativeNames = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException ex) {
+            alternativeNames = null;
+        }
+        if (alternativeNames != null) {
+            for (List<?> alternativeName : alternativeNames) {
+                int type = (Integer) alternativeName.get(0);
+                String value = String.valueOf(alternativeName.get(1));
+                if (type == 2) {
+                    hasDnsName = true;
+                    if (matchesName(name, value)) {
+                        return true;
+                    }
+                } else if (type == 7 && value.equalsIgnoreCase(host)) {
+                    return true;
+                }
+            }
+        }
+        if (hasDnsName) {
+            return false;
+        }
+        try {
+            String commonName = null;
+            for (Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName()).getRdns()) {
+                if (rdn.getType().equalsIgnoreCase("CN")) {
+                    commonName = String.valueOf(rdn.getValue());
+                }
+            }
+            return commonName != null && matchesName(name, commonName);
+        } catch (InvalidNameException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * A wildcard stands for exactly one leftmost label.
+     */
+    static boolean matchesName(String host, String pattern) {
+        String name = pattern.toLowerCase(Locale.ENGLISH);
+        if (name.startsWith("*.")) {
+            int dot = host.indexOf('.');
+            return dot > 0 && host.substring(dot).equals(name.substring(1));
+        }
+        return host.equals(name);
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+
+#define _GNU_SOURCE
+#include <sys/types.h>
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <string.h>
+#include <errno.h>
+#include <jni.h>
+
+/*
+ * Upper bound on the number of datagrams moved by one call.
+ */
+#define MAX_BATCH 64
+
+/*
+ * The address family of the sockets of the JVM. Starts out as IPv6 and is switched the first
+ * time a socket refuses an IPv6 destination ( e.g. java.net.preferIPv4Stack is set ).
+ */
+static volatile int socketFamily = AF_INET6;
+
+/*
+ * The JVM opens IPv6 sockets where it can. IPv4 peers of such a socket show up as v4 mapped
+ * IPv6 addresses.
+ */
+static jlong toLong(struct sockaddr_storage *address)
+{
+    if (address->ss_family == AF_INET) {
+        struct sockaddr_in *in = (struct sockaddr_in *) address;
+        return ((jlong) ntohl(in->sin_addr.s_addr) << 16) | ntohs(in->sin_port);
+    } else if (address->ss_family == AF_INET6) {
+        struct sockaddr_in6 *in6 = (struct sockaddr_in6 *) address;
+        uint32_t ip;
+        if (!IN6_IS_ADDR_V4MAPPED(&in6->sin6_addr)) {
+            return 0;
+        }
+        memcpy(&ip, &in6->sin6_addr.s6_addr[12], 4);
+        return ((jlong) ntohl(ip) << 16) | ntohs(in6->sin6_port);
+    }
+    return 0;
+}
+
+static socklen_t fromLong(jlong value, sa_family_t family, struct sockaddr_storage *address)
+{
+    uint32_t ip = htonl((uint32_t) (value >> 16));
+    uint16_t port = htons((uint16_t) (value & 0xffff));
+    memset(address, 0, sizeof(struct sockaddr_storage));
+    if (family == AF_INET6) {
+        struct sockaddr_in6 *in6 = (struct sockaddr_in6 *) address;
+        in6->sin6_family = AF_INET6;
+        in6->sin6_port = port;
+        in6->sin6_addr.s6_addr[10] = 0xff;
+        in6->sin6_addr.s6_addr[11] = 0xff;
+        memcpy(&in6->sin6_addr.s6_addr[12], &ip, 4);
+        return sizeof(struct sockaddr_in6);
+    } else {
+        struct sockaddr_in *in = (struct sockaddr_in *) address;
+        in->sin_family = AF_INET;
+        in->sin_port = port;
+        in->sin_addr.s_addr = ip;
+        return sizeof(struct sockaddr_in);
+    }
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+    return JNI_VERSION_1_2;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved)
+{
+}
+
+/*
+ * Class:     org_sipfoundry_commons_util_DatagramBatch
+ * Method:    recvmmsg
+ * Signature: (ILjava/nio/ByteBuffer;II[I[J)I
+ */
+JNIEXPORT jint JNICALL Java_org_sipfoundry_commons_util_DatagramBatch_recvmmsg
+  (JNIEnv *env, jclass class, jint fd, jobject slots, jint slotSize, jint count,
+   jintArray lengths, jlongArray addresses)
+{
+    struct mmsghdr msgs[MAX_BATCH];
+    struct iovec iovecs[MAX_BATCH];
+    struct sockaddr_storage sources[MAX_BATCH];
+    jint lengthValues[MAX_BATCH];
+    jlong addressValues[MAX_BATCH];
+    char *base;
+    int i;
+    int received;
+
+    base = (char *) (*env)->GetDirectBufferAddress(env, slots);
+    if (base == NULL) {
+        return -EINVAL;
+    }
+    if (count > MAX_BATCH) {
+        count = MAX_BATCH;
+    }
+
+    memset(msgs, 0, sizeof(struct mmsghdr) * count);
+    for (i = 0; i < count; i++) {
+        iovecs[i].iov_base = base + i * slotSize;
+        iovecs[i].iov_len = slotSize;
+        msgs[i].msg_hdr.msg_iov = &iovecs[i];
+        msgs[i].msg_hdr.msg_iovlen = 1;
+        msgs[i].msg_hdr.msg_name = &sources[i];
+        msgs[i].msg_hdr.msg_namelen = sizeof(struct sockaddr_storage);
+    }
+
+    do {
+        received = recvmmsg(fd, msgs, count, MSG_DONTWAIT, NULL);
+    } while (received < 0 && errno == EINTR);
+
+    if (received < 0) {
+        return (errno == EAGAIN || errno == EWOULDBLOCK) ? 0 : -errno;
+    }
+
+    for (i = 0; i < received; i++) {
+        lengthValues[i] = msgs[i].msg_len;
+        addressValues[i] = toLong(&sources[i]);
+    }
+    (*env)->SetIntArrayRegion(env, lengths, 0, received, lengthValues);
+    (*env)->SetLongArrayRegion(env, addresses, 0, received, addressValues);
+    return received;
+}
+
+/*
+ * Class:     org_sipfoundry_commons_util_DatagramBatch
+ * Method:    sendmmsg
+ * Signature: (ILjava/nio/ByteBuffer;III[I[J)I
+ */
+JNIEXPORT jint JNICALL Java_org_sipfoundry_commons_util_DatagramBatch_sendmmsg
+  (JNIEnv *env, jclass class, jint fd, jobject slots, jint slotSize, jint offset, jint count,
+   jintArray lengths, jlongArray addresses)
+{
+    struct mmsghdr msgs[MAX_BATCH];
+    struct iovec iovecs[MAX_BATCH];
+    struct sockaddr_storage destinations[MAX_BATCH];
+    int family;
+    int retry;
+    jint lengthValues[MAX_BATCH];
+    jlong addressValues[MAX_BATCH];
+    char *base;
+    int i;
+    int sent;
+
+    base = (char *) (*env)->GetDirectBufferAddress(env, slots);
+    if (base == NULL) {
+        return -EINVAL;
+    }
+    if (count > MAX_BATCH) {
+        count = MAX_BATCH;
+    }
+    (*env)->GetIntArrayRegion(env, lengths, offset, count, lengthValues);
+    (*env)->GetLongArrayRegion(env, addresses, offset, count, addressValues);
+
+    family = socketFamily;
+    for (retry = 0; retry < 2; retry++) {
+        memset(msgs, 0, sizeof(struct mmsghdr) * count);
+        for (i = 0; i < count; i++) {
+            iovecs[i].iov_base = base + (offset + i) * slotSize;
+            iovecs[i].iov_len = lengthValues[i];
+            msgs[i].msg_hdr.msg_iov = &iovecs[i];
+            msgs[i].msg_hdr.msg_iovlen = 1;
+            msgs[i].msg_hdr.msg_name = &destinations[i];
+            msgs[i].msg_hdr.msg_namelen = fromLong(addressValues[i], family, &destinations[i]);
+        }
+
+        do {
+            sent = sendmmsg(fd, msgs, count, MSG_DONTWAIT);
+        } while (sent < 0 && errno == EINTR);
+
+        if (sent < 0 && (errno == EAFNOSUPPORT || errno == EINVAL)) {
+            family = family == AF_INET6 ? AF_INET : AF_INET6;
+            socketFamily = family;
+        } else {
+            break;
+        }
+    }
+
+    if (sent < 0) {
+        return (errno == EAGAIN || errno == EWOULDBLOCK) ? 0 : -errno;
+    }
+    return sent;
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ *
+ * Copyright (C) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package org.sipfoundry.commons.freeswitch;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class EslFrameDecoderTest extends TestCase {
+
+    private static byte[] frame(int contentLength) throws Exception {
+        char[] content = new char[contentLength];
+        Arrays.fill(content, 'x');
+        return ("Content-Type: text/event-plain\nContent-Length: " + contentLength + "\n\n" + new String(
+                content)).getBytes("UTF-8");
+    }
+
+    /*
+     * Some room left in the buffer, but not enough.
+     */
+    public void testAppendMoreThanRoomLeft() throws Exception {
+        EslFrameDecoder decoder = new EslFrameDecoder();
+        byte[] frame = frame(9000);
+        decoder.append(frame, 0, 8000);
+        assertNull(decoder.decode());
+        decoder.append(frame, 8000, 500);
+        assertNull(decoder.decode());
+        decoder.append(frame, 8500, frame.length - 8500);
+        FreeSwitchEvent event = decoder.decode();
+        assertNotNull(event);
+        assertEquals("text/event-plain", event.getContentType());
+        assertEquals(9000, event.getContent().length());
+    }
+
+    /*
+     * The unconsumed bytes are moved to the front rather than the buffer grown.
+     */
+    public void testAppendAfterDecode() throws Exception {
+        EslFrameDecoder decoder = new EslFrameDecoder();
+        byte[] frame = frame(3000);
+        for (int i = 0; i < 20; i++) {
+            decoder.append(frame, 0, 2000);
+            assertNull(decoder.decode());
+            decoder.append(frame, 2000, frame.length - 2000);
+            assertEquals(3000, decoder.decode().getContent().length());
+        }
+        decoder.append(frame, 0, frame.length);
+        decoder.append(frame, 0, frame.length);
+        decoder.append(frame, 0, frame.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(3000, decoder.decode().getContent().length());
+        }
+        assertNull(decoder.decode());
+    }
+
+}
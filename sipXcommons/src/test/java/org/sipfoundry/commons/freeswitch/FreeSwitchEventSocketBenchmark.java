@@ -0,0 +1,192 @@
+/*
+ *
+ *
+ * Copyright (C) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package org.sipfoundry.commons.freeswitch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Compares reading events with FreeSwitchEventSocket against the line by line reader it
+ * replaced ( kept here as LegacyReader ), on a stream of the events a call in progress gets:
+ * command replies and CHANNEL_EXECUTE / CHANNEL_EXECUTE_COMPLETE / DTMF events with the usual
+ * sixty odd channel headers. Each event is asked for what FreeSwitchEventSocket and the
+ * CallCommand handlers ask: Content-Type, Event-Name and Application.
+ *
+ * Prints events per second and bytes allocated per event ( where the JVM can count them ).
+ *
+ * Not a unit test, run by hand: java -cp ... FreeSwitchEventSocketBenchmark [events]
+ */
+public class FreeSwitchEventSocketBenchmark {
+    private static final int ROUNDS = 5;
+
+    interface Reader {
+        FreeSwitchEvent next() throws IOException;
+    }
+
+    /**
+     * The reader FreeSwitchEventSocket used to have: a line at a time through a BufferedReader,
+     * every header split into a HashMap on first lookup.
+     */
+    static class LegacyReader implements Reader {
+        private final BufferedReader m_in;
+
+        LegacyReader(byte[] stream) {
+            m_in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream)));
+        }
+
+        @Override
+        public FreeSwitchEvent next() throws IOException {
+            Vector<String> response = new Vector<String>();
+            String contentLength = null;
+            for (;;) {
+                String line = m_in.readLine();
+                if (line == null || line.equals("")) {
+                    break;
+                }
+                response.add(line);
+                if (line.startsWith("Content-Length:")) {
+                    contentLength = line;
+                }
+            }
+            String content = null;
+            if (contentLength != null) {
+                int length = Integer.parseInt(contentLength.substring(16));
+                char[] cbuf = new char[length];
+                int actual = 0;
+                while (actual < length) {
+                    int count = m_in.read(cbuf, actual, length - actual);
+                    if (count < 0) {
+                        break;
+                    }
+                    actual += count;
+                }
+                content = new String(cbuf);
+            }
+            return new FreeSwitchEvent(response, content);
+        }
+
+        static String lookups(FreeSwitchEvent event) {
+            HashMap<String, String> headers = FreeSwitchEvent.parseHeaders(event.getResponse());
+            String contentType = headers.get("content-type");
+            if (!"text/event-plain".equals(contentType)) {
+                return contentType;
+            }
+            HashMap<String, String> values = FreeSwitchEvent.parseHeaders(event.parseEventContent());
+            return values.get("event-name") + values.get("application");
+        }
+    }
+
+    static class SocketReader implements Reader {
+        private final FreeSwitchEventSocket m_socket;
+
+        SocketReader(byte[] stream) {
+            m_socket = new FreeSwitchEventSocket(new FreeSwitchTestConfiguration());
+            m_socket.setIn(new ByteArrayInputStream(stream));
+            m_socket.setOut(new ByteArrayOutputStream());
+        }
+
+        @Override
+        public FreeSwitchEvent next() {
+            return m_socket.awaitLiveEvent();
+        }
+
+        static String lookups(FreeSwitchEvent event) {
+            String contentType = event.getContentType();
+            if (!"text/event-plain".equals(contentType)) {
+                return contentType;
+            }
+            return event.getEventValue("Event-Name") + event.getEventValue("Application");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        byte[] stream = buildStream(events);
+        System.out.println(String.format("%d events, %d bytes per event", events, stream.length / events));
+        for (int round = 0; round < ROUNDS; round++) {
+            run("legacy", stream, events, true);
+            run("framed", stream, events, false);
+        }
+    }
+
+    private static void run(String name, byte[] stream, int events, boolean legacy) throws IOException {
+        Reader reader = legacy ? new LegacyReader(stream) : new SocketReader(stream);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int hash = 0;
+        for (int i = 0; i < events; i++) {
+            FreeSwitchEvent event = reader.next();
+            String value = legacy ? LegacyReader.lookups(event) : SocketReader.lookups(event);
+            hash += value.length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-8s %10.0f events/s %8s bytes/event (%d)", name, events * 1e9
+                / elapsed, allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / events), hash));
+    }
+
+    /*
+     * Bytes allocated by this thread so far, -1 if the JVM does not say.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static byte[] buildStream(int events) throws IOException {
+        StringBuilder channel = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            channel.append(String.format("Channel-Header-%d: value%%20number%%20%d\n", i, i));
+        }
+        String[] kinds = {
+            "Event-Name: CHANNEL_EXECUTE\nApplication: playback\nApplication-Data: %2Fvar%2Fsipxdata%2Fprompt.wav\n",
+            "Event-Name: CHANNEL_EXECUTE_COMPLETE\nApplication: playback\nApplication-Response: FILE%20PLAYED\n",
+            "Event-Name: DTMF\nDTMF-Digit: 5\nDTMF-Duration: 2000\n"
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < events; i++) {
+            if (i % 4 == 3) {
+                out.write("Content-Type: command/reply\nReply-Text: +OK\n\n".getBytes("UTF-8"));
+            } else {
+                String content = kinds[i % 4] + channel + "\n";
+                byte[] body = content.getBytes("UTF-8");
+                out.write(String.format("Content-Length: %d\nContent-Type: text/event-plain\n\n", body.length)
+                        .getBytes("UTF-8"));
+                out.write(body);
+            }
+        }
+        return out.toByteArray();
+    }
+}
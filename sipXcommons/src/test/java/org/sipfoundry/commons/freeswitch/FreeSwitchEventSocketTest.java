@@ -8,21 +8,31 @@
  */
 package org.sipfoundry.commons.freeswitch;
 
-import java.io.BufferedReader;
-import java.io.StringReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.sipfoundry.commons.freeswitch.FreeSwitchEvent;
 import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocket;
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocket.PendingReply;
 
 import junit.framework.TestCase;
 
 public class FreeSwitchEventSocketTest extends TestCase {
 
     private FreeSwitchEventSocket m_fse;
+    private ByteArrayOutputStream m_out;
 
     public void setResponse(String response) {
+        setResponse(new ByteArrayInputStream(response.getBytes()));
+    }
+
+    private void setResponse(InputStream in) {
         m_fse = new FreeSwitchEventSocket(new FreeSwitchTestConfiguration());
-        m_fse.setIn(new BufferedReader(new StringReader(response)));
+        m_fse.setIn(in);
+        m_out = new ByteArrayOutputStream();
+        m_fse.setOut(m_out);
     }
 
     public void testGetResponse() {
@@ -59,4 +69,65 @@ public class FreeSwitchEventSocketTest extends TestCase {
         assertEquals("10.0.1.241", m_fse.getVariable("Channel-Network-Addr"));
         assertEquals("10.0.1.241", m_fse.getVariable("channel-network-addr"));
     }
+
+    public void testCrLf() {
+        setResponse("Content-Type: command/reply\r\nReply-Text: +OK\r\n\r\nContent-Length: 3\r\n\r\nabc");
+        FreeSwitchEvent event = m_fse.awaitEvent();
+        assertEquals("command/reply", event.getContentType());
+        assertEquals("+OK", event.getHeader("Reply-Text"));
+        event = m_fse.awaitEvent();
+        assertEquals("abc", event.getContent());
+        assertTrue(m_fse.awaitEvent().isEmpty());
+    }
+
+    public void testSplitReads() {
+        String plain = String.format("Event-Name: DTMF%nDTMF-Digit: 5%n%n");
+        final byte[] bytes = String.format("Content-Length: %d%nContent-Type: text/event-plain%n%n%s",
+                plain.length(), plain).getBytes();
+        // One byte per read
+        setResponse(new InputStream() {
+            private int m_next;
+
+            @Override
+            public int read() {
+                return m_next < bytes.length ? bytes[m_next++] : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                int c = read();
+                if (c < 0) {
+                    return -1;
+                }
+                b[off] = (byte) c;
+                return 1;
+            }
+        });
+        FreeSwitchEvent event = m_fse.awaitEvent();
+        assertEquals("text/event-plain", event.getContentType());
+        assertEquals("DTMF", event.getEventValue("Event-Name"));
+        assertEquals("5", event.getEventValue("dtmf-digit"));
+        assertEquals("DTMF", event.toString());
+    }
+
+    public void testPipelinedReplies() throws IOException {
+        setResponse(String.format("Content-Type: command/reply%nReply-Text: +OK events%n%n"
+                + "Content-Type: text/event-plain%nContent-Length: 18%n%nEvent-Name: DTMF%n%n"
+                + "Content-Type: command/reply%nReply-Text: +OK filter%n%n"
+                + "Content-Type: command/reply%nReply-Text: +OK sendmsg%n%n"
+                + "Content-Type: api/response%nContent-Length: 2%n%nOK"));
+        PendingReply events = m_fse.sendCommand("event plain all");
+        PendingReply filter = m_fse.sendCommand("filter Unique-ID 1234");
+        m_fse.cmd("sendmsg");
+        assertEquals("+OK filter", m_fse.awaitReply(filter).getHeader("Reply-Text"));
+        assertTrue(events.isDone());
+        assertEquals("+OK events", m_fse.awaitReply(events).getHeader("Reply-Text"));
+        assertEquals("event plain all\n\nfilter Unique-ID 1234\n\nsendmsg\n\n", m_out.toString());
+
+        // The DTMF event was queued, the reply to cmd is passed on as an event
+        assertEquals("DTMF", m_fse.awaitEvent().getEventValue("Event-Name"));
+        assertEquals("+OK sendmsg", m_fse.awaitEvent().getHeader("Reply-Text"));
+        assertEquals("OK", m_fse.apiCmdResponse("status").getContent());
+        assertTrue(m_fse.cmdResponse("exit").isEmpty());
+    }
 }
@@ -69,4 +69,26 @@ public class FreeSwitchEventTest extends TestCase {
         assertNotNull(event.getEventValue("dog", "not null"));
     }
 
+    public void testGetEventValueSameAsParseHeaders() {
+        String content = "Event-Name: CHANNEL_EXECUTE\nApplication: playback\nApplication-Data: %2Fvar%2Fa.wav\n"
+                + "Naked\nApplication: speak\n\nBody: ignored\n";
+        Vector<String> response = new Vector<String>();
+        response.add("Content-Type: text/event-plain");
+        FreeSwitchEvent event = new FreeSwitchEvent(response, content);
+        assertEquals("CHANNEL_EXECUTE", event.getEventValue("event-name"));
+        assertEquals("speak", event.getEventValue("Application"));
+        assertEquals("/var/a.wav", event.getEventValue("Application-Data"));
+        assertEquals("", event.getEventValue("naked"));
+        assertNull(event.getEventValue("Body"));
+        assertEquals("CHANNEL_EXECUTE", event.toString());
+    }
+
+    public void testPickupIsDtmf() {
+        Vector<String> response = new Vector<String>();
+        response.add("Content-Type: text/event-plain");
+        FreeSwitchEvent event = new FreeSwitchEvent(response, "Event-Name: CHANNEL_EXECUTE\nsipx_pickup: yes\n");
+        assertEquals("DTMF", event.getEventValue("Event-Name"));
+        assertEquals("i", event.getEventValue("DTMF-Digit"));
+    }
+
 }
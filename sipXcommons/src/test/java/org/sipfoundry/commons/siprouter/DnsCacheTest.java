@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.siprouter;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.SipFactory;
+import javax.sip.address.Hop;
+import javax.sip.address.SipURI;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+/**
+ * Tests the DnsCache against a stand-in DNS server on the loopback interface.
+ */
+public class DnsCacheTest extends TestCase {
+
+    /**
+     * A DNS server answering from a table. Unknown names get NXDOMAIN. A name can be made to
+     * fail ( SERVFAIL ) or to answer slowly.
+     */
+    static class StandInDnsServer extends Thread {
+        private final DatagramSocket socket;
+        private final ConcurrentHashMap<String, Record[]> answers = new ConcurrentHashMap<String, Record[]>();
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile boolean failing;
+        private volatile long delay;
+
+        StandInDnsServer() throws SocketException, UnknownHostException {
+            socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        void setAnswer(String name, int type, Record... records) {
+            answers.put(name.toLowerCase() + "/" + type, records);
+        }
+
+        public void run() {
+            byte[] buffer = new byte[512];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+                    queries.incrementAndGet();
+                    Message query = new Message(packet.getData());
+                    Record question = query.getQuestion();
+                    Message response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    response.getHeader().setFlag(Flags.AA);
+                    response.addRecord(question, Section.QUESTION);
+                    Record[] records = answers.get(question.getName().toString().toLowerCase()
+                            + "/" + question.getType());
+                    if (failing) {
+                        response.getHeader().setRcode(Rcode.SERVFAIL);
+                    } else if (records == null) {
+                        response.getHeader().setRcode(Rcode.NXDOMAIN);
+                    } else {
+                        for (Record record : records) {
+                            response.addRecord(record, Section.ANSWER);
+                        }
+                    }
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    byte[] wire = response.toWire();
+                    socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+                } catch (Exception ex) {
+                    if (!socket.isClosed()) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        void shutdown() {
+            socket.close();
+        }
+    }
+
+    private StandInDnsServer server;
+
+    private DnsCache dnsCache;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInDnsServer();
+        server.start();
+        SimpleResolver resolver = new SimpleResolver("127.0.0.1");
+        resolver.setPort(server.getPort());
+        resolver.setTimeout(1);
+        dnsCache = new DnsCache(resolver);
+        dnsCache.setMinimumTtl(0);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    private static ARecord a(String name, String address, long ttl) throws Exception {
+        return new ARecord(Name.fromString(name), DClass.IN, ttl, InetAddress.getByName(address));
+    }
+
+    public void testTtlIsHonoured() throws Exception {
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.1", 2));
+        assertEquals("10.1.1.1", dnsCache.getByName("sip.example.test.").getHostAddress());
+        int queries = server.queries.get();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("10.1.1.1", dnsCache.getByName("sip.example.test.").getHostAddress());
+        }
+        assertEquals("Answer was not cached", queries, server.queries.get());
+        assertEquals(1, dnsCache.getMisses());
+        assertEquals(100, dnsCache.getHits());
+
+        /*
+         * Change the answer. The new one shows up once the old one has expired.
+         */
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.2", 2));
+        Thread.sleep(2200);
+        dnsCache.getByName("sip.example.test.");
+        Thread.sleep(200);
+        assertEquals("10.1.1.2", dnsCache.getByName("sip.example.test.").getHostAddress());
+    }
+
+    public void testRefreshAhead() throws Exception {
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.1", 2));
+        dnsCache.getByName("sip.example.test.");
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.2", 2));
+        server.delay = 500;
+        /*
+         * Within the last 10% of the TTL the cached answer is returned at once and refreshed
+         * in the background.
+         */
+        Thread.sleep(1850);
+        long start = System.currentTimeMillis();
+        assertEquals("10.1.1.1", dnsCache.getByName("sip.example.test.").getHostAddress());
+        assertTrue("Lookup blocked", System.currentTimeMillis() - start < 250);
+        assertEquals(1, dnsCache.getRefreshes());
+        Thread.sleep(700);
+        assertEquals("10.1.1.2", dnsCache.getByName("sip.example.test.").getHostAddress());
+        assertEquals(1, dnsCache.getMisses());
+    }
+
+    public void testNegativeCaching() throws Exception {
+        dnsCache.setNegativeTtl(60 * 1000);
+        assertNull(dnsCache.lookup("nowhere.example.test.", Type.SRV));
+        int queries = server.queries.get();
+        for (int i = 0; i < 10; i++) {
+            assertNull(dnsCache.lookup("nowhere.example.test.", Type.SRV));
+        }
+        assertEquals(queries, server.queries.get());
+        assertEquals(10, dnsCache.getNegativeHits());
+    }
+
+    public void testLastGoodAnswerIsKept() throws Exception {
+        dnsCache.setRetryInterval(60 * 1000);
+        Record srv = new SRVRecord(Name.fromString("_sip._udp.example.test."), DClass.IN, 1,
+                10, 10, 5060, Name.fromString("sip.example.test."));
+        server.setAnswer("_sip._udp.example.test.", Type.SRV, srv);
+        assertEquals(1, dnsCache.lookup("_sip._udp.example.test.", Type.SRV).length);
+        server.failing = true;
+        Thread.sleep(1100);
+        assertEquals(1, dnsCache.lookup("_sip._udp.example.test.", Type.SRV).length);
+        Thread.sleep(200);
+        assertEquals(1, dnsCache.getFailures());
+        assertEquals(1, dnsCache.lookup("_sip._udp.example.test.", Type.SRV).length);
+    }
+
+    public void testConcurrentMissesShareOneQuery() throws Exception {
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.1", 60));
+        server.delay = 300;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    dnsCache.getByName("sip.example.test.");
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, server.queries.get());
+    }
+
+    public void testFindSipServer() throws Exception {
+        server.setAnswer("_sip._udp.example.test.", Type.SRV, new SRVRecord(Name
+                .fromString("_sip._udp.example.test."), DClass.IN, 60, 10, 10, 5080, Name
+                .fromString("sip.example.test.")));
+        server.setAnswer("sip.example.test.", Type.A, a("sip.example.test.", "10.1.1.1", 60));
+        FindSipServer finder = new FindSipServer(Logger.getLogger(DnsCacheTest.class), dnsCache);
+        SipURI uri = (SipURI) SipFactory.getInstance().createAddressFactory().createURI(
+                "sip:itsp@example.test.");
+        Hop hop = finder.findServer(uri);
+        assertEquals("10.1.1.1", hop.getHost());
+        assertEquals(5080, hop.getPort());
+        int queries = server.queries.get();
+        hop = finder.findServer(uri);
+        assertEquals("10.1.1.1", hop.getHost());
+        assertEquals(queries, server.queries.get());
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.commons.xmlrpc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+
+/**
+ * Runs the pooled transport against a minimal HTTP/1.1 server.
+ */
+public class PooledXmlRpcTransportTest extends TestCase {
+
+    private static final String REPLY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<methodResponse><params><param><value>pong</value></param></params>"
+            + "</methodResponse>\n";
+
+    private ServerSocket serverSocket;
+
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    private final AtomicInteger executed = new AtomicInteger();
+
+    /*
+     * How the server replies.
+     */
+    private volatile boolean chunked;
+
+    private volatile boolean closeAfterReply;
+
+    private volatile boolean dropAfterReply;
+
+    private volatile int status = 200;
+
+    private volatile long delay;
+
+    private XmlRpcConnectionPool pool;
+
+    private XmlRpcClient client;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        accepted.incrementAndGet();
+                        new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ex) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        pool = new XmlRpcConnectionPool();
+        XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+        config.setServerURL(new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/RPC2"));
+        client = new XmlRpcClient();
+        client.setConfig(config);
+        client.setTransportFactory(new PooledXmlRpcTransportFactory(client, pool));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        serverSocket.close();
+        pool.closeIdleConnections();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = PooledXmlRpcTransport.readLine(in)) != null) {
+                assertTrue(line, line.startsWith("POST /RPC2 HTTP/1.1"));
+                int length = 0;
+                while ((line = PooledXmlRpcTransport.readLine(in)).length() != 0) {
+                    if (line.toLowerCase(Locale.ENGLISH).startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                for (int i = 0; i < length; i++) {
+                    in.read();
+                }
+                executed.incrementAndGet();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                StringBuilder reply = new StringBuilder();
+                reply.append("HTTP/1.1 " + status + " OK\r\nContent-Type: text/xml\r\n");
+                if (closeAfterReply) {
+                    reply.append("Connection: close\r\n");
+                }
+                if (chunked) {
+                    reply.append("Transfer-Encoding: chunked\r\n\r\n");
+                    int half = REPLY.length() / 2;
+                    reply.append(Integer.toHexString(half)).append(";x=y\r\n").append(
+                            REPLY.substring(0, half)).append("\r\n");
+                    reply.append(Integer.toHexString(REPLY.length() - half)).append("\r\n")
+                            .append(REPLY.substring(half)).append("\r\n0\r\n\r\n");
+                } else {
+                    reply.append("Content-Length: " + REPLY.length() + "\r\n\r\n").append(REPLY);
+                }
+                out.write(reply.toString().getBytes("UTF-8"));
+                out.flush();
+                if (closeAfterReply || dropAfterReply) {
+                    break;
+                }
+            }
+            socket.close();
+        } catch (Exception ex) {
+        }
+    }
+
+    private Object ping() throws XmlRpcException {
+        return client.execute("test.ping", new Object[] { "x" });
+    }
+
+    public void testConnectionIsReused() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            assertEquals("pong", ping());
+        }
+        assertEquals(1, accepted.get());
+        Map<String, Integer> statistics = pool.getStatistics();
+        assertEquals(1, statistics.get("opened").intValue());
+        assertEquals(19, statistics.get("reused").intValue());
+        assertEquals(1, statistics.get("idle").intValue());
+        assertEquals(0, statistics.get("inFlight").intValue());
+
+        Map<String, Integer> method = pool.getMethodStatistics().get("test.ping");
+        assertEquals(20, method.get("calls").intValue());
+        assertEquals(0, method.get("errors").intValue());
+    }
+
+    public void testChunkedReply() throws Exception {
+        chunked = true;
+        for (int i = 0; i < 5; i++) {
+            assertEquals("pong", ping());
+        }
+        assertEquals(1, accepted.get());
+    }
+
+    public void testConnectionClose() throws Exception {
+        closeAfterReply = true;
+        for (int i = 0; i < 3; i++) {
+            assertEquals("pong", ping());
+        }
+        assertEquals(3, accepted.get());
+        assertEquals(0, pool.getStatistics().get("idle").intValue());
+    }
+
+    /*
+     * The server dropped the idle connection without saying so.
+     */
+    public void testStaleConnectionIsRetried() throws Exception {
+        dropAfterReply = true;
+        assertEquals("pong", ping());
+        dropAfterReply = false;
+        Thread.sleep(100);
+        assertEquals("pong", ping());
+        assertEquals("pong", ping());
+        assertEquals(2, accepted.get());
+        assertEquals(1, pool.getStatistics().get("retries").intValue());
+        assertEquals(0, pool.getMethodStatistics().get("test.ping").get("errors").intValue());
+    }
+
+    /*
+     * The call may have been executed, it must not be sent again.
+     */
+    public void testReplyTimeoutIsNotRetried() throws Exception {
+        assertEquals("pong", ping());
+        ((XmlRpcClientConfigImpl) client.getClientConfig()).setReplyTimeout(300);
+        delay = 1000;
+        try {
+            ping();
+            fail("expected an exception");
+        } catch (XmlRpcException ex) {
+        }
+        Thread.sleep(1500);
+        assertEquals(2, executed.get());
+        assertEquals(1, accepted.get());
+        assertEquals(0, pool.getStatistics().get("retries").intValue());
+    }
+
+    public void testHttpError() throws Exception {
+        status = 500;
+        try {
+            ping();
+            fail("expected an exception");
+        } catch (XmlRpcException ex) {
+        }
+        status = 200;
+        assertEquals("pong", ping());
+        assertEquals(1, accepted.get());
+        assertEquals(1, pool.getMethodStatistics().get("test.ping").get("errors").intValue());
+    }
+
+    public void testInFlightLimit() throws Exception {
+        pool = new XmlRpcConnectionPool();
+        pool.setMaxInFlightPerEndpoint(2);
+        client.setTransportFactory(new PooledXmlRpcTransportFactory(client, pool));
+        delay = 200;
+        final CountDownLatch done = new CountDownLatch(6);
+        final AtomicInteger failures = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        ping();
+                    } catch (XmlRpcException ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(0, failures.get());
+        assertTrue(System.currentTimeMillis() - start >= 3 * 200);
+        assertTrue(pool.getStatistics().get("opened") <= 2);
+    }
+
+    public void testHostnameMatching() {
+        assertTrue(XmlRpcConnectionPool.matchesName("relay.example.com", "relay.example.com"));
+        assertTrue(XmlRpcConnectionPool.matchesName("relay.example.com", "*.Example.com"));
+        assertFalse(XmlRpcConnectionPool.matchesName("a.relay.example.com", "*.example.com"));
+        assertFalse(XmlRpcConnectionPool.matchesName("example.com", "*.example.com"));
+        assertFalse(XmlRpcConnectionPool.matchesName("relay.example.org", "relay.example.com"));
+    }
+
+}
@@ -16,21 +16,55 @@
  */
 package org.sipfoundry.sipxivr;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.sipfoundry.commons.log4j.SipFoundryLayout;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+/**
+ * Accepts the event socket connections of the FreeSwitch "outbound" calls and runs each call on
+ * a worker of a bounded pool. When all workers are busy the call waits in a bounded queue; when
+ * the queue is full too the call is hung up with USER_BUSY instead of starting yet another
+ * thread.
+ */
 public abstract class SipXivrServer {
+    static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final int BUSY_THREADS = 2;
+    private static final int BUSY_QUEUE_SIZE = 500;
+    private static final int BUSY_TIMEOUT_MILLIS = 2000;
+    private static final long REJECT_LOG_INTERVAL_MILLIS = 10000;
+
     private int m_eventSocketPort;
     private String m_logLevel;
     private String m_logFile;
+    private int m_maxThreads = 200;
+    private int m_queueSize = 50;
+    private ThreadPoolExecutor m_executor;
+    private ThreadPoolExecutor m_busyExecutor;
+    private final AtomicLong m_accepted = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+    private volatile long m_lastRejectLog;
 
     protected abstract SipXivr getSipxIvrHandler();
 
@@ -52,13 +86,7 @@ public abstract class SipXivrServer {
     public void runServer() {
         try {
             ServerSocket serverSocket = new ServerSocket(m_eventSocketPort);
-            for (;;) {
-                Socket client = serverSocket.accept();
-                SipXivr sipxIvr = getSipxIvrHandler();
-                sipxIvr.setClient(client);
-                Thread thread = new Thread(sipxIvr);
-                thread.start();
-            }
+            serve(serverSocket);
         } catch (IOException ex) {
             System.out.println("FAILED TO START IVR SERVER" + ex);
             ex.printStackTrace();
@@ -66,6 +94,161 @@ public abstract class SipXivrServer {
         }
     }
 
+    /**
+     * Accept calls until the server socket is closed.
+     */
+    void serve(ServerSocket serverSocket) throws IOException {
+        startExecutors();
+        LOG.info(String.format("SipXivrServer::serve Accepting calls on port %d with %d threads and a queue of %d",
+                serverSocket.getLocalPort(), m_maxThreads, m_queueSize));
+        for (;;) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            dispatch(client);
+        }
+    }
+
+    synchronized void startExecutors() {
+        if (m_executor != null) {
+            return;
+        }
+        m_executor = new ThreadPoolExecutor(m_maxThreads, m_maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(m_queueSize, 1)), new WorkerThreadFactory("SipXivr"));
+        m_executor.allowCoreThreadTimeOut(true);
+        m_busyExecutor = new ThreadPoolExecutor(BUSY_THREADS, BUSY_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(BUSY_QUEUE_SIZE), new WorkerThreadFactory("SipXivrBusy"));
+        m_busyExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stop the workers ( calls in progress are interrupted ).
+     */
+    synchronized void shutdown() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            m_busyExecutor.shutdownNow();
+        }
+    }
+
+    private void dispatch(final Socket client) {
+        try {
+            m_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SipXivr sipxIvr;
+                    try {
+                        sipxIvr = getSipxIvrHandler();
+                    } catch (RuntimeException e) {
+                        LOG.error("SipXivrServer::dispatch Cannot create call handler", e);
+                        close(client);
+                        return;
+                    }
+                    sipxIvr.setClient(client);
+                    sipxIvr.run();
+                }
+            });
+            m_accepted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            reject(client);
+        }
+    }
+
+    /*
+     * Hang up a call that found all workers and the queue busy. The few seconds this can take
+     * are spent on the busy workers, so that the accept loop does not stall. When those are
+     * backed up as well the connection is just closed, and FreeSwitch goes on with the dialplan.
+     */
+    private void reject(final Socket client) {
+        long rejected = m_rejected.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (now - m_lastRejectLog >= REJECT_LOG_INTERVAL_MILLIS) {
+            m_lastRejectLog = now;
+            LOG.warn(String.format("SipXivrServer::reject All threads busy, hanging up calls. %s",
+                    getStatistics()));
+        }
+        LOG.debug(String.format("SipXivrServer::reject Rejecting call %d from %s", rejected, client));
+        try {
+            m_busyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    hangupBusy(client);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(client);
+        }
+    }
+
+    static void hangupBusy(Socket client) {
+        try {
+            client.setSoTimeout(BUSY_TIMEOUT_MILLIS);
+            OutputStream out = client.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            out.write("connect\n\n".getBytes("UTF-8"));
+            out.flush();
+            // Skip the channel data
+            String line = in.readLine();
+            while (line != null && line.length() > 0) {
+                line = in.readLine();
+            }
+            out.write("sendmsg\ncall-command: hangup\nhangup-cause: USER_BUSY\n\n".getBytes("UTF-8"));
+            out.flush();
+            // Wait for FreeSwitch to close the socket, so that it reads the hangup before the close
+            while (line != null) {
+                line = in.readLine();
+            }
+        } catch (IOException e) {
+            LOG.debug("SipXivrServer::hangupBusy " + e.getMessage());
+        } finally {
+            close(client);
+        }
+    }
+
+    private static void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * @return the calls being handled, waiting for a worker, and how many calls were accepted
+     *         and hung up as busy.
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+        ThreadPoolExecutor executor = m_executor;
+        statistics.put("active", executor == null ? 0L : executor.getActiveCount());
+        statistics.put("queued", executor == null ? 0L : executor.getQueue().size());
+        statistics.put("threads", executor == null ? 0L : executor.getPoolSize());
+        statistics.put("largestThreads", executor == null ? 0L : executor.getLargestPoolSize());
+        statistics.put("accepted", m_accepted.get());
+        statistics.put("rejected", m_rejected.get());
+        return statistics;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            m_prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, m_prefix + "-" + m_count.incrementAndGet());
+        }
+    }
+
     public void setEventSocketPort(int port) {
         m_eventSocketPort = port;
     }
@@ -78,6 +261,21 @@ public abstract class SipXivrServer {
         m_logFile = logFile;
     }
 
+    /**
+     * @param maxThreads the number of calls handled at once
+     */
+    public void setMaxThreads(int maxThreads) {
+        m_maxThreads = maxThreads;
+    }
+
+    /**
+     * @param queueSize the number of calls waiting for a worker before new calls are hung up
+     *        with USER_BUSY
+     */
+    public void setQueueSize(int queueSize) {
+        m_queueSize = queueSize;
+    }
+
     /**
      * Main entry point for sipXivr
      * 
@@ -32,6 +32,10 @@ public class EslRequestScopeContextHolder {
         EslRequestScopeContextHolder.eslRequestScopeAttributesHolder.set(accessor);
     }
 
+    public static void resetEslRequestScopeAttributes() {
+        eslRequestScopeAttributesHolder.remove();
+    }
+
     public static EslRequestScopeAttributes currentEslRequestScopeAttributes() throws IllegalStateException {
         EslRequestScopeAttributes accessor = eslRequestScopeAttributesHolder.get();
 
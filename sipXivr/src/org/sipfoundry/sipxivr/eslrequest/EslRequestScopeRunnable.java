@@ -17,13 +17,23 @@
 package org.sipfoundry.sipxivr.eslrequest;
 
 
+/**
+ * Runs one ESL request with its own request scope. The worker threads are reused for other
+ * requests, so the scope is created when the request starts ( rather than inherited from the
+ * thread that started the worker ) and removed from the thread when it ends.
+ */
 public abstract class EslRequestScopeRunnable implements Runnable {
 
     public final void run() {
+        EslRequestScopeContextHolder.setEslRequestScopeAttributes(new EslRequestScopeAttributes());
         try {
             runEslRequest();
         } finally {
-            EslRequestScopeContextHolder.currentEslRequestScopeAttributes().clear();
+            try {
+                EslRequestScopeContextHolder.currentEslRequestScopeAttributes().clear();
+            } finally {
+                EslRequestScopeContextHolder.resetEslRequestScopeAttributes();
+            }
         }
     }
 
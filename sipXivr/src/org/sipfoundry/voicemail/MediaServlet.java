@@ -16,10 +16,15 @@
  */
 package org.sipfoundry.voicemail;
 
-import java.io.FileInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -36,9 +41,22 @@ import org.sipfoundry.sipxivr.rest.SipxIvrServletHandler;
 import org.sipfoundry.voicemail.mailbox.MailboxManager;
 import org.sipfoundry.voicemail.mailbox.VmMessage;
 
+/**
+ * Serves the audio of a voicemail message.
+ *
+ * Supports byte ranges ( "Range: bytes=..." , one or several ) so that players can seek without
+ * downloading the whole recording, and conditional requests ( If-None-Match, If-Modified-Since,
+ * If-Range ) against a strong ETag made of the message id and the size and modification time of
+ * the audio file. The parts asked for are read straight from their offset in the file and copied
+ * to the response in 64 KB chunks.
+ */
 public class MediaServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final String METHOD_GET = "GET";
+    private static final String BOUNDARY = "sipxivr_byteranges";
+    // More ranges than this ( after merging ) are answered with the whole file
+    private static final int MAX_RANGES = 16;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
 
     public void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -96,15 +114,10 @@ public class MediaServlet extends HttpServlet {
                 response.setHeader("Pragma", "public");
                 response.setHeader("Content-Disposition", "attachment; filename=\"" + message.getAudioFile().getName() + "\"");
 
-                OutputStream responseOutputStream = null;
-                InputStream stream = null;
                 try {
-                    responseOutputStream = response.getOutputStream();
-                    stream = new FileInputStream(message.getAudioFile());
-                    IOUtils.copy(stream, responseOutputStream);
+                    File audioFile = message.getAudioFile();
+                    sendFile(request, response, audioFile, getETag(messageId, audioFile));
                 } finally {
-                    IOUtils.closeQuietly(stream);
-                    IOUtils.closeQuietly(responseOutputStream);
                     message.cleanup();
                 }
             } else {
@@ -113,4 +126,242 @@ public class MediaServlet extends HttpServlet {
         }
 
     }
+
+    /**
+     * Send the file, the part of it asked for, or nothing if the client has it already.
+     */
+    void sendFile(HttpServletRequest request, HttpServletResponse response, File file, String etag)
+        throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String contentType = getContentType(file);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<long[]> ranges = null;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeCurrent(request, etag, lastModified)) {
+            ranges = parseRanges(range, length);
+            if (ranges != null && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (ranges != null && ranges.size() > MAX_RANGES) {
+                ranges = null;
+            }
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        OutputStream out = null;
+        try {
+            byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1))];
+            if (ranges == null) {
+                response.setContentType(contentType);
+                response.setContentLength((int) length);
+                out = response.getOutputStream();
+                transfer(in, 0, length, out, buffer);
+            } else if (ranges.size() == 1) {
+                long[] only = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType(contentType);
+                response.setHeader("Content-Range", String.format("bytes %d-%d/%d", only[0], only[1], length));
+                response.setContentLength((int) (only[1] - only[0] + 1));
+                out = response.getOutputStream();
+                transfer(in, only[0], only[1] - only[0] + 1, out, buffer);
+            } else {
+                List<byte[]> partHeaders = new ArrayList<byte[]>();
+                long contentLength = 0;
+                for (long[] part : ranges) {
+                    byte[] partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\n"
+                            + "Content-Range: bytes %d-%d/%d\r\n\r\n", BOUNDARY, contentType, part[0], part[1],
+                            length).getBytes("US-ASCII");
+                    partHeaders.add(partHeader);
+                    contentLength += partHeader.length + part[1] - part[0] + 1;
+                }
+                byte[] end = String.format("\r\n--%s--\r\n", BOUNDARY).getBytes("US-ASCII");
+                contentLength += end.length;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType("multipart/byteranges; boundary=" + BOUNDARY);
+                response.setContentLength((int) contentLength);
+                out = response.getOutputStream();
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] part = ranges.get(i);
+                    out.write(partHeaders.get(i));
+                    transfer(in, part[0], part[1] - part[0] + 1, out, buffer);
+                }
+                out.write(end);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.debug("MediaServlet::sendFile cannot close " + file, e);
+            }
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /*
+     * Jetty gives a stream, not a socket channel, so FileChannel.transferTo would only copy through
+     * its own small buffer. Seek to the part and copy it with one large buffer instead.
+     */
+    private static void transfer(RandomAccessFile in, long position, long count, OutputStream out,
+            byte[] buffer) throws IOException {
+        in.seek(position);
+        long sent = 0;
+        while (sent < count) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - sent));
+            if (n < 0) {
+                throw new EOFException("file truncated while sending");
+            }
+            out.write(buffer, 0, n);
+            sent += n;
+        }
+    }
+
+    static String getETag(String messageId, File audioFile) {
+        return String.format("\"%s-%x-%x\"", messageId, audioFile.length(), audioFile.lastModified());
+    }
+
+    private static String getContentType(File file) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".mp3")) {
+            return "audio/mpeg";
+        }
+        return "audio/x-wav";
+    }
+
+    /*
+     * If-None-Match wins over If-Modified-Since when both are sent.
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.trim().equals("*") || matchesETag(ifNoneMatch, etag, true);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /*
+     * A Range with an If-Range that no longer holds is answered with the whole file.
+     */
+    private static boolean isRangeCurrent(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return matchesETag(ifRange, etag, false);
+        }
+        long date = getDateHeader(request, "If-Range");
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * @param weak true to compare the tags whatever their W/ prefix ( If-None-Match ), false to
+     *        only match strong tags ( If-Range )
+     */
+    static boolean matchesETag(String header, String etag, boolean weak) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @return the ranges ( first and last byte ) in order with the overlapping and adjacent ones
+     *         merged, an empty list if none of them is within the file, or null if the header is
+     *         not a valid bytes range ( then it is ignored ).
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(length - suffix, 0);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = Long.MAX_VALUE;
+                    if (dash < spec.length() - 1) {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[] {
+                    first, last
+                });
+            }
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
 }
@@ -8,19 +8,69 @@
  */
 package org.sipfoundry.voicemail;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.sipfoundry.commons.userdb.User;
-import org.sipfoundry.sipxivr.rest.RemoteRequest;
 import org.sipfoundry.voicemail.mailbox.MailboxDetails;
 
-
+/**
+ * Sends the message waiting status of the mailboxes to the Status Server.
+ *
+ * sendMWI does not wait for the Status Server: it queues the new status of the mailbox and
+ * returns. The status is sent once the mailbox has not changed for debounceMillis, and at most
+ * maxDelayMillis after the first change not sent yet, so that a burst of changes to a mailbox
+ * ( delete all, a message to a group ) ends up as one notice with the latest counts. Notices are sent one after the other by a single thread, over the same connection when
+ * the Status Server keeps it open. A notice that fails is sent again later, waiting twice as long
+ * each time, unless a newer status of the mailbox has been queued meanwhile.
+ */
 public class Mwi {
     static final Logger LOG = Logger.getLogger("org.sipfoundry.sipxivr");
     public static final String MessageSummaryContentType = "application/simple-message-summary";
+    private static final int TIMEOUT_MILLIS = 5000;
+
     private String m_mwiUrl;
+    private long m_debounceMillis = 250;
+    private long m_maxDelayMillis = 2000;
+    private long m_retryMillis = 1000;
+    private int m_maxRetries = 6;
+
+    /*
+     * The notices waiting to be sent, by identity. Guarded by this.
+     */
+    private final Map<String, Notice> m_pending = new LinkedHashMap<String, Notice>();
+    private ScheduledExecutorService m_executor;
+    private ScheduledFuture< ? > m_flush;
+    private long m_flushTime;
+
+    private static class Notice {
+        private final String m_identity;
+        private String m_content;
+        private long m_firstChange;
+        private long m_dueTime;
+        private int m_retries;
+
+        Notice(String identity, String content, long firstChange) {
+            m_identity = identity;
+            m_content = content;
+            m_firstChange = firstChange;
+        }
+    }
     
     /**
      * Format the status ala RFC-3842
@@ -42,6 +92,9 @@ public class Mwi {
     
     /**
      * Send MWI info to the Status Server (which in turn sends it to interested parties via SIP NOTIFY)
+     *
+     * Returns without waiting, the status is sent shortly after.
+     *
      * @param mailbox
      * @param messages
      */
@@ -49,25 +102,203 @@ public class Mwi {
         String idUri = user.getIdentity();
 
         LOG.info(String.format("Mwi::SendMWI %s", idUri));
-        
-        // URL of Status Server
-        URL mwiUrl;
+
+        String content;
         try {
-            mwiUrl = new URL(m_mwiUrl);
             String accountUrl = "sip:" + idUri;
-            String content = "eventType=message-summary&" + "identity=" + 
-                URLEncoder.encode(idUri, "UTF-8") + "\r\n" + 
+            content = "eventType=message-summary&" + "identity=" +
+                URLEncoder.encode(idUri, "UTF-8") + "\r\n" +
                 formatRFC3842(mailbox, accountUrl);
-            RemoteRequest rr = new RemoteRequest(mwiUrl, MessageSummaryContentType, content);
-            if (!rr.http()) {
-                LOG.error("Mwi::sendMWI Trouble with RemoteRequest "+rr.getResponse());
+        } catch (Exception e) {
+            LOG.error("Mwi::sendMWI Trouble formatting notice", e);
+            return;
+        }
+
+        long now = currentTimeMillis();
+        synchronized (this) {
+            Notice notice = m_pending.get(idUri);
+            if (notice == null) {
+                notice = new Notice(idUri, content, now);
+                m_pending.put(idUri, notice);
+            } else {
+                // Replaces the status not sent yet and restarts the wait
+                LOG.debug(String.format("Mwi::sendMWI %s coalesced", idUri));
+                notice.m_content = content;
+                if (notice.m_retries > 0) {
+                    // Was waiting to be retried, the new status is a fresh change
+                    notice.m_retries = 0;
+                    notice.m_firstChange = now;
+                }
+            }
+            notice.m_dueTime = Math.min(now + m_debounceMillis, notice.m_firstChange + m_maxDelayMillis);
+            scheduleFlush(notice.m_dueTime, now);
+        }
+    }
+
+    /*
+     * Make sure a flush runs at or before time. A flush that runs early finds nothing due and
+     * schedules the next one.
+     */
+    synchronized void scheduleFlush(long time, long now) {
+        if (m_flush != null && !m_flush.isDone() && m_flushTime <= time) {
+            return;
+        }
+        if (m_executor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MwiDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            m_executor = executor;
+        }
+        if (m_flush != null) {
+            m_flush.cancel(false);
+        }
+        m_flushTime = time;
+        m_flush = m_executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, Math.max(time - now, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the notices that are due and schedule the next flush.
+     */
+    void flush() {
+        List<Notice> due = new ArrayList<Notice>();
+        long now = currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<Notice> i = m_pending.values().iterator(); i.hasNext();) {
+                Notice notice = i.next();
+                if (notice.m_dueTime <= now) {
+                    due.add(notice);
+                    i.remove();
+                }
+            }
+        }
+
+        for (Notice notice : due) {
+            if (!post(notice.m_content)) {
+                retry(notice);
+            }
+        }
+
+        synchronized (this) {
+            long next = Long.MAX_VALUE;
+            for (Notice notice : m_pending.values()) {
+                next = Math.min(next, notice.m_dueTime);
+            }
+            m_flush = null;
+            if (next != Long.MAX_VALUE) {
+                scheduleFlush(next, currentTimeMillis());
+            }
+        }
+    }
+
+    private synchronized void retry(Notice notice) {
+        if (m_pending.containsKey(notice.m_identity)) {
+            // A newer status was queued meanwhile
+            return;
+        }
+        if (notice.m_retries >= m_maxRetries) {
+            LOG.error(String.format("Mwi::sendMWI Giving up on %s after %d retries", notice.m_identity,
+                    notice.m_retries));
+            return;
+        }
+        notice.m_dueTime = currentTimeMillis() + (m_retryMillis << notice.m_retries);
+        notice.m_retries++;
+        m_pending.put(notice.m_identity, notice);
+    }
+
+    /*
+     * POST one notice. The response is read to the end and the stream closed ( not the
+     * connection ) so that the connection can be reused for the next notice.
+     */
+    private boolean post(String content) {
+        HttpURLConnection urlConn = null;
+        try {
+            urlConn = (HttpURLConnection) new URL(m_mwiUrl).openConnection();
+            urlConn.setDoOutput(true);
+            urlConn.setUseCaches(false);
+            urlConn.setConnectTimeout(TIMEOUT_MILLIS);
+            urlConn.setReadTimeout(TIMEOUT_MILLIS);
+            urlConn.setRequestProperty("Content-Type", MessageSummaryContentType);
+            byte[] body = content.getBytes("UTF-8");
+            urlConn.setFixedLengthStreamingMode(body.length);
+            OutputStream out = urlConn.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = urlConn.getResponseCode();
+            drain(status < 400 ? urlConn.getInputStream() : urlConn.getErrorStream());
+            if (status / 100 != 2) {
+                LOG.error(String.format("Mwi::sendMWI Trouble with %s: %d %s", m_mwiUrl, status,
+                        urlConn.getResponseMessage()));
+                return false;
             }
+            return true;
         } catch (Exception e) {
-            LOG.error("Mwi::sendMWI Trouble with mwiUrl", e);
+            LOG.error("Mwi::sendMWI Trouble with mwiUrl " + m_mwiUrl, e);
+            if (urlConn != null) {
+                urlConn.disconnect();
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Overridden by the tests to run the clock themselves.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[512];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+        } finally {
+            in.close();
         }
     }
 
     public void setMwiUrl(String url) {
         m_mwiUrl = url;
     }
+
+    /**
+     * @param debounceMillis how long a notice waits for further changes to the mailbox
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        m_debounceMillis = debounceMillis;
+    }
+
+    /**
+     * @param maxDelayMillis how long a notice waits at most after the first change to the mailbox
+     *        when it keeps changing
+     */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        m_maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param retryMillis how long to wait before sending a failed notice again the first time
+     */
+    public void setRetryMillis(long retryMillis) {
+        m_retryMillis = retryMillis;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        m_maxRetries = maxRetries;
+    }
 }
@@ -17,31 +17,34 @@
 package org.sipfoundry.voicemail.mailbox;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.sipfoundry.commons.userdb.User;
 import org.sipfoundry.commons.userdb.ValidUsers;
 import org.sipfoundry.voicemail.mailbox.MessageDescriptor.Priority;
 
+/**
+ * Keeps each message as a set of files named after the message id in the folder directories of
+ * the mailbox. The files of each mailbox are indexed in memory ( see MailboxIndex ) so that
+ * counts and lookups do not list the folders.
+ */
 public class FilesystemMailboxManager extends AbstractMailboxManager {
     private static final String AUDIO_IDENTIFIER = "-00.wav";
     private static final String MESSAGE_IDENTIFIER = "-00.xml";
     private static final String ORIGINAL_MESSAGE_IDENTIFIER = "-01.xml";
     private static final String STATUS_IDENTIFIER = "-00.sta";
     private static final String URGENT_IDENTIFIER = "-00.urg";
-    private static final String MESSAGE_REGEX = "^(\\d+)-00\\.xml$";
-    private static final String STATUS_REGEX = "^(\\d+)-00\\.sta$";
-    private static final String MESSAGEID_FILE_REGEX = "^%s-00.*";
     private static final String ORIGINAL_AUDIO_IDENTIFIER = "-01.wav";
     private static final String FW_AUDIO_IDENTIFIER = "-FW.wav";
+    private static final String TEMP_DIRECTORY = "tmp";
     private MessageDescriptorWriter m_descriptorWriter;
     private MessageDescriptorReader m_descriptorReader;
+    private final ConcurrentHashMap<String, MailboxIndex> m_indexes = new ConcurrentHashMap<String, MailboxIndex>();
 
     public void init() {
         File mailstore = new File(m_mailstoreDirectory);
@@ -52,21 +55,19 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public MailboxDetails getMailboxDetails(String username) {
-        FilenameFilter filter = new RegexFileFilter(MESSAGE_REGEX);
-        List<String> inboxMessages = extractMessages(getFolder(username, Folder.INBOX).list(filter));
-        List<String> savedMessages = extractMessages(getFolder(username, Folder.SAVED).list(filter));
-        List<String> deletedMessages = extractMessages(getFolder(username, Folder.DELETED).list(filter));
-        List<String> conferenceMessages = extractMessages(getFolder(username, Folder.CONFERENCE).list(filter));
-
-        FilenameFilter unheardFilter = new RegexFileFilter(STATUS_REGEX);
-        List<String> unheardMessages = extractMessages(getFolder(username, Folder.INBOX).list(unheardFilter));
-        return new MailboxDetails(username, inboxMessages, savedMessages, deletedMessages, conferenceMessages,
-                unheardMessages);
+        MailboxIndex index = getIndex(username);
+        synchronized (index) {
+            return new MailboxDetails(username, index.getMessageIds(Folder.INBOX, MESSAGE_IDENTIFIER),
+                    index.getMessageIds(Folder.SAVED, MESSAGE_IDENTIFIER), index.getMessageIds(Folder.DELETED,
+                            MESSAGE_IDENTIFIER), index.getMessageIds(Folder.CONFERENCE, MESSAGE_IDENTIFIER),
+                    index.getMessageIds(Folder.INBOX, STATUS_IDENTIFIER));
+        }
     }
 
     @Override
     protected VmMessage saveTempMessageInStorage(User destUser, TempMessage message, MessageDescriptor descriptor,
             String messageId) {
+        MailboxIndex index = getIndex(destUser.getUserName());
         File inboxDir = getFolder(destUser.getUserName(), Folder.INBOX);
         File audioFile = new File(inboxDir, messageId + AUDIO_IDENTIFIER);
         File descriptorFile = new File(inboxDir, messageId + MESSAGE_IDENTIFIER);
@@ -74,27 +75,32 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         File urgentFile = new File(inboxDir, messageId + URGENT_IDENTIFIER);
         String operation = "storing stuff";
         boolean urgent = message.getPriority() == Priority.URGENT;
-        try {
-            operation = "creating status file " + statusFile.getPath();
-            LOG.debug("FileSystemMailboxManager::newMessage " + operation);
-            FileUtils.touch(statusFile);
-
-            if (urgent) {
-                operation = "creating urgent file " + urgentFile.getPath();
+        synchronized (index) {
+            index.load(Folder.INBOX);
+            try {
+                operation = "creating status file " + statusFile.getPath();
                 LOG.debug("FileSystemMailboxManager::newMessage " + operation);
-                FileUtils.touch(urgentFile);
-            }
+                FileUtils.touch(statusFile);
 
-            operation = "copying recording .wav file to " + audioFile.getPath();
-            LOG.debug("VmMessage::newMessage " + operation);
-            FileUtils.copyFile(new File(message.getTempWavPath()), audioFile, true);
+                if (urgent) {
+                    operation = "creating urgent file " + urgentFile.getPath();
+                    LOG.debug("FileSystemMailboxManager::newMessage " + operation);
+                    FileUtils.touch(urgentFile);
+                }
 
-            operation = "creating messageDescriptor " + descriptorFile.getPath();
-            LOG.debug("VmMessage::newMessage " + operation);
-            m_descriptorWriter.writeObject(descriptor, descriptorFile);
-        } catch (IOException e) {
-            LOG.error("VmMessage::newMessage error while " + operation, e);
-            return null;
+                operation = "copying recording .wav file to " + audioFile.getPath();
+                LOG.debug("VmMessage::newMessage " + operation);
+                FileUtils.copyFile(new File(message.getTempWavPath()), audioFile, true);
+
+                operation = "creating messageDescriptor " + descriptorFile.getPath();
+                LOG.debug("VmMessage::newMessage " + operation);
+                m_descriptorWriter.writeObject(descriptor, descriptorFile);
+            } catch (IOException e) {
+                LOG.error("VmMessage::newMessage error while " + operation, e);
+                return null;
+            } finally {
+                index.refresh(Folder.INBOX, messageId);
+            }
         }
         m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
         LOG.info("VmMessage::newMessage created message " + descriptorFile.getPath());
@@ -104,6 +110,7 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
     @Override
     protected VmMessage copyMessage(String newMessageId, User destUser, TempMessage message) {
         // destination files
+        MailboxIndex destinationIndex = getIndex(destUser.getUserName());
         File destinationInbox = getFolder(destUser.getUserName(), Folder.INBOX);
         File destStatus = new File(destinationInbox, newMessageId + STATUS_IDENTIFIER);
         File destUrg = new File(destinationInbox, newMessageId + URGENT_IDENTIFIER);
@@ -113,45 +120,53 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         File destCombined = new File(destinationInbox, newMessageId + FW_AUDIO_IDENTIFIER);
 
         // original files
-        File originalInbox = getFolder(message.getCurrentUser(), Folder.INBOX);
-        FilenameFilter filter = new RegexFileFilter(String.format(MESSAGEID_FILE_REGEX, message.getSavedMessageId()));
-        File[] originalFiles = originalInbox.listFiles(filter);
+        MailboxIndex originalIndex = getIndex(message.getCurrentUser());
+        File[] originalFiles;
+        synchronized (originalIndex) {
+            originalFiles = getMessageFiles(originalIndex, originalIndex.getEntry(Folder.INBOX,
+                    message.getSavedMessageId()));
+        }
         boolean urgent = false;
         MessageDescriptor descriptor = null;
 
         String operation = "copying stuff";
-        try {
-            operation = "creating status file " + destStatus.getPath();
-            FileUtils.touch(destStatus);
-            for (File originalFile : originalFiles) {
-                if (originalFile.getName().endsWith(URGENT_IDENTIFIER)) {
-                    operation = "creating urgent file " + destUrg.getPath();
-                    FileUtils.touch(destUrg);
-                    urgent = true;
-                } else if (originalFile.getName().endsWith(AUDIO_IDENTIFIER)) {
-                    operation = "copying audio file " + destAudio.getPath();
-                    FileUtils.copyFile(originalFile, destAudio);
-                } else if (originalFile.getName().endsWith(MESSAGE_IDENTIFIER)) {
-                    operation = "copying descriptor file " + destDescriptor.getPath();
-                    descriptor = m_descriptorReader.readObject(originalFile);
-                    if (descriptor.getOtherRecipients() != null) {
-                        descriptor.addOtherRecipient(ValidUsers.getUserPart(descriptor.getId()));
-                        descriptor.removeOtherRecipient(destUser.getUserName());
+        synchronized (destinationIndex) {
+            destinationIndex.load(Folder.INBOX);
+            try {
+                operation = "creating status file " + destStatus.getPath();
+                FileUtils.touch(destStatus);
+                for (File originalFile : originalFiles) {
+                    if (originalFile.getName().endsWith(URGENT_IDENTIFIER)) {
+                        operation = "creating urgent file " + destUrg.getPath();
+                        FileUtils.touch(destUrg);
+                        urgent = true;
+                    } else if (originalFile.getName().endsWith(AUDIO_IDENTIFIER)) {
+                        operation = "copying audio file " + destAudio.getPath();
+                        FileUtils.copyFile(originalFile, destAudio);
+                    } else if (originalFile.getName().endsWith(MESSAGE_IDENTIFIER)) {
+                        operation = "copying descriptor file " + destDescriptor.getPath();
+                        descriptor = m_descriptorReader.readObject(originalFile);
+                        if (descriptor.getOtherRecipients() != null) {
+                            descriptor.addOtherRecipient(ValidUsers.getUserPart(descriptor.getId()));
+                            descriptor.removeOtherRecipient(destUser.getUserName());
+                        }
+                        descriptor.setId(destUser.getIdentity());
+                        descriptor.setSubject("Voice Message " + newMessageId);
+                        m_descriptorWriter.writeObject(descriptor, destDescriptor);
+                    } else if (originalFile.getName().endsWith(ORIGINAL_AUDIO_IDENTIFIER)) {
+                        operation = "copying original audio file " + originalDestAudio.getPath();
+                        FileUtils.copyFile(originalFile, originalDestAudio);
+                    } else if (originalFile.getName().endsWith(FW_AUDIO_IDENTIFIER)) {
+                        operation = "copying combined audio file " + destCombined.getPath();
+                        FileUtils.copyFile(originalFile, destCombined);
                     }
-                    descriptor.setId(destUser.getIdentity());
-                    descriptor.setSubject("Voice Message " + newMessageId);
-                    m_descriptorWriter.writeObject(descriptor, destDescriptor);
-                } else if (originalFile.getName().endsWith(ORIGINAL_AUDIO_IDENTIFIER)) {
-                    operation = "copying original audio file " + originalDestAudio.getPath();
-                    FileUtils.copyFile(originalFile, originalDestAudio);
-                } else if (originalFile.getName().endsWith(FW_AUDIO_IDENTIFIER)) {
-                    operation = "copying combined audio file " + destCombined.getPath();
-                    FileUtils.copyFile(originalFile, destCombined);
                 }
+            } catch (IOException e) {
+                LOG.error("VmMessage::copy error while " + operation, e);
+                return null;
+            } finally {
+                destinationIndex.refresh(Folder.INBOX, newMessageId);
             }
-        } catch (IOException e) {
-            LOG.error("VmMessage::copy error while " + operation, e);
-            return null;
         }
         m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
         if (destCombined.exists()) {
@@ -164,41 +179,17 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public VmMessage getVmMessage(String username, Folder folder, String messageId, boolean loadAudio) {
-        File mailboxFolder = getFolder(username, folder);
-        FilenameFilter filter = new RegexFileFilter(String.format("^%s%s", messageId, MESSAGE_IDENTIFIER));
-        File[] files = mailboxFolder.listFiles(filter);
-        if (files != null && files.length != 1) {
-            throw new MessageNotFoundException();
-        }
-        MessageDescriptor descriptor = m_descriptorReader.readObject(files[0]);
-        FilenameFilter filterById = new FileFilterByMessageId(messageId);
-        File[] audioFiles = mailboxFolder.listFiles(filterById);
-        File audioFile = null;
-        File originalFile = null;
-        File combinedFile = null;
-        boolean unheard = false;
-        boolean urgent = false;
-        for (File file : audioFiles) {
-            String fileName = file.getName();
-            if (fileName.endsWith(AUDIO_IDENTIFIER)) {
-                audioFile = file;
-            } else if (fileName.endsWith(ORIGINAL_AUDIO_IDENTIFIER)) {
-                originalFile = file;
-            } else if (fileName.endsWith(FW_AUDIO_IDENTIFIER)) {
-                combinedFile = file;
-            } else if (fileName.endsWith(STATUS_IDENTIFIER)) {
-                unheard = true;
-            } else if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                urgent = true;
-            }
+        MailboxIndex index = getIndex(username);
+        MailboxIndex.Entry entry;
+        synchronized (index) {
+            entry = index.getEntry(folder, messageId);
         }
-        if (combinedFile != null) {
-            return new VmMessage(messageId, username, combinedFile, descriptor, folder, unheard, urgent);
-        }
-        if (audioFile != null) {
-            return new VmMessage(messageId, username, audioFile, descriptor, folder, unheard, urgent);
+        if (entry == null || !entry.hasFile(MESSAGE_IDENTIFIER)) {
+            throw new MessageNotFoundException();
         }
-        return new VmMessage(messageId, username, originalFile, descriptor, folder, unheard, urgent);
+        MessageDescriptor descriptor = getDescriptor(index, entry);
+        return new VmMessage(messageId, username, getAudioFile(index, entry), descriptor, folder,
+                entry.hasFile(STATUS_IDENTIFIER), entry.hasFile(URGENT_IDENTIFIER));
     }
 
     @Override
@@ -207,107 +198,143 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         if (messageFolder == Folder.SAVED) {
             return;
         }
-        try {
-            boolean sendMwi = false;
-            FilenameFilter filterById = new FileFilterByMessageId(message.getMessageId());
-            File[] messageFiles = getFolder(message.getUserName(), messageFolder).listFiles(filterById);
-            if (messageFolder == Folder.INBOX) {
-                File savedFolder = getFolder(message.getUserName(), Folder.SAVED);
-                for (File file : messageFiles) {
-                    String fileName = file.getName();
-                    // mark heard
-                    if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                        FileUtils.deleteQuietly(file);
-                    } else {
-                        FileUtils.moveFileToDirectory(file, savedFolder, true);
+        MailboxIndex index = getIndex(message.getUserName());
+        boolean sendMwi = false;
+        synchronized (index) {
+            MailboxIndex.Entry entry = getEntry(index, message);
+            File[] messageFiles = getMessageFiles(index, entry);
+            Folder destination = null;
+            try {
+                if (messageFolder == Folder.INBOX) {
+                    destination = Folder.SAVED;
+                    index.load(destination);
+                    File savedFolder = getFolder(message.getUserName(), Folder.SAVED);
+                    for (File file : messageFiles) {
+                        String fileName = file.getName();
+                        // mark heard
+                        if (fileName.endsWith(URGENT_IDENTIFIER)) {
+                            FileUtils.deleteQuietly(file);
+                        } else {
+                            FileUtils.moveFileToDirectory(file, savedFolder, true);
+                        }
                     }
+                    sendMwi = true;
+                } else if (messageFolder == Folder.DELETED) {
+                    destination = Folder.INBOX;
+                    index.load(destination);
+                    File inboxFolder = getFolder(message.getUserName(), Folder.INBOX);
+                    for (File file : messageFiles) {
+                        FileUtils.moveFileToDirectory(file, inboxFolder, true);
+                    }
+                    sendMwi = true;
                 }
-                sendMwi = true;
-            } else if (messageFolder == Folder.DELETED) {
-                File inboxFolder = getFolder(message.getUserName(), Folder.INBOX);
-                for (File file : messageFiles) {
-                    FileUtils.moveFileToDirectory(file, inboxFolder, true);
-                }
-                sendMwi = true;
+            } catch (IOException ex) {
+                LOG.error("Failed to save message", ex);
+                sendMwi = false;
+            } finally {
+                refresh(index, destination, entry);
             }
-            if (sendMwi) {
-                m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
-            }
-        } catch (IOException ex) {
-            LOG.error("Failed to save message", ex);
+        }
+        if (sendMwi) {
+            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
         }
     }
 
     @Override
     public void deleteMessage(User user, VmMessage message) {
-        try {
-            Folder messageFolder = message.getParentFolder();
-            FilenameFilter filterById = new FileFilterByMessageId(message.getMessageId());
-            File[] messageFiles = getFolder(message.getUserName(), messageFolder).listFiles(filterById);
-            if (messageFolder == Folder.DELETED) {
-                for (File messageFile : messageFiles) {
-                    FileUtils.deleteQuietly(messageFile);
-                }
-            } else if (messageFolder == Folder.INBOX || messageFolder == Folder.SAVED) {
-                File deletedFolder = getFolder(message.getUserName(), Folder.DELETED);
-                for (File file : messageFiles) {
-                    String fileName = file.getName();
-                    // mark heard
-                    if (fileName.endsWith(URGENT_IDENTIFIER)) {
-                        FileUtils.deleteQuietly(file);
-                    } else {
-                        FileUtils.moveFileToDirectory(file, deletedFolder, true);
+        Folder messageFolder = message.getParentFolder();
+        MailboxIndex index = getIndex(message.getUserName());
+        boolean sendMwi = false;
+        synchronized (index) {
+            MailboxIndex.Entry entry = getEntry(index, message);
+            File[] messageFiles = getMessageFiles(index, entry);
+            Folder destination = null;
+            try {
+                if (messageFolder == Folder.DELETED) {
+                    for (File messageFile : messageFiles) {
+                        FileUtils.deleteQuietly(messageFile);
                     }
+                } else if (messageFolder == Folder.INBOX || messageFolder == Folder.SAVED) {
+                    destination = Folder.DELETED;
+                    index.load(destination);
+                    File deletedFolder = getFolder(message.getUserName(), Folder.DELETED);
+                    for (File file : messageFiles) {
+                        String fileName = file.getName();
+                        // mark heard
+                        if (fileName.endsWith(URGENT_IDENTIFIER)) {
+                            FileUtils.deleteQuietly(file);
+                        } else {
+                            FileUtils.moveFileToDirectory(file, deletedFolder, true);
+                        }
+                    }
+                    sendMwi = messageFolder == Folder.INBOX;
                 }
-                if (messageFolder == Folder.INBOX) {
-                    m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
-                }
+            } catch (IOException ex) {
+                LOG.error("Failed to save message", ex);
+            } finally {
+                refresh(index, destination, entry);
             }
-        } catch (IOException ex) {
-            LOG.error("Failed to save message", ex);
+        }
+        if (sendMwi) {
+            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
         }
     }
 
     @Override
     public void markMessageHeard(User user, VmMessage message) {
-        FilenameFilter fileStatusFilter = new RegexFileFilter(String.format("^%s%s", message.getMessageId(),
-                STATUS_IDENTIFIER));
-        File[] status = getFolder(message.getUserName(), message.getParentFolder()).listFiles(fileStatusFilter);
-        if (status != null && status.length == 1) {
-            FileUtils.deleteQuietly(status[0]);
-            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
+        MailboxIndex index = getIndex(message.getUserName());
+        synchronized (index) {
+            MailboxIndex.Entry entry = getEntry(index, message);
+            if (entry == null || !entry.hasFile(STATUS_IDENTIFIER)) {
+                return;
+            }
+            FileUtils.deleteQuietly(new File(index.getDirectory(entry.getFolder()), message.getMessageId()
+                    + STATUS_IDENTIFIER));
+            index.refresh(entry.getFolder(), entry.getMessageId());
         }
+        m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
     }
 
     @Override
     public void markMessageHeard(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
-        File statusFile = null;
-        for (File file : files) {
-            if (file.getName().endsWith(STATUS_IDENTIFIER)) {
-                statusFile = file;
-                break;
+        MailboxIndex index = getIndex(user.getUserName());
+        synchronized (index) {
+            MailboxIndex.Entry entry = findEntry(index, messageId);
+            if (!entry.hasFile(STATUS_IDENTIFIER)) {
+                return;
             }
+            FileUtils.deleteQuietly(new File(index.getDirectory(entry.getFolder()), messageId + STATUS_IDENTIFIER));
+            index.refresh(entry.getFolder(), messageId);
         }
-        if (statusFile != null) {
-            FileUtils.deleteQuietly(statusFile);
-            m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
-        }
+        m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
     }
 
     @Override
     public void removeDeletedMessages(String username) {
-        try {
-            FileUtils.deleteDirectory(getFolder(username, Folder.DELETED));
-        } catch (IOException ex) {
-            LOG.error("cannot delete deleted directory for user " + username);
+        MailboxIndex index = getIndex(username);
+        synchronized (index) {
+            try {
+                FileUtils.deleteDirectory(getFolder(username, Folder.DELETED));
+            } catch (IOException ex) {
+                LOG.error("cannot delete deleted directory for user " + username);
+            } finally {
+                index.invalidate(Folder.DELETED);
+            }
         }
     }
 
+    /**
+     * Temporary recordings go in a directory of their own under the deleted folder: they are
+     * cleaned up with the deleted messages, and creating them does not change the deleted folder
+     * ( which would have it read again ).
+     */
     @Override
     protected File getTempFolder(String username) {
-        return getFolder(username, Folder.DELETED);
+        File file = new File(getFolder(username, Folder.DELETED), TEMP_DIRECTORY);
+        if (!file.exists()) {
+            file.mkdirs();
+        }
+        return file;
     }
 
     @Override
@@ -315,45 +342,56 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
             MessageDescriptor descriptor, User destUser, String newMessageId) {
         boolean urgent = false;
         File destCombined = null;
+        MailboxIndex destinationIndex = getIndex(destUser.getUserName());
         try {
-            // destination files
-            File destinationInbox = getFolder(destUser.getUserName(), Folder.INBOX);
-            File destStatus = new File(destinationInbox, newMessageId + STATUS_IDENTIFIER);
-            File destAudio = new File(destinationInbox, newMessageId + AUDIO_IDENTIFIER);
-            File destUrg = new File(destinationInbox, newMessageId + URGENT_IDENTIFIER);
-            File originalDestAudio = new File(destinationInbox, newMessageId + ORIGINAL_AUDIO_IDENTIFIER);
-            destCombined = new File(destinationInbox, newMessageId + FW_AUDIO_IDENTIFIER);
-            File originalDestDescriptor = new File(destinationInbox, newMessageId + ORIGINAL_MESSAGE_IDENTIFIER);
-            File destDescriptor = new File(destinationInbox, newMessageId + MESSAGE_IDENTIFIER);
-            FileUtils.touch(destStatus);
-            if (comments.getTempWavPath() != null) {
-                FileUtils.copyFile(new File(comments.getTempWavPath()), destAudio, true);
-            } else {
-                FileUtils.touch(destAudio);
+            // original files
+            MailboxIndex originalIndex = getIndex(originalMessage.getUserName());
+            File[] filesToForward;
+            synchronized (originalIndex) {
+                filesToForward = getMessageFiles(originalIndex, getEntry(originalIndex, originalMessage));
             }
 
-            // original files
-            Folder originalFolder = originalMessage.getParentFolder();
-            FilenameFilter filterById = new FileFilterByMessageId(originalMessage.getMessageId());
-            File[] filesToForward = getFolder(originalMessage.getUserName(), originalFolder).listFiles(filterById);
-
-            for (File fileToForward : filesToForward) {
-                if (fileToForward.getName().endsWith(URGENT_IDENTIFIER)) {
-                    FileUtils.touch(destUrg);
-                    urgent = true;
-                } else if (fileToForward.getName().endsWith(AUDIO_IDENTIFIER)) {
-                    FileUtils.copyFile(fileToForward, originalDestAudio, true);
+            synchronized (destinationIndex) {
+                destinationIndex.load(Folder.INBOX);
+                try {
+                    // destination files
+                    File destinationInbox = getFolder(destUser.getUserName(), Folder.INBOX);
+                    File destStatus = new File(destinationInbox, newMessageId + STATUS_IDENTIFIER);
+                    File destAudio = new File(destinationInbox, newMessageId + AUDIO_IDENTIFIER);
+                    File destUrg = new File(destinationInbox, newMessageId + URGENT_IDENTIFIER);
+                    File originalDestAudio = new File(destinationInbox, newMessageId + ORIGINAL_AUDIO_IDENTIFIER);
+                    destCombined = new File(destinationInbox, newMessageId + FW_AUDIO_IDENTIFIER);
+                    File originalDestDescriptor = new File(destinationInbox, newMessageId
+                            + ORIGINAL_MESSAGE_IDENTIFIER);
+                    File destDescriptor = new File(destinationInbox, newMessageId + MESSAGE_IDENTIFIER);
+                    FileUtils.touch(destStatus);
                     if (comments.getTempWavPath() != null) {
-                        concatAudio(destCombined, destAudio, fileToForward);
+                        FileUtils.copyFile(new File(comments.getTempWavPath()), destAudio, true);
                     } else {
-                        FileUtils.copyFile(fileToForward, destCombined, true);
+                        FileUtils.touch(destAudio);
                     }
-                } else if (fileToForward.getName().endsWith(MESSAGE_IDENTIFIER)) {
-                    FileUtils.copyFile(fileToForward, originalDestDescriptor, true);
+
+                    for (File fileToForward : filesToForward) {
+                        if (fileToForward.getName().endsWith(URGENT_IDENTIFIER)) {
+                            FileUtils.touch(destUrg);
+                            urgent = true;
+                        } else if (fileToForward.getName().endsWith(AUDIO_IDENTIFIER)) {
+                            FileUtils.copyFile(fileToForward, originalDestAudio, true);
+                            if (comments.getTempWavPath() != null) {
+                                concatAudio(destCombined, destAudio, fileToForward);
+                            } else {
+                                FileUtils.copyFile(fileToForward, destCombined, true);
+                            }
+                        } else if (fileToForward.getName().endsWith(MESSAGE_IDENTIFIER)) {
+                            FileUtils.copyFile(fileToForward, originalDestDescriptor, true);
+                        }
+                    }
+
+                    m_descriptorWriter.writeObject(descriptor, destDescriptor);
+                } finally {
+                    destinationIndex.refresh(Folder.INBOX, newMessageId);
                 }
             }
-
-            m_descriptorWriter.writeObject(descriptor, destDescriptor);
             m_mwi.sendMWI(destUser, getMailboxDetails(destUser.getUserName()));
         } catch (Exception ex) {
             LOG.error("Failed to forward message", ex);
@@ -412,104 +450,59 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public List<VmMessage> getMessages(String username, Folder folder) {
-        File mailboxFolder = getFolder(username, folder);
+        MailboxIndex index = getIndex(username);
+        List<MailboxIndex.Entry> entries;
+        synchronized (index) {
+            entries = index.getEntries(folder);
+        }
         List<VmMessage> messages = new LinkedList<VmMessage>();
-        for (File file : mailboxFolder.listFiles(new MessageCountFilter())) {
-            MessageDescriptor descriptor = m_descriptorReader.readObject(file);
-            String messageId = StringUtils.removeEnd(file.getName(), MESSAGE_IDENTIFIER);
-            boolean unheard = new File(mailboxFolder, String.format("%s%s", messageId, STATUS_IDENTIFIER)).exists();
-            boolean urgent = new File(mailboxFolder, String.format("%s%s", messageId, URGENT_IDENTIFIER)).exists();
-            messages.add(new VmMessage(messageId, username, null, descriptor, folder, unheard, urgent));
+        for (MailboxIndex.Entry entry : entries) {
+            if (!entry.hasFile(MESSAGE_IDENTIFIER)) {
+                continue;
+            }
+            MessageDescriptor descriptor = getDescriptor(index, entry);
+            messages.add(new VmMessage(entry.getMessageId(), username, null, descriptor, folder, entry
+                    .hasFile(STATUS_IDENTIFIER), entry.hasFile(URGENT_IDENTIFIER)));
         }
         return messages;
     }
 
     @Override
     public VmMessage getVmMessage(String username, String messageId, boolean loadAudio) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(username, filter);
-        MessageDescriptor descriptor = null;
-        File audioFile = null;
-        File originalFile = null;
-        File combinedFile = null;
-        boolean unheard = false;
-        boolean urgent = false;
-        for (File file : files) {
-            if (file.getName().endsWith(AUDIO_IDENTIFIER)) {
-                audioFile = file;
-            } else if (file.getName().endsWith(ORIGINAL_AUDIO_IDENTIFIER)) {
-                originalFile = file;
-            } else if (file.getName().endsWith(FW_AUDIO_IDENTIFIER)) {
-                combinedFile = file;
-            } else if (file.getName().endsWith(MESSAGE_IDENTIFIER)) {
-                descriptor = m_descriptorReader.readObject(file);
-                descriptor.setFilePath(file.getPath());
-            } else if (file.getName().endsWith(STATUS_IDENTIFIER)) {
-                unheard = true;
-            } else if (file.getName().endsWith(URGENT_IDENTIFIER)) {
-                urgent = true;
-            }
-        }
-        if (combinedFile != null) {
-            return new VmMessage(messageId, username, combinedFile, descriptor, null, unheard, urgent);
-        }
-        if (audioFile != null) {
-            return new VmMessage(messageId, username, audioFile, descriptor, null, unheard, urgent);
+        MailboxIndex index = getIndex(username);
+        MailboxIndex.Entry entry;
+        synchronized (index) {
+            entry = findEntry(index, messageId);
         }
-        return new VmMessage(messageId, username, originalFile, descriptor, null, unheard, urgent);
-    }
-
-    private File[] findFilesInUserDirectory(String username, FilenameFilter filter) {
-        File[] files = findFilesInFolder(getFolder(username, Folder.INBOX), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.SAVED), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.DELETED), filter);
-        if (files != null) {
-            return files;
-        }
-        files = findFilesInFolder(getFolder(username, Folder.CONFERENCE), filter);
-        if (files != null) {
-            return files;
-        }
-        throw new MessageNotFoundException();
-    }
-
-    private File[] findFilesInInbox(String username, FilenameFilter filter) {
-        File[] files = findFilesInFolder(getFolder(username, Folder.INBOX), filter);
-        if (files != null) {
-            return files;
-        }
-        throw new MessageNotFoundException();
-    }
-
-    private File[] findFilesInFolder(File folder, FilenameFilter filter) {
-        File[] files = folder.listFiles(filter);
-        if (files != null && files.length > 0) {
-            return files;
+        MessageDescriptor descriptor = null;
+        if (entry.hasFile(MESSAGE_IDENTIFIER)) {
+            descriptor = getDescriptor(index, entry);
+            descriptor.setFilePath(new File(index.getDirectory(entry.getFolder()), messageId + MESSAGE_IDENTIFIER)
+                    .getPath());
         }
-        return null;
+        return new VmMessage(messageId, username, getAudioFile(index, entry), descriptor, null,
+                entry.hasFile(STATUS_IDENTIFIER), entry.hasFile(URGENT_IDENTIFIER));
     }
 
     @Override
     public void markMessageUnheard(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInInbox(user.getUserName(), filter);
-        try {
-            for (File file : files) {
-                File statusFile = new File(file.getParentFile(), messageId + STATUS_IDENTIFIER);
-                FileUtils.touch(statusFile);
-                m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
-                break;
+        MailboxIndex index = getIndex(user.getUserName());
+        synchronized (index) {
+            MailboxIndex.Entry entry = index.getEntry(Folder.INBOX, messageId);
+            if (entry == null) {
+                throw new MessageNotFoundException();
+            }
+            try {
+                FileUtils.touch(new File(index.getDirectory(Folder.INBOX), messageId + STATUS_IDENTIFIER));
+            } catch (IOException ex) {
+                LOG.error(String.format("failed to mark message %s unheard for user %s", messageId,
+                        user.getUserName()), ex);
+                return;
+            } finally {
+                index.refresh(Folder.INBOX, messageId);
             }
-        } catch (IOException ex) {
-            LOG.error(String.format("failed to mark message %s unheard for user %s", messageId, user.getUserName()),
-                    ex);
         }
+        m_mwi.sendMWI(user, getMailboxDetails(user.getUserName()));
     }
 
     @Override
@@ -520,10 +513,13 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
 
     @Override
     public void deleteMessage(User user, String messageId) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
-        for (File file : files) {
-            FileUtils.deleteQuietly(file);
+        MailboxIndex index = getIndex(user.getUserName());
+        synchronized (index) {
+            MailboxIndex.Entry entry = findEntry(index, messageId);
+            for (File file : getMessageFiles(index, entry)) {
+                FileUtils.deleteQuietly(file);
+            }
+            index.refresh(entry.getFolder(), messageId);
         }
     }
 
@@ -532,33 +528,56 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         VmMessage message = getVmMessage(user.getUserName(), messageId, false);
         MessageDescriptor descriptor = message.getDescriptor();
         descriptor.setSubject(subject);
-        m_descriptorWriter.writeObject(descriptor, new File(descriptor.getFilePath()));
+        MailboxIndex index = getIndex(user.getUserName());
+        synchronized (index) {
+            m_descriptorWriter.writeObject(descriptor, new File(descriptor.getFilePath()));
+            MailboxIndex.Entry entry = index.findEntry(messageId);
+            if (entry != null) {
+                entry.setDescriptor(new MessageDescriptor(descriptor));
+            }
+        }
     }
 
     @Override
     public void moveMessageToFolder(User user, String messageId, String destination) {
-        FilenameFilter filter = new FileFilterByMessageId(messageId);
-        File destinationFile = getFolder(user.getUserName(), getFolderFromName(destination));
-        File[] files = findFilesInUserDirectory(user.getUserName(), filter);
-        try {
-            for (File file : files) {
-                FileUtils.moveFileToDirectory(file, destinationFile, true);
+        Folder destinationFolder = getFolderFromName(destination);
+        if (destinationFolder == null) {
+            LOG.error(String.format("failed to move message %s in %s for user %s: no such folder", messageId,
+                    destination, user.getUserName()));
+            return;
+        }
+        MailboxIndex index = getIndex(user.getUserName());
+        synchronized (index) {
+            MailboxIndex.Entry entry = findEntry(index, messageId);
+            index.load(destinationFolder);
+            File destinationFile = getFolder(user.getUserName(), destinationFolder);
+            try {
+                for (File file : getMessageFiles(index, entry)) {
+                    FileUtils.moveFileToDirectory(file, destinationFile, true);
+                }
+            } catch (IOException ex) {
+                LOG.error(
+                        String.format("failed to move message %s in %s for user %s", messageId, destination,
+                                user.getUserName()), ex);
+            } finally {
+                refresh(index, destinationFolder, entry);
             }
-        } catch (IOException ex) {
-            LOG.error(
-                    String.format("failed to move message %s in %s for user %s", messageId, destination,
-                            user.getUserName()), ex);
         }
 
     }
 
     @Override
     public void deleteMailbox(String username) {
-        try {
-            File mailbox = getUserDirectory(username);
-            FileUtils.deleteDirectory(mailbox);
-        } catch (IOException ex) {
-            LOG.error(String.format("failed to delete mailbox for user %s", username), ex);
+        MailboxIndex index = getIndex(username);
+        synchronized (index) {
+            try {
+                File mailbox = getUserDirectory(username);
+                FileUtils.deleteDirectory(mailbox);
+            } catch (IOException ex) {
+                LOG.error(String.format("failed to delete mailbox for user %s", username), ex);
+            } finally {
+                m_indexes.remove(username, index);
+            }
         }
     }
 
@@ -571,6 +590,9 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
             FileUtils.deleteDirectory(oldUserDir);
         } catch (IOException ex) {
             LOG.error(String.format("failed to delete mailbox for user %s", user.getUserName()), ex);
+        } finally {
+            m_indexes.remove(oldUser);
+            m_indexes.remove(user.getUserName());
         }
     }
 
@@ -587,30 +609,97 @@ public class FilesystemMailboxManager extends AbstractMailboxManager {
         return new File(m_mailstoreDirectory + File.separator + username);
     }
 
-    private List<String> extractMessages(String[] messages) {
-        List<String> messageList = new LinkedList<String>();
-        for (String message : messages) {
-            messageList.add(StringUtils.removeEnd(message, MESSAGE_IDENTIFIER));
+    private MailboxIndex getIndex(String username) {
+        MailboxIndex index = m_indexes.get(username);
+        if (index == null) {
+            MailboxIndex created = new MailboxIndex(getUserDirectory(username), MESSAGE_IDENTIFIER,
+                    ORIGINAL_MESSAGE_IDENTIFIER, AUDIO_IDENTIFIER, ORIGINAL_AUDIO_IDENTIFIER, FW_AUDIO_IDENTIFIER,
+                    STATUS_IDENTIFIER, URGENT_IDENTIFIER);
+            index = m_indexes.putIfAbsent(username, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    /*
+     * The message in its folder or, if the folder is not known, in the first folder that has it.
+     */
+    private static MailboxIndex.Entry getEntry(MailboxIndex index, VmMessage message) {
+        if (message.getParentFolder() == null) {
+            return index.findEntry(message.getMessageId());
+        }
+        return index.getEntry(message.getParentFolder(), message.getMessageId());
+    }
+
+    private static MailboxIndex.Entry findEntry(MailboxIndex index, String messageId) {
+        MailboxIndex.Entry entry = index.findEntry(messageId);
+        if (entry == null) {
+            throw new MessageNotFoundException();
         }
-        return messageList;
+        return entry;
     }
 
-    private static class FileFilterByMessageId implements FilenameFilter {
-        private final String m_messageIdPrefix;
+    private static File[] getMessageFiles(MailboxIndex index, MailboxIndex.Entry entry) {
+        if (entry == null) {
+            return new File[0];
+        }
+        File folder = index.getDirectory(entry.getFolder());
+        List<File> files = new LinkedList<File>();
+        for (String fileName : entry.getFileNames()) {
+            files.add(new File(folder, fileName));
+        }
+        return files.toArray(new File[files.size()]);
+    }
 
-        FileFilterByMessageId(String messageId) {
-            m_messageIdPrefix = messageId + "-";
+    /*
+     * Update the index after the files of a message were moved ( destination first so that the
+     * descriptor read earlier moves along ) or deleted.
+     */
+    private static void refresh(MailboxIndex index, Folder destination, MailboxIndex.Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        if (destination != null) {
+            index.refresh(destination, entry.getMessageId());
         }
+        index.refresh(entry.getFolder(), entry.getMessageId());
+    }
 
-        public boolean accept(File dir, String name) {
-            return name.startsWith(m_messageIdPrefix);
+    private static File getAudioFile(MailboxIndex index, MailboxIndex.Entry entry) {
+        File folder = index.getDirectory(entry.getFolder());
+        String messageId = entry.getMessageId();
+        if (entry.hasFile(FW_AUDIO_IDENTIFIER)) {
+            return new File(folder, messageId + FW_AUDIO_IDENTIFIER);
         }
+        if (entry.hasFile(AUDIO_IDENTIFIER)) {
+            return new File(folder, messageId + AUDIO_IDENTIFIER);
+        }
+        if (entry.hasFile(ORIGINAL_AUDIO_IDENTIFIER)) {
+            return new File(folder, messageId + ORIGINAL_AUDIO_IDENTIFIER);
+        }
+        return null;
     }
 
-    private static class MessageCountFilter implements FilenameFilter {
-        public boolean accept(File dir, String name) {
-            return name.endsWith(MESSAGE_IDENTIFIER);
+    /*
+     * A copy of the message descriptor, read once and kept in the index.
+     */
+    private MessageDescriptor getDescriptor(MailboxIndex index, MailboxIndex.Entry entry) {
+        synchronized (index) {
+            if (entry.getDescriptor() != null) {
+                return new MessageDescriptor(entry.getDescriptor());
+            }
+        }
+        MessageDescriptor descriptor = m_descriptorReader.readObject(new File(index.getDirectory(entry
+                .getFolder()), entry.getMessageId() + MESSAGE_IDENTIFIER));
+        if (descriptor == null) {
+            return null;
+        }
+        synchronized (index) {
+            entry.setDescriptor(new MessageDescriptor(descriptor));
         }
+        return descriptor;
     }
 
     public void setMessageDescriptorWriter(MessageDescriptorWriter writer) {
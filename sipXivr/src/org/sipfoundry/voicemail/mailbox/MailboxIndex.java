@@ -0,0 +1,264 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail.mailbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In memory index of the message files of one mailbox: for each folder, the files of each
+ * message. Counts, listings and lookups by message id are answered from the index instead of
+ * listing the folders.
+ *
+ * A folder is read ( one directory listing ) the first time it is needed. After that it is read
+ * again only when the modification time of its directory changes, which is how changes made
+ * outside the mailbox manager are noticed. The mailbox manager updates the index itself after
+ * each change it makes, by checking the files of the messages it touched, and then takes the new
+ * modification time of the directory.
+ *
+ * A directory listing taken in the same tick of the file system clock as a later change cannot
+ * be told apart from it by the modification time, so a folder read within RACY_MILLIS of its
+ * last change is read again on next use. Every folder is also read again when it has not been
+ * read for RECONCILE_MILLIS.
+ *
+ * All methods must be called with the index locked ( synchronized on the index ). Callers hold
+ * the lock across a change to the files and the update of the index, so that other threads see
+ * the mailbox either before or after the change.
+ */
+class MailboxIndex {
+    static final long RACY_MILLIS = 2000;
+    static final long RECONCILE_MILLIS = 60000;
+
+    /**
+     * The files of one message in one folder.
+     */
+    static class Entry {
+        private final String m_messageId;
+        private final Folder m_folder;
+        private final SortedSet<String> m_fileNames = new TreeSet<String>();
+        private MessageDescriptor m_descriptor;
+
+        Entry(String messageId, Folder folder) {
+            m_messageId = messageId;
+            m_folder = folder;
+        }
+
+        String getMessageId() {
+            return m_messageId;
+        }
+
+        Folder getFolder() {
+            return m_folder;
+        }
+
+        boolean hasFile(String suffix) {
+            return m_fileNames.contains(m_messageId + suffix);
+        }
+
+        /**
+         * @return the files of the message. Empty if the message has no files left.
+         */
+        SortedSet<String> getFileNames() {
+            return m_fileNames;
+        }
+
+        /**
+         * @return the message descriptor read earlier or null.
+         */
+        MessageDescriptor getDescriptor() {
+            return m_descriptor;
+        }
+
+        void setDescriptor(MessageDescriptor descriptor) {
+            m_descriptor = descriptor;
+        }
+    }
+
+    private static class FolderIndex {
+        private final File m_directory;
+        private final TreeMap<String, Entry> m_entries = new TreeMap<String, Entry>();
+        private boolean m_loaded;
+        private long m_stamp;
+        private long m_readTime;
+
+        FolderIndex(File directory) {
+            m_directory = directory;
+        }
+    }
+
+    private final Map<Folder, FolderIndex> m_folders = new EnumMap<Folder, FolderIndex>(Folder.class);
+    private final String[] m_suffixes;
+
+    /**
+     * @param userDirectory the mailbox directory
+     * @param suffixes what follows the message id in the names of the files of a message. The
+     *        first one is the message descriptor.
+     */
+    MailboxIndex(File userDirectory, String... suffixes) {
+        m_suffixes = suffixes;
+        for (Folder folder : Folder.values()) {
+            m_folders.put(folder, new FolderIndex(new File(userDirectory, folder.toString())));
+        }
+    }
+
+    File getDirectory(Folder folder) {
+        return m_folders.get(folder).m_directory;
+    }
+
+    /**
+     * @return the messages of a folder in message id order, including the ones that have lost
+     *         their descriptor.
+     */
+    List<Entry> getEntries(Folder folder) {
+        return new ArrayList<Entry>(validate(folder).m_entries.values());
+    }
+
+    /**
+     * @return the ids of the messages of a folder that have a file with the given suffix.
+     */
+    List<String> getMessageIds(Folder folder, String suffix) {
+        List<String> messageIds = new ArrayList<String>();
+        for (Entry entry : validate(folder).m_entries.values()) {
+            if (entry.hasFile(suffix)) {
+                messageIds.add(entry.getMessageId());
+            }
+        }
+        return messageIds;
+    }
+
+    /**
+     * @return the files of a message in a folder or null.
+     */
+    Entry getEntry(Folder folder, String messageId) {
+        return validate(folder).m_entries.get(messageId);
+    }
+
+    /**
+     * @return the files of a message in the first folder that has it or null.
+     */
+    Entry findEntry(String messageId) {
+        for (Folder folder : Folder.values()) {
+            Entry entry = getEntry(folder, messageId);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bring a folder up to date before changing it, so that refresh does not hide changes made
+     * outside the mailbox manager.
+     */
+    void load(Folder folder) {
+        validate(folder);
+    }
+
+    /**
+     * Check the files of a message after the mailbox manager changed them. The descriptor read
+     * earlier is kept ( the descriptor file moves with the message ) unless the descriptor file
+     * is gone.
+     */
+    void refresh(Folder folder, String messageId) {
+        FolderIndex folderIndex = m_folders.get(folder);
+        if (!folderIndex.m_loaded) {
+            return;
+        }
+        MessageDescriptor descriptor = null;
+        for (FolderIndex other : m_folders.values()) {
+            Entry previous = other.m_entries.get(messageId);
+            if (previous != null && previous.getDescriptor() != null) {
+                descriptor = previous.getDescriptor();
+            }
+        }
+        Entry entry = new Entry(messageId, folder);
+        for (String suffix : m_suffixes) {
+            String fileName = messageId + suffix;
+            if (new File(folderIndex.m_directory, fileName).exists()) {
+                entry.m_fileNames.add(fileName);
+            }
+        }
+        if (entry.m_fileNames.isEmpty()) {
+            folderIndex.m_entries.remove(messageId);
+        } else {
+            if (entry.m_fileNames.contains(messageId + m_suffixes[0])) {
+                entry.setDescriptor(descriptor);
+            }
+            folderIndex.m_entries.put(messageId, entry);
+        }
+        folderIndex.m_stamp = folderIndex.m_directory.lastModified();
+    }
+
+    /**
+     * Read the folder again on next use ( after a change to many messages ).
+     */
+    void invalidate(Folder folder) {
+        m_folders.get(folder).m_loaded = false;
+    }
+
+    private FolderIndex validate(Folder folder) {
+        FolderIndex folderIndex = m_folders.get(folder);
+        long now = System.currentTimeMillis();
+        if (folderIndex.m_loaded && folderIndex.m_directory.lastModified() == folderIndex.m_stamp
+                && now - folderIndex.m_readTime < RECONCILE_MILLIS) {
+            return folderIndex;
+        }
+        if (!folderIndex.m_directory.exists()) {
+            folderIndex.m_directory.mkdirs();
+        }
+        long stamp = folderIndex.m_directory.lastModified();
+        String[] fileNames = folderIndex.m_directory.list();
+        folderIndex.m_entries.clear();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                String messageId = getMessageId(fileName);
+                if (messageId == null) {
+                    continue;
+                }
+                Entry entry = folderIndex.m_entries.get(messageId);
+                if (entry == null) {
+                    entry = new Entry(messageId, folder);
+                    folderIndex.m_entries.put(messageId, entry);
+                }
+                entry.m_fileNames.add(fileName);
+            }
+        }
+        folderIndex.m_loaded = true;
+        folderIndex.m_stamp = stamp;
+        folderIndex.m_readTime = now - stamp < RACY_MILLIS ? now - RECONCILE_MILLIS : now;
+        return folderIndex;
+    }
+
+    /*
+     * The message id of a message file ( the name without the suffix ). Other files are not
+     * indexed.
+     */
+    private String getMessageId(String fileName) {
+        for (String suffix : m_suffixes) {
+            if (fileName.endsWith(suffix) && fileName.length() > suffix.length()) {
+                return fileName.substring(0, fileName.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+}
@@ -57,6 +57,25 @@ public class MessageDescriptor {
         }
     }
 
+    public MessageDescriptor() {
+    }
+
+    /**
+     * Copy of another descriptor
+     */
+    public MessageDescriptor(MessageDescriptor other) {
+        m_id = other.m_id;
+        m_fromUri = other.m_fromUri;
+        m_durationSecs = other.m_durationSecs;
+        m_timestamp = other.m_timestamp;
+        m_subject = other.m_subject;
+        m_priority = other.m_priority;
+        if (other.m_otherRecipients != null) {
+            m_otherRecipients = new Vector<String>(other.m_otherRecipients);
+        }
+        m_filePath = other.m_filePath;
+    }
+
     public String getId() {
         return m_id;
     }
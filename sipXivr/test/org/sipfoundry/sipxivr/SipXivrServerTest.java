@@ -0,0 +1,177 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.sipxivr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.sipfoundry.commons.freeswitch.FreeSwitchEventSocketInterface;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestApp;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeAttributes;
+import org.sipfoundry.sipxivr.eslrequest.EslRequestScopeContextHolder;
+
+/**
+ * Plays FreeSwitch against a server with a small pool: fills the workers and the queue with
+ * calls that block, and checks that further calls are hung up busy without new threads.
+ */
+public class SipXivrServerTest extends TestCase {
+    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_SIZE = 4;
+    private static final int BUSY_CALLS = 200;
+
+    private final CountDownLatch m_release = new CountDownLatch(1);
+    private final CountDownLatch m_finished = new CountDownLatch(MAX_THREADS + QUEUE_SIZE);
+    private final Set<EslRequestScopeAttributes> m_scopes = Collections
+            .synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<EslRequestScopeAttributes, Boolean>()));
+    private ServerSocket m_serverSocket;
+    private SipXivrServer m_server;
+
+    private class BlockingSipXivr extends SipXivr {
+        private Socket m_client;
+
+        @Override
+        protected FreeSwitchEventSocketInterface getFsEventSocket() {
+            return null;
+        }
+
+        @Override
+        protected EslRequestApp getBridgeApp() {
+            return null;
+        }
+
+        @Override
+        public void setClient(Socket client) {
+            super.setClient(client);
+            m_client = client;
+        }
+
+        @Override
+        public void runEslRequest() {
+            m_scopes.add(EslRequestScopeContextHolder.currentEslRequestScopeAttributes());
+            try {
+                m_release.await();
+                m_client.close();
+            } catch (Exception e) {
+                // The test fails on the count
+            }
+            m_finished.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_server = new SipXivrServer() {
+            @Override
+            protected SipXivr getSipxIvrHandler() {
+                return new BlockingSipXivr();
+            }
+        };
+        m_server.setMaxThreads(MAX_THREADS);
+        m_server.setQueueSize(QUEUE_SIZE);
+        m_serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    m_server.serve(m_serverSocket);
+                } catch (IOException e) {
+                    // The test fails on the counts
+                }
+            }
+        };
+        acceptor.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_release.countDown();
+        m_serverSocket.close();
+        m_server.shutdown();
+        super.tearDown();
+    }
+
+    public void testBusy() throws Exception {
+        List<Socket> calls = new ArrayList<Socket>();
+        for (int i = 0; i < MAX_THREADS + QUEUE_SIZE; i++) {
+            calls.add(connect());
+        }
+        awaitStatistic("active", MAX_THREADS);
+        awaitStatistic("queued", QUEUE_SIZE);
+
+        for (int i = 0; i < BUSY_CALLS; i++) {
+            Socket call = connect();
+            BufferedReader in = new BufferedReader(new InputStreamReader(call.getInputStream()));
+            OutputStream out = call.getOutputStream();
+            assertEquals("connect", in.readLine());
+            assertEquals("", in.readLine());
+            out.write("Content-Type: command/reply\nReply-Text: +OK\nCaller-Unique-ID: 1234\n\n".getBytes("UTF-8"));
+            out.flush();
+            assertEquals("sendmsg", in.readLine());
+            assertEquals("call-command: hangup", in.readLine());
+            assertEquals("hangup-cause: USER_BUSY", in.readLine());
+            assertEquals("", in.readLine());
+            call.close();
+        }
+        awaitStatistic("rejected", BUSY_CALLS);
+        Map<String, Long> statistics = m_server.getStatistics();
+        assertEquals(MAX_THREADS, statistics.get("active").longValue());
+        assertEquals(QUEUE_SIZE, statistics.get("queued").longValue());
+        assertEquals(MAX_THREADS, statistics.get("largestThreads").longValue());
+
+        // Workers are reused for the queued calls, each with its own request scope
+        m_release.countDown();
+        assertTrue(m_finished.await(10, TimeUnit.SECONDS));
+        awaitStatistic("active", 0);
+        statistics = m_server.getStatistics();
+        assertEquals(MAX_THREADS + QUEUE_SIZE, statistics.get("accepted").longValue());
+        assertEquals(MAX_THREADS, statistics.get("largestThreads").longValue());
+        assertEquals(MAX_THREADS + QUEUE_SIZE, m_scopes.size());
+        for (Socket call : calls) {
+            assertEquals(-1, call.getInputStream().read());
+            call.close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(m_serverSocket.getInetAddress(), m_serverSocket.getLocalPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private void awaitStatistic(String name, long value) throws InterruptedException {
+        for (int i = 0; i < 1000 && m_server.getStatistics().get(name) != value; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(name, value, m_server.getStatistics().get(name).longValue());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class MediaServletTest extends TestCase {
+    private File m_file;
+    private byte[] m_data;
+    private String m_etag;
+    private MediaServlet m_servlet = new MediaServlet();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_file = File.createTempFile("media-servlet-test", "-00.wav");
+        m_data = new byte[1000];
+        for (int i = 0; i < m_data.length; i++) {
+            m_data[i] = (byte) i;
+        }
+        FileUtils.writeByteArrayToFile(m_file, m_data);
+        m_etag = MediaServlet.getETag("0000000001", m_file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_file.delete();
+        super.tearDown();
+    }
+
+    public void testParseRanges() {
+        assertRanges("bytes=0-99", 0, 99);
+        assertRanges("bytes=900-", 900, 999);
+        assertRanges("bytes=-100", 900, 999);
+        assertRanges("bytes=-5000", 0, 999);
+        assertRanges("bytes=990-5000", 990, 999);
+        // Sorted, overlapping and adjacent ones merged
+        assertRanges("bytes=500-599, 0-9, 5-20, 21-30", 0, 30, 500, 599);
+        // Out of the file
+        assertEquals(0, MediaServlet.parseRanges("bytes=1000-1100", 1000).size());
+        assertRanges("bytes=1000-1100,0-0", 0, 0);
+        // Not valid, ignored
+        assertNull(MediaServlet.parseRanges("bytes=10-5", 1000));
+        assertNull(MediaServlet.parseRanges("bytes=a-b", 1000));
+        assertNull(MediaServlet.parseRanges("items=0-5", 1000));
+    }
+
+    public void testMatchesETag() {
+        assertTrue(MediaServlet.matchesETag("\"x\", " + m_etag, m_etag, false));
+        assertTrue(MediaServlet.matchesETag("W/" + m_etag, m_etag, true));
+        assertFalse(MediaServlet.matchesETag("W/" + m_etag, m_etag, false));
+        assertFalse(MediaServlet.matchesETag("\"x\"", m_etag, true));
+    }
+
+    public void testWholeFile() throws Exception {
+        MockHttpServletResponse response = send(new MockHttpServletRequest());
+        assertEquals(200, response.getStatus());
+        assertEquals(m_etag, response.getHeader("ETag"));
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertEquals("audio/x-wav", response.getContentType());
+        assertEquals(1000, response.getContentLength());
+        assertTrue(Arrays.equals(m_data, response.getContentAsByteArray()));
+    }
+
+    public void testSingleRange() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Range", "bytes=100-199");
+        MockHttpServletResponse response = send(request);
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader("Content-Range"));
+        assertEquals(100, response.getContentLength());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(m_data, 100, 200), response.getContentAsByteArray()));
+    }
+
+    public void testMultipleRanges() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Range", "bytes=0-1,-2");
+        MockHttpServletResponse response = send(request);
+        assertEquals(206, response.getStatus());
+        assertEquals("multipart/byteranges; boundary=sipxivr_byteranges", response.getContentType());
+        byte[] body = response.getContentAsByteArray();
+        assertEquals(body.length, response.getContentLength());
+        String text = new String(body, "ISO-8859-1");
+        String expected = "\r\n--sipxivr_byteranges\r\nContent-Type: audio/x-wav\r\n"
+                + "Content-Range: bytes 0-1/1000\r\n\r\n\u0000\u0001"
+                + "\r\n--sipxivr_byteranges\r\nContent-Type: audio/x-wav\r\n"
+                + "Content-Range: bytes 998-999/1000\r\n\r\n"
+                + (char) (m_data[998] & 0xff) + (char) (m_data[999] & 0xff)
+                + "\r\n--sipxivr_byteranges--\r\n";
+        assertEquals(expected, text);
+    }
+
+    public void testNotSatisfiable() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Range", "bytes=2000-");
+        MockHttpServletResponse response = send(request);
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader("Content-Range"));
+    }
+
+    public void testNotModified() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", m_etag);
+        MockHttpServletResponse response = send(request);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        request = new MockHttpServletRequest();
+        request.addHeader("If-Modified-Since", Long.valueOf(m_file.lastModified()));
+        assertEquals(304, send(request).getStatus());
+
+        request = new MockHttpServletRequest();
+        request.addHeader("If-Modified-Since", Long.valueOf(m_file.lastModified() - 10000));
+        assertEquals(200, send(request).getStatus());
+
+        // If-None-Match that does not match wins over If-Modified-Since
+        request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", "\"other\"");
+        request.addHeader("If-Modified-Since", Long.valueOf(m_file.lastModified()));
+        assertEquals(200, send(request).getStatus());
+    }
+
+    public void testIfRange() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Range", "bytes=0-9");
+        request.addHeader("If-Range", m_etag);
+        assertEquals(206, send(request).getStatus());
+
+        request = new MockHttpServletRequest();
+        request.addHeader("Range", "bytes=0-9");
+        request.addHeader("If-Range", "\"changed\"");
+        MockHttpServletResponse response = send(request);
+        assertEquals(200, response.getStatus());
+        assertEquals(1000, response.getContentAsByteArray().length);
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        m_servlet.sendFile(request, response, m_file, m_etag);
+        return response;
+    }
+
+    private static void assertRanges(String header, long... expected) {
+        List<long[]> ranges = MediaServlet.parseRanges(header, 1000);
+        assertNotNull(header, ranges);
+        assertEquals(header, expected.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(header, expected[2 * i], ranges.get(i)[0]);
+            assertEquals(header, expected[2 * i + 1], ranges.get(i)[1]);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ *
+ *
+ * Copyright (c) 2011 eZuce, Inc. All rights reserved.
+ * Contributed to SIPfoundry under a Contributor Agreement
+ *
+ * This software is free software; you can redistribute it and/or modify it under
+ * the terms of the Affero General Public License (AGPL) as published by the
+ * Free Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ */
+package org.sipfoundry.voicemail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.voicemail.mailbox.MailboxDetails;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MwiTest extends TestCase {
+    private static final long DEBOUNCE = 1000;
+    private static final long MAX_DELAY = 5000;
+    private static final long RETRY = 100;
+
+    private final List<String> m_posts = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger m_failures = new AtomicInteger();
+    private HttpServer m_server;
+    private TestMwi m_mwi;
+
+    /*
+     * Runs on a clock set by the test. Nothing is scheduled, the test flushes itself.
+     */
+    private static class TestMwi extends Mwi {
+        private long m_now;
+        private long m_scheduled = -1;
+
+        @Override
+        long currentTimeMillis() {
+            return m_now;
+        }
+
+        @Override
+        synchronized void scheduleFlush(long time, long now) {
+            m_scheduled = time;
+        }
+
+        void flushAt(long now) {
+            m_now = now;
+            flush();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        m_server.createContext("/cgi", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                String body = IOUtils.toString(in, "UTF-8");
+                in.close();
+                int status = 200;
+                if (m_failures.getAndDecrement() > 0) {
+                    status = 500;
+                } else {
+                    m_posts.add(body);
+                }
+                exchange.sendResponseHeaders(status, -1);
+                OutputStream out = exchange.getResponseBody();
+                out.close();
+            }
+        });
+        m_server.start();
+        m_mwi = new TestMwi();
+        m_mwi.setMwiUrl("http://127.0.0.1:" + m_server.getAddress().getPort() + "/cgi");
+        m_mwi.setDebounceMillis(DEBOUNCE);
+        m_mwi.setMaxDelayMillis(MAX_DELAY);
+        m_mwi.setRetryMillis(RETRY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_server.stop(0);
+        super.tearDown();
+    }
+
+    public void testCoalesce() throws Exception {
+        User user = user("200@example.com");
+        for (int i = 1; i <= 50; i++) {
+            m_mwi.m_now = i * 10;
+            m_mwi.sendMWI(user, mailbox(i, 0));
+        }
+        m_mwi.sendMWI(user("201@example.com"), mailbox(1, 1));
+        assertEquals(500 + DEBOUNCE, m_mwi.m_scheduled);
+        m_mwi.flushAt(500 + DEBOUNCE);
+        assertEquals(2, m_posts.size());
+        assertTrue(m_posts.get(0).startsWith("eventType=message-summary&identity=200%40example.com\r\n"));
+        assertTrue(m_posts.get(0).contains("Voice-Message: 50/0 (0/0)\r\n"));
+        assertTrue(m_posts.get(1).contains("Voice-Message: 1/1 (0/0)\r\n"));
+    }
+
+    public void testChangeRestartsWait() throws Exception {
+        User user = user("200@example.com");
+        m_mwi.sendMWI(user, mailbox(1, 0));
+        m_mwi.m_now = DEBOUNCE - 100;
+        m_mwi.sendMWI(user, mailbox(2, 0));
+        assertEquals(2 * DEBOUNCE - 100, m_mwi.m_scheduled);
+        m_mwi.flushAt(DEBOUNCE);
+        assertEquals(0, m_posts.size());
+        m_mwi.flushAt(2 * DEBOUNCE - 100);
+        assertEquals(1, m_posts.size());
+        assertTrue(m_posts.get(0).contains("Voice-Message: 2/0 (0/0)\r\n"));
+    }
+
+    public void testMaxDelay() throws Exception {
+        User user = user("200@example.com");
+        // A change every half debounce: only the maximum delay ends the wait
+        for (long now = 0; now <= MAX_DELAY + DEBOUNCE; now += DEBOUNCE / 2) {
+            m_mwi.flushAt(now);
+            assertEquals(now < MAX_DELAY ? 0 : 1, m_posts.size());
+            m_mwi.sendMWI(user, mailbox((int) (now / (DEBOUNCE / 2)) + 1, 0));
+        }
+        assertTrue(m_posts.get(0).contains("Voice-Message: 10/0 (0/0)\r\n"));
+    }
+
+    public void testRetry() throws Exception {
+        m_failures.set(2);
+        m_mwi.sendMWI(user("200@example.com"), mailbox(3, 1));
+        m_mwi.flushAt(DEBOUNCE);
+        m_mwi.flushAt(DEBOUNCE + RETRY);
+        assertEquals(0, m_posts.size());
+        // Twice as long the second time
+        m_mwi.flushAt(DEBOUNCE + 3 * RETRY - 1);
+        assertEquals(0, m_posts.size());
+        m_mwi.flushAt(DEBOUNCE + 3 * RETRY);
+        assertEquals(1, m_posts.size());
+        assertTrue(m_posts.get(0).contains("Voice-Message: 3/1 (0/0)\r\n"));
+    }
+
+    public void testChangeReplacesRetry() throws Exception {
+        User user = user("200@example.com");
+        m_failures.set(1);
+        m_mwi.sendMWI(user, mailbox(3, 1));
+        m_mwi.flushAt(DEBOUNCE);
+        m_mwi.m_now = DEBOUNCE + RETRY / 2;
+        m_mwi.sendMWI(user, mailbox(4, 1));
+        // Not retried, the new status waits for its own debounce
+        m_mwi.flushAt(DEBOUNCE + RETRY);
+        assertEquals(0, m_posts.size());
+        m_mwi.flushAt(2 * DEBOUNCE + RETRY / 2);
+        assertEquals(1, m_posts.size());
+        assertTrue(m_posts.get(0).contains("Voice-Message: 4/1 (0/0)\r\n"));
+    }
+
+    public void testGiveUp() throws Exception {
+        m_mwi.setMaxRetries(1);
+        m_failures.set(2);
+        m_mwi.sendMWI(user("200@example.com"), mailbox(3, 1));
+        m_mwi.flushAt(DEBOUNCE);
+        m_mwi.flushAt(DEBOUNCE + RETRY);
+        m_mwi.flushAt(100 * DEBOUNCE);
+        assertEquals(0, m_posts.size());
+        // The first try and one retry
+        assertEquals(0, m_failures.get());
+    }
+
+    private static User user(String identity) {
+        User user = new User();
+        user.setIdentity(identity);
+        return user;
+    }
+
+    private static MailboxDetails mailbox(int unheard, int heard) {
+        List<String> inbox = new ArrayList<String>();
+        List<String> unheardIds = new ArrayList<String>();
+        for (int i = 0; i < unheard + heard; i++) {
+            String id = String.format("%010d", i);
+            inbox.add(id);
+            if (i < unheard) {
+                unheardIds.add(id);
+            }
+        }
+        return new MailboxDetails("200", inbox, new ArrayList<String>(), new ArrayList<String>(),
+                new ArrayList<String>(), unheardIds);
+    }
+}
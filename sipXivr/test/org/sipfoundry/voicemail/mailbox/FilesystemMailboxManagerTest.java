@@ -2,18 +2,29 @@ package org.sipfoundry.voicemail.mailbox;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.sipfoundry.commons.userdb.User;
+import org.sipfoundry.voicemail.Mwi;
 
 public class FilesystemMailboxManagerTest extends TestCase {
     FilesystemMailboxManager m_mailboxManager;
+    MailboxDetails m_lastMwi;
 
     protected void setUp() throws Exception {
         super.setUp();
         m_mailboxManager = new FilesystemMailboxManager();
         m_mailboxManager.setMailstoreDirectory("/tmp/mailbox/");
+        m_mailboxManager.setMessageDescriptorReader(new MessageDescriptorReader());
+        m_mailboxManager.setMessageDescriptorWriter(new MessageDescriptorWriter());
+        m_mailboxManager.setMwiManager(new Mwi() {
+            public void sendMWI(User user, MailboxDetails mailbox) {
+                m_lastMwi = mailbox;
+            }
+        });
         m_mailboxManager.init();
         createUnHeardMessage("201", "01");
         createHeardMessage("201", "02");
@@ -58,25 +69,114 @@ public class FilesystemMailboxManagerTest extends TestCase {
         assertTrue(details.getDeleted().contains("00000005"));
     }
 
+    public void testMutations() throws IOException {
+        User user = new User();
+        user.setUserName("201");
+
+        m_mailboxManager.markMessageHeard(user, "00000001");
+        assertEquals(0, m_lastMwi.getUnheardCount());
+        assertFalse(new File("/tmp/mailbox/201/inbox/00000001-00.sta").exists());
+        m_mailboxManager.markMessageUnheard(user, "00000001");
+        assertEquals(1, m_lastMwi.getUnheardCount());
+        assertTrue(m_mailboxManager.isMessageUnHeard(user, "00000001"));
+
+        VmMessage message = m_mailboxManager.getVmMessage("201", Folder.INBOX, "00000001", false);
+        assertTrue(message.isUnHeard());
+        assertEquals("/tmp/mailbox/201/inbox/00000001-00.wav", message.getAudioFile().getPath());
+        m_mailboxManager.saveMessage(user, message);
+        assertEquals(2, m_lastMwi.getInboxCount());
+        assertEquals(2, m_lastMwi.getSavedCount());
+        assertTrue(new File("/tmp/mailbox/201/saved/00000001-00.xml").exists());
+
+        message = m_mailboxManager.getVmMessage("201", Folder.SAVED, "00000001", false);
+        m_mailboxManager.deleteMessage(user, message);
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(1, details.getSavedCount());
+        assertEquals(2, details.getDeletedCount());
+        assertTrue(details.getDeleted().contains("00000001"));
+
+        m_mailboxManager.moveMessageToFolder(user, "00000001", "inbox");
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        assertTrue(new File("/tmp/mailbox/201/inbox/00000001-00.xml").exists());
+        assertEquals("/tmp/mailbox/201/inbox/00000001-00.xml", m_mailboxManager.getVmMessage("201", "00000001",
+                false).getDescriptor().getFilePath());
+
+        m_mailboxManager.deleteMessage(user, "00000002");
+        assertFalse(new File("/tmp/mailbox/201/inbox/00000002-00.xml").exists());
+        assertEquals(2, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+
+        m_mailboxManager.removeDeletedMessages("201");
+        assertEquals(0, m_mailboxManager.getMailboxDetails("201").getDeletedCount());
+
+        try {
+            m_mailboxManager.getVmMessage("201", "00000099", false);
+            fail("No such message");
+        } catch (MessageNotFoundException ex) {
+            // expected
+        }
+    }
+
+    public void testExternalChanges() throws Exception {
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        /*
+         * Wait out the time in which a change cannot be told apart from the listing.
+         */
+        Thread.sleep(MailboxIndex.RACY_MILLIS + 100);
+        assertEquals(3, m_mailboxManager.getMailboxDetails("201").getInboxCount());
+        createUnHeardMessage("201", "08");
+        MailboxDetails details = m_mailboxManager.getMailboxDetails("201");
+        assertEquals(4, details.getInboxCount());
+        assertEquals(2, details.getUnheardCount());
+        FileUtils.forceDelete(new File("/tmp/mailbox/201/inbox/00000008-00.sta"));
+        assertEquals(1, m_mailboxManager.getMailboxDetails("201").getUnheardCount());
+    }
+
+    public void testDescriptors() {
+        User user = new User();
+        user.setUserName("202");
+        File descriptorFile = new File("/tmp/mailbox/202/inbox/00000006-00.xml");
+        MessageDescriptor descriptor = new MessageDescriptor();
+        descriptor.setId("202@example.com");
+        descriptor.setDurationSecs(12);
+        descriptor.setSubject("Voice Message 00000006");
+        new MessageDescriptorWriter().writeObject(descriptor, descriptorFile);
+
+        List<VmMessage> messages = m_mailboxManager.getMessages("202", Folder.INBOX);
+        assertEquals(1, messages.size());
+        assertEquals("Voice Message 00000006", messages.get(0).getDescriptor().getSubject());
+        messages.get(0).getDescriptor().setSubject("changed by the caller");
+
+        m_mailboxManager.updateMessageSubject(user, "00000006", "Updated");
+        assertEquals("Updated", m_mailboxManager.getVmMessage("202", Folder.INBOX, "00000006", false)
+                .getDescriptor().getSubject());
+        assertEquals("Updated", new MessageDescriptorReader().readObject(descriptorFile).getSubject());
+        assertEquals(12, m_mailboxManager.getMessages("202", Folder.INBOX).get(0).getDescriptor()
+                .getDurationSecsLong());
+    }
+
+    private void createDescriptor(String path) throws IOException {
+        FileUtils.writeStringToFile(new File(path), "<messagedescriptor><priority>normal</priority></messagedescriptor>");
+    }
+
     private void createUnHeardMessage(String username, String id) throws IOException {
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.sta", username, Folder.INBOX, id)));
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.wav", username, Folder.INBOX, id)));
-        FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.INBOX, id)));
+        createDescriptor(String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.INBOX, id));
     }
 
     private void createHeardMessage(String username, String id) throws IOException {
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.wav", username, Folder.INBOX, id)));
-        FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.INBOX, id)));
+        createDescriptor(String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.INBOX, id));
     }
 
     private void createSavedMessage(String username, String id) throws IOException {
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.wav", username, Folder.SAVED, id)));
-        FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.SAVED, id)));
+        createDescriptor(String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.SAVED, id));
     }
 
     private void createDeletedMessage(String username, String id) throws IOException {
         FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.wav", username, Folder.DELETED, id)));
-        FileUtils.touch(new File (String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.DELETED, id)));
+        createDescriptor(String.format("/tmp/mailbox/%s/%s/000000%s-00.xml", username, Folder.DELETED, id));
     }
 
 }
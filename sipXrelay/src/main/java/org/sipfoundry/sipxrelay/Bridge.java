@@ -46,6 +46,11 @@ final class Bridge implements BridgeInterface {
 
     long packetsSent = 0;
 
+    /*
+     * The shuffler thread that services this bridge. All the syms of the bridge are
+     * registered with this shuffler.
+     */
+    private final DataShuffler shuffler;
     
     // ///////////////////////////////////////////////////////////////////////////////////
     // Private methods.
@@ -54,7 +59,11 @@ final class Bridge implements BridgeInterface {
         BridgeState oldState = this.state;
         this.state = newState;
         if (oldState != newState) {
-            DataShuffler.initializeSelectors();
+            for (Sym sym : this.sessions) {
+                if (sym.getReceiver() != null) {
+                    shuffler.updateRegistration(sym.getReceiver().getDatagramChannel());
+                }
+            }
         }
 
     }
@@ -67,7 +76,15 @@ final class Bridge implements BridgeInterface {
      * Default constructor.
      */
     public Bridge() {
+        this(DataShuffler.assignShuffler());
+    }
+
+    /**
+     * Constructor for a bridge pinned to the given shuffler.
+     */
+    Bridge(DataShuffler shuffler) {
         id = "bridge:" + Long.toString(Math.abs(new Random().nextLong()));
+        this.shuffler = shuffler;
     }
 
     /**
@@ -108,6 +125,21 @@ final class Bridge implements BridgeInterface {
 
     }
 
+    /**
+     * @return the estimated MOS of the worst stream of this bridge or -1 if no RTP was
+     *         received.
+     */
+    double getMos() {
+        double worst = -1;
+        for (Sym sym : this.sessions.getSymArray()) {
+            double mos = sym.getRtpStatistics().getMos();
+            if (mos >= 0 && (worst < 0 || mos < worst)) {
+                worst = mos;
+            }
+        }
+        return worst;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -119,6 +151,12 @@ final class Bridge implements BridgeInterface {
 
         }
 
+        double mos = this.getMos();
+        if (mos >= 0 && this.state != BridgeState.TERMINATED) {
+            logger.info(String.format("Bridge %s estimated MOS %.2f", this.id, mos));
+            RelayMediaQuality.getInstance().recordCompletedBridge(mos);
+        }
+
         for (Sym sym : this.sessions) {
             sym.close();
         }
@@ -242,6 +280,13 @@ final class Bridge implements BridgeInterface {
         return this.creationTime;
     }
 
+    /**
+     * @return the shuffler that services this bridge.
+     */
+    DataShuffler getShuffler() {
+        return this.shuffler;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -272,8 +317,9 @@ final class Bridge implements BridgeInterface {
 
     Sym getReceiverSym(DatagramChannel datagramChannel) {
         Sym retval = null;
-        for (Sym sym : this.sessions ) {
-            if ( sym.getReceiver().getDatagramChannel() == datagramChannel ) {
+        for (Sym sym : this.sessions.getSymArray() ) {
+            SymEndpoint receiver = sym.getReceiver();
+            if ( receiver != null && receiver.getDatagramChannel() == datagramChannel ) {
                 retval = sym;
                 break;
             }
@@ -10,6 +10,8 @@
 
 package org.sipfoundry.sipxrelay;
 
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -19,28 +21,87 @@ package org.sipfoundry.sipxrelay;
 public class BridgeImpl implements BridgeInterface {
     
     private SymmitronClient symmitronClient;
-    private String id;
+    private volatile String id;
     private BridgeState state;
 
     protected BridgeImpl ( SymmitronClient symmitronClient ) throws SymmitronException {
+        this(symmitronClient, true);
+    }
+
+    /**
+     * @param createNow -- if false the bridge is created at the relay when it is first needed.
+     */
+    protected BridgeImpl ( SymmitronClient symmitronClient, boolean createNow ) throws SymmitronException {
         this.symmitronClient  = symmitronClient;
-        this.id = this.symmitronClient.createNewBridge();
+        if (createNow) {
+            this.id = this.symmitronClient.createNewBridge();
+        }
         this.state = BridgeState.INITIAL;
         
     }
 
+    private synchronized String ensureCreated() {
+        if (this.id == null) {
+            this.id = this.symmitronClient.createNewBridge();
+        }
+        return this.id;
+    }
+
+    String getIdIfCreated() {
+        return this.id;
+    }
+
+    synchronized void setId(String id) {
+        this.id = id;
+    }
+
+    void setState(BridgeState state) {
+        this.state = state;
+    }
+
+    /**
+     * Create a new even sym and add it to this bridge in a single round trip to the relay.
+     */
+    public synchronized SymImpl createSym() throws SymmitronException {
+        return this.symmitronClient.createBridgedSyms(this, new Map[] {
+            new HashMap<String, Object>()
+        }, false)[0];
+    }
+
+    /**
+     * Create several even syms and add them to this bridge in a single round trip to the
+     * relay ( the syms of both legs of a call, say ).
+     */
+    public synchronized SymImpl[] createSyms(int count) throws SymmitronException {
+        Map[] symSpecs = new Map[count];
+        for (int i = 0; i < count; i++) {
+            symSpecs[i] = new HashMap<String, Object>();
+        }
+        return createSyms(symSpecs, false);
+    }
+
+    /**
+     * Create syms, set the destinations and keepalives that are already known ( see
+     * SymmitronClient.createSymSpec ) and optionally start this bridge in a single round trip to
+     * the relay.
+     */
+    public synchronized SymImpl[] createSyms(Map[] symSpecs, boolean startBridge)
+            throws SymmitronException {
+        return this.symmitronClient.createBridgedSyms(this, symSpecs, startBridge);
+    }
+
     /* (non-Javadoc)
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#addSym(org.sipfoundry.sipxbridge.symmitron.Sym)
      */
      public void addSym(SymInterface sym) {
-       symmitronClient.addSym(id, sym);
+       symmitronClient.addSym(ensureCreated(), sym);
     }
 
     /* (non-Javadoc)
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#getId()
      */
      public String getId() {
-        return this.id;
+        return ensureCreated();
     }
 
     /* (non-Javadoc)
@@ -54,7 +115,7 @@ public class BridgeImpl implements BridgeInterface {
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#pause()
      */
     public void pause() {
-       symmitronClient.pauseBridge(this.id);
+       symmitronClient.pauseBridge(ensureCreated());
        this.state = BridgeState.PAUSED;
 
     }
@@ -63,14 +124,14 @@ public class BridgeImpl implements BridgeInterface {
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#removeSym(org.sipfoundry.sipxbridge.symmitron.Sym)
      */
     public void removeSym(SymInterface sym) {
-        symmitronClient.removeSym(this.id,sym);
+        symmitronClient.removeSym(ensureCreated(),sym);
     }
 
     /* (non-Javadoc)
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#resume()
      */
      public void resume() {
-       this.symmitronClient.resumeBridge(this.id);
+       this.symmitronClient.resumeBridge(ensureCreated());
        this.state = BridgeState.RUNNING;
 
     }
@@ -79,7 +140,13 @@ public class BridgeImpl implements BridgeInterface {
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#start()
      */
     public void start() throws IllegalStateException {
-      this.symmitronClient.startBridge(this.id);
+      /*
+       * Already started by createSyms. Starting a running bridge does nothing at the relay.
+       */
+      if (this.state == BridgeState.RUNNING) {
+          return;
+      }
+      this.symmitronClient.startBridge(ensureCreated());
       this.state = BridgeState.RUNNING;
 
     }
@@ -88,7 +155,12 @@ public class BridgeImpl implements BridgeInterface {
      * @see org.sipfoundry.sipxbridge.symmitron.BridgeInterface#stop()
      */
     public void stop() {
-        this.symmitronClient.destroyBridge(this.id);
+        /*
+         * Nothing to destroy if the bridge was never created at the relay.
+         */
+        if (this.id != null) {
+            this.symmitronClient.destroyBridge(this.id);
+        }
         this.state = BridgeState.TERMINATED; 
 
     }
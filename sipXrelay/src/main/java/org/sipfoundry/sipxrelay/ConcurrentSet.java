@@ -10,6 +10,7 @@ package org.sipfoundry.sipxrelay;
  *  little utility is because java 5 does not support concurrent sets.
  * 
  */
+import java.net.InetSocketAddress;
 import java.nio.channels.DatagramChannel;
 import java.util.Collection;
 import java.util.Iterator;
@@ -24,9 +25,23 @@ class ConcurrentSet implements Set<Sym> {
 	private static Logger logger = Logger.getLogger(ConcurrentSet.class);
 
     Map<String, Sym> map = new ConcurrentHashMap<String, Sym>();
+
+    /*
+     * Snapshot of the syms for the forwarding path so that it does not allocate an iterator
+     * per packet. Rebuilt whenever the set changes.
+     */
+    private volatile Sym[] symArray = new Sym[0];
+
     private Bridge bridge;
     private static Map<DatagramChannel,Bridge> bridgeMap = 
         new ConcurrentHashMap<DatagramChannel,Bridge>();
+
+    /*
+     * The syms that belong to a bridge indexed by the local address of their receiver. Used to
+     * resolve self routed packets.
+     */
+    private static ConcurrentHashMap<InetSocketAddress, Sym> localAddressMap =
+        new ConcurrentHashMap<InetSocketAddress, Sym>();
     
     public ConcurrentSet(Bridge bridge) {
         this.bridge = bridge;
@@ -37,16 +52,23 @@ class ConcurrentSet implements Set<Sym> {
     		logger.debug("addSym " + element.getId());
     	}
         map.put(element.getId(), element);
+        updateSymArray();
         if ( element.getBridge() != null  && element.getBridge() != this.bridge) {
             element.getBridge().removeSym(element);
         }
         element.setBridge(this.bridge);
         DatagramChannel channel = element.getReceiver().getDatagramChannel();
-        if (! bridgeMap.containsKey(channel)) {  
-            DataShuffler.initializeSelectors();
-           
+        InetSocketAddress localAddress = getLocalAddress(element);
+        if (localAddress != null) {
+            localAddressMap.put(localAddress, element);
+        }
+        Bridge previous = bridgeMap.put(channel, bridge);
+        if (previous != bridge) {
+            if (previous != null && previous.getShuffler() != bridge.getShuffler()) {
+                previous.getShuffler().updateRegistration(channel);
+            }
+            bridge.getShuffler().updateRegistration(channel);
         }
-        bridgeMap.put(channel, bridge);
         return true;
         
     }
@@ -56,8 +78,28 @@ class ConcurrentSet implements Set<Sym> {
     }
     
     public static void removeChannel(DatagramChannel channel) {
-        bridgeMap.remove(channel);
-        DataShuffler.initializeSelectors();
+        Bridge previous = bridgeMap.remove(channel);
+        if (previous != null) {
+            Sym sym = previous.getReceiverSym(channel);
+            InetSocketAddress localAddress = sym != null ? getLocalAddress(sym) : null;
+            if (localAddress != null) {
+                localAddressMap.remove(localAddress, sym);
+            }
+            previous.getShuffler().updateRegistration(channel);
+        }
+    }
+
+    private static InetSocketAddress getLocalAddress(Sym sym) {
+        SymEndpoint receiver = sym.getReceiver();
+        return receiver instanceof SymReceiverEndpoint ? ((SymReceiverEndpoint) receiver)
+                .getSocketAddress() : null;
+    }
+
+    /**
+     * @return the sym of a bridge whose receiver is bound to the given address or null.
+     */
+    static Sym getSymByLocalAddress(InetSocketAddress localAddress) {
+        return localAddressMap.get(localAddress);
     }
 
     public boolean addAll(Collection<? extends Sym> collection) {
@@ -69,6 +111,18 @@ class ConcurrentSet implements Set<Sym> {
 
     public void clear() {
         map.clear();
+        updateSymArray();
+    }
+
+    private synchronized void updateSymArray() {
+        this.symArray = map.values().toArray(new Sym[0]);
+    }
+
+    /**
+     * @return the syms of this set. The array must not be modified.
+     */
+    Sym[] getSymArray() {
+        return this.symArray;
     }
 
     public boolean contains(Object obj) {
@@ -92,11 +146,16 @@ class ConcurrentSet implements Set<Sym> {
 
     public boolean remove(Object obj) {
         this.map.remove(((Sym)obj).getId());
+        updateSymArray();
         ((Sym)obj).setBridge(null);
         Sym element = ( Sym ) obj;
         DatagramChannel channel = element.getReceiver().getDatagramChannel();
+        InetSocketAddress localAddress = getLocalAddress(element);
+        if (localAddress != null) {
+            localAddressMap.remove(localAddress, element);
+        }
         bridgeMap.remove(channel);
-        DataShuffler.initializeSelectors();
+        this.bridge.getShuffler().updateRegistration(channel);
        
         
         return true;
@@ -106,6 +165,7 @@ class ConcurrentSet implements Set<Sym> {
         for (Object obj : collection) {
             this.map.remove(obj);
         }
+        updateSymArray();
         return true;
     }
 
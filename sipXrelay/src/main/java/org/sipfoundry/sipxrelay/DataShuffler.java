@@ -5,16 +5,21 @@
  *
  */
 /**
- * This is in charge of shuffling data. There is a single thread that shuffles data for all bridges.
+ * This is in charge of shuffling data. There is a configurable number of shuffler threads
+ * (shards). Each shard has its own selector and its own receive buffer and shuffles data for the
+ * bridges that are pinned to it. A bridge is pinned to a shard when it is created so all the syms
+ * of a bridge are always serviced by the same thread.
  * 
  */
 package org.sipfoundry.sipxrelay;
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -22,35 +27,218 @@ import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections.list.SynchronizedList;
 import org.apache.log4j.Logger;
 
 class DataShuffler implements Runnable {
 
-    // The buffer into which we'll read data when it's available
-    private static ByteBuffer readBuffer = ByteBuffer.allocate(8192);
-    private static Selector selector;
     private static Logger logger = Logger.getLogger(DataShuffler.class.getPackage().getName());
 
-    private static AtomicBoolean initializeSelectors = new AtomicBoolean(true);
-    
     private static Random random = new Random();
     
-    private static long packetCounter = Math.abs(random.nextLong());
+    private static AtomicLong packetCounter = new AtomicLong(Math.abs(random.nextLong()));
+
+    /*
+     * The shards. Each shard is serviced by its own thread.
+     */
+    private static volatile DataShuffler[] shufflers;
+
+    private static AtomicInteger nextShuffler = new AtomicInteger(0);
+
+    /*
+     * The datagram I/O mode ( see PacketBatch ).
+     */
+    private static String batchIo = PacketBatch.NONE;
+
+    /*
+     * The buffers into which we read data when it's available. Only used by the shuffler
+     * thread.
+     */
+    private PacketBatch packetBatch;
+
+    private final Selector selector;
+
+    /*
+     * The array backed selected key set of our selector or null if it could not be installed.
+     */
+    private final SelectedKeySet selectedKeySet;
+
+    private SelectionKey[] readyKeys = new SelectionKey[1024];
+
+    /*
+     * Channels whose selector registration has to be updated by the shuffler thread.
+     */
+    private final Queue<DatagramChannel> pendingRegistrations = new ConcurrentLinkedQueue<DatagramChannel>();
     
-    private static List workQueue = SynchronizedList.decorate(new LinkedList<WorkItem>());
-        
- //   private static List workQueue = new LinkedList<WorkItem>();
-    public DataShuffler() {
+    /*
+     * Ports of closed channels that were registered with our selector. The socket of such a
+     * channel is only closed when the selector flushes its cancelled key so the port may not be
+     * handed out again before then.
+     */
+    private final Queue<PendingPortRelease> pendingPortReleases = new ConcurrentLinkedQueue<PendingPortRelease>();
+
+    /*
+     * Keepalive buffers of transmitters closed by other threads. They go back to the pool from
+     * our thread so that a send or a keepalive we are running cannot still be using them.
+     */
+    private final Queue<ByteBuffer> pendingBufferReleases = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private List workQueue = SynchronizedList.decorate(new LinkedList<WorkItem>());
+
+    private final int shufflerId;
+
+    private Thread shufflerThread;
+
+    /*
+     * Per shard counters.
+     */
+    private final AtomicLong packetsReceived = new AtomicLong(0);
+
+    private final AtomicLong packetsSent = new AtomicLong(0);
+
+    private final AtomicLong packetsHandedOff = new AtomicLong(0);
+
+    private final AtomicLong handOffsDropped = new AtomicLong(0);
+
+    /*
+     * Bridges that send to each other are pinned to one shard when they are created (see
+     * SymmitronServer.createBridgedSyms) so hand offs only happen for pairs discovered later.
+     * The hand off slots are bounded and reused, a packet is dropped when they are all in use.
+     */
+    static final int HANDOFF_CAPACITY = 256;
 
+    static final int HANDOFF_BUFFER_SIZE = 2048;
+
+    /*
+     * Self routed packets handed to us by the other shards ( see handOffSelfRouted ). Not a
+     * work item: the work queue is drained under our monitor.
+     */
+    private final BlockingQueue<HandedOffPacket> handedOffPackets = new ArrayBlockingQueue<HandedOffPacket>(
+            HANDOFF_CAPACITY);
+
+    private final BlockingQueue<HandedOffPacket> freeHandOffSlots = new ArrayBlockingQueue<HandedOffPacket>(
+            HANDOFF_CAPACITY);
+
+    private final AtomicInteger handOffSlotCount = new AtomicInteger(0);
+
+    private final DirectBufferPool handOffBufferPool = new DirectBufferPool(HANDOFF_CAPACITY,
+            HANDOFF_BUFFER_SIZE);
+
+    /*
+     * A reusable hand off slot. Filled by the sending shard, emptied by ours.
+     */
+    private static final class HandedOffPacket {
+        Sym sym;
+
+        InetSocketAddress farEnd;
+
+        final ByteBuffer packet;
+
+        long stamp;
+
+        HandedOffPacket(ByteBuffer packet) {
+            this.packet = packet;
+        }
+    }
+
+    private static final class PendingPortRelease {
+        final DatagramChannel datagramChannel;
+
+        final PortRange portRange;
+
+        PendingPortRelease(DatagramChannel datagramChannel, PortRange portRange) {
+            this.datagramChannel = datagramChannel;
+            this.portRange = portRange;
+        }
+    }
+
+    DataShuffler(int shufflerId) {
+        this.shufflerId = shufflerId;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException ex) {
+            throw new SymmitronException("Could not open selector", ex);
+        }
+        this.selectedKeySet = SelectedKeySet.install(this.selector);
+        this.packetBatch = PacketBatch.create(batchIo, this.selector);
     }
 
-    private static synchronized void checkWorkQueue() {
+    /**
+     * Create the shufflers. Only the first call has any effect.
+     * 
+     * @param shufflerCount -- the number of shuffler threads.
+     */
+    static synchronized void initialize(int shufflerCount) {
+        initialize(shufflerCount, PacketBatch.NONE);
+    }
+
+    /**
+     * Create the shufflers. Only the first call has any effect.
+     * 
+     * @param shufflerCount -- the number of shuffler threads.
+     * @param batchIoMode -- the datagram I/O mode ( none, nio or native ).
+     */
+    static synchronized void initialize(int shufflerCount, String batchIoMode) {
+        if (shufflers != null) {
+            return;
+        }
+        if (shufflerCount < 1) {
+            throw new IllegalArgumentException("Bad shuffler count " + shufflerCount);
+        }
+        batchIo = batchIoMode;
+        DataShuffler[] newShufflers = new DataShuffler[shufflerCount];
+        for (int i = 0; i < shufflerCount; i++) {
+            newShufflers[i] = new DataShuffler(i);
+        }
+        shufflers = newShufflers;
+    }
+
+    /**
+     * Start a thread for each of the shufflers.
+     */
+    static synchronized void startShufflers() {
+        if (shufflers == null) {
+            initialize(1);
+        }
+        for (DataShuffler shuffler : shufflers) {
+            if (shuffler.shufflerThread == null) {
+                shuffler.shufflerThread = new Thread(shuffler, "DataShuffler-" + shuffler.shufflerId);
+                shuffler.shufflerThread.start();
+            }
+        }
+    }
+
+    /**
+     * Pick the shuffler to which a new bridge is pinned. Bridges are handed out round robin.
+     */
+    static DataShuffler assignShuffler() {
+        if (shufflers == null) {
+            initialize(1);
+        }
+        int index = (nextShuffler.getAndIncrement() & Integer.MAX_VALUE) % shufflers.length;
+        return shufflers[index];
+    }
+
+    static DataShuffler[] getShufflers() {
+        if (shufflers == null) {
+            initialize(1);
+        }
+        return shufflers;
+    }
+
+    private synchronized void checkWorkQueue() {
+        if (workQueue.isEmpty()) {
+            return;
+        }
 		Iterator<WorkItem> it = null;
 
 		it = workQueue.iterator();
@@ -66,41 +254,71 @@ class DataShuffler implements Runnable {
 		}
 	}
     
-    private static synchronized void initializeSelector() {
-
-        try {
-        	checkWorkQueue();
-        	
-            if (selector != null) {
-                selector.close();
-            }
-            selector = Selector.open();
-
-            for (Bridge bridge : ConcurrentSet.getBridges()) {
-
-                for (Sym session : bridge.sessions) {
-                    try {
-                        if (session.getReceiver() != null
-                                && bridge.getState() == BridgeState.RUNNING
-                                && session.getReceiver().getDatagramChannel().isOpen()) {
-
-                            session.getReceiver().getDatagramChannel().configureBlocking(false);
-                            session.getReceiver().getDatagramChannel().register(selector,
-                                    SelectionKey.OP_READ);
-                        }
-                    } catch (ClosedChannelException ex) {
-                        // Avoid loading any closed channels in our select set.
-                        continue;
+    /**
+     * Bring the registration of each pending channel with our selector in line with the state
+     * of the bridge that owns it. A channel is registered when it belongs to a running bridge
+     * pinned to this shuffler and its key is cancelled otherwise. The selector itself is never
+     * closed so the cost of a bridge setup or teardown does not depend on the number of active
+     * bridges. Must be called from the shuffler thread after select() returns so that keys
+     * cancelled previously have been flushed from the selector.
+     */
+    private void processRegistrations() {
+        List<DatagramChannel> retry = null;
+        DatagramChannel datagramChannel;
+        while ((datagramChannel = pendingRegistrations.poll()) != null) {
+            Bridge bridge = ConcurrentSet.getBridge(datagramChannel);
+            boolean register = datagramChannel.isOpen() && bridge != null
+                    && bridge.getShuffler() == this && bridge.getState() == BridgeState.RUNNING;
+            SelectionKey key = datagramChannel.keyFor(selector);
+            try {
+                if (register) {
+                    if (key == null || !key.isValid()) {
+                        datagramChannel.configureBlocking(false);
+                        datagramChannel.register(selector, SelectionKey.OP_READ, bridge
+                                .getReceiverSym(datagramChannel));
                     }
+                } else if (key != null) {
+                    key.cancel();
+                }
+            } catch (CancelledKeyException ex) {
+                /*
+                 * The channel was cancelled and re-added before the selector flushed the old
+                 * key. Try again after the next select.
+                 */
+                if (retry == null) {
+                    retry = new LinkedList<DatagramChannel>();
                 }
-                initializeSelectors.set(false);
+                retry.add(datagramChannel);
+            } catch (ClosedChannelException ex) {
+                // Avoid loading any closed channels in our select set.
+                continue;
+            } catch (IOException ex) {
+                logger.error("Unexpected exception registering channel", ex);
             }
-
-        } catch (IOException ex) {
-            logger.error("Unepxected exception", ex);
-            return;
         }
+        if (retry != null) {
+            pendingRegistrations.addAll(retry);
+            selector.wakeup();
+        }
+    }
 
+    /*
+     * Copy the selected keys into readyKeys and clear the selected key set. Only used when the
+     * selected key set of the selector could not be replaced.
+     */
+    private int copySelectedKeys() {
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        int count = 0;
+        for (SelectionKey key : selectedKeys) {
+            if (count == readyKeys.length) {
+                SelectionKey[] newKeys = new SelectionKey[count * 2];
+                System.arraycopy(readyKeys, 0, newKeys, 0, count);
+                readyKeys = newKeys;
+            }
+            readyKeys[count++] = key;
+        }
+        selectedKeys.clear();
+        return count;
     }
 
     /**
@@ -108,35 +326,44 @@ class DataShuffler implements Runnable {
      * bridge.
      * 
      * <pre>
-     * send(bridge,datagramChannel, addressWherePacketCameFrom) :
+     * send(bridge,receivedOn, addressWherePacketCameFrom) :
      *    for each sym in bridge do :
-     *       if sym.receiver.datagramChannel == datagramChannel &amp;&amp; sym.isAutoLearn
+     *       if sym == receivedOn &amp;&amp; sym.isAutoLearn
      *           sym.receiver.farEnd = addressWherePacketCameFrom
      *       else if sym.transmitter.state == RUNNING :
      *          sym.transmitter.send(byteBuffer)
      * </pre>
      * 
+     * The syms of the bridge are read from a precomputed array and the sym on which the packet
+     * was received is handed in ( it is attached to the selection key of its channel ) so the
+     * work per packet does not depend on the size of the bridge beyond the forwarding itself.
+     * 
      * @param bridge -- the bridge to forward through.
-     * @param datagramChannel -- datagramChannel on which packet was received.
+     * @param receivedOn -- the sym whose receiver channel the packet was received on.
      * @param remoteAddress -- remote address to send to.
+     * @param packet -- the packet to forward (flipped, ready to be sent). It is rewound for each
+     *        target so its position is not preserved.
+     * @param packetBatch -- the I/O of the calling shuffler thread.
      * @throws UnknownHostException -- if there was a problem with the specified remote address.
      */
-    public static void send(Bridge bridge, DatagramChannel datagramChannel,
-            InetSocketAddress remoteAddress, long stamp, boolean selfRouted) throws UnknownHostException {
+    public static void send(Bridge bridge, Sym receivedOn,
+            InetSocketAddress remoteAddress, ByteBuffer packet, long stamp, boolean selfRouted,
+            PacketBatch packetBatch) throws UnknownHostException {
+        int packetPosition = packet.position();
+        int packetLimit = packet.limit();
         try {
 
             if (logger.isTraceEnabled()) {
                 logger.trace("DataShuffler.send(): BridgeSize = " + bridge.sessions.size());
             }
             /* xx-5907 sipxrelay needs to guard against stray media streams. */
-            Sym receivedOn = bridge.getReceiverSym(datagramChannel);
-            if ( logger.isTraceEnabled() ) {
-                logger.trace("DataShuffler : received packet on symId " + receivedOn.getId() );
-            }
-            if ( !selfRouted && receivedOn == null ) {
+            if ( receivedOn == null ) {
                 logger.error("Could not find bridge on which packet was received. Dropping packet");
                 return;
             }
+            if ( logger.isTraceEnabled() ) {
+                logger.trace("DataShuffler : received packet on symId " + receivedOn.getId() );
+            }
             if (remoteAddress == null) {
                 logger.warn("remoteAddress is null cannot send. Dropping packet.");
                 return;
@@ -173,9 +400,8 @@ class DataShuffler implements Runnable {
                 }
             }
             
-            for (Sym sym : bridge.sessions) {
-                if (sym.getReceiver() != null
-                        && datagramChannel == sym.getReceiver().getDatagramChannel()) {
+            for (Sym sym : bridge.sessions.getSymArray()) {
+                if (sym == receivedOn) {
                     if (logger.isTraceEnabled() && remoteAddress != null) {
                         logger.trace("remoteIpAddressAndPort : "
                                 + remoteAddress.getAddress().getHostAddress() + ":"
@@ -184,6 +410,8 @@ class DataShuffler implements Runnable {
                     }
                     sym.lastPacketTime = System.currentTimeMillis();
                     sym.packetsReceived++;
+                    sym.getRtpStatistics().update(packet, packetPosition,
+                            packetLimit - packetPosition, System.nanoTime());
 
                     bridge.setLastPacketTime(sym.lastPacketTime);
 
@@ -202,20 +430,16 @@ class DataShuffler implements Runnable {
                                     if ( sym.getTransmitter().getIpAddress() != null ) {
                                         continue;
                                     } else {
-                                        String remoteHostAddress = remoteAddress.getAddress().getHostAddress();
-                                        int remotePort = remoteAddress.getPort();
-                                        /* This search is done just once on the first auto address discovery for a self
-                                        * routed packet. Hence the loop is not too alarming subsequently, you dont ever have to look again.
-                                        * However, there is probably a better way to do this.
-                                        */
-                                        for ( Sym tsym : SymmitronServer.getSyms() ) {
-                                            if (tsym.getTransmitter() != null &&  tsym.getTransmitter().getIpAddress() != null && 
-                                                    tsym.getTransmitter().getIpAddress().equals(remoteHostAddress) && 
-                                                    tsym.getTransmitter().getPort() == remotePort ) {
-                                                logger.debug("linking syms for self routed packet ");
-                                                sym.getTransmitter().setIpAddressAndPort(tsym.getReceiver().getIpAddress(), tsym.getReceiver().getPort());
-                                                break;
-                                            }
+                                        /* 
+                                         * Find the sym whose transmitter sent this packet. This is done just once
+                                         * on the first auto address discovery for a self routed packet.
+                                         */
+                                        SymTransmitterEndpoint peer = SymTransmitterEndpoint
+                                                .getTransmitter(remoteAddress);
+                                        Sym tsym = peer != null ? peer.getSym() : null;
+                                        if (tsym != null && tsym.getReceiver() != null) {
+                                            logger.debug("linking syms for self routed packet ");
+                                            sym.getTransmitter().setIpAddressAndPort(tsym.getReceiver().getIpAddress(), tsym.getReceiver().getPort());
                                         }
                                         if ( logger.isTraceEnabled()) {
                                             for ( Bridge br : SymmitronServer.getBridges() ) {
@@ -228,15 +452,22 @@ class DataShuffler implements Runnable {
                                     	if ( logger.isTraceEnabled() ) {
                                     		logger.trace("autoDiscovery : setting Ip addess and port : autoDiscovery flag " + autoDiscoveryFlag);
                                     	}
-                                        sym.getTransmitter().setIpAddressAndPort(
-                                                remoteAddress.getAddress().getHostAddress(),
-                                                remoteAddress.getPort());
+                                        /*
+                                         * Only when it changed. Setting the address resolves it.
+                                         */
+                                        if (!remoteAddress.equals(sym.getTransmitter().getSocketAddress())) {
+                                            sym.getTransmitter().setIpAddressAndPort(
+                                                    remoteAddress.getAddress().getHostAddress(),
+                                                    remoteAddress.getPort());
+                                        }
                                     } else if (autoDiscoveryFlag == AutoDiscoveryFlag.PORT_ONLY) {
                                         // Only update the remote port when the IP address matches. OR if the address is not yet set.  
                                     	if ( logger.isTraceEnabled () ) {
                                      		logger.trace("autoDiscovery : setting port : autoDiscovery flag " + autoDiscoveryFlag);          
                                     	}
-                                         sym.getTransmitter().setPort(remoteAddress.getPort());
+                                        if (sym.getTransmitter().getPort() != remoteAddress.getPort()) {
+                                            sym.getTransmitter().setPort(remoteAddress.getPort());
+                                        }
                                     }
                                 }
                             }
@@ -255,16 +486,18 @@ class DataShuffler implements Runnable {
                 try {
 
                     /*
-                     * No need for header rewrite. Just duplicate, flip and push out. Important:
-                     * We cannot do this outside the loop. See XECS-2425.
+                     * No need for header rewrite. Just rewind and push out. Sending consumes the
+                     * packet so we cannot do this outside the loop. See XECS-2425. The packet is
+                     * rewound rather than duplicated so nothing is allocated per target.
                      */
                     if (!writeChannel.isOnHold()) {
                         if (!sym.isVisited(stamp)) {
                             sym.setVisited(stamp);
-                            ByteBuffer bufferToSend = readBuffer.duplicate();
-                            bufferToSend.flip();
-                            writeChannel.send((ByteBuffer) bufferToSend,stamp);
+                            packet.limit(packetLimit);
+                            packet.position(packetPosition);
+                            writeChannel.send(packet, stamp, packetBatch);
                             bridge.packetsSent++;
+                            bridge.getShuffler().packetsSent.incrementAndGet();
                             writeChannel.packetsSent++;
                         } else {
                             if (logger.isTraceEnabled()) {
@@ -305,7 +538,7 @@ class DataShuffler implements Runnable {
     public void run() {
 
         // Wait for an event one of the registered channels
-        logger.debug("Starting Shuffler");
+        logger.debug("Starting Shuffler " + shufflerId);
 
         while (true) {
             Bridge bridge = null;
@@ -313,25 +546,40 @@ class DataShuffler implements Runnable {
                 
                
 
-                if (initializeSelectors.get()) {
-                    initializeSelector();
+                selector.select();
+
+                if (!pendingPortReleases.isEmpty()) {
+                    releaseClosedPorts();
                 }
 
-                selector.select();
+                if (!pendingBufferReleases.isEmpty()) {
+                    releaseKeepaliveBuffers();
+                }
+
+                processRegistrations();
                 
                 checkWorkQueue();
-                
+
+                sendHandedOffPackets();
                
                 
                 // Iterate over the set of keys for which events are
                 // available
-                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
-                while (selectedKeys.hasNext()) {
-                    SelectionKey key = (SelectionKey) selectedKeys.next();
+                SelectionKey[] selectedKeys;
+                int selectedCount;
+                if (selectedKeySet != null) {
+                    selectedKeys = selectedKeySet.keys;
+                    selectedCount = selectedKeySet.size;
+                } else {
+                    selectedCount = copySelectedKeys();
+                    selectedKeys = this.readyKeys;
+                }
+                for (int i = 0; i < selectedCount; i++) {
+                    SelectionKey key = selectedKeys[i];
                     // The key must be removed or you can get one way audio ( i.e. will read a
                     // null byte ).
                     // (see issue 2075 ).
-                    selectedKeys.remove();
+                    selectedKeys[i] = null;
                     if (!key.isValid()) {
                         if (logger.isDebugEnabled()) {
                             logger.debug("Discarding packet:Key not valid");
@@ -340,7 +588,6 @@ class DataShuffler implements Runnable {
                         continue;
                     }
                     if (key.isReadable()) {
-                        readBuffer.clear();
                         DatagramChannel datagramChannel = (DatagramChannel) key.channel();
                         if (!datagramChannel.isOpen()) {
                             if (logger.isDebugEnabled()) {
@@ -349,15 +596,18 @@ class DataShuffler implements Runnable {
                             }
                             continue;
                         }
-                        bridge = ConcurrentSet.getBridge(datagramChannel);
-                        if (bridge == null) {
+                        /*
+                         * The sym is attached to the key when the channel is registered.
+                         */
+                        Sym packetReceivedSym = (Sym) key.attachment();
+                        bridge = packetReceivedSym != null ? packetReceivedSym.getBridge() : null;
+                        if (bridge == null || bridge.getShuffler() != this) {
                             if (logger.isDebugEnabled()) {
                                 logger
                                     .debug("DataShuffler: Discarding packet: Could not find bridge");
                             }
                             continue;
                         }
-                        Sym packetReceivedSym = bridge.getReceiverSym(datagramChannel);
                         /*
                          * Note the original hold value and put the transmitter on which this packet was received on hold.
                          */
@@ -370,10 +620,10 @@ class DataShuffler implements Runnable {
                         boolean holdValue = packetReceivedSym.getTransmitter().isOnHold();
                         packetReceivedSym.getTransmitter().setOnHold(true);
                        
-                        InetSocketAddress remoteAddress = (InetSocketAddress) datagramChannel
-                                .receive(readBuffer);
+                        int packetCount = packetBatch.receive(datagramChannel);
 
-                        bridge.pakcetsReceived++;
+                        bridge.pakcetsReceived += packetCount;
+                        this.packetsReceived.addAndGet(packetCount);
                         if (bridge.getState() != BridgeState.RUNNING) {
                             if (logger.isDebugEnabled()) {
                                 logger.debug("DataShuffler: Discarding packet: Bridge state is "
@@ -387,8 +637,11 @@ class DataShuffler implements Runnable {
                                     + datagramChannel.socket().getLocalPort());
                         }
 
-                        long stamp = getPacketCounter();
-                        send(bridge, datagramChannel, remoteAddress,stamp,false);
+                        for (int j = 0; j < packetCount; j++) {
+                            long stamp = getPacketCounter();
+                            send(bridge, packetReceivedSym, packetBatch.remoteAddresses[j],
+                                    packetBatch.packets[j], stamp, false, packetBatch);
+                        }
                         /*
                          * Reset the old value.
                          */
@@ -396,7 +649,15 @@ class DataShuffler implements Runnable {
 
                     }
                 }
+                packetBatch.flush();
+                if (selectedKeySet != null) {
+                    selectedKeySet.size = 0;
+                }
             } catch (Exception ex) {
+                packetBatch.discard();
+                if (selectedKeySet != null) {
+                    selectedKeySet.reset();
+                }
                 logger.error("Unexpected exception occured", ex);
                 if (bridge != null && bridge.sessions != null) {
                     for (Sym rtpSession : bridge.sessions) {
@@ -412,68 +673,260 @@ class DataShuffler implements Runnable {
 
     }
 
-    public static void initializeSelectors() {
-        initializeSelectors.set(true);
-        if (selector != null) {
+    /**
+     * Queue a channel so that its registration with our selector is updated on the shuffler
+     * thread.
+     * 
+     * @param datagramChannel -- the channel that was added, removed or whose bridge changed
+     *        state.
+     */
+    public void updateRegistration(DatagramChannel datagramChannel) {
+        if (datagramChannel == null) {
+            return;
+        }
+        pendingRegistrations.add(datagramChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Return the port of a closed channel to the port manager once the selector has let go of
+     * the channel.
+     */
+    void releasePort(DatagramChannel datagramChannel, PortRange portRange) {
+        pendingPortReleases.add(new PendingPortRelease(datagramChannel, portRange));
+        selector.wakeup();
+    }
+
+    private void releaseClosedPorts() {
+        for (Iterator<PendingPortRelease> it = pendingPortReleases.iterator(); it.hasNext();) {
+            PendingPortRelease pending = it.next();
+            if (!pending.datagramChannel.isRegistered()) {
+                it.remove();
+                SymmitronServer.getPortManager().free(pending.portRange);
+            }
+        }
+        /*
+         * A key cancelled while we were selecting is only flushed by the next select, do not
+         * wait for traffic to get there.
+         */
+        if (!pendingPortReleases.isEmpty()) {
             selector.wakeup();
         }
+    }
+
+    /**
+     * Return the keepalive buffer of a transmitter of one of our bridges to the pool. Called from
+     * another thread, the buffer is only returned when our thread is done with what it is
+     * running.
+     */
+    void releaseKeepaliveBuffer(ByteBuffer buffer) {
+        if (this.shufflerThread == null || isShufflerThread()) {
+            DirectBufferPool pool = SymmitronServer.getKeepaliveBufferPool();
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        } else {
+            pendingBufferReleases.add(buffer);
+            selector.wakeup();
+        }
+    }
 
+    private void releaseKeepaliveBuffers() {
+        DirectBufferPool pool = SymmitronServer.getKeepaliveBufferPool();
+        ByteBuffer buffer;
+        while ((buffer = pendingBufferReleases.poll()) != null) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        }
     }
 
     /**
-     * 
-     * Implements the following search algorithm to retrieve a datagram channel that is associated
-     * with the far end:
-     * 
-     * <pre>
-     * getSelfRoutedDatagramChannel(farEnd)
-     * For each selectable key do:
-     *   let ipAddress be the local ip address
-     *   let p be the local port
-     *   let d be the datagramChannel associated with the key
-     *   If  farEnd.ipAddress == ipAddress  &amp;&amp; port == localPort return d
-     * return null
-     * </pre>
+     * @return true if the channel is currently registered with our selector.
+     */
+    boolean isRegistered(DatagramChannel datagramChannel) {
+        SelectionKey key = datagramChannel.keyFor(selector);
+        return key != null && key.isValid();
+    }
+
+    /**
+     * Retrieve the sym whose receiver is bound to the far end of a self routed packet. The syms
+     * of all the shards are indexed by their local address so this may be called from any
+     * shuffler thread.
      * 
      * @param farEnd
-     * @return
-     */
-
-    public static DatagramChannel getSelfRoutedDatagramChannel(InetSocketAddress farEnd) {
-        // Iterate over the set of keys for which events are
-        // available
-        InetAddress ipAddress = farEnd.getAddress();
-        int port = farEnd.getPort();
-        for (Iterator<SelectionKey> selectedKeys = selector.keys().iterator(); selectedKeys
-                .hasNext();) {
-            SelectionKey key = selectedKeys.next();
-            if (!key.isValid()) {
-                continue;
+     * @return the sym or null if the far end is not one of our syms.
+     */
+    public static Sym getSelfRoutedSym(InetSocketAddress farEnd) {
+        Sym sym = ConcurrentSet.getSymByLocalAddress(farEnd);
+        SymEndpoint receiver = sym != null ? sym.getReceiver() : null;
+        if (receiver == null || !receiver.getDatagramChannel().isOpen()) {
+            return null;
+        }
+        return sym;
+    }
+
+    static long getPacketCounter() {
+        return packetCounter.getAndIncrement();
+    }
+
+    /**
+     * Add a work item to the shuffler that services the given bridge. If the bridge is null the
+     * first shuffler is used.
+     */
+    public static void addWorkItem(Bridge bridge, WorkItem workItem) {
+        DataShuffler shuffler = bridge != null ? bridge.getShuffler() : getShufflers()[0];
+        shuffler.addWorkItem(workItem);
+    }
+
+    public synchronized void addWorkItem(WorkItem workItem) {
+    	
+    	this.workQueue.add(workItem);
+		selector.wakeup();
+        
+    }
+
+    /**
+     * @return true if called from the thread of this shuffler.
+     */
+    boolean isShufflerThread() {
+        return Thread.currentThread() == this.shufflerThread;
+    }
+
+    /**
+     * Forward a self routed packet on this shuffler's thread. Used when the bridge the packet is
+     * routed to is pinned to another shard than the one that received it: the syms and the
+     * counters of a bridge are only touched by the thread of its shard. The packet is copied
+     * into a pooled slot, its buffer belongs to the calling shuffler. The packet is dropped if
+     * no slot is free or it does not fit in one.
+     */
+    void handOffSelfRouted(Sym selfRoutedSym, InetSocketAddress farEnd, ByteBuffer packet,
+            long stamp) {
+        HandedOffPacket slot = takeHandOffSlot();
+        if (slot == null || packet.remaining() > slot.packet.capacity()) {
+            if (slot != null) {
+                freeHandOffSlots.offer(slot);
             }
-            DatagramChannel datagramChannel = (DatagramChannel) key.channel();
-            if (datagramChannel.socket().getLocalAddress().equals(ipAddress)
-                    && datagramChannel.socket().getLocalPort() == port) {
-                return datagramChannel;
+            this.handOffsDropped.incrementAndGet();
+            return;
+        }
+        int position = packet.position();
+        slot.packet.clear();
+        slot.packet.put(packet);
+        slot.packet.flip();
+        packet.position(position);
+        slot.sym = selfRoutedSym;
+        slot.farEnd = farEnd;
+        slot.stamp = stamp;
+        this.packetsHandedOff.incrementAndGet();
+        handedOffPackets.offer(slot);
+        selector.wakeup();
+    }
+
+    /*
+     * A free slot, creating one if we are below capacity, or null.
+     */
+    private HandedOffPacket takeHandOffSlot() {
+        HandedOffPacket slot = freeHandOffSlots.poll();
+        if (slot == null) {
+            if (handOffSlotCount.incrementAndGet() <= HANDOFF_CAPACITY) {
+                slot = new HandedOffPacket(handOffBufferPool.take());
+            } else {
+                handOffSlotCount.decrementAndGet();
             }
+        }
+        return slot;
+    }
 
+    private void sendHandedOffPackets() throws UnknownHostException {
+        HandedOffPacket handedOff;
+        while ((handedOff = handedOffPackets.poll()) != null) {
+            try {
+                Bridge bridge = handedOff.sym.getBridge();
+                if (bridge != null && bridge.getShuffler() == this
+                        && bridge.getState() == BridgeState.RUNNING) {
+                    send(bridge, handedOff.sym, handedOff.farEnd, handedOff.packet,
+                            handedOff.stamp, true, packetBatch);
+                }
+            } finally {
+                handedOff.sym = null;
+                handedOff.farEnd = null;
+                freeHandOffSlots.offer(handedOff);
+            }
         }
-        return null;
+    }
 
+    /**
+     * Switch the datagram I/O mode of all the shufflers. Each shuffler switches on its own
+     * thread.
+     */
+    static void setBatchIo(final String batchIoMode) {
+        for (final DataShuffler shuffler : getShufflers()) {
+            final PacketBatch newPacketBatch = PacketBatch.create(batchIoMode, shuffler.selector);
+            shuffler.addWorkItem(new WorkItem() {
+                public void doWork() {
+                    shuffler.packetBatch = newPacketBatch;
+                }
+            });
+        }
+        batchIo = batchIoMode;
     }
 
-    synchronized static long getPacketCounter() {
-        long retval = packetCounter;
-        packetCounter++;
-        return retval;
+    /**
+     * @return the datagram I/O mode in use.
+     */
+    String getBatchIo() {
+        return this.packetBatch.getMode();
     }
 
-    public static synchronized void addWorkItem(WorkItem workItem) {
-    	
-    	DataShuffler.workQueue.add(workItem);
-    	if (selector != null) {
-			selector.wakeup();
-		}
-        
+    int getShufflerId() {
+        return this.shufflerId;
+    }
+
+    Thread getShufflerThread() {
+        return this.shufflerThread;
+    }
+
+    /**
+     * @return true if the select loop runs on the array backed selected key set.
+     */
+    boolean isSelectedKeySetInstalled() {
+        return this.selectedKeySet != null;
+    }
+
+    long getPacketsReceived() {
+        return this.packetsReceived.get();
+    }
+
+    long getPacketsSent() {
+        return this.packetsSent.get();
+    }
+
+    /**
+     * @return the number of self routed packets handed to this shuffler by another shard.
+     */
+    long getPacketsHandedOff() {
+        return this.packetsHandedOff.get();
+    }
+
+    /**
+     * @return the number of self routed packets dropped because no hand off slot was free.
+     */
+    long getHandOffsDropped() {
+        return this.handOffsDropped.get();
+    }
+
+    /**
+     * @return the CPU time ( milliseconds ) consumed by this shuffler thread or -1 if not
+     *         available.
+     */
+    long getCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (this.shufflerThread == null || !threadMXBean.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+        long cpuTime = threadMXBean.getThreadCpuTime(this.shufflerThread.getId());
+        return cpuTime < 0 ? -1 : cpuTime / 1000000;
     }
 
 }
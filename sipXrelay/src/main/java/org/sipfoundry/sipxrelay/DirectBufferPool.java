@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of fixed size direct byte buffers. The buffers are sliced out of large direct slabs. A
+ * slab is allocated when the pool runs dry until the pool reaches its capacity so a relay with a
+ * large port range does not reserve all of its direct memory at startup. A direct buffer can be
+ * handed to DatagramChannel.send without the JDK copying it into a temporary direct buffer
+ * first.
+ *
+ * Buffers are taken when a sym is set up and returned when it is torn down, never per packet.
+ */
+class DirectBufferPool {
+
+    private static Logger logger = Logger.getLogger(DirectBufferPool.class.getPackage()
+            .getName());
+
+    /*
+     * Keep each slab to a reasonable size.
+     */
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final int bufferSize;
+
+    private final ByteBuffer[] freeBuffers;
+
+    private int freeCount;
+
+    private int allocatedCount;
+
+    /**
+     * @param capacity -- the number of buffers.
+     * @param bufferSize -- the size of each buffer.
+     */
+    DirectBufferPool(int capacity, int bufferSize) {
+        if (capacity < 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Bad capacity or buffer size " + capacity + "/"
+                    + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ByteBuffer[capacity];
+    }
+
+    /*
+     * Slice a new slab into free buffers.
+     */
+    private void allocateSlab() {
+        int count = Math.min(Math.max(1, SLAB_SIZE / bufferSize), freeBuffers.length
+                - allocatedCount);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            freeBuffers[freeCount++] = slab.slice();
+        }
+        allocatedCount += count;
+        if (logger.isDebugEnabled()) {
+            logger.debug("DirectBufferPool: allocated " + allocatedCount + " of "
+                    + freeBuffers.length + " buffers");
+        }
+    }
+
+    /**
+     * Take a buffer from the pool. If the pool is exhausted a new buffer is allocated, it will
+     * be kept in the pool when it is returned if there is room.
+     *
+     * @return a cleared buffer of bufferSize bytes.
+     */
+    synchronized ByteBuffer take() {
+        if (freeCount == 0 && allocatedCount < freeBuffers.length) {
+            allocateSlab();
+        }
+        if (freeCount == 0) {
+            logger.debug("DirectBufferPool: pool exhausted -- allocating");
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        ByteBuffer buffer = freeBuffers[--freeCount];
+        freeBuffers[freeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+        if (freeCount < freeBuffers.length) {
+            freeBuffers[freeCount++] = buffer;
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    synchronized int getFreeCount() {
+        return freeCount;
+    }
+
+}
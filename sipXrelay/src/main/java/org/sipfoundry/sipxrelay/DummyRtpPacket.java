@@ -98,8 +98,19 @@ class DummyRtpPacket {
      * @return The data of this RTP packet as a byte array.
      */
     private ByteBuffer getData() {
-
         ByteBuffer byteBuffer = ByteBuffer.allocate(12 + payloadLength);
+        getData(byteBuffer);
+        return byteBuffer;
+    }
+
+    /**
+     * Write the data of this RTP packet into the given buffer and flip it.
+     * 
+     * @param byteBuffer -- a buffer with room for the packet.
+     */
+    private void getData(ByteBuffer byteBuffer) {
+
+        byteBuffer.clear();
 
         /* Since V..SN are 32 bits, create a (int) byte array for V..SN. */
         long V_SN = 0;
@@ -120,9 +131,7 @@ class DummyRtpPacket {
             byteBuffer.put(payload);
         }
         // Reset pointer to start of buffer.
-        byteBuffer.rewind();
-
-        return byteBuffer;
+        byteBuffer.flip();
 
     }
 
@@ -143,7 +152,7 @@ class DummyRtpPacket {
 
     }
 
-    public static ByteBuffer createDummyRtpPacket() {
+    private static DummyRtpPacket newDummyRtpPacket() {
 
         DummyRtpPacket rtpPacket = new DummyRtpPacket();
         rtpPacket.payloadType = 0;
@@ -154,10 +163,26 @@ class DummyRtpPacket {
         rtpPacket.setPayload(payload, payload.length);
         rtpPacket.sequenceNumber = 12345 + seqCounter++;
         rtpPacket.SSRC = new Random().nextLong();
-        byteBuffer = rtpPacket.getData();
+        return rtpPacket;
+    }
+
+    public static ByteBuffer createDummyRtpPacket() {
+
+        byteBuffer = newDummyRtpPacket().getData();
 
         return byteBuffer;
 
     }
 
+    /**
+     * Write a dummy RTP packet into the given buffer ( e.g. a pooled direct buffer ).
+     * 
+     * @param buffer -- a buffer with room for the packet. It is flipped, ready to send.
+     */
+    public static void createDummyRtpPacket(ByteBuffer buffer) {
+
+        newDummyRtpPacket().getData(buffer);
+
+    }
+
 }
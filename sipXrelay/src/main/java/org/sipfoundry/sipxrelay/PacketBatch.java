@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+
+import org.apache.log4j.Logger;
+import org.sipfoundry.commons.util.DatagramBatch;
+
+/**
+ * The datagram I/O of a shuffler thread. Each readable channel is drained of up to a batch of
+ * datagrams per selector wakeup and the packets forwarded during a wakeup can be queued and
+ * sent together when the wakeup has been processed.
+ *
+ * There are three modes :
+ * <ul>
+ * <li>none -- one datagram is received per readable channel and each packet is sent as it is
+ * forwarded.
+ * <li>nio -- up to a batch of datagrams is received per readable channel. Sends are not
+ * deferred since NIO has no way to send several datagrams with one call.
+ * <li>native -- datagrams are received and sent with recvmmsg and sendmmsg. The sends of a
+ * wakeup are queued and sent with one call per outbound channel. Falls back to nio if the
+ * native library is not available.
+ * </ul>
+ *
+ * An instance is only used by the shuffler thread that owns it.
+ */
+abstract class PacketBatch {
+
+    private static Logger logger = Logger.getLogger(PacketBatch.class.getPackage().getName());
+
+    static final String NONE = "none";
+
+    static final String NIO = "nio";
+
+    static final String NATIVE = "native";
+
+    /*
+     * Datagrams moved per channel per wakeup.
+     */
+    static final int BATCH_SIZE = 32;
+
+    /*
+     * Room for one datagram.
+     */
+    static final int SLOT_SIZE = 8192;
+
+    /*
+     * The receive slots.
+     */
+    final ByteBuffer receiveSlab;
+
+    /*
+     * Views of the receive slots. Packet i of the last receive is between the position and
+     * limit of packets[i].
+     */
+    final ByteBuffer[] packets;
+
+    final InetSocketAddress[] remoteAddresses;
+
+    PacketBatch(int batchSize) {
+        this.receiveSlab = ByteBuffer.allocateDirect(batchSize * SLOT_SIZE);
+        this.packets = slice(receiveSlab, batchSize);
+        this.remoteAddresses = new InetSocketAddress[batchSize];
+    }
+
+    static ByteBuffer[] slice(ByteBuffer slab, int count) {
+        ByteBuffer[] slots = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * SLOT_SIZE);
+            slab.position(i * SLOT_SIZE);
+            slots[i] = slab.slice();
+        }
+        slab.clear();
+        return slots;
+    }
+
+    /**
+     * Create the I/O for a shuffler.
+     *
+     * @param mode -- none, nio or native.
+     * @param selector -- the selector of the shuffler.
+     */
+    static PacketBatch create(String mode, Selector selector) {
+        if (mode == null || mode.equals(NONE)) {
+            return new NioPacketBatch(1, NONE);
+        } else if (mode.equals(NIO)) {
+            return new NioPacketBatch(BATCH_SIZE, NIO);
+        } else if (mode.equals(NATIVE)) {
+            if (DatagramBatch.isAvailable()) {
+                return new NativePacketBatch(selector);
+            }
+            logger.warn("Native datagram batching is not available -- using " + NIO);
+            return new NioPacketBatch(BATCH_SIZE, NIO);
+        } else {
+            throw new IllegalArgumentException("Bad batch-io mode " + mode);
+        }
+    }
+
+    /**
+     * @return the mode implemented by this instance.
+     */
+    abstract String getMode();
+
+    /**
+     * Receive the datagrams that are waiting on a channel ( up to a batch ).
+     *
+     * @return the number of datagrams received.
+     */
+    abstract int receive(DatagramChannel datagramChannel) throws IOException;
+
+    /**
+     * Send or queue a packet. The packet is consumed as by DatagramChannel.send.
+     *
+     * @return the number of bytes sent or queued.
+     */
+    abstract int send(DatagramChannel datagramChannel, ByteBuffer packet,
+            InetSocketAddress destination) throws IOException;
+
+    /**
+     * Send the queued packets.
+     */
+    void flush() {
+    }
+
+    /**
+     * Drop the queued packets.
+     */
+    void discard() {
+    }
+
+    /**
+     * Batched I/O on top of NIO. Only the receive side is batched.
+     */
+    static final class NioPacketBatch extends PacketBatch {
+
+        private final String mode;
+
+        NioPacketBatch(int batchSize, String mode) {
+            super(batchSize);
+            this.mode = mode;
+        }
+
+        String getMode() {
+            return mode;
+        }
+
+        int receive(DatagramChannel datagramChannel) throws IOException {
+            int count = 0;
+            while (count < packets.length) {
+                ByteBuffer packet = packets[count];
+                packet.clear();
+                InetSocketAddress remoteAddress = (InetSocketAddress) datagramChannel
+                        .receive(packet);
+                if (remoteAddress == null) {
+                    break;
+                }
+                packet.flip();
+                remoteAddresses[count++] = remoteAddress;
+            }
+            return count;
+        }
+
+        int send(DatagramChannel datagramChannel, ByteBuffer packet,
+                InetSocketAddress destination) throws IOException {
+            return datagramChannel.send(packet, destination);
+        }
+    }
+
+    /**
+     * Batched I/O with recvmmsg and sendmmsg.
+     */
+    static final class NativePacketBatch extends PacketBatch {
+
+        private static final int ADDRESS_CACHE_SIZE = 1024;
+
+        private final Selector selector;
+
+        private final int[] receiveLengths = new int[BATCH_SIZE];
+
+        private final long[] receiveAddresses = new long[BATCH_SIZE];
+
+        private final ByteBuffer sendSlab = ByteBuffer.allocateDirect(BATCH_SIZE * SLOT_SIZE);
+
+        private final ByteBuffer[] sendSlots;
+
+        private final int[] sendLengths = new int[BATCH_SIZE];
+
+        private final long[] sendAddresses = new long[BATCH_SIZE];
+
+        private DatagramChannel sendChannel;
+
+        private int sendFd = -1;
+
+        private int sendCount;
+
+        /*
+         * Direct mapped caches between socket addresses and their encoding so that neither
+         * receive nor send allocates for a stream that is already flowing.
+         */
+        private final long[] decodeKeys = new long[ADDRESS_CACHE_SIZE];
+
+        private final InetSocketAddress[] decodeValues = new InetSocketAddress[ADDRESS_CACHE_SIZE];
+
+        private final InetSocketAddress[] encodeKeys = new InetSocketAddress[ADDRESS_CACHE_SIZE];
+
+        private final long[] encodeValues = new long[ADDRESS_CACHE_SIZE];
+
+        NativePacketBatch(Selector selector) {
+            super(BATCH_SIZE);
+            this.selector = selector;
+            this.sendSlots = slice(sendSlab, BATCH_SIZE);
+        }
+
+        String getMode() {
+            return NATIVE;
+        }
+
+        int receive(DatagramChannel datagramChannel) throws IOException {
+            int fd = DatagramBatch.getFileDescriptor(datagramChannel);
+            if (fd < 0) {
+                throw new IOException("No file descriptor for channel");
+            }
+            int count = DatagramBatch.receive(fd, receiveSlab, SLOT_SIZE, BATCH_SIZE,
+                    receiveLengths, receiveAddresses);
+            if (count < 0) {
+                throw new IOException("recvmmsg failed errno = " + -count);
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer packet = packets[i];
+                packet.clear();
+                packet.limit(Math.min(receiveLengths[i], SLOT_SIZE));
+                remoteAddresses[i] = decode(receiveAddresses[i]);
+            }
+            return count;
+        }
+
+        private InetSocketAddress decode(long address) throws IOException {
+            if (address == 0) {
+                return null;
+            }
+            int index = (int) (address ^ (address >>> 20)) & (ADDRESS_CACHE_SIZE - 1);
+            InetSocketAddress socketAddress = decodeValues[index];
+            if (socketAddress == null || decodeKeys[index] != address) {
+                socketAddress = new InetSocketAddress(InetAddress.getByAddress(DatagramBatch
+                        .getAddress(address)), DatagramBatch.getPort(address));
+                decodeKeys[index] = address;
+                decodeValues[index] = socketAddress;
+            }
+            return socketAddress;
+        }
+
+        /*
+         * @return the encoded address or 0 if it is not an IPv4 address.
+         */
+        private long encode(InetSocketAddress destination) {
+            int index = System.identityHashCode(destination) & (ADDRESS_CACHE_SIZE - 1);
+            if (encodeKeys[index] != destination) {
+                InetAddress inetAddress = destination.getAddress();
+                long address = inetAddress instanceof Inet4Address ? DatagramBatch.toLong(
+                        inetAddress.getAddress(), destination.getPort()) : 0;
+                encodeKeys[index] = destination;
+                encodeValues[index] = address;
+            }
+            return encodeValues[index];
+        }
+
+        int send(DatagramChannel datagramChannel, ByteBuffer packet,
+                InetSocketAddress destination) throws IOException {
+            int length = packet.remaining();
+            long address = encode(destination);
+            /*
+             * Only channels registered with our selector are queued. The socket of such a
+             * channel stays open until our next select even if the channel is closed meanwhile
+             * so the file descriptor cannot be reused under us.
+             */
+            if (address == 0 || length > SLOT_SIZE || datagramChannel.keyFor(selector) == null) {
+                return datagramChannel.send(packet, destination);
+            }
+            if (datagramChannel != sendChannel || sendCount == BATCH_SIZE) {
+                flush();
+                int fd = DatagramBatch.getFileDescriptor(datagramChannel);
+                if (fd < 0) {
+                    return datagramChannel.send(packet, destination);
+                }
+                sendChannel = datagramChannel;
+                sendFd = fd;
+            }
+            ByteBuffer slot = sendSlots[sendCount];
+            slot.clear();
+            slot.put(packet);
+            sendLengths[sendCount] = length;
+            sendAddresses[sendCount] = address;
+            sendCount++;
+            return length;
+        }
+
+        void flush() {
+            int offset = 0;
+            while (offset < sendCount) {
+                int sent = DatagramBatch.send(sendFd, sendSlab, SLOT_SIZE, offset, sendCount
+                        - offset, sendLengths, sendAddresses);
+                if (sent <= 0) {
+                    /*
+                     * Socket buffer full or an error. Drop the rest as a datagram send would.
+                     */
+                    if (sent < 0 && logger.isDebugEnabled()) {
+                        logger.debug("sendmmsg failed errno = " + -sent);
+                    }
+                    break;
+                }
+                offset += sent;
+            }
+            discard();
+        }
+
+        void discard() {
+            sendCount = 0;
+            sendChannel = null;
+            sendFd = -1;
+        }
+    }
+
+}
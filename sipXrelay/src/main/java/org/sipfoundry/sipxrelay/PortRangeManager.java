@@ -151,6 +151,14 @@ public class PortRangeManager {
         return this.portRangeHighboundMap.size();
     }
 
+    synchronized int getFreePortCount() {
+        int count = 0;
+        for (PortRange portRange : this.portRangeQueue) {
+            count += portRange.range();
+        }
+        return count;
+    }
+
     boolean checkIntegrity() {
         return this.portRangeHighboundMap.size() == this.portRangeLowboundMap
                 .size()
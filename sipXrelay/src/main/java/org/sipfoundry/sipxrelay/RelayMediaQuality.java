@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Aggregates the media quality statistics of the syms for JMX. The active bridges are walked
+ * when an attribute is read, the bridges that have been torn down are folded into counters when
+ * they stop.
+ */
+public final class RelayMediaQuality implements RelayMediaQualityMBean {
+
+    private static Logger logger = Logger.getLogger(RelayMediaQuality.class.getPackage()
+            .getName());
+
+    static final String OBJECT_NAME = "org.sipfoundry.sipxrelay:type=MediaQuality";
+
+    /*
+     * Below this a call is rated as poor ( "many users dissatisfied" in G.107 ).
+     */
+    static final double POOR_MOS = 3.6;
+
+    private static final RelayMediaQuality instance = new RelayMediaQuality();
+
+    private final AtomicLong completedBridges = new AtomicLong();
+
+    /*
+     * The sum of the MOS of the completed bridges in hundredths.
+     */
+    private final AtomicLong completedMosSum = new AtomicLong();
+
+    private final AtomicLong completedPoorQualityBridges = new AtomicLong();
+
+    private RelayMediaQuality() {
+    }
+
+    static RelayMediaQuality getInstance() {
+        return instance;
+    }
+
+    /**
+     * Register with the platform MBean server.
+     */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            logger.warn("Could not register media quality MBean", ex);
+        }
+    }
+
+    /**
+     * Record the MOS of a bridge that is being torn down.
+     */
+    void recordCompletedBridge(double mos) {
+        if (mos < 0) {
+            return;
+        }
+        completedBridges.incrementAndGet();
+        completedMosSum.addAndGet(Math.round(mos * 100));
+        if (mos < POOR_MOS) {
+            completedPoorQualityBridges.incrementAndGet();
+        }
+    }
+
+    public int getActiveBridges() {
+        int count = 0;
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            if (bridge.getMos() >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public double getAverageMos() {
+        int count = 0;
+        double sum = 0;
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            double mos = bridge.getMos();
+            if (mos >= 0) {
+                count++;
+                sum += mos;
+            }
+        }
+        return count == 0 ? -1 : sum / count;
+    }
+
+    public double getWorstMos() {
+        double worst = -1;
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            double mos = bridge.getMos();
+            if (mos >= 0 && (worst < 0 || mos < worst)) {
+                worst = mos;
+            }
+        }
+        return worst;
+    }
+
+    public long getPacketsLost() {
+        long lost = 0;
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            for (Sym sym : bridge.sessions.getSymArray()) {
+                lost += sym.getRtpStatistics().getPacketsLost();
+            }
+        }
+        return lost;
+    }
+
+    public double getAverageJitter() {
+        int count = 0;
+        double sum = 0;
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            for (Sym sym : bridge.sessions.getSymArray()) {
+                RtpStatistics rtpStatistics = sym.getRtpStatistics();
+                if (rtpStatistics.getRtpPackets() > 0 && rtpStatistics.getJitterMillis() >= 0) {
+                    count++;
+                    sum += rtpStatistics.getJitterMillis();
+                }
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public long getCompletedBridges() {
+        return completedBridges.get();
+    }
+
+    public double getCompletedAverageMos() {
+        long count = completedBridges.get();
+        return count == 0 ? -1 : completedMosSum.get() / (100.0 * count);
+    }
+
+    public long getCompletedPoorQualityBridges() {
+        return completedPoorQualityBridges.get();
+    }
+
+}
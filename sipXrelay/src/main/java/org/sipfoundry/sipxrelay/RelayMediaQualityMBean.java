@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+/**
+ * JMX view of the media quality of the relay. Values are computed from the RTP headers of the
+ * packets the relay forwards.
+ */
+public interface RelayMediaQualityMBean {
+
+    /**
+     * @return the number of bridges that currently carry RTP.
+     */
+    public int getActiveBridges();
+
+    /**
+     * @return the average estimated MOS of the active bridges or -1 if there are none.
+     */
+    public double getAverageMos();
+
+    /**
+     * @return the lowest estimated MOS of the active bridges or -1 if there are none.
+     */
+    public double getWorstMos();
+
+    /**
+     * @return the RTP packets lost on the active bridges.
+     */
+    public long getPacketsLost();
+
+    /**
+     * @return the average RTP jitter ( milliseconds ) of the active streams.
+     */
+    public double getAverageJitter();
+
+    /**
+     * @return the number of bridges that carried RTP and have been torn down.
+     */
+    public long getCompletedBridges();
+
+    /**
+     * @return the average estimated MOS of the bridges that have been torn down.
+     */
+    public double getCompletedAverageMos();
+
+    /**
+     * @return the number of torn down bridges with an estimated MOS below 3.6.
+     */
+    public long getCompletedPoorQualityBridges();
+
+}
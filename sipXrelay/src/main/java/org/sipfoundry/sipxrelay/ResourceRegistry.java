@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The syms and bridges of the relay indexed by id and by the controller that owns them. All the
+ * tables are concurrent so lookups and updates for different controllers do not contend. Calls
+ * for a single controller are serialized by the controller handle lock in SymmitronServer.
+ *
+ * The resources of a controller are kept together so that everything a controller owns can be
+ * detached in one step when it signs out or reboots.
+ */
+final class ResourceRegistry {
+
+    /**
+     * The resources owned by one controller.
+     */
+    static final class Owner {
+        private final Set<Sym> syms = Collections
+                .newSetFromMap(new ConcurrentHashMap<Sym, Boolean>());
+
+        private final Set<Bridge> bridges = Collections
+                .newSetFromMap(new ConcurrentHashMap<Bridge, Boolean>());
+
+        Set<Sym> getSyms() {
+            return syms;
+        }
+
+        Set<Bridge> getBridges() {
+            return bridges;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Sym> symTable = new ConcurrentHashMap<String, Sym>();
+
+    private final ConcurrentHashMap<String, Bridge> bridgeTable = new ConcurrentHashMap<String, Bridge>();
+
+    private final ConcurrentHashMap<String, Owner> ownerTable = new ConcurrentHashMap<String, Owner>();
+
+    private Owner getOrCreateOwner(String controllerHandle) {
+        Owner owner = ownerTable.get(controllerHandle);
+        if (owner == null) {
+            Owner newOwner = new Owner();
+            owner = ownerTable.putIfAbsent(controllerHandle, newOwner);
+            if (owner == null) {
+                owner = newOwner;
+            }
+        }
+        return owner;
+    }
+
+    void addSym(String controllerHandle, Sym sym) {
+        symTable.put(sym.getId(), sym);
+        getOrCreateOwner(controllerHandle).syms.add(sym);
+    }
+
+    void addBridge(String controllerHandle, Bridge bridge) {
+        bridgeTable.put(bridge.getId(), bridge);
+        getOrCreateOwner(controllerHandle).bridges.add(bridge);
+    }
+
+    Sym getSym(String symId) {
+        return symTable.get(symId);
+    }
+
+    Bridge getBridge(String bridgeId) {
+        return bridgeTable.get(bridgeId);
+    }
+
+    /**
+     * @return the syms owned by the controller or null if it owns none.
+     */
+    Set<Sym> getSyms(String controllerHandle) {
+        Owner owner = ownerTable.get(controllerHandle);
+        return owner == null ? null : owner.syms;
+    }
+
+    /**
+     * Remove a sym.
+     *
+     * @return the removed sym or null if there was no such sym.
+     */
+    Sym removeSym(String controllerHandle, String symId) {
+        Sym sym = symTable.remove(symId);
+        if (sym != null) {
+            Owner owner = ownerTable.get(controllerHandle);
+            if (owner != null) {
+                owner.syms.remove(sym);
+            }
+        }
+        return sym;
+    }
+
+    /**
+     * Remove a bridge and the syms that belong to it.
+     *
+     * @return the removed bridge or null if there was no such bridge.
+     */
+    Bridge removeBridge(String controllerHandle, String bridgeId) {
+        Bridge bridge = bridgeTable.remove(bridgeId);
+        if (bridge != null) {
+            Owner owner = ownerTable.get(controllerHandle);
+            if (owner != null) {
+                owner.bridges.remove(bridge);
+            }
+            for (Sym sym : bridge.getSyms()) {
+                symTable.remove(sym.getId());
+                if (owner != null) {
+                    owner.syms.remove(sym);
+                }
+            }
+        }
+        return bridge;
+    }
+
+    /**
+     * Detach everything owned by a controller. The caller is responsible for stopping the
+     * bridges and closing the syms of the returned owner.
+     *
+     * @return the resources of the controller or null if it owns none.
+     */
+    Owner removeOwner(String controllerHandle) {
+        Owner owner = ownerTable.remove(controllerHandle);
+        if (owner != null) {
+            for (Bridge bridge : owner.bridges) {
+                bridgeTable.remove(bridge.getId());
+            }
+            for (Sym sym : owner.syms) {
+                symTable.remove(sym.getId());
+            }
+        }
+        return owner;
+    }
+
+    Collection<Sym> getSyms() {
+        return symTable.values();
+    }
+
+    Collection<Bridge> getBridges() {
+        return bridgeTable.values();
+    }
+
+    int getBridgeCount() {
+        return bridgeTable.size();
+    }
+
+}
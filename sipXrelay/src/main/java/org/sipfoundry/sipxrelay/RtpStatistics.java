@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Media quality statistics for the RTP stream received on a sym. The RTP header of each
+ * forwarded packet is inspected in place ( nothing is copied or allocated ) to track sequence
+ * gaps, the RFC 3550 interarrival jitter and payload type changes.
+ *
+ * The counters are confined to the shuffler thread that services the bridge of the sym. That
+ * thread publishes an immutable snapshot of them every PUBLISH_INTERVAL_NANOS and when asked to
+ * ( publish ), the getters read the last snapshot so they can be called from any thread.
+ *
+ * The jitter is only computed for payload types whose clock rate is known: the static payload
+ * types and the dynamic ones given by the rtpmap negotiated for the sym ( setClockRates ).
+ */
+final class RtpStatistics {
+
+    private static final int RTP_VERSION = 2;
+
+    private static final int RTP_HEADER_LENGTH = 12;
+
+    /*
+     * RTCP packet types ( SR, RR, SDES, BYE, APP ) occupy the second byte of the header.
+     */
+    private static final int RTCP_SR = 200;
+
+    private static final int RTCP_APP = 204;
+
+    /*
+     * RFC 3550 A.1 sequence number validation limits.
+     */
+    private static final int MAX_DROPOUT = 3000;
+
+    private static final int MAX_MISORDER = 100;
+
+    private static final int SEQ_MOD = 1 << 16;
+
+    /*
+     * How often the shuffler thread publishes the statistics while packets come in.
+     */
+    static final long PUBLISH_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+    /**
+     * The statistics as of the last publish.
+     */
+    private static final class Snapshot {
+        final long rtpPackets;
+
+        final long rtcpPackets;
+
+        final int payloadType;
+
+        final long payloadTypeChanges;
+
+        final long packetsExpected;
+
+        final long packetsReceived;
+
+        /*
+         * Milliseconds, -1 if the clock rate of the payload type is not known.
+         */
+        final double jitterMillis;
+
+        Snapshot(long rtpPackets, long rtcpPackets, int payloadType, long payloadTypeChanges,
+                long packetsExpected, long packetsReceived, double jitterMillis) {
+            this.rtpPackets = rtpPackets;
+            this.rtcpPackets = rtcpPackets;
+            this.payloadType = payloadType;
+            this.payloadTypeChanges = payloadTypeChanges;
+            this.packetsExpected = packetsExpected;
+            this.packetsReceived = packetsReceived;
+            this.jitterMillis = jitterMillis;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0, 0, -1, 0, 0, 0, -1);
+
+    private boolean published;
+
+    private long publishedNanos;
+
+    /*
+     * Payload type to clock rate from the negotiated rtpmap.
+     */
+    private Map<Integer, Integer> clockRates = Collections.emptyMap();
+
+    private long rtpPackets;
+
+    private long rtcpPackets;
+
+    private int payloadType = -1;
+
+    private long payloadTypeChanges;
+
+    /*
+     * -1 if not known.
+     */
+    private int clockRate = -1;
+
+    private long nanosPerTick;
+
+    /*
+     * Sequence number state ( RFC 3550 A.1 ). Counts from before a sequence restart are folded
+     * into the prior counters.
+     */
+    private boolean sequenceInitialized;
+
+    private int baseSequence;
+
+    private int maxSequence;
+
+    private long cycles;
+
+    private long received;
+
+    private long expectedPrior;
+
+    private long receivedPrior;
+
+    private long expected;
+
+    /*
+     * Jitter ( RFC 3550 A.8 ) in timestamp units scaled by 16.
+     */
+    private boolean transitInitialized;
+
+    private int lastTransit;
+
+    private long jitter;
+
+    /**
+     * @return the RTP clock rate of a static payload type ( RFC 3551 ) or -1 if it is not
+     *         known.
+     */
+    static int getClockRate(int payloadType) {
+        switch (payloadType) {
+        case 0: // PCMU
+        case 3: // GSM
+        case 4: // G723
+        case 5: // DVI4 8000
+        case 7: // LPC
+        case 8: // PCMA
+        case 9: // G722
+        case 12: // QCELP
+        case 13: // CN
+        case 15: // G728
+        case 18: // G729
+            return 8000;
+        case 10: // L16 stereo
+        case 11: // L16 mono
+            return 44100;
+        case 14: // MPA
+        case 25: // CelB
+        case 26: // JPEG
+        case 28: // nv
+        case 31: // H261
+        case 32: // MPV
+        case 33: // MP2T
+        case 34: // H263
+            return 90000;
+        case 6: // DVI4 16000
+            return 16000;
+        case 16: // DVI4 11025
+            return 11025;
+        case 17: // DVI4 22050
+            return 22050;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Set the clock rates of the payload types negotiated for the sym. Called on the shuffler
+     * thread.
+     *
+     * @param rtpMap -- the clock rate of each payload type keyed by payload type ( as sent
+     *        through XML-RPC, see Symmitron.RTP_MAP ).
+     * @throws IllegalArgumentException if an entry is not a payload type and a clock rate.
+     */
+    void setClockRates(Map<?, ?> rtpMap) {
+        Map<Integer, Integer> rates = new HashMap<Integer, Integer>();
+        for (Map.Entry<?, ?> entry : rtpMap.entrySet()) {
+            int pt;
+            try {
+                pt = Integer.parseInt(entry.getKey().toString());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad payload type " + entry.getKey());
+            }
+            if (pt < 0 || pt > 127 || !(entry.getValue() instanceof Integer)
+                    || (Integer) entry.getValue() <= 0) {
+                throw new IllegalArgumentException("Bad rtpmap entry " + entry.getKey() + " "
+                        + entry.getValue());
+            }
+            rates.put(pt, (Integer) entry.getValue());
+        }
+        this.clockRates = rates;
+        if (payloadType != -1) {
+            setPayloadType(payloadType);
+        }
+    }
+
+    private void setPayloadType(int pt) {
+        payloadType = pt;
+        Integer negotiated = clockRates.get(pt);
+        clockRate = negotiated != null ? negotiated : getClockRate(pt);
+        nanosPerTick = clockRate > 0 ? 1000000000L / clockRate : 0;
+        transitInitialized = false;
+        jitter = 0;
+    }
+
+    /**
+     * Update the statistics with a received packet.
+     *
+     * @param packet -- the buffer holding the packet.
+     * @param offset -- the start of the packet in the buffer.
+     * @param length -- the length of the packet.
+     * @param arrivalNanos -- the arrival time ( System.nanoTime ).
+     */
+    void update(ByteBuffer packet, int offset, int length, long arrivalNanos) {
+        if (length < RTP_HEADER_LENGTH) {
+            return;
+        }
+        int firstByte = packet.get(offset) & 0xff;
+        if ((firstByte >> 6) != RTP_VERSION) {
+            return;
+        }
+        int secondByte = packet.get(offset + 1) & 0xff;
+        if (secondByte >= RTCP_SR && secondByte <= RTCP_APP) {
+            rtcpPackets++;
+        } else {
+            updateRtp(packet, offset, secondByte & 0x7f, arrivalNanos);
+        }
+        if (!published || arrivalNanos - publishedNanos >= PUBLISH_INTERVAL_NANOS) {
+            publish();
+            publishedNanos = arrivalNanos;
+        }
+    }
+
+    private void updateRtp(ByteBuffer packet, int offset, int pt, long arrivalNanos) {
+        int sequence = packet.getShort(offset + 2) & 0xffff;
+        int timestamp = packet.getInt(offset + 4);
+
+        if (pt != payloadType) {
+            if (payloadType != -1) {
+                payloadTypeChanges++;
+            }
+            setPayloadType(pt);
+        }
+
+        updateSequence(sequence);
+
+        if (nanosPerTick > 0) {
+            int arrival = (int) (arrivalNanos / nanosPerTick);
+            int transit = arrival - timestamp;
+            if (transitInitialized) {
+                int d = transit - lastTransit;
+                if (d < 0) {
+                    d = -d;
+                }
+                jitter += d - ((jitter + 8) >> 4);
+            }
+            lastTransit = transit;
+            transitInitialized = true;
+        }
+        rtpPackets++;
+    }
+
+    private void updateSequence(int sequence) {
+        if (!sequenceInitialized) {
+            restartSequence(sequence);
+            sequenceInitialized = true;
+        } else {
+            int delta = (sequence - maxSequence) & 0xffff;
+            if (delta < MAX_DROPOUT) {
+                if (sequence < maxSequence) {
+                    cycles += SEQ_MOD;
+                }
+                maxSequence = sequence;
+            } else if (delta <= SEQ_MOD - MAX_MISORDER) {
+                /*
+                 * A very large jump. The source restarted ( e.g. the stream was switched ).
+                 */
+                expectedPrior += expected;
+                receivedPrior += received;
+                restartSequence(sequence);
+                transitInitialized = false;
+            }
+            /*
+             * Otherwise a duplicate or reordered packet.
+             */
+        }
+        received++;
+        expected = cycles + maxSequence - baseSequence + 1;
+    }
+
+    private void restartSequence(int sequence) {
+        baseSequence = sequence;
+        maxSequence = sequence;
+        cycles = 0;
+        received = 0;
+    }
+
+    /**
+     * Publish the current statistics to the other threads. Called on the shuffler thread.
+     */
+    void publish() {
+        double jitterMillis = clockRate > 0 ? (jitter >> 4) * 1000.0 / clockRate : -1;
+        snapshot = new Snapshot(rtpPackets, rtcpPackets, payloadType, payloadTypeChanges,
+                expectedPrior + expected, receivedPrior + received, jitterMillis);
+        published = true;
+    }
+
+    long getRtpPackets() {
+        return snapshot.rtpPackets;
+    }
+
+    long getRtcpPackets() {
+        return snapshot.rtcpPackets;
+    }
+
+    int getPayloadType() {
+        return snapshot.payloadType;
+    }
+
+    long getPayloadTypeChanges() {
+        return snapshot.payloadTypeChanges;
+    }
+
+    long getPacketsExpected() {
+        return snapshot.packetsExpected;
+    }
+
+    /**
+     * @return the number of packets lost ( duplicates can make up for losses ).
+     */
+    long getPacketsLost() {
+        return getPacketsLost(snapshot);
+    }
+
+    private static long getPacketsLost(Snapshot snapshot) {
+        long lost = snapshot.packetsExpected - snapshot.packetsReceived;
+        return lost < 0 ? 0 : lost;
+    }
+
+    /**
+     * @return the percentage of expected packets that were lost.
+     */
+    double getLossPercent() {
+        return getLossPercent(snapshot);
+    }
+
+    private static double getLossPercent(Snapshot snapshot) {
+        return snapshot.packetsExpected == 0 ? 0 : 100.0 * getPacketsLost(snapshot)
+                / snapshot.packetsExpected;
+    }
+
+    /**
+     * @return the interarrival jitter in milliseconds or -1 if the clock rate of the payload
+     *         type is not known.
+     */
+    double getJitterMillis() {
+        return snapshot.jitterMillis;
+    }
+
+    /**
+     * @return the estimated MOS of the stream or -1 if no RTP was received. Only the loss is
+     *         taken into account when the jitter is not known.
+     */
+    double getMos() {
+        return getMos(snapshot);
+    }
+
+    private static double getMos(Snapshot snapshot) {
+        if (snapshot.rtpPackets == 0) {
+            return -1;
+        }
+        return estimateMos(Math.max(snapshot.jitterMillis, 0), getLossPercent(snapshot));
+    }
+
+    /**
+     * Estimate the MOS from jitter and loss with a simplified ITU-T G.107 E-model. The relay
+     * does not see the round trip delay so the latency is taken to be that of a jitter buffer
+     * sized at twice the jitter plus the codec delay.
+     */
+    static double estimateMos(double jitterMillis, double lossPercent) {
+        double latency = 2 * jitterMillis + 10;
+        double r;
+        if (latency < 160) {
+            r = 93.2 - latency / 40;
+        } else {
+            r = 93.2 - (latency - 120) / 10;
+        }
+        r -= 2.5 * lossPercent;
+        if (r < 0) {
+            r = 0;
+        } else if (r > 100) {
+            r = 100;
+        }
+        return 1 + 0.035 * r + 0.000007 * r * (r - 60) * (100 - r);
+    }
+
+    Map<String, Object> toMap() {
+        /*
+         * All from the same snapshot.
+         */
+        Snapshot snapshot = this.snapshot;
+        Map<String, Object> retval = new HashMap<String, Object>();
+        retval.put(Symmitron.RTP_PACKETS, Long.toString(snapshot.rtpPackets));
+        retval.put(Symmitron.RTCP_PACKETS, Long.toString(snapshot.rtcpPackets));
+        retval.put(Symmitron.PACKETS_LOST, Long.toString(getPacketsLost(snapshot)));
+        retval.put(Symmitron.JITTER, String.format("%.2f", snapshot.jitterMillis));
+        retval.put(Symmitron.PAYLOAD_TYPE, Integer.toString(snapshot.payloadType));
+        retval.put(Symmitron.PAYLOAD_TYPE_CHANGES, Long.toString(snapshot.payloadTypeChanges));
+        retval.put(Symmitron.MOS, String.format("%.2f", getMos(snapshot)));
+        return retval;
+    }
+
+}
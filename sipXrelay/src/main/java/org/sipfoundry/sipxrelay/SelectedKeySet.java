@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An array backed replacement for the selected key set of a selector. The HashSet used by the
+ * JDK allocates an entry for every key that becomes ready and an iterator for every pass over the
+ * ready keys. This set is installed into the selector by reflection and is read by index from
+ * the shuffler thread so the select loop does not allocate.
+ *
+ * Installing the set can fail ( e.g. a selector implementation we do not know or a JVM that does
+ * not open sun.nio.ch ). The shuffler then uses the standard selected key set.
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+
+    private static Logger logger = Logger.getLogger(SelectedKeySet.class.getPackage().getName());
+
+    SelectionKey[] keys = new SelectionKey[1024];
+
+    int size;
+
+    private SelectedKeySet() {
+    }
+
+    /**
+     * Replace the selected key set of the given selector.
+     *
+     * @return the installed set or null if the selector could not be modified.
+     */
+    static SelectedKeySet install(Selector selector) {
+        try {
+            Class< ? > selectorImplClass = Class.forName("sun.nio.ch.SelectorImpl", false,
+                    ClassLoader.getSystemClassLoader());
+            if (!selectorImplClass.isAssignableFrom(selector.getClass())) {
+                return null;
+            }
+            Field selectedKeysField = selectorImplClass.getDeclaredField("selectedKeys");
+            Field publicSelectedKeysField = selectorImplClass
+                    .getDeclaredField("publicSelectedKeys");
+            selectedKeysField.setAccessible(true);
+            publicSelectedKeysField.setAccessible(true);
+            SelectedKeySet selectedKeySet = new SelectedKeySet();
+            selectedKeysField.set(selector, selectedKeySet);
+            publicSelectedKeysField.set(selector, selectedKeySet);
+            return selectedKeySet;
+        } catch (Exception ex) {
+            logger.debug("Could not install selected key set -- using the default", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+        if (size == keys.length) {
+            SelectionKey[] newKeys = new SelectionKey[size * 2];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+        }
+        keys[size++] = key;
+        return true;
+    }
+
+    /*
+     * The selector asks before adding a key. The set is reset after each select so a key is
+     * never in it already.
+     */
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            public SelectionKey next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return keys[index++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Forget the keys after they have been processed.
+     */
+    void reset() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+        }
+        size = 0;
+    }
+
+}
@@ -7,6 +7,7 @@
 package org.sipfoundry.sipxrelay;
 
 import java.io.Serializable;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -51,6 +52,11 @@ final class Sym implements SymInterface, Serializable {
     private Bridge bridge;
 
     long packetsReceived;
+
+    /*
+     * Media quality of the stream received on this sym.
+     */
+    private final RtpStatistics rtpStatistics = new RtpStatistics();
     
     private long visited;
     
@@ -133,16 +139,25 @@ final class Sym implements SymInterface, Serializable {
     	}
         try {
             if (this.receiver != null) {
-                if (this.receiver.getDatagramChannel() != null) {
-                    this.receiver.getDatagramChannel().socket().close();
-                    this.receiver.getDatagramChannel().close();
-                    ConcurrentSet.removeChannel(this.receiver.getDatagramChannel());
+                DatagramChannel datagramChannel = this.receiver.getDatagramChannel();
+                if (datagramChannel != null) {
+                    datagramChannel.socket().close();
+                    datagramChannel.close();
+                    ConcurrentSet.removeChannel(datagramChannel);
                 } else {
                     logger.debug("receiver datagram channel is null");
                 }
                 int port = this.receiver.getPort();
                 PortRange portRange = new PortRange(port, port + 1);
-                SymmitronServer.getPortManager().free(portRange);
+                if (datagramChannel != null && datagramChannel.isRegistered()
+                        && this.bridge != null) {
+                    /*
+                     * The socket stays bound until the shuffler flushes the cancelled key.
+                     */
+                    this.bridge.getShuffler().releasePort(datagramChannel, portRange);
+                } else {
+                    SymmitronServer.getPortManager().free(portRange);
+                }
                 this.receiver = null;
 
             }
@@ -155,6 +170,7 @@ final class Sym implements SymInterface, Serializable {
                     logger.debug("transmitter datagram channel is null");
                 }
                 this.transmitter.stopKeepalive();
+                this.transmitter.setSocketAddress(null);
                 this.transmitter = null;
             }
             // Return resource to the Port range manager.
@@ -258,6 +274,10 @@ final class Sym implements SymInterface, Serializable {
         
     }
     
+    RtpStatistics getRtpStatistics() {
+        return rtpStatistics;
+    }
+
     void setVisited(long stamp) {
         visited = stamp; 
     }
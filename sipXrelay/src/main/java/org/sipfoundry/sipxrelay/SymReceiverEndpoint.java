@@ -60,6 +60,11 @@ final class SymReceiverEndpoint extends SymEndpoint {
 
     }
 
-   
+    /**
+     * @return the local address that the receiver is bound to.
+     */
+    InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
 
 }
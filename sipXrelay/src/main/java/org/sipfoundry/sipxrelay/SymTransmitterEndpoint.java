@@ -14,7 +14,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.util.Random;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -30,9 +30,12 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
 
     private AtomicLong lastPacketSentTime = new AtomicLong(0);
 
-    private ByteBuffer keepAliveBuffer = null;
+    /*
+     * A pooled direct buffer holding the keepalive packet.
+     */
+    private volatile ByteBuffer keepAliveBuffer = null;
 
-    private ByteBuffer emptyBuffer = ByteBuffer.allocate(0);
+    private static final ByteBuffer emptyBuffer = ByteBuffer.allocateDirect(0);
 
     private AutoDiscoveryFlag remoteAddressAutoDiscovered = AutoDiscoveryFlag.NO_AUTO_DISCOVERY;
 
@@ -56,51 +59,20 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
     private InetSocketAddress socketAddress;
 
     private InetSocketAddress farEnd;
-    class SendKeepaliveWorkItem extends WorkItem {
-         Bridge bridge;
-      
-        @Override
-        public void doWork() {
-            // TODO Auto-generated method stub
-            long stamp = DataShuffler.getPacketCounter();
-                 
-            try {
 
-                if (keepaliveMethod.equals(KeepaliveMethod.USE_EMPTY_PACKET)) {
-                    if (datagramChannel != null && getSocketAddress() != null
-                            && datagramChannel.isOpen() && getSocketAddress() != null) {
-                        send(emptyBuffer,stamp);
-                    }
-                } else if (keepaliveMethod.equals(KeepaliveMethod.REPLAY_LAST_SENT_PACKET)
-                        || keepaliveMethod.equals(KeepaliveMethod.USE_DUMMY_RTP_PAYLOAD)) {
-                    if (keepAliveBuffer != null && datagramChannel != null
-                            && getSocketAddress() != null && datagramChannel.isOpen()) {
-                        logger.trace("Sending keepalive");
-                        send((ByteBuffer) keepAliveBuffer,stamp);
+    /*
+     * Transmitters indexed by their remote address so that the sender of a self routed packet
+     * can be found without searching all the syms.
+     */
+    private static ConcurrentHashMap<InetSocketAddress, SymTransmitterEndpoint> transmitterMap =
+        new ConcurrentHashMap<InetSocketAddress, SymTransmitterEndpoint>();
 
-                    }
-                }
-            } catch (ClosedChannelException ex) {
-                /*
-                 * This is not an error. Somebody closed socket. Just bail.
-                 */
-                logger.warn("Exiting early media thread due to closed channel", ex);
-            } catch (Exception ex) {
-                logger.error("Unexpected exception in sending early media ", ex);
-                if (bridge != null) {
-                    bridge.stop();
-                }
-            }
-        }
-        
-    }
- 
     /**
-     * The keepalive timer task.
+     * The keepalive timer task. Runs on the data shuffler thread of the bridge.
      * 
      */
 
-    class KeepaliveTimerTask extends TimerTask {
+    class KeepaliveTimerTask extends TimingWheel.Task {
 
         KeepaliveTimerTask() {
 
@@ -109,7 +81,14 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
 
         }
 
-        public void run() {
+        @Override
+        protected Bridge getBridge() {
+            DatagramChannel channel = datagramChannel;
+            return channel == null ? null : ConcurrentSet.getBridge(channel);
+        }
+
+        @Override
+        protected void run() {
 
             if (datagramChannel == null) {
                 return;
@@ -124,18 +103,12 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
             }
             
             /*
-             * Wait till we have a remote socket address and transmit
-             * as soon as we see it.
+             * Wait till we have a remote socket address. The shuffler thread cannot block
+             * so just try again at the next expiry.
              */
 
             if (getSocketAddress() == null) {
-                while (getSocketAddress() == null) {
-                    try {
-                        Thread.sleep(20);
-                    } catch (Exception ex) {
-                    }
-                }
-                
+                return;
             }
 
             long now = System.currentTimeMillis();
@@ -143,12 +116,34 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
             if (now - bridge.getLastPacketTime() < maxSilence) {
                 return;
             }
-            
-            SendKeepaliveWorkItem workItem = new SendKeepaliveWorkItem();
-            workItem.bridge = bridge;
-            DataShuffler.addWorkItem(workItem);
 
-           
+            long stamp = DataShuffler.getPacketCounter();
+                 
+            try {
+
+                if (keepaliveMethod.equals(KeepaliveMethod.USE_EMPTY_PACKET)) {
+                    if (datagramChannel.isOpen()) {
+                        send(emptyBuffer,stamp);
+                    }
+                } else if (keepaliveMethod.equals(KeepaliveMethod.REPLAY_LAST_SENT_PACKET)
+                        || keepaliveMethod.equals(KeepaliveMethod.USE_DUMMY_RTP_PAYLOAD)) {
+                    ByteBuffer buffer = keepAliveBuffer;
+                    if (buffer != null && datagramChannel.isOpen()) {
+                        logger.trace("Sending keepalive");
+                        buffer.rewind();
+                        send(buffer,stamp);
+
+                    }
+                }
+            } catch (ClosedChannelException ex) {
+                /*
+                 * This is not an error. Somebody closed socket. Just bail.
+                 */
+                logger.warn("Exiting early media thread due to closed channel", ex);
+            } catch (Exception ex) {
+                logger.error("Unexpected exception in sending early media ", ex);
+                bridge.stop();
+            }
 
         }
 
@@ -156,13 +151,8 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
 
     private void setFarEnd() {
         try {
-            InetAddress remoteAddress = this.getSocketAddress().getAddress();
-            int remotePort = this.getSocketAddress().getPort();
-            InetAddress farEndAddress = (SymmitronServer.getPublicInetAddress() != null
-                    && remoteAddress.equals(SymmitronServer.getPublicInetAddress()) ? SymmitronServer
-                    .getLocalInetAddress()
-                    : remoteAddress);
-            this.farEnd = new InetSocketAddress(farEndAddress, remotePort);
+            this.farEnd = getFarEnd(this.getSocketAddress().getAddress(), this.getSocketAddress()
+                    .getPort());
         } catch (Exception ex) {
             logger.error("Unexpected exception in setting far end address", ex);
 
@@ -170,6 +160,28 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
 
     }
 
+    /*
+     * Packets sent to our public address come back to our local address.
+     */
+    private static InetSocketAddress getFarEnd(InetAddress remoteAddress, int remotePort)
+            throws UnknownHostException {
+        InetAddress farEndAddress = (SymmitronServer.getPublicInetAddress() != null
+                && remoteAddress.equals(SymmitronServer.getPublicInetAddress()) ? SymmitronServer
+                .getLocalInetAddress()
+                : remoteAddress);
+        return new InetSocketAddress(farEndAddress, remotePort);
+    }
+
+    /**
+     * @return the sym to which packets sent to the given destination are self routed or null
+     *         if they go out to the network.
+     */
+    static Sym getSelfRoutedSym(String ipAddress, int port) throws UnknownHostException {
+        InetSocketAddress destination = getFarEnd(InetAddress.getByName(ipAddress), port);
+        return isPacketSelfRouted(destination) ? DataShuffler.getSelfRoutedSym(destination)
+                : null;
+    }
+
     private static boolean isPacketSelfRouted(InetSocketAddress destinationSockaddr) {
         try {
             int port = destinationSockaddr.getPort();
@@ -200,7 +212,7 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
         logger.debug("startEarlyMediaThread " + this.toString());
         this.earlyMediaStarted = true;
         this.keepaliveTimerTask = new KeepaliveTimerTask();
-        SymmitronServer.timer.schedule(this.keepaliveTimerTask, 0, this.maxSilence);
+        SymmitronServer.timingWheel.schedule(this.keepaliveTimerTask, 0, this.maxSilence);
 
     }
 
@@ -223,10 +235,10 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
      *    record last packet sent time
      *    if we have a remote address recorded for this transmitter and packet is
      *       potentially self routed then :
-     *          channel = getSelfRoutedDatagramChannel(remoteAddress)
-     *          if channel != null :
-     *              bridge = getBridge(channel)
-     *              DataShuffler.send(bridge,channel,remoteAddress)
+     *          sym = getSelfRoutedSym(remoteAddress)
+     *          if sym != null :
+     *              bridge = sym.getBridge()
+     *              DataShuffler.send(bridge,sym,remoteAddress)
      *          else:
      *              this.datagramChannel.send(byteBuffer,remoteAddress)
      *    else if we have a remote address recorded for this transmitter:
@@ -238,6 +250,16 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
      * @throws IOException
      */
     public void send(ByteBuffer byteBuffer, long stamp) throws IOException {
+        send(byteBuffer, stamp, null);
+    }
+
+    /**
+     * Send a packet through the I/O of the calling shuffler thread.
+     * 
+     * @param packetBatch -- the I/O of the calling shuffler or null to send directly.
+     */
+    void send(ByteBuffer byteBuffer, long stamp, PacketBatch packetBatch) throws IOException {
+        int packetPosition = byteBuffer.position();
 
         if (this.getSocketAddress() == null) {
             if (logger.isTraceEnabled()) {
@@ -263,19 +285,29 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
                     logger.trace("SymTransmitterEndpoint:remoteAddress = " + this.farEnd);
                 }
 
-                DatagramChannel channel = DataShuffler.getSelfRoutedDatagramChannel(this.farEnd);
+                Sym selfRoutedSym = DataShuffler.getSelfRoutedSym(this.farEnd);
 
-                if (channel != null) {
+                if (selfRoutedSym != null) {
                     if (logger.isTraceEnabled()) {
-                        logger.trace("SymTransmitterEndpoint:selfRoutedDatagramChannel = "
-                                + channel);
+                        logger.trace("SymTransmitterEndpoint:selfRoutedSym = "
+                                + selfRoutedSym.getId());
                     }
-                    Bridge bridge = ConcurrentSet.getBridge(channel);
+                    Bridge bridge = selfRoutedSym.getBridge();
                     if (logger.isTraceEnabled()) {
                         logger.trace("SymTransmitterEndpoint:selfRoutedBridge = " + bridge);
                     }
-                    if (bridge != null) {
-                        DataShuffler.send(bridge, channel, this.farEnd,stamp,true);
+                    if (bridge != null && bridge.getState() == BridgeState.RUNNING) {
+                        DataShuffler shuffler = bridge.getShuffler();
+                        if (shuffler.isShufflerThread()) {
+                            DataShuffler.send(bridge, selfRoutedSym, this.farEnd, byteBuffer,
+                                    stamp, true, packetBatch);
+                        } else {
+                            /*
+                             * The bridge is serviced by another shard.
+                             */
+                            shuffler.handOffSelfRouted(selfRoutedSym, this.farEnd, byteBuffer,
+                                    stamp);
+                        }
                         return;
                     }
                 } else {
@@ -284,7 +316,9 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
             }
 
             if (this.datagramChannel != null && this.getSocketAddress() != null ) {
-                int bytesSent = this.datagramChannel.send(byteBuffer, this.getSocketAddress());
+                int bytesSent = packetBatch != null ? packetBatch.send(this.datagramChannel,
+                        byteBuffer, this.getSocketAddress()) : this.datagramChannel.send(
+                        byteBuffer, this.getSocketAddress());
                 if (logger.isTraceEnabled()) {
                     logger.trace("SymTransmitterEndpoint:actually sending to "
                             + this.getSocketAddress() + " sent " + bytesSent + " bytes ");
@@ -292,7 +326,7 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
 
             }
             if (keepaliveMethod.equals(KeepaliveMethod.REPLAY_LAST_SENT_PACKET)) {
-                this.keepAliveBuffer = byteBuffer;
+                recordLastSentPacket(byteBuffer, packetPosition);
             }
 
         } finally {
@@ -302,6 +336,24 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
         }
     }
 
+    /*
+     * Copy the packet that was just sent into the keepalive buffer so it can be replayed. The
+     * copy goes into the pooled buffer so nothing is allocated.
+     */
+    private void recordLastSentPacket(ByteBuffer byteBuffer, int packetPosition) {
+        ByteBuffer buffer = this.keepAliveBuffer;
+        if (buffer == null || buffer == byteBuffer
+                || byteBuffer.limit() - packetPosition > buffer.capacity()) {
+            return;
+        }
+        int position = byteBuffer.position();
+        byteBuffer.position(packetPosition);
+        buffer.clear();
+        buffer.put(byteBuffer);
+        buffer.flip();
+        byteBuffer.position(position);
+    }
+
     public void setMaxSilence(int maxSilence, KeepaliveMethod keepaliveMethod) {
         if (logger.isDebugEnabled()) {
             logger.debug("RtpEndpoint : setMaxSilence " + maxSilence + " keepaliveMethod = "
@@ -315,7 +367,14 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
         this.keepaliveMethod = keepaliveMethod;
         if (keepaliveMethod == KeepaliveMethod.USE_DUMMY_RTP_PAYLOAD
                 || keepaliveMethod == KeepaliveMethod.REPLAY_LAST_SENT_PACKET) {
-            this.keepAliveBuffer = DummyRtpPacket.createDummyRtpPacket();
+            ByteBuffer buffer = this.keepAliveBuffer;
+            if (buffer == null) {
+                DirectBufferPool pool = SymmitronServer.getKeepaliveBufferPool();
+                buffer = pool != null ? pool.take() : ByteBuffer
+                        .allocateDirect(SymmitronServer.KEEPALIVE_BUFFER_SIZE);
+            }
+            DummyRtpPacket.createDummyRtpPacket(buffer);
+            this.keepAliveBuffer = buffer;
         }
         if (maxSilence != 0 && !keepaliveMethod.equals(KeepaliveMethod.NONE)) {
             this.startKeepaliveTimer();
@@ -325,6 +384,24 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
     public void stopKeepalive() {
         if (this.keepaliveTimerTask != null)
             this.keepaliveTimerTask.cancel();
+        ByteBuffer buffer = this.keepAliveBuffer;
+        if (buffer != null) {
+            this.keepAliveBuffer = null;
+            /*
+             * The shuffler of the bridge may be sending from the buffer or copying into it right
+             * now. It hands the buffer back to the pool when it is done.
+             */
+            Sym sym = this.getSym();
+            Bridge bridge = sym != null ? sym.getBridge() : null;
+            if (bridge != null) {
+                bridge.getShuffler().releaseKeepaliveBuffer(buffer);
+            } else {
+                DirectBufferPool pool = SymmitronServer.getKeepaliveBufferPool();
+                if (pool != null) {
+                    pool.release(buffer);
+                }
+            }
+        }
 
     }
 
@@ -420,13 +497,25 @@ final class SymTransmitterEndpoint extends SymEndpoint implements SymTransmitter
      * @param socketAddress the socketAddress to set
      */
     protected void setSocketAddress(InetSocketAddress socketAddress) {
+        InetSocketAddress previous = this.socketAddress;
+        if (previous != null) {
+            transmitterMap.remove(previous, this);
+        }
         this.socketAddress = socketAddress;
         if (socketAddress != null) {
+            transmitterMap.put(socketAddress, this);
             this.setFarEnd();
         }
 
     }
 
+    /**
+     * @return the transmitter that sends to the given address or null.
+     */
+    static SymTransmitterEndpoint getTransmitter(InetSocketAddress socketAddress) {
+        return transmitterMap.get(socketAddress);
+    }
+
     public void connect() throws IOException {
         /*
          * if (this.datagramChannel.isConnected()) { this.datagramChannel.disconnect(); }
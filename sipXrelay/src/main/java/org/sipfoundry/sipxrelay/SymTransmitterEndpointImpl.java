@@ -32,6 +32,16 @@ public class SymTransmitterEndpointImpl implements SymTransmitterEndpointInterfa
         this.sym = sym;
     }
 
+    /**
+     * A transmitter whose destination was already set at the relay when its sym was created.
+     */
+    protected SymTransmitterEndpointImpl(SymmitronClient symmitronClient, SymImpl sym,
+            String ipAddress, int port) {
+        this(symmitronClient, sym);
+        this.ipAddress = ipAddress;
+        this.port = port;
+    }
+
     public void setIpAddressAndPort(String ipAddress, int destinationPort, int keepAliveInterval,
             KeepaliveMethod keepAliveMethod) throws IllegalStateException, UnknownHostException {
 
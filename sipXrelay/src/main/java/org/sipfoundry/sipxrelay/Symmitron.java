@@ -226,6 +226,98 @@ public interface Symmitron {
      */
     public static final String NBRIDGES = "nbridges";
 
+    /**
+     * The destination ip address of a sym ( createBridgedSyms ).
+     */
+    public static final String DESTINATION_IP_ADDRESS = "ipAddress";
+
+    /**
+     * The destination port of a sym ( createBridgedSyms ).
+     */
+    public static final String DESTINATION_PORT = "port";
+
+    /**
+     * The keepalive time of a sym ( createBridgedSyms ).
+     */
+    public static final String KEEPALIVE_TIME = "keepalive-time";
+
+    /**
+     * The keepalive method of a sym ( createBridgedSyms ).
+     */
+    public static final String KEEPALIVE_METHOD = "keepalive-method";
+
+    /**
+     * The clock rates of the RTP payload types negotiated for a sym, keyed by payload type (
+     * createBridgedSyms ).
+     */
+    public static final String RTP_MAP = "rtpmap";
+
+    /**
+     * The port parity of a sym ( createBridgedSyms ).
+     */
+    public static final String PARITY = "parity";
+
+    /**
+     * references a collection of shuffler thread statistics.
+     */
+    public static final String SHUFFLER_STATS = "shuffler-stats";
+
+    /**
+     * The index of a shuffler thread.
+     */
+    public static final String SHUFFLER_ID = "shuffler-id";
+
+    /**
+     * CPU time ( milliseconds ) consumed by a shuffler thread.
+     */
+    public static final String CPU_TIME = "cpu-time";
+
+    /**
+     * references a collection of per sym media quality statistics.
+     */
+    public static final String RTP_STATS = "rtp-stats";
+
+    /**
+     * The sym id in a map of sym statistics.
+     */
+    public static final String SYM_ID = "sym-id";
+
+    /**
+     * The number of RTP packets received on a sym.
+     */
+    public static final String RTP_PACKETS = "rtp-packets";
+
+    /**
+     * The number of RTCP packets received on a sym.
+     */
+    public static final String RTCP_PACKETS = "rtcp-packets";
+
+    /**
+     * The number of RTP packets lost ( sequence number gaps ).
+     */
+    public static final String PACKETS_LOST = "packets-lost";
+
+    /**
+     * The RTP interarrival jitter ( milliseconds ), -1 if the clock rate of the payload type is
+     * not known.
+     */
+    public static final String JITTER = "jitter";
+
+    /**
+     * The last RTP payload type received.
+     */
+    public static final String PAYLOAD_TYPE = "payload-type";
+
+    /**
+     * The number of times the RTP payload type changed.
+     */
+    public static final String PAYLOAD_TYPE_CHANGES = "payload-type-changes";
+
+    /**
+     * The estimated mean opinion score ( 1 to 4.5, -1 if not known ).
+     */
+    public static final String MOS = "mos";
+
     /**
      * Successful return.
      */
@@ -459,6 +551,38 @@ public interface Symmitron {
      */
     public Map<String, Object> createBridge(String controllerHandle);
 
+    /**
+     * Create a set of syms, add them to a bridge, set their destinations and optionally start
+     * the bridge. This does in a single request what createBridge, createSyms, addSym,
+     * setDestination and startBridge do in several.
+     * 
+     * @param controllerHandle --
+     *            the controller handle.
+     * 
+     * @param bridgeId --
+     *            the bridge to add the syms to. If empty, a new bridge is created.
+     * 
+     * @param symSpecs --
+     *            one map per sym to create. Each map may contain the following keys.
+     *            <ul>
+     *            <li><it>parity</it> -- 1 Even ( default ) or 2 Odd.
+     *            <li><it>port</it> -- the destination port. If absent, no destination is set.
+     *            <li><it>ipAddress</it> -- the destination ip address ( see setDestination ).
+     *            <li><it>keepalive-time</it> -- the keep alive time ( default 0 ).
+     *            <li><it>keepalive-method</it> -- the keep alive method ( default "NONE" ).
+     *            <li><it>rtpmap</it> -- the clock rate of each dynamic payload type received
+     *            on the sym, keyed by payload type. Used for the jitter statistics.
+     *            </ul>
+     * 
+     * @param startBridge --
+     *            whether to start the bridge after adding the syms.
+     * 
+     * @return a map containing the bridge ID, an array of maps containing the allocated syms in
+     *         the order in which they were specified and the public address ( if known ).
+     */
+    public Map<String, Object> createBridgedSyms(String controllerHandle, String bridgeId,
+            Object[] symSpecs, boolean startBridge);
+
     /**
      * Destroy a bridge. This method destroys all the syms associated with the
      * bridge. Once the bridge is destroyed all references to its handle are
@@ -594,8 +718,48 @@ public interface Symmitron {
      */
     public Map<String, Object> getBridgeStatistics(String controllerHandle,
             String bridgeId);
+
+    /**
+     * Get the statistics for the data shuffler threads.
+     * 
+     * @param controllerHandle --
+     *            the controller handle making this call.
+     * 
+     * @return A map containing the key <it>shuffler-stats</it> that references an array with
+     *         one map per shuffler thread. Each map contains the following keys.
+     *         <ul>
+     *         <li><it>shuffler-id</it> -- the index of the shuffler thread.
+     *         <li><it>packets-received</it> -- packets received by the shuffler.
+     *         <li><it>packets-sent</it> -- packets sent by the shuffler.
+     *         <li><it>cpu-time</it> -- cpu time (milliseconds) used by the shuffler thread or -1
+     *         if not available.
+     *         </ul>
+     */
+    public Map<String, Object> getShufflerStatistics(String controllerHandle);
     
     
+    /**
+     * Get the media quality statistics of a bridge. The statistics are computed by the relay
+     * from the RTP headers of the packets it forwards.
+     * 
+     * @param controllerHandle --
+     *            the controller handle making this call.
+     * 
+     * @param bridgeId --
+     *            the bridge id.
+     * 
+     * @return A map containing the following keys.
+     *         <ul>
+     *         <li><it>bridge-id</it> -- the bridge id.
+     *         <li><it>mos</it> -- the estimated MOS of the worst stream of the bridge.
+     *         <li><it>rtp-stats</it> -- an array with one map per sym. Each map contains the
+     *         keys <it>sym-id</it>, <it>rtp-packets</it>, <it>rtcp-packets</it>,
+     *         <it>packets-lost</it>, <it>jitter</it> (milliseconds), <it>payload-type</it>,
+     *         <it>payload-type-changes</it> and <it>mos</it>.
+     *         </ul>
+     */
+    public Map<String, Object> getRtpStatistics(String controllerHandle, String bridgeId);
+
     /**
      * Debugging route. Get the receiver state.
      * 
@@ -11,16 +11,17 @@
 package org.sipfoundry.sipxrelay;
 
 import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.sipfoundry.commons.xmlrpc.PooledXmlRpcTransportFactory;
 
 /**
  * Wrapper for the client methods of the Symmitron.
@@ -34,7 +35,7 @@ public class SymmitronClient {
 
 	private String clientHandle;
 	
-	private SynchronizedXmlRpcClient client;
+	private XmlRpcClient client;
 
 	private String serverHandle;
 
@@ -44,6 +45,11 @@ public class SymmitronClient {
 	
 	private String clientName;
 
+	/*
+	 * The public address most recently reported by the relay.
+	 */
+	private volatile String publicAddress;
+
 	private static Timer timer = new Timer();
 
 	private synchronized boolean checkForServerReboot(Map map) throws SymmitronException {
@@ -60,34 +66,6 @@ public class SymmitronClient {
 
 	}
 	
-	class SynchronizedXmlRpcClient {
-	    private XmlRpcClient xmlRpcClient;
-	    Semaphore semaphore;
-
-        SynchronizedXmlRpcClient(XmlRpcClient xmlRpcClient) {
-	        this.xmlRpcClient = xmlRpcClient;
-	        this.semaphore = new Semaphore(1);
-	    }
-        
-        public Object execute(String method, Object[] args) throws XmlRpcException {
-            boolean acquired = false;
-            try {
-                semaphore.acquire();
-                acquired = true;
-                return this.xmlRpcClient.execute(method,args);
-            } catch (XmlRpcException ex) {
-                throw ex;
-            } catch (InterruptedException ex) {
-                throw new XmlRpcException("Interrupted!");
-            } finally {
-                if (acquired) {
-                    semaphore.release();
-                }
-            }
-            
-        }
-	}
-
 	class ResetHandlerTimerTask extends TimerTask {
 
 		@Override
@@ -152,8 +130,13 @@ public class SymmitronClient {
 
 			xmlRpcClient.setConfig(config);
 			xmlRpcClient.setMaxThreads(32);
+			/*
+			 * Calls go over persistent connections. The pool bounds the number of
+			 * calls in progress to the relay.
+			 */
+			xmlRpcClient.setTransportFactory(new PooledXmlRpcTransportFactory(xmlRpcClient));
 			clientHandle = clientName + ":" + Math.abs(new Random().nextLong());
-			client = new SynchronizedXmlRpcClient(xmlRpcClient);
+			client = xmlRpcClient;
 			this.signIn();
 			logger.debug("signedIn : " + protocol + "://" + serverAddress + ":"
 					+ port);
@@ -254,7 +237,102 @@ public class SymmitronClient {
 		String pubaddr  = (String) retval.get(Symmitron.PUBLIC_ADDRESS);
 		if ( pubaddr == null ) {
 			throw new SymmitronException("SIPXRELAY Public address not found");
-		} else return pubaddr;
+		} else {
+			this.publicAddress = pubaddr;
+			return pubaddr;
+		}
+	}
+
+	/**
+	 * Get the public address most recently reported by the relay. Only goes to the relay if
+	 * no address has been reported yet.
+	 */
+	public String getLastKnownPublicAddress() throws SymmitronException {
+		String pubaddr = this.publicAddress;
+		if (pubaddr != null) {
+			return pubaddr;
+		} else {
+			return this.getPublicAddress();
+		}
+	}
+
+	/**
+	 * Create a sym specification for createBridgedSyms. The sym is created with even parity
+	 * and its destination is set.
+	 */
+	public static Map<String, Object> createSymSpec(String ipAddress,
+			int destinationPort, int keepAliveInterval,
+			KeepaliveMethod keepAliveMethod) {
+		Map<String, Object> symSpec = new HashMap<String, Object>();
+		symSpec.put(Symmitron.DESTINATION_IP_ADDRESS, ipAddress == null ? "" : ipAddress);
+		symSpec.put(Symmitron.DESTINATION_PORT, new Integer(destinationPort));
+		symSpec.put(Symmitron.KEEPALIVE_TIME, new Integer(keepAliveInterval));
+		symSpec.put(Symmitron.KEEPALIVE_METHOD, keepAliveMethod.toString());
+		return symSpec;
+	}
+
+	/**
+	 * Create a set of syms, add them to a bridge, set their destinations and optionally start
+	 * the bridge in a single round trip to the relay.
+	 * 
+	 * @param bridge -- the bridge. If the bridge has not been created at the relay yet it is
+	 *        created by this call.
+	 * @param symSpecs -- one map per sym (see createSymSpec). An empty map creates an even sym
+	 *        without a destination.
+	 * @param startBridge -- whether to start the bridge.
+	 * 
+	 * @return the syms in the order in which they were specified.
+	 */
+	public SymImpl[] createBridgedSyms(BridgeImpl bridge, Map[] symSpecs,
+			boolean startBridge) throws SymmitronException {
+		Object[] args = new Object[4];
+		args[0] = clientHandle;
+		args[1] = bridge.getIdIfCreated() == null ? "" : bridge.getIdIfCreated();
+		args[2] = symSpecs;
+		args[3] = new Boolean(startBridge);
+
+		logger.debug(String.format("createBridgedSyms : %s %d %s", args[1], symSpecs.length,
+				args[3]));
+
+		Map retval;
+		try {
+			retval = (Map) client.execute("sipXrelay.createBridgedSyms", args);
+		} catch (XmlRpcException e) {
+			logger.error(e);
+			throw new SymmitronException(e);
+		}
+		if (retval.get(Symmitron.STATUS_CODE).equals(Symmitron.ERROR)) {
+			throw new SymmitronException("Error in processing request "
+					+ retval.get(Symmitron.ERROR_INFO));
+		}
+		bridge.setId((String) retval.get(Symmitron.BRIDGE_ID));
+		if (startBridge) {
+			bridge.setState(BridgeState.RUNNING);
+		}
+		if (retval.get(Symmitron.PUBLIC_ADDRESS) != null) {
+			this.publicAddress = (String) retval.get(Symmitron.PUBLIC_ADDRESS);
+		}
+
+		Object[] syms = (Object[]) retval.get(Symmitron.SYM_SESSION);
+		SymImpl[] symImpls = new SymImpl[syms.length];
+		for (int i = 0; i < syms.length; i++) {
+			Map sym = (Map) syms[i];
+			symImpls[i] = new SymImpl((String) sym.get("id"), this);
+			Map receiverSession = (Map) sym.get("receiver");
+			if (receiverSession != null && !receiverSession.isEmpty()) {
+				SymEndpointImpl receiverEndpoint = new SymEndpointImpl(this);
+				receiverEndpoint.setIpAddress((String) receiverSession.get("ipAddress"));
+				receiverEndpoint.setPort((Integer) receiverSession.get("port"));
+				receiverEndpoint.setId((String) receiverSession.get("id"));
+				symImpls[i].setReceiver(receiverEndpoint);
+			}
+			String ipAddress = (String) symSpecs[i].get(Symmitron.DESTINATION_IP_ADDRESS);
+			if (ipAddress != null && !ipAddress.equals("")) {
+				symImpls[i].setTransmitter(new SymTransmitterEndpointImpl(this, symImpls[i],
+						ipAddress, (Integer) symSpecs[i].get(Symmitron.DESTINATION_PORT)));
+			}
+		}
+		return symImpls;
 	}
 
 	public void destroyBridge(String bridgeId) throws SymmitronException {
@@ -615,11 +693,26 @@ public class SymmitronClient {
 
 	}
 
-	public BridgeInterface createBridge() throws SymmitronException {
+	public BridgeImpl createBridge() throws SymmitronException {
 		return new BridgeImpl(this);
 	}
 
+	/**
+	 * Create a bridge whose creation at the relay is deferred. The bridge is created by the
+	 * first createBridgedSyms call that refers to it ( or by the first operation that needs
+	 * its id ), saving a round trip.
+	 */
+	public BridgeImpl createDeferredBridge() {
+		return new BridgeImpl(this, false);
+	}
+
 	public SymTransmitterEndpointImpl createSymTransmitter(SymImpl symImpl) {
+		/*
+		 * The destination may have been set when the sym was created.
+		 */
+		if (symImpl.getTransmitter() instanceof SymTransmitterEndpointImpl) {
+			return (SymTransmitterEndpointImpl) symImpl.getTransmitter();
+		}
 		return new SymTransmitterEndpointImpl(this, symImpl);
 
 	}
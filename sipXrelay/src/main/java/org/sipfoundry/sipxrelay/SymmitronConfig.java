@@ -34,6 +34,10 @@ public class SymmitronConfig {
 
     private boolean rejectStrayPackets = true;
 
+    private int shufflerThreads = 1;
+
+    private String batchIo = "none";
+
 	public SymmitronConfig() {
 
 	}
@@ -256,6 +260,43 @@ public class SymmitronConfig {
     public boolean isRejectStrayPackets() {
         return rejectStrayPackets;
     }
+
+    /**
+     * @param shufflerThreads
+     *            the number of threads ( shards ) that shuffle data.
+     */
+    public void setShufflerThreads(int shufflerThreads) {
+        if (shufflerThreads < 1) {
+            throw new IllegalArgumentException("shuffler-threads must be positive");
+        }
+        this.shufflerThreads = shufflerThreads;
+    }
+
+    /**
+     * @return the number of data shuffler threads.
+     */
+    public int getShufflerThreads() {
+        return shufflerThreads;
+    }
+
+    /**
+     * @param batchIo
+     *            the datagram I/O mode of the shufflers : none, nio ( drain several datagrams
+     *            per wakeup ) or native ( recvmmsg / sendmmsg ).
+     */
+    public void setBatchIo(String batchIo) {
+        if (!batchIo.equals("none") && !batchIo.equals("nio") && !batchIo.equals("native")) {
+            throw new IllegalArgumentException("batch-io must be none, nio or native");
+        }
+        this.batchIo = batchIo;
+    }
+
+    /**
+     * @return the datagram I/O mode of the shufflers.
+     */
+    public String getBatchIo() {
+        return batchIo;
+    }
 	
 	
 
@@ -98,6 +98,12 @@ public class SymmitronConfigParser {
                 "setRejectStrayPackets", 0, new Class[] {
             Boolean.class
         });
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "shuffler-threads"),
+                "setShufflerThreads", 0, new Class[] {
+                    Integer.class
+                });
+        digester.addCallMethod(String.format("%s/%s", BRIDGE_CONFIG, "batch-io"),
+                "setBatchIo", 0);
     }
 
     public SymmitronConfig parse(String url) {
@@ -22,6 +22,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
@@ -65,29 +66,35 @@ public class SymmitronServer implements Symmitron {
     static Logger logger = Logger.getLogger(SymmitronServer.class.getPackage()
             .getName());
 
-    protected static Timer timer = new Timer();
+    static final int TIMING_WHEEL_TICK = 10;
 
-    private static String status;
+    static final int TIMING_WHEEL_SIZE = 512;
 
     /*
-     * Map that pairs the SymSession id with the SymSession
+     * Keepalive packets ( and the last packet replayed as a keepalive ) larger than this are not
+     * kept.
      */
-    private static Map<String, Sym> sessionMap = new ConcurrentHashMap<String, Sym>();
+    static final int KEEPALIVE_BUFFER_SIZE = 1500;
 
     /*
-     * Map that pairs the rtpSesion owner with the rtp session
+     * Direct buffers for the sym keepalives. Sized to have one buffer per port in the range.
      */
-    private static Map<String, HashSet<Sym>> sessionResourceMap = new ConcurrentHashMap<String, HashSet<Sym>>();
+    private static DirectBufferPool keepaliveBufferPool;
+
+    protected static Timer timer = new Timer();
 
     /*
-     * A map that pairs the RtpBridge id with the rtp Bridge.
+     * Keepalive timers. There can be one per sym so these do not go on the timer above.
      */
-    private static Map<String, Bridge> bridgeMap = new ConcurrentHashMap<String, Bridge>();
+    static final TimingWheel timingWheel = new TimingWheel("KeepaliveTimer",
+            TIMING_WHEEL_TICK, TIMING_WHEEL_SIZE);
+
+    private static String status;
 
     /*
-     * A map that pairs the owner with the RtpBridge
+     * The syms and bridges indexed by id and by owner.
      */
-    private static Map<String, HashSet<Bridge>> bridgeResourceMap = new ConcurrentHashMap<String, HashSet<Bridge>>();
+    private static ResourceRegistry registry = new ResourceRegistry();
 
     /*
      * A map of component name to instance handle.
@@ -165,14 +172,21 @@ public class SymmitronServer implements Symmitron {
     static CRLFReceiver crlfReceiver;
 
     static boolean filterStrayPackets = true;
-  
-    private static Thread dataShufflerThread;
-
-    private static DataShuffler dataShuffler;
 
     
     private static ConcurrentHashMap<String,SipXrelaySemaphore> semaphoreLockTable = new ConcurrentHashMap<String,SipXrelaySemaphore>();
 
+    /*
+     * Striped locks that serialize controller reboot detection per component name.
+     */
+    private static final Object[] componentLocks = new Object[16];
+
+    static {
+        for (int i = 0; i < componentLocks.length; i++) {
+            componentLocks[i] = new Object();
+        }
+    }
+
     private static long startTime;
     
     static {
@@ -220,33 +234,114 @@ public class SymmitronServer implements Symmitron {
 
         public void doWork() {
             try {
-                // Allocate a new session if needed.
-                SymTransmitterEndpoint transmitter = sym.getTransmitter() != null ? sym
-                        .getTransmitter()
-                        : new SymTransmitterEndpoint();
-
-                AutoDiscoveryFlag autoDiscoveryFlag = AutoDiscoveryFlag.NO_AUTO_DISCOVERY;
-                if (ipAddress == null && port == 0) {
-                    autoDiscoveryFlag = AutoDiscoveryFlag.IP_ADDRESS_AND_PORT;
-                } else if (ipAddress != null && port == 0) {
-                    autoDiscoveryFlag = AutoDiscoveryFlag.PORT_ONLY;
-                }
-                transmitter.setAutoDiscoveryFlag(autoDiscoveryFlag);
+                setSymDestination(sym, ipAddress, port, keepAliveTime, keepaliveMethod);
+            } catch (Exception ex) {
+                logger.error("Exception setting destination ", ex);
+                super.error(PROCESSING_ERROR,ex.getMessage());
+                
+            } finally {
+                workSem.release();
+            }
+        }
+    }
+
+    /**
+     * Set the destination of a sym. Must be called from the data shuffler thread.
+     */
+    private static void setSymDestination(Sym sym, String ipAddress, int port,
+            int keepAliveTime, String keepaliveMethod) throws UnknownHostException {
+        // Allocate a new session if needed.
+        SymTransmitterEndpoint transmitter = sym.getTransmitter() != null ? sym
+                .getTransmitter()
+                : new SymTransmitterEndpoint();
+
+        AutoDiscoveryFlag autoDiscoveryFlag = AutoDiscoveryFlag.NO_AUTO_DISCOVERY;
+        if (ipAddress == null && port == 0) {
+            autoDiscoveryFlag = AutoDiscoveryFlag.IP_ADDRESS_AND_PORT;
+        } else if (ipAddress != null && port == 0) {
+            autoDiscoveryFlag = AutoDiscoveryFlag.PORT_ONLY;
+        }
+        transmitter.setAutoDiscoveryFlag(autoDiscoveryFlag);
 
-                transmitter.setIpAddressAndPort(ipAddress, port);
+        transmitter.setIpAddressAndPort(ipAddress, port);
 
-                KeepaliveMethod method = KeepaliveMethod
-                        .valueOfString(keepaliveMethod);
-                transmitter.setMaxSilence(keepAliveTime, method);
+        KeepaliveMethod method = KeepaliveMethod
+                .valueOfString(keepaliveMethod);
+        transmitter.setMaxSilence(keepAliveTime, method);
 
-                if (sym.getTransmitter() == null) {
-                    sym.setTransmitter(transmitter);
+        if (sym.getTransmitter() == null) {
+            sym.setTransmitter(transmitter);
+        }
+    }
+
+    /**
+     * A work queue item that adds a set of newly created syms to a bridge, sets the
+     * destinations of those syms that have one and optionally starts the bridge. This does in a
+     * single trip to the data shuffler thread what addSym, setDestination and startBridge do
+     * one at a time.
+     */
+    class AddBridgedSymsWorkItem extends WorkItem {
+
+        Bridge bridge;
+        Sym[] syms;
+        Map[] symSpecs;
+        boolean start;
+        SipXrelaySemaphore workSem;
+
+        public AddBridgedSymsWorkItem(Bridge bridge, Sym[] syms, Map[] symSpecs, boolean start) {
+            super();
+            this.bridge = bridge;
+            this.syms = syms;
+            this.symSpecs = symSpecs;
+            this.start = start;
+            this.workSem = new SipXrelaySemaphore(0);
+        }
+
+        public void doWork() {
+            try {
+                for (int i = 0; i < syms.length; i++) {
+                    bridge.addSym(syms[i]);
+                    Map symSpec = symSpecs[i];
+                    if (symSpec != null && symSpec.get(RTP_MAP) instanceof Map) {
+                        try {
+                            syms[i].getRtpStatistics().setClockRates((Map) symSpec.get(RTP_MAP));
+                        } catch (IllegalArgumentException ex) {
+                            super.error(ILLEGAL_ARGUMENT, ex.getMessage());
+                            return;
+                        }
+                    }
+                    if (symSpec != null && symSpec.containsKey(DESTINATION_PORT)) {
+                        String ipAddress = (String) symSpec.get(DESTINATION_IP_ADDRESS);
+                        if (ipAddress != null && ipAddress.equals("")) {
+                            ipAddress = null;
+                        }
+                        int port = (Integer) symSpec.get(DESTINATION_PORT);
+                        int keepAliveTime = symSpec.containsKey(KEEPALIVE_TIME) ? (Integer) symSpec
+                                .get(KEEPALIVE_TIME) : 0;
+                        String keepaliveMethod = symSpec.containsKey(KEEPALIVE_METHOD) ? (String) symSpec
+                                .get(KEEPALIVE_METHOD)
+                                : KeepaliveMethod.NONE.toString();
+                        if (ipAddress == null && port != 0) {
+                            super.error(ILLEGAL_ARGUMENT,
+                                    "Must specify IP address if port is not zero");
+                            return;
+                        }
+                        if (port < 0 || keepAliveTime < 0
+                                || KeepaliveMethod.valueOfString(keepaliveMethod) == null) {
+                            super.error(ILLEGAL_ARGUMENT, "Bad destination for sym "
+                                    + syms[i].getId());
+                            return;
+                        }
+                        setSymDestination(syms[i], ipAddress, port, keepAliveTime,
+                                keepaliveMethod);
+                    }
+                }
+                if (start) {
+                    bridge.start();
                 }
-               
             } catch (Exception ex) {
-                logger.error("Exception setting destination ", ex);
-                super.error(PROCESSING_ERROR,ex.getMessage());
-                
+                logger.error("Exception adding syms ", ex);
+                super.error(PROCESSING_ERROR, ex.getMessage());
             } finally {
                 workSem.release();
             }
@@ -273,14 +368,14 @@ public class SymmitronServer implements Symmitron {
 
         public void doWork() {
             try {
-                Bridge bridge = bridgeMap.get(bridgeId);
+                Bridge bridge = registry.getBridge(bridgeId);
                 
                 if (bridge == null) {
                     super.error(SESSION_NOT_FOUND,"Specified bridge was not found " + bridgeId);
                     return;
                 }
 
-                Sym sym = sessionMap.get(symId);
+                Sym sym = registry.getSym(symId);
 
                 if (sym == null) {
                     super.error(SESSION_NOT_FOUND,
@@ -317,14 +412,14 @@ public class SymmitronServer implements Symmitron {
 
         public void doWork() {
             try {
-                Bridge bridge = bridgeMap.get(bridgeId);
+                Bridge bridge = registry.getBridge(bridgeId);
                 
                 if (bridge == null) {
                     super.error(SESSION_NOT_FOUND,"Specified bridge was not found " + bridgeId);
                     return;
                 }
 
-                Sym sym = sessionMap.get(symId);
+                Sym sym = registry.getSym(symId);
 
                 if (sym == null) {
                     super.error(SESSION_NOT_FOUND,
@@ -356,7 +451,7 @@ public class SymmitronServer implements Symmitron {
         
         public void doWork() {
             try {
-                Bridge bridge = bridgeMap.get(bridgeId);
+                Bridge bridge = registry.getBridge(bridgeId);
                 if ( bridge == null ) {
                     super.error(SESSION_NOT_FOUND,"Specified bridge " + bridgeId + " not found.");
                     return;
@@ -389,6 +484,45 @@ public class SymmitronServer implements Symmitron {
         }
     }
     
+    /**
+     * Publishes the RTP statistics of the syms of a bridge on its shuffler thread and reads
+     * them.
+     */
+    class GetRtpStatisticsWorkItem extends WorkItem {
+
+        SipXrelaySemaphore workSem = new SipXrelaySemaphore(0);
+
+        Map<String, Object> retval;
+
+        Bridge bridge;
+
+        public GetRtpStatisticsWorkItem(Bridge bridge) {
+            this.bridge = bridge;
+        }
+
+        public void doWork() {
+            try {
+                Sym[] syms = bridge.sessions.getSymArray();
+                Map[] rtpStats = new Map[syms.length];
+                for (int i = 0; i < syms.length; i++) {
+                    syms[i].getRtpStatistics().publish();
+                    Map<String, Object> stats = syms[i].getRtpStatistics().toMap();
+                    stats.put(SYM_ID, syms[i].getId());
+                    rtpStats[i] = stats;
+                }
+                retval = createSuccessMap();
+                retval.put(BRIDGE_ID, bridge.getId());
+                retval.put(MOS, String.format("%.2f", bridge.getMos()));
+                retval.put(RTP_STATS, rtpStats);
+            } catch (Exception ex) {
+                logger.error("Exception reading RTP statistics ", ex);
+                super.error(PROCESSING_ERROR, ex.getMessage());
+            } finally {
+                workSem.release();
+            }
+        }
+    }
+
     private static void restartCrLfReceiver() {
         try {
             crlfReceiver = new CRLFReceiver();
@@ -505,14 +639,25 @@ public class SymmitronServer implements Symmitron {
     }
 
     private void addSymResource(String controllerId, Sym sym) {
-        sessionMap.put(sym.getId(), sym);
-        HashSet<Sym> syms = sessionResourceMap.get(controllerId);
-        if (syms != null) {
-            syms.add(sym);
-        } else {
-            syms = new HashSet<Sym>();
-            syms.add(sym);
-            sessionResourceMap.put(controllerId, syms);
+        registry.addSym(controllerId, sym);
+    }
+
+    private void addBridgeResource(String controllerId, Bridge bridge) {
+        registry.addBridge(controllerId, bridge);
+    }
+
+    /*
+     * Stop everything owned by a controller.
+     */
+    private static void destroyResources(String controllerHandle) {
+        ResourceRegistry.Owner owner = registry.removeOwner(controllerHandle);
+        if (owner != null) {
+            for (Bridge rtpBridge : owner.getBridges()) {
+                rtpBridge.stop();
+            }
+            for (Sym rtpSession : owner.getSyms()) {
+                rtpSession.close();
+            }
         }
     }
 
@@ -592,6 +737,18 @@ public class SymmitronServer implements Symmitron {
                 .getPortRangeUpperBound());
         
         filterStrayPackets = symmitronConfig.isRejectStrayPackets();
+
+        if (keepaliveBufferPool == null) {
+            keepaliveBufferPool = new DirectBufferPool(symmitronConfig.getPortRangeUpperBound()
+                    - symmitronConfig.getPortRangeLowerBound(), KEEPALIVE_BUFFER_SIZE);
+        }
+
+        DataShuffler.initialize(symmitronConfig.getShufflerThreads(), symmitronConfig
+                .getBatchIo());
+    }
+
+    static DirectBufferPool getKeepaliveBufferPool() {
+        return keepaliveBufferPool;
     }
 
     public static void startWebServer() throws Exception {
@@ -783,63 +940,54 @@ public class SymmitronServer implements Symmitron {
             throw new IllegalArgumentException("Illegal handle format");
         }
         String componentName = handleParts[0];
-        synchronized(semaphoreLockTable) {
+        SipXrelaySemaphore handleSem;
+        /*
+         * Only calls from the same component need to agree on the current instance. The
+         * handle lock is acquired outside of the component lock so a busy controller does not
+         * hold up the others.
+         */
+        synchronized (getComponentLock(componentName)) {
             String previousInstance = instanceTable.get(componentName);
             if (previousInstance == null) {
                 instanceTable.put(componentName, controllerHandle);
                 semaphoreLockTable.put(controllerHandle, new SipXrelaySemaphore(1));
             } else if (!previousInstance.equals(controllerHandle)) {
                 SipXrelaySemaphore previousSem = semaphoreLockTable.get(previousInstance);
-                if ( ! previousSem.tryAcquire(1000, TimeUnit.MILLISECONDS) ) {
+                if ( previousSem != null && ! previousSem.tryAcquire(1000, TimeUnit.MILLISECONDS) ) {
                     // guard against pending operations from last generation.
                     throw new Exception("Unable to acquire sem from previous handleInstance");
                 }
-                HashSet<Bridge> rtpBridges = bridgeResourceMap
-                .get(previousInstance);
-                if (rtpBridges != null) {
-                    for (Bridge rtpBridge : rtpBridges) {
-                        rtpBridge.stop();
-                    }
-                }
-                bridgeResourceMap.remove(previousInstance);
-                bridgeResourceMap.put(controllerHandle, new HashSet<Bridge>());
-                HashSet<Sym> rtpSessions = sessionResourceMap.get(previousInstance);
-                if (rtpSessions != null) {
-                    for (Sym rtpSession : rtpSessions) {
-                        rtpSession.close();
-                    }
-                }
-
+                destroyResources(previousInstance);
                 semaphoreLockTable.remove(previousInstance);
-                sessionResourceMap.remove(previousInstance);
-                sessionResourceMap.put(controllerHandle, new HashSet<Sym>());
                 semaphoreLockTable.put(controllerHandle, new SipXrelaySemaphore(1));
 
                 instanceTable.put(componentName, controllerHandle);
             }
+            handleSem = semaphoreLockTable.get(controllerHandle);
+        }
 
-            try {
-                if (! this.semaphoreLockTable.get(controllerHandle).tryAcquire(10,TimeUnit.SECONDS) ) {
-                    logger.error("Error occured during lock acquire for controller handle " + controllerHandle);
-                    throw new RuntimeException("Could not successfully acquire handle lock for 10 seconds, giving up");
-                } else {
-                    logger.debug("Acquired handle lock for " + controllerHandle);
-                }
-            } catch (InterruptedException ex) {
-                throw new RuntimeException("Interrupted while trying to aquire lock", ex);
+        try {
+            if (! handleSem.tryAcquire(10,TimeUnit.SECONDS) ) {
+                logger.error("Error occured during lock acquire for controller handle " + controllerHandle);
+                throw new RuntimeException("Could not successfully acquire handle lock for 10 seconds, giving up");
+            } else {
+                logger.debug("Acquired handle lock for " + controllerHandle);
             }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Interrupted while trying to aquire lock", ex);
         }
-        
-        
+    }
+
+    private static Object getComponentLock(String componentName) {
+        return componentLocks[(componentName.hashCode() & 0x7fffffff) % componentLocks.length];
     }
     
     private void release(String handle) {
-        synchronized(semaphoreLockTable) {
-            if ( this.semaphoreLockTable.get(handle) != null ) {
-                this.semaphoreLockTable.get(handle).release();
-            } else {
-                logger.error("NULL semaphore in table corresponding to handle " + handle);
-            }
+        SipXrelaySemaphore handleSem = semaphoreLockTable.get(handle);
+        if ( handleSem != null ) {
+            handleSem.release();
+        } else {
+            logger.error("NULL semaphore in table corresponding to handle " + handle);
         }
     }
 
@@ -943,9 +1091,9 @@ public class SymmitronServer implements Symmitron {
         try {
             this.checkForControllerReboot(controllerHandle);
 
-            if (sessionMap.get(symId) != null) {
+            if (registry.getSym(symId) != null) {
                 Map<String, Object> retval = createSuccessMap();
-                Sym sym = sessionMap.get(symId);
+                Sym sym = registry.getSym(symId);
                 retval.put(SYM_SESSION, sym.toMap());
                 logger.debug("returning " + retval);
                 return retval;
@@ -984,7 +1132,7 @@ public class SymmitronServer implements Symmitron {
                         keepaliveMethod, keepAliveTime));
          
 
-            Sym sym = sessionMap.get(symId);
+            Sym sym = registry.getSym(symId);
             if (sym == null) {
                 return createErrorMap(SESSION_NOT_FOUND, "");
             }
@@ -1003,7 +1151,7 @@ public class SymmitronServer implements Symmitron {
             SetDestinationWorkItem workItem = new SetDestinationWorkItem(sym,ipAddress,port,keepAliveTime,keepaliveMethod);
            
             
-            DataShuffler.addWorkItem(workItem);
+            DataShuffler.addWorkItem(sym.getBridge(), workItem);
             
             boolean acquired = workItem.workSem.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS);
             
@@ -1035,7 +1183,7 @@ public class SymmitronServer implements Symmitron {
                     + bridgeId);
             this.checkForControllerReboot(controllerHandle);
 
-            Bridge rtpBridge = bridgeMap.get(bridgeId);
+            Bridge rtpBridge = registry.getBridge(bridgeId);
             if (rtpBridge == null) {
                 return createErrorMap(SESSION_NOT_FOUND, "");
             }
@@ -1055,7 +1203,7 @@ public class SymmitronServer implements Symmitron {
             logger.info("pauseSym: " + controllerHandle + " symId = "
                     + sessionId);
             this.checkForControllerReboot(controllerHandle);
-            Sym rtpSession = sessionMap.get(sessionId);
+            Sym rtpSession = registry.getSym(sessionId);
             if (rtpSession == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Specified RTP Session was not found " + sessionId);
@@ -1088,19 +1236,19 @@ public class SymmitronServer implements Symmitron {
                     + bridgeId + " symId = " + symId);
 
             this.checkForControllerReboot(controllerHandle);
-            Bridge rtpBridge = bridgeMap.get(bridgeId);
+            Bridge rtpBridge = registry.getBridge(bridgeId);
             if (rtpBridge == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Specified RTP Bridge was not found " + bridgeId);
             }
             
-            Bridge bridge = bridgeMap.get(bridgeId);
+            Bridge bridge = registry.getBridge(bridgeId);
             
             if (bridge == null) {
                 return createErrorMap(SESSION_NOT_FOUND,"Specified bridge was not found " + bridgeId);
             }
 
-            Sym sym = sessionMap.get(symId);
+            Sym sym = registry.getSym(symId);
 
             if (sym == null) {
                 return createErrorMap(SESSION_NOT_FOUND,
@@ -1109,7 +1257,7 @@ public class SymmitronServer implements Symmitron {
             
 
             RemoveSymWorkItem removeSym = new RemoveSymWorkItem(bridgeId,symId);
-            DataShuffler.addWorkItem(removeSym);
+            DataShuffler.addWorkItem(bridge, removeSym);
             boolean acquired = removeSym.workSem.tryAcquire(TIMEOUT,TimeUnit.MILLISECONDS);
             if (!acquired) {
             	return createErrorMap(PROCESSING_ERROR,"SipXrelaySemaphore timed out");
@@ -1140,7 +1288,7 @@ public class SymmitronServer implements Symmitron {
             this.checkForControllerReboot(controllerHandle);
             logger.debug("addSym: " + controllerHandle + " bridgeId = "
                     + bridgeId + " symId = " + symId);
-            Bridge bridge = bridgeMap.get(bridgeId);
+            Bridge bridge = registry.getBridge(bridgeId);
 
             if (bridge == null) {
                 return createErrorMap(SESSION_NOT_FOUND,"Specified bridge was not found " + bridgeId);
@@ -1148,7 +1296,7 @@ public class SymmitronServer implements Symmitron {
             }
 
             AddSymWorkItem workItem  = new AddSymWorkItem(bridgeId,symId);
-            DataShuffler.addWorkItem(workItem);
+            DataShuffler.addWorkItem(bridge, workItem);
             boolean acquired = workItem.workSem.tryAcquire(TIMEOUT,TimeUnit.MILLISECONDS);
             if ( !acquired ) {
                 logger.error("addSym: could not acquire sem");
@@ -1182,15 +1330,7 @@ public class SymmitronServer implements Symmitron {
             logger.info("createBridge: " + controllerHandle);
 
             Bridge bridge = new Bridge();
-            bridgeMap.put(bridge.getId(), bridge);
-            HashSet<Bridge> bridges = bridgeResourceMap.get(controllerHandle);
-            if (bridges != null) {
-                bridges.add(bridge);
-            } else {
-                bridges = new HashSet<Bridge>();
-                bridges.add(bridge);
-                bridgeResourceMap.put(controllerHandle, bridges);
-            }
+            this.addBridgeResource(controllerHandle, bridge);
 
             Map<String, Object> retval = this.createSuccessMap();
             logger.debug("createBridge: returning " + bridge.getId());
@@ -1205,12 +1345,173 @@ public class SymmitronServer implements Symmitron {
 
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.sipfoundry.sipxrelay.Symmitron#createBridgedSyms(java.lang.String,
+     *      java.lang.String, java.lang.Object[], boolean)
+     */
+    public Map<String, Object> createBridgedSyms(String controllerHandle, String bridgeId,
+            Object[] symSpecs, boolean startBridge) {
+        PortRange[] portRanges = null;
+        Bridge bridge = null;
+        boolean bridgeCreated = false;
+        Sym[] syms = null;
+        boolean success = false;
+        try {
+            this.checkForControllerReboot(controllerHandle);
+            logger.info("createBridgedSyms: " + controllerHandle + " bridgeId = " + bridgeId
+                    + " count = " + symSpecs.length + " start = " + startBridge);
+
+            if (bridgeId == null || bridgeId.equals("")) {
+                DataShuffler shuffler = getSelfRoutedShuffler(symSpecs);
+                bridge = shuffler != null ? new Bridge(shuffler) : new Bridge();
+                this.addBridgeResource(controllerHandle, bridge);
+                bridgeCreated = true;
+            } else {
+                bridge = registry.getBridge(bridgeId);
+                if (bridge == null) {
+                    return createErrorMap(SESSION_NOT_FOUND, "Specified bridge was not found "
+                            + bridgeId);
+                }
+            }
+
+            Map[] specs = new Map[symSpecs.length];
+            portRanges = new PortRange[symSpecs.length];
+            for (int i = 0; i < symSpecs.length; i++) {
+                specs[i] = (Map) symSpecs[i];
+                Object parity = specs[i] != null ? specs[i].get(PARITY) : null;
+                portRanges[i] = SymmitronServer.getPortManager().allocate(1,
+                        parity != null && ((Integer) parity).intValue() == ODD ? Parity.ODD
+                                : Parity.EVEN);
+                if (portRanges[i] == null) {
+                    logger.error("Ports not available " + symSpecs.length);
+                    return createErrorMap(PORTS_NOT_AVAILABLE, "Ports not available");
+                }
+            }
+
+            syms = new Sym[symSpecs.length];
+            HashMap[] hmapArray = new HashMap[symSpecs.length];
+            for (int i = 0; i < syms.length; i++) {
+                syms[i] = new Sym();
+                syms[i].setReceiver(new SymReceiverEndpoint(portRanges[i].getLowerBound()));
+                this.addSymResource(controllerHandle, syms[i]);
+                portRanges[i] = null;
+                hmapArray[i] = syms[i].toMap();
+            }
+
+            AddBridgedSymsWorkItem workItem = new AddBridgedSymsWorkItem(bridge, syms, specs,
+                    startBridge);
+            DataShuffler.addWorkItem(bridge, workItem);
+            boolean acquired = workItem.workSem.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                logger.error("createBridgedSyms: could not acquire sem");
+                return this.createErrorMap(PROCESSING_ERROR, "SipXrelaySemaphore timed out");
+            }
+            if (workItem.error) {
+                return this.createErrorMap(workItem.errorCode, workItem.reason);
+            }
+
+            Map<String, Object> retval = this.createSuccessMap();
+            retval.put(BRIDGE_ID, bridge.getId());
+            retval.put(SYM_SESSION, hmapArray);
+            if (symmitronConfig.getPublicAddress() != null) {
+                retval.put(PUBLIC_ADDRESS, symmitronConfig.getPublicAddress());
+            }
+            success = true;
+            return retval;
+        } catch (Exception ex) {
+            logger.error("Processing Error", ex);
+            return createErrorMap(PROCESSING_ERROR, ex.getMessage());
+        } finally {
+            /*
+             * The client only learns the ids on success, nobody else would free what was
+             * created for a call that failed.
+             */
+            if (!success && bridge != null) {
+                rollbackBridgedSyms(controllerHandle, bridge, bridgeCreated, syms);
+            }
+            /*
+             * Return any ports that were not handed to a sym.
+             */
+            if (portRanges != null) {
+                for (PortRange portRange : portRanges) {
+                    if (portRange != null) {
+                        SymmitronServer.getPortManager().free(portRange);
+                    }
+                }
+            }
+            release(controllerHandle);
+        }
+    }
+
+    /*
+     * A new bridge that sends to one of our own syms is pinned to the shard of the bridge of
+     * that sym so the packets between the two bridges are forwarded by one thread rather than
+     * handed from shard to shard. Returns null if none of the destinations is self routed.
+     */
+    private static DataShuffler getSelfRoutedShuffler(Object[] symSpecs) {
+        for (Object symSpec : symSpecs) {
+            Map spec = (Map) symSpec;
+            if (spec == null || !(spec.get(DESTINATION_IP_ADDRESS) instanceof String)
+                    || !(spec.get(DESTINATION_PORT) instanceof Integer)) {
+                continue;
+            }
+            try {
+                Sym sym = SymTransmitterEndpoint.getSelfRoutedSym((String) spec
+                        .get(DESTINATION_IP_ADDRESS), (Integer) spec.get(DESTINATION_PORT));
+                Bridge bridge = sym != null ? sym.getBridge() : null;
+                if (bridge != null) {
+                    return bridge.getShuffler();
+                }
+            } catch (UnknownHostException ex) {
+                // Reported when the destination is set.
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Undo a createBridgedSyms that failed: forget the syms and the bridge if it was created
+     * for the call, then close them. The closing is done on the shuffler thread of the bridge,
+     * after the AddBridgedSymsWorkItem that may still be queued if it timed out.
+     */
+    private void rollbackBridgedSyms(final String controllerHandle, final Bridge bridge,
+            final boolean bridgeCreated, final Sym[] syms) {
+        logger.debug("createBridgedSyms: rolling back bridge " + bridge.getId());
+        if (bridgeCreated) {
+            registry.removeBridge(controllerHandle, bridge.getId());
+        }
+        if (syms != null) {
+            for (Sym sym : syms) {
+                if (sym != null) {
+                    registry.removeSym(controllerHandle, sym.getId());
+                }
+            }
+        }
+        DataShuffler.addWorkItem(bridge, new WorkItem() {
+            public void doWork() {
+                if (syms != null) {
+                    for (Sym sym : syms) {
+                        if (sym != null) {
+                            bridge.removeSym(sym);
+                            sym.close();
+                        }
+                    }
+                }
+                if (bridgeCreated) {
+                    bridge.stop();
+                }
+            }
+        });
+    }
+
     public Map<String, Object> pauseBridge(String controllerHandle,
             String bridgeId) {
         try {
             logger.info(" pauseBridge: " + controllerHandle + " " + bridgeId);
             this.checkForControllerReboot(controllerHandle);
-            Bridge bridge = bridgeMap.get(bridgeId);
+            Bridge bridge = registry.getBridge(bridgeId);
             if (bridge == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Bridge corresponding to " + bridgeId + " not found");
@@ -1230,7 +1531,7 @@ public class SymmitronServer implements Symmitron {
         try {
             logger.info("resumeBridge : " + controllerHandle + " bridgeId " + bridgeId);
             this.checkForControllerReboot(controllerHandle);
-            Bridge rtpBridge = bridgeMap.get(bridgeId);
+            Bridge rtpBridge = registry.getBridge(bridgeId);
             if (rtpBridge == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Bridge corresponding to " + bridgeId + " not found");
@@ -1251,7 +1552,7 @@ public class SymmitronServer implements Symmitron {
             logger.info("resumeSym : " + controllerHandle + " symId = "
                     + sessionId);
             this.checkForControllerReboot(controllerHandle);
-            Sym rtpSession = sessionMap.get(sessionId);
+            Sym rtpSession = registry.getSym(sessionId);
             if (rtpSession == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Specified sym was not found " + sessionId);
@@ -1277,7 +1578,7 @@ public class SymmitronServer implements Symmitron {
             
             logger.info("getSymStatistics : " + controllerHandle + " symId = "
                     + symId);
-            Sym sym = sessionMap.get(symId);
+            Sym sym = registry.getSym(symId);
             this.checkForControllerReboot(controllerHandle);
             if (sym == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
@@ -1305,14 +1606,14 @@ public class SymmitronServer implements Symmitron {
             logger.info("getBridgeStatistics : " + controllerHandle
                     + " bridgeId " + bridgeId);
 
-            Bridge bridge = bridgeMap.get(bridgeId);
+            Bridge bridge = registry.getBridge(bridgeId);
             if (bridge == null) {
                 return this.createErrorMap(SESSION_NOT_FOUND,
                         "Specified bridge was not found " + bridgeId);
             }
             
             GetBridgeStatisticsWorkItem workItem = new GetBridgeStatisticsWorkItem(bridgeId);
-            DataShuffler.addWorkItem(workItem);
+            DataShuffler.addWorkItem(bridge, workItem);
             boolean acquired = workItem.workSem.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS);
             
             if ( ! acquired ) {
@@ -1335,26 +1636,67 @@ public class SymmitronServer implements Symmitron {
         }
     }
 
-    public Map<String, Object> signOut(String controllerHandle) {
+    public Map<String, Object> getRtpStatistics(String controllerHandle, String bridgeId) {
         try {
             this.checkForControllerReboot(controllerHandle);
-            logger.info("signOut " + controllerHandle);
-            HashSet<Bridge> rtpBridges = bridgeResourceMap
-                    .get(controllerHandle);
-            if (rtpBridges != null) {
-                for (Bridge rtpBridge : rtpBridges) {
-                    rtpBridge.stop();
-                }
+            logger.debug("getRtpStatistics : " + controllerHandle + " bridgeId " + bridgeId);
+            Bridge bridge = registry.getBridge(bridgeId);
+            if (bridge == null) {
+                return this.createErrorMap(SESSION_NOT_FOUND,
+                        "Specified bridge was not found " + bridgeId);
+            }
+            /*
+             * The statistics are only current on the shuffler thread of the bridge.
+             */
+            GetRtpStatisticsWorkItem workItem = new GetRtpStatisticsWorkItem(bridge);
+            DataShuffler.addWorkItem(bridge, workItem);
+            if (!workItem.workSem.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.error("Timed out acquiring workItem sem ");
+                return createErrorMap(PROCESSING_ERROR, "SipXrelaySemaphore timed out");
+            }
+            if (workItem.error) {
+                return createErrorMap(workItem.errorCode, workItem.reason);
             }
-            bridgeResourceMap.remove(controllerHandle);
+            return workItem.retval;
+        } catch (Exception ex) {
+            logger.error("Processing Error", ex);
+            return createErrorMap(PROCESSING_ERROR, ex.getMessage());
+        } finally {
+            release(controllerHandle);
+        }
+    }
 
-            HashSet<Sym> rtpSessions = sessionResourceMap.get(controllerHandle);
-            if (rtpSessions != null) {
-                for (Sym rtpSession : rtpSessions) {
-                  rtpSession.close();      
-                }
+    public Map<String, Object> getShufflerStatistics(String controllerHandle) {
+        try {
+            this.checkForControllerReboot(controllerHandle);
+            logger.debug("getShufflerStatistics : " + controllerHandle);
+            DataShuffler[] shufflers = DataShuffler.getShufflers();
+            Map[] shufflerStats = new Map[shufflers.length];
+            for (int i = 0; i < shufflers.length; i++) {
+                Map<String, Object> stats = new HashMap<String, Object>();
+                stats.put(SHUFFLER_ID, new Integer(shufflers[i].getShufflerId()).toString());
+                stats.put(PACKETS_RECEIVED, new Long(shufflers[i].getPacketsReceived()).toString());
+                stats.put(PACKETS_SENT, new Long(shufflers[i].getPacketsSent()).toString());
+                stats.put(CPU_TIME, new Long(shufflers[i].getCpuTime()).toString());
+                shufflerStats[i] = stats;
             }
-            sessionResourceMap.remove(controllerHandle);
+            Map<String, Object> retval = this.createSuccessMap();
+            retval.put(CURRENT_TIME_OF_DAY, new Long(System.currentTimeMillis()).toString());
+            retval.put(SHUFFLER_STATS, shufflerStats);
+            return retval;
+        } catch (Exception ex) {
+            logger.error("Processing Error", ex);
+            return createErrorMap(PROCESSING_ERROR, ex.getMessage());
+        } finally {
+            release(controllerHandle);
+        }
+    }
+
+    public Map<String, Object> signOut(String controllerHandle) {
+        try {
+            this.checkForControllerReboot(controllerHandle);
+            logger.info("signOut " + controllerHandle);
+            destroyResources(controllerHandle);
 
             return this.createSuccessMap();
         } catch (Exception ex) {
@@ -1372,13 +1714,8 @@ public class SymmitronServer implements Symmitron {
                     + symId);
             this.checkForControllerReboot(controllerHandle);
 
-            if (sessionMap.containsKey(symId)) {
-                Sym sym = sessionMap.get(symId);
-                HashSet<Sym> syms = sessionResourceMap.get(controllerHandle);
-                syms.remove(sym);
-                if (syms.isEmpty()) {
-                    sessionResourceMap.remove(controllerHandle);
-                }
+            Sym sym = registry.removeSym(controllerHandle, symId);
+            if (sym != null) {
                 sym.close();
                 Map<String, Object> retval = this.createSuccessMap();
                 return retval;
@@ -1401,10 +1738,11 @@ public class SymmitronServer implements Symmitron {
             logger.debug("ping : " + controllerHandle);
             this.checkForControllerReboot(controllerHandle);
             Map<String, Object> retval = createSuccessMap();
-            if (sessionResourceMap.get(controllerHandle) != null) {
+            Set<Sym> controllerSyms = registry.getSyms(controllerHandle);
+            if (controllerSyms != null) {
                 HashSet<String> timedOutSyms = new HashSet<String>();
 
-                for (Sym sym : sessionResourceMap.get(controllerHandle)) {
+                for (Sym sym : controllerSyms) {
                     if (sym.isTimedOut()) {
                         timedOutSyms.add(sym.getId());
                     }
@@ -1416,7 +1754,7 @@ public class SymmitronServer implements Symmitron {
                     retval.put(SYM_SESSION, symArray);
                 }
 
-                int nbridges = this.bridgeMap.size();
+                int nbridges = registry.getBridgeCount();
                 retval.put(NBRIDGES, new Integer(nbridges).toString());
             }
             return retval;
@@ -1463,8 +1801,8 @@ public class SymmitronServer implements Symmitron {
             logger.info("setTimeOut " + controllerHandle + " symId " + symId +  " inactivityTimeout " + inactivityTimeout);
             this.checkForControllerReboot(controllerHandle);
 
-            if (sessionMap.containsKey(symId)) {
-                Sym sym = sessionMap.get(symId);
+            if (registry.getSym(symId) != null) {
+                Sym sym = registry.getSym(symId);
                 sym.setInactivityTimeout(inactivityTimeout);
                 return this.createSuccessMap();
             } else {
@@ -1485,28 +1823,12 @@ public class SymmitronServer implements Symmitron {
             logger.info("destroyBridge: " + controllerHandle + " bridgeId "
                     + bridgeId);
             this.checkForControllerReboot(controllerHandle);
-            Bridge bridge = bridgeMap.get(bridgeId);
+            Bridge bridge = registry.removeBridge(controllerHandle, bridgeId);
             if (bridge != null) {
-                bridgeMap.remove(bridgeId);
-                HashSet<Bridge> bridges = bridgeResourceMap
-                .get(controllerHandle);
-                bridges.remove(bridge);
-                if (bridges.isEmpty()) {
-                    bridgeResourceMap.remove(controllerHandle);
-                }
-                for (Sym sym : bridge.getSyms()) {
-                    sym.close();
-                    sessionMap.remove(sym.getId());
-                    HashSet<Sym> syms = sessionResourceMap
-                    .get(controllerHandle);
-                    if ( syms != null ) {
-                        syms.remove(sym);
-                        if (syms.isEmpty()) {
-                            sessionResourceMap.remove(controllerHandle);
-                        }
-                    }
-
-                }
+                /*
+                 * Closes the syms and records the quality of the completed call.
+                 */
+                bridge.stop();
                 return this.createSuccessMap();
             } else {
                 if (logger.isDebugEnabled()) {
@@ -1541,8 +1863,8 @@ public class SymmitronServer implements Symmitron {
                     + symId);
             this.checkForControllerReboot(controllerHandle);
 
-            if (sessionMap.containsKey(symId)) {
-                Sym sym = sessionMap.get(symId);
+            if (registry.getSym(symId) != null) {
+                Sym sym = registry.getSym(symId);
                 String state = sym.getReceiver().getDatagramChannelState();
                 Map retval = this.createSuccessMap();
                 retval.put(Symmitron.RECEIVER_STATE, state);
@@ -1830,17 +2152,17 @@ public class SymmitronServer implements Symmitron {
     }
     
     public static void printBridges() {
-      for ( Bridge bridge : SymmitronServer.bridgeMap.values() ) {
+      for ( Bridge bridge : registry.getBridges() ) {
           logger.error("Bridge = " + bridge);
       }      
     }
     
     public static Collection<Sym> getSyms() {
-        return SymmitronServer.sessionMap.values();
+        return registry.getSyms();
     }
     
     public static Collection<Bridge> getBridges() {
-       return SymmitronServer.bridgeMap.values();
+       return registry.getBridges();
     }
 
    
@@ -1863,9 +2185,8 @@ public class SymmitronServer implements Symmitron {
                 System.err.println("unknown start option " + command);
             }
         
-           dataShuffler = new DataShuffler();
-           dataShufflerThread = new Thread(dataShuffler);
-           dataShufflerThread.start();
+           DataShuffler.startShufflers();
+           RelayMediaQuality.register();
           
 
         } catch (Throwable th) {
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timing wheel for the relay timers ( sym keepalives ). Scheduling and cancelling a
+ * task are O(1). The wheel thread only keeps time: when a task expires it is handed to the data
+ * shuffler that owns the bridge of the task as a work item so the task runs on the shuffler
+ * thread and does not need any locking.
+ *
+ * The bucket lists are only touched by the wheel thread. Schedule and cancel requests from other
+ * threads are queued and picked up at the next tick.
+ */
+class TimingWheel implements Runnable {
+
+    private static Logger logger = Logger.getLogger(TimingWheel.class.getPackage().getName());
+
+    /**
+     * A task that can be scheduled on the timing wheel. The task runs on the data shuffler thread
+     * of the bridge returned by getBridge().
+     */
+    static abstract class Task extends WorkItem {
+
+        private TimingWheel wheel;
+
+        private volatile boolean cancelled;
+
+        /*
+         * Set while the task sits in a shuffler work queue so a periodic task that is not
+         * serviced in time does not pile up.
+         */
+        private final AtomicBoolean dispatched = new AtomicBoolean(false);
+
+        private long deadline;
+
+        private long period;
+
+        private long remainingRounds;
+
+        private Bucket bucket;
+
+        private Task next;
+
+        private Task prev;
+
+        /**
+         * The bridge whose shuffler thread runs this task. Null means the first shuffler.
+         */
+        protected Bridge getBridge() {
+            return null;
+        }
+
+        /**
+         * The work to do when the timer expires.
+         */
+        protected abstract void run();
+
+        @Override
+        public final void doWork() {
+            dispatched.set(false);
+            if (!cancelled) {
+                run();
+            }
+        }
+
+        /**
+         * Cancel the task. Can be called from any thread.
+         */
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                if (wheel != null) {
+                    wheel.cancelledTasks.add(this);
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /*
+     * A doubly linked list of tasks.
+     */
+    private static class Bucket {
+        private Task head;
+
+        private Task tail;
+
+        void add(Task task) {
+            task.bucket = this;
+            task.prev = tail;
+            task.next = null;
+            if (tail == null) {
+                head = task;
+            } else {
+                tail.next = task;
+            }
+            tail = task;
+        }
+
+        void remove(Task task) {
+            if (task.prev == null) {
+                head = task.next;
+            } else {
+                task.prev.next = task.next;
+            }
+            if (task.next == null) {
+                tail = task.prev;
+            } else {
+                task.next.prev = task.prev;
+            }
+            task.next = null;
+            task.prev = null;
+            task.bucket = null;
+        }
+    }
+
+    private final long tickNanos;
+
+    private final Bucket[] buckets;
+
+    private final int mask;
+
+    private final long startTime;
+
+    private long tick;
+
+    private final Queue<Task> newTasks = new ConcurrentLinkedQueue<Task>();
+
+    private final Queue<Task> cancelledTasks = new ConcurrentLinkedQueue<Task>();
+
+    private final List<Task> rescheduled = new ArrayList<Task>();
+
+    private final Thread wheelThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Create and start a timing wheel.
+     *
+     * @param tickMillis -- the resolution of the wheel.
+     * @param wheelSize -- the number of buckets ( rounded up to a power of two ).
+     */
+    TimingWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Bad tick or wheel size " + tickMillis + "/"
+                    + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startTime = System.nanoTime();
+        this.wheelThread = new Thread(this, name);
+        this.wheelThread.setDaemon(true);
+        this.wheelThread.start();
+    }
+
+    /**
+     * Schedule a task. Can be called from any thread.
+     *
+     * @param task -- the task to run.
+     * @param delay -- the initial delay ( milliseconds ).
+     * @param period -- the period ( milliseconds ) or 0 for a one shot task.
+     */
+    void schedule(Task task, long delay, long period) {
+        if (task.wheel != null) {
+            throw new IllegalStateException("Task already scheduled");
+        }
+        task.wheel = this;
+        task.period = TimeUnit.MILLISECONDS.toNanos(period);
+        task.deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+        newTasks.add(task);
+    }
+
+    /**
+     * Stop the wheel thread. Pending tasks are dropped.
+     */
+    void stop() {
+        this.running = false;
+        this.wheelThread.interrupt();
+    }
+
+    /**
+     * Hand an expired task over to the shuffler thread that owns its bridge.
+     */
+    protected void dispatch(Task task) {
+        DataShuffler.addWorkItem(task.getBridge(), task);
+    }
+
+    /*
+     * firstTick is the first tick whose bucket is still to be expired. A deadline that has
+     * already passed goes into that bucket.
+     */
+    private void place(Task task, long firstTick) {
+        long slot = Math.max(task.deadline / tickNanos, firstTick);
+        task.remainingRounds = (slot - firstTick) / buckets.length;
+        buckets[(int) (slot & mask)].add(task);
+    }
+
+    private void expire(Bucket bucket) {
+        Task task = bucket.head;
+        while (task != null) {
+            Task next = task.next;
+            if (task.remainingRounds > 0) {
+                task.remainingRounds--;
+            } else {
+                bucket.remove(task);
+                if (task.dispatched.compareAndSet(false, true)) {
+                    try {
+                        dispatch(task);
+                    } catch (Exception ex) {
+                        task.dispatched.set(false);
+                        logger.error("Unexpected exception dispatching timer task", ex);
+                    }
+                }
+                if (task.period > 0 && !task.cancelled) {
+                    task.deadline += task.period;
+                    rescheduled.add(task);
+                }
+            }
+            task = next;
+        }
+        /*
+         * Periodic tasks are put back once the current bucket is done.
+         */
+        for (Task periodic : rescheduled) {
+            place(periodic, tick + 1);
+        }
+        rescheduled.clear();
+    }
+
+    public void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+            try {
+                for (Task task = newTasks.poll(); task != null; task = newTasks.poll()) {
+                    if (!task.cancelled) {
+                        place(task, tick);
+                    }
+                }
+                for (Task task = cancelledTasks.poll(); task != null; task = cancelledTasks
+                        .poll()) {
+                    if (task.bucket != null) {
+                        task.bucket.remove(task);
+                    }
+                }
+                expire(buckets[(int) (tick & mask)]);
+            } catch (Exception ex) {
+                logger.error("Unexpected exception in timing wheel", ex);
+            }
+            tick++;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import org.sipfoundry.commons.util.DatagramBatch;
+
+/**
+ * Load generator for the datagram I/O modes of the shuffler. Caller threads blast packets
+ * through a set of bridges and the packets forwarded per second of shuffler CPU time ( i.e. per
+ * core ) are reported for each mode.
+ *
+ * The native mode needs libdatagrambatch on java.library.path ( and --add-opens
+ * java.base/sun.nio.ch=ALL-UNNAMED on JDK 9 and later ), otherwise it falls back to nio. The
+ * load can be changed with -Dsipxrelay.benchmark.bridges=200 and
+ * -Dsipxrelay.benchmark.seconds=10.
+ */
+public class BatchIoThroughputTest extends TestCase {
+
+    private static Logger logger = Logger.getLogger(BatchIoThroughputTest.class);
+
+    private static final int SENDER_THREADS = 4;
+
+    private static final int PACKET_SIZE = 172;
+
+    /*
+     * Marks the packets of the load so they can be told apart from the numbered ones.
+     */
+    private static final int LOAD_PACKET = -1;
+
+    private final List<Bridge> bridges = new ArrayList<Bridge>();
+
+    private final List<DatagramChannel> callers = new ArrayList<DatagramChannel>();
+
+    private final List<DatagramChannel> callees = new ArrayList<DatagramChannel>();
+
+    private volatile boolean running;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+        int bridgeCount = Integer.getInteger("sipxrelay.benchmark.bridges", 50);
+        for (int i = 0; i < bridgeCount; i++) {
+            createBridge();
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        DataShuffler.setBatchIo(PacketBatch.NONE);
+        for (Bridge bridge : bridges) {
+            bridge.stop();
+        }
+        for (DatagramChannel channel : callers) {
+            channel.close();
+        }
+        for (DatagramChannel channel : callees) {
+            channel.close();
+        }
+    }
+
+    private void createBridge() throws Exception {
+        DatagramChannel caller = DatagramChannel.open();
+        caller.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        DatagramChannel callee = DatagramChannel.open();
+        callee.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        PortRange portRange = SymmitronServer.getPortManager().allocate(2, Parity.EVEN);
+        Bridge bridge = new Bridge();
+        bridge.addSym(createSym(portRange.getLowerBound(), caller));
+        bridge.addSym(createSym(portRange.getLowerBound() + 1, callee));
+        bridge.start();
+        caller.connect(new InetSocketAddress("127.0.0.1", portRange.getLowerBound()));
+        callee.configureBlocking(false);
+        bridges.add(bridge);
+        callers.add(caller);
+        callees.add(callee);
+    }
+
+    private Sym createSym(int port, DatagramChannel peer) throws Exception {
+        Sym sym = new Sym();
+        sym.setReceiver(new SymReceiverEndpoint(port));
+        SymTransmitterEndpoint transmitter = new SymTransmitterEndpoint();
+        transmitter.setIpAddressAndPort("127.0.0.1", peer.socket().getLocalPort());
+        sym.setTransmitter(transmitter);
+        return sym;
+    }
+
+    private void switchMode(String mode) throws Exception {
+        DataShuffler.setBatchIo(mode);
+        String expected = mode.equals(PacketBatch.NATIVE) && !DatagramBatch.isAvailable() ? PacketBatch.NIO
+                : mode;
+        for (DataShuffler shuffler : DataShuffler.getShufflers()) {
+            while (!shuffler.getBatchIo().equals(expected)) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /*
+     * Wait until the shufflers have worked off the backlog of the load.
+     */
+    private void waitForIdle() throws Exception {
+        long previous = -1;
+        long current = 0;
+        while (current != previous) {
+            previous = current;
+            drainCallees();
+            Thread.sleep(200);
+            current = 0;
+            for (DataShuffler shuffler : DataShuffler.getShufflers()) {
+                current += shuffler.getPacketsReceived();
+            }
+        }
+        drainCallees();
+    }
+
+    /*
+     * Send numbered packets through the first bridge and check that they all come out intact.
+     */
+    private void checkForwarding() throws Exception {
+        waitForIdle();
+        DatagramChannel caller = callers.get(0);
+        DatagramChannel callee = callees.get(0);
+        ByteBuffer received = ByteBuffer.allocate(2048);
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        for (int i = 0; i < 100; i++) {
+            packet.clear();
+            packet.putInt(0, i);
+            packet.put(PACKET_SIZE - 1, (byte) i);
+            caller.write(packet);
+        }
+        int count = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count < 100 && System.currentTimeMillis() < deadline) {
+            received.clear();
+            if (callee.receive(received) == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            if (received.getInt(0) == LOAD_PACKET) {
+                continue;
+            }
+            assertEquals(PACKET_SIZE, received.position());
+            assertEquals(count, received.getInt(0));
+            assertEquals((byte) count, received.get(PACKET_SIZE - 1));
+            count++;
+        }
+        assertEquals("Packets lost", 100, count);
+    }
+
+    private void drainCallees() throws Exception {
+        ByteBuffer received = ByteBuffer.allocate(2048);
+        for (DatagramChannel callee : callees) {
+            received.clear();
+            while (callee.receive(received) != null) {
+                received.clear();
+            }
+        }
+    }
+
+    /**
+     * Blast packets through all the bridges for a while.
+     *
+     * @return the packets forwarded per second of shuffler CPU time.
+     */
+    private long measure(String mode) throws Exception {
+        switchMode(mode);
+        checkForwarding();
+        int seconds = Integer.getInteger("sipxrelay.benchmark.seconds", 3);
+        running = true;
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int t = 0; t < SENDER_THREADS; t++) {
+            final int first = t;
+            Thread sender = new Thread() {
+                public void run() {
+                    ByteBuffer packet = ByteBuffer.allocateDirect(PACKET_SIZE);
+                    packet.putInt(0, LOAD_PACKET);
+                    try {
+                        while (running) {
+                            for (int i = first; i < callers.size(); i += SENDER_THREADS) {
+                                packet.clear();
+                                callers.get(i).write(packet);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+            sender.start();
+            senders.add(sender);
+        }
+        Thread.sleep(500);
+        DataShuffler[] shufflers = DataShuffler.getShufflers();
+        long packetsBefore = 0;
+        long cpuBefore = 0;
+        for (DataShuffler shuffler : shufflers) {
+            packetsBefore += shuffler.getPacketsSent();
+            cpuBefore += shuffler.getCpuTime();
+        }
+        long startTime = System.currentTimeMillis();
+        long endTime = startTime + seconds * 1000L;
+        while (System.currentTimeMillis() < endTime) {
+            drainCallees();
+            Thread.sleep(50);
+        }
+        long packetsAfter = 0;
+        long cpuAfter = 0;
+        for (DataShuffler shuffler : shufflers) {
+            packetsAfter += shuffler.getPacketsSent();
+            cpuAfter += shuffler.getCpuTime();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        running = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        drainCallees();
+        long packets = packetsAfter - packetsBefore;
+        long cpuMillis = Math.max(1, cpuAfter - cpuBefore);
+        long perCore = packets * 1000 / cpuMillis;
+        logger.info(String.format(
+                "batch-io %-6s : %d bridges %8d packets/s %8d packets/s per core ( %d ms cpu )",
+                shufflers[0].getBatchIo(), bridges.size(), packets * 1000 / elapsed, perCore,
+                cpuMillis));
+        assertTrue("Nothing was forwarded in mode " + mode, packets > 0);
+        return perCore;
+    }
+
+    public void testThroughputPerMode() throws Exception {
+        if (DataShuffler.getShufflers()[0].getCpuTime() < 0) {
+            return;
+        }
+        measure(PacketBatch.NONE);
+        measure(PacketBatch.NIO);
+        measure(PacketBatch.NATIVE);
+    }
+
+}
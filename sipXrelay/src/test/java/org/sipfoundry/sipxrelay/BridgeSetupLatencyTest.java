@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Benchmark for the time it takes to set up a bridge while a growing number of bridges is
+ * active. Bridge setup registers the new channels with the shuffler selector incrementally so the
+ * setup latency should stay flat as the number of active bridges grows.
+ *
+ * The sizes can be overridden with -Dsipxrelay.benchmark.sizes=100,1000,5000 ( two sockets are
+ * opened per bridge ).
+ */
+public class BridgeSetupLatencyTest extends TestCase {
+
+    private static Logger logger = Logger.getLogger(BridgeSetupLatencyTest.class);
+
+    private static final int SAMPLES = 50;
+
+    private List<Bridge> bridges = new ArrayList<Bridge>();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        for (Bridge bridge : bridges) {
+            bridge.stop();
+        }
+        bridges.clear();
+    }
+
+    private Sym createSym(int port) throws Exception {
+        Sym sym = new Sym();
+        sym.setReceiver(new SymReceiverEndpoint(port));
+        return sym;
+    }
+
+    /**
+     * Create and start a bridge with two syms and return the time (nanoseconds) until both
+     * channels are registered with the shuffler.
+     */
+    private long setupBridge() throws Exception {
+        PortRange portRange = SymmitronServer.getPortManager().allocate(2, Parity.EVEN);
+        assertNotNull("Ran out of ports", portRange);
+        Sym sym1 = createSym(portRange.getLowerBound());
+        Sym sym2 = createSym(portRange.getLowerBound() + 1);
+        DatagramChannel channel1 = sym1.getReceiver().getDatagramChannel();
+        DatagramChannel channel2 = sym2.getReceiver().getDatagramChannel();
+
+        long startTime = System.nanoTime();
+        Bridge bridge = new Bridge();
+        bridge.addSym(sym1);
+        bridge.addSym(sym2);
+        bridge.start();
+        DataShuffler shuffler = bridge.getShuffler();
+        while (!shuffler.isRegistered(channel1) || !shuffler.isRegistered(channel2)) {
+            Thread.yield();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        bridges.add(bridge);
+        return elapsed;
+    }
+
+    private long medianSetupLatency(int activeBridges) throws Exception {
+        while (bridges.size() < activeBridges) {
+            setupBridge();
+        }
+        long[] samples = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = setupBridge();
+        }
+        Arrays.sort(samples);
+        return samples[SAMPLES / 2];
+    }
+
+    public void testSetupLatencyIsFlat() throws Exception {
+        String[] sizes = System.getProperty("sipxrelay.benchmark.sizes", "100,1000,5000")
+                .split(",");
+        long first = -1;
+        long last = -1;
+        for (String size : sizes) {
+            long median = medianSetupLatency(Integer.parseInt(size.trim()));
+            logger.info("active bridges = " + size + " median setup latency = "
+                    + median / 1000 + " us");
+            if (first == -1) {
+                first = median;
+            }
+            last = median;
+        }
+        /*
+         * A full selector rebuild grows linearly with the number of bridges. Allow for a lot of
+         * noise but catch that.
+         */
+        assertTrue("Setup latency grows with the number of active bridges",
+                last < Math.max(first, 100000) * 10);
+    }
+
+}
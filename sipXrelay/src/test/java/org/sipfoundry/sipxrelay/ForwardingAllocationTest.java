@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the bytes allocated by the shuffler thread while it forwards packets through a bridge.
+ * In steady state the forwarding path should not allocate.
+ *
+ * The JDK epoll selector boxes the file descriptor of each ready channel ( an Integer for
+ * descriptors above the autobox cache ) which is beyond our control so a few bytes per packet are
+ * allowed for that. If the array backed selected key set could not be installed ( JDK 9 and later
+ * need --add-opens java.base/sun.nio.ch=ALL-UNNAMED ) the selector's own HashSet entries are
+ * allowed for as well.
+ *
+ * Needs a JVM that supports per thread allocation accounting ( com.sun.management.ThreadMXBean
+ * ). The test does nothing if that is not available.
+ */
+public class ForwardingAllocationTest extends TestCase {
+
+    private static Logger logger = Logger.getLogger(ForwardingAllocationTest.class);
+
+    private static final int WARMUP_PACKETS = 20000;
+
+    private static final int PACKETS = 20000;
+
+    /*
+     * Allow for an occasional allocation outside of the forwarding path ( e.g. a work item ).
+     */
+    private static final long MAX_ALLOCATED_BYTES = 16 * 1024;
+
+    /*
+     * A boxed file descriptor.
+     */
+    private static final long SELECTOR_BYTES_PER_PACKET = 16;
+
+    /*
+     * A HashMap entry and an iterator.
+     */
+    private static final long SELECTED_KEYS_BYTES_PER_PACKET = 80;
+
+    private DatagramChannel caller;
+
+    private DatagramChannel callee;
+
+    private Bridge bridge;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+
+        caller = DatagramChannel.open();
+        caller.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        callee = DatagramChannel.open();
+        callee.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        PortRange portRange = SymmitronServer.getPortManager().allocate(2, Parity.EVEN);
+        bridge = new Bridge();
+        bridge.addSym(createSym(portRange.getLowerBound(), caller));
+        bridge.addSym(createSym(portRange.getLowerBound() + 1, callee));
+        bridge.start();
+        caller.connect(new InetSocketAddress("127.0.0.1", portRange.getLowerBound()));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        bridge.stop();
+        caller.close();
+        callee.close();
+    }
+
+    private Sym createSym(int port, DatagramChannel peer) throws Exception {
+        Sym sym = new Sym();
+        sym.setReceiver(new SymReceiverEndpoint(port));
+        SymTransmitterEndpoint transmitter = new SymTransmitterEndpoint();
+        transmitter.setIpAddressAndPort("127.0.0.1", peer.socket().getLocalPort());
+        sym.setTransmitter(transmitter);
+        return sym;
+    }
+
+    /*
+     * Send packets from the caller and wait for each one to come out at the callee.
+     */
+    private void forward(int count) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocateDirect(172);
+        ByteBuffer received = ByteBuffer.allocateDirect(2048);
+        for (int i = 0; i < count; i++) {
+            packet.clear();
+            packet.putInt(0, i);
+            caller.write(packet);
+            received.clear();
+            callee.receive(received);
+            assertEquals(172, received.position());
+            assertEquals(i, received.getInt(0));
+        }
+    }
+
+    public void testNoAllocationPerForwardedPacket() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = bridge.getShuffler().getShufflerThread().getId();
+
+        forward(WARMUP_PACKETS);
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        forward(PACKETS);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        logger.info("Shuffler allocated " + allocated + " bytes for " + PACKETS
+                + " forwarded packets");
+        long allowed = MAX_ALLOCATED_BYTES + PACKETS * SELECTOR_BYTES_PER_PACKET;
+        if (!bridge.getShuffler().isSelectedKeySetInstalled()) {
+            allowed += PACKETS * SELECTED_KEYS_BYTES_PER_PACKET;
+        }
+        assertTrue("Forwarding path allocates " + allocated + " bytes for " + PACKETS
+                + " packets", allocated < allowed);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Closes a sym that replays its last sent packet as keepalive while the shuffler thread of its
+ * bridge is busy. The pooled keepalive buffer must not go back to the pool, where another call
+ * could take it, before the shuffler is done.
+ */
+public class KeepaliveBufferReleaseTest extends TestCase {
+
+    private DatagramChannel caller;
+
+    private DatagramChannel callee;
+
+    private Bridge bridge;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+
+        caller = DatagramChannel.open();
+        caller.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        callee = DatagramChannel.open();
+        callee.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        PortRange portRange = SymmitronServer.getPortManager().allocate(2, Parity.EVEN);
+        bridge = new Bridge();
+        bridge.addSym(createSym(portRange.getLowerBound(), caller));
+        Sym calleeSym = createSym(portRange.getLowerBound() + 1, callee);
+        calleeSym.getTransmitter().setMaxSilence(60000, KeepaliveMethod.REPLAY_LAST_SENT_PACKET);
+        bridge.addSym(calleeSym);
+        bridge.start();
+        caller.connect(new InetSocketAddress("127.0.0.1", portRange.getLowerBound()));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        bridge.stop();
+        caller.close();
+        callee.close();
+    }
+
+    private Sym createSym(int port, DatagramChannel peer) throws Exception {
+        Sym sym = new Sym();
+        sym.setReceiver(new SymReceiverEndpoint(port));
+        SymTransmitterEndpoint transmitter = new SymTransmitterEndpoint();
+        transmitter.setIpAddressAndPort("127.0.0.1", peer.socket().getLocalPort());
+        sym.setTransmitter(transmitter);
+        return sym;
+    }
+
+    public void testCloseWhileShufflerIsBusy() throws Exception {
+        /*
+         * Forward a few packets so the callee transmitter copies them into its keepalive buffer.
+         */
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        ByteBuffer received = ByteBuffer.allocate(2048);
+        for (int i = 0; i < 10; i++) {
+            packet.clear();
+            caller.write(packet);
+            received.clear();
+            callee.receive(received);
+        }
+
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        DataShuffler.addWorkItem(bridge, new WorkItem() {
+            public void doWork() {
+                busy.countDown();
+                try {
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+
+        DirectBufferPool pool = SymmitronServer.getKeepaliveBufferPool();
+        int free = pool.getFreeCount();
+        bridge.stop();
+        assertEquals("Keepalive buffer released under the shuffler", free, pool.getFreeCount());
+
+        done.countDown();
+        for (int i = 0; i < 100 && pool.getFreeCount() == free; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(free + 1, pool.getFreeCount());
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Drives createSyms, createBridgedSyms, destroySym and destroyBridge from many controllers at
+ * once and checks that the registry ends up empty. Some controllers reboot ( sign in with a new
+ * instance ) part way through and the resources of their previous instance must be torn down.
+ *
+ * The number of threads can be overridden with -Dsipxrelay.stress.threads=64.
+ */
+public class RegistryStressTest extends TestCase {
+
+    private static Logger logger = Logger.getLogger(RegistryStressTest.class);
+
+    private static final int ITERATIONS = 50;
+
+    private static final int REBOOT_INTERVAL = 10;
+
+    private SymmitronServer symmitronServer;
+
+    private Set<String> createdIds = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+        symmitronServer = new SymmitronServer();
+    }
+
+    private void checkOk(Map<String, Object> retval) {
+        assertEquals("Call failed " + retval, Symmitron.OK, retval.get(Symmitron.STATUS_CODE));
+    }
+
+    private void runController(int index) throws Exception {
+        int instance = 1;
+        String handle = "stress" + index + ":" + instance;
+        boolean rebooter = index % 4 == 0;
+        checkOk(symmitronServer.signIn(handle));
+        for (int i = 0; i < ITERATIONS; i++) {
+            Map<String, Object> retval = symmitronServer.createSyms(handle, 2, Symmitron.EVEN);
+            checkOk(retval);
+            Object[] symMaps = (Object[]) retval.get(Symmitron.SYM_SESSION);
+            for (Object symMap : symMaps) {
+                String symId = (String) ((Map) symMap).get("id");
+                createdIds.add(symId);
+                checkOk(symmitronServer.destroySym(handle, symId));
+            }
+
+            retval = symmitronServer.createBridgedSyms(handle, "", new Object[2], true);
+            checkOk(retval);
+            String bridgeId = (String) retval.get(Symmitron.BRIDGE_ID);
+            createdIds.add(bridgeId);
+            for (Object symMap : (Object[]) retval.get(Symmitron.SYM_SESSION)) {
+                createdIds.add((String) ((Map) symMap).get("id"));
+            }
+
+            if (rebooter && i % REBOOT_INTERVAL == REBOOT_INTERVAL - 1) {
+                /*
+                 * Leave the bridge behind. The new instance cleans it up.
+                 */
+                instance++;
+                handle = "stress" + index + ":" + instance;
+                checkOk(symmitronServer.signIn(handle));
+            } else {
+                checkOk(symmitronServer.destroyBridge(handle, bridgeId));
+            }
+        }
+        checkOk(symmitronServer.signOut(handle));
+    }
+
+    public void testConcurrentCreateAndDestroy() throws Exception {
+        int threadCount = Integer.getInteger("sipxrelay.stress.threads", 32);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        runController(index);
+                    } catch (Throwable th) {
+                        failure.compareAndSet(null, th);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        if (failure.get() != null) {
+            throw new Exception("Controller thread failed", failure.get());
+        }
+        logger.info(String.format("%d controllers: %d operations in %d ms", threadCount,
+                threadCount * ITERATIONS * 5, elapsed / 1000000));
+
+        Set<String> leaked = new HashSet<String>();
+        for (Sym sym : SymmitronServer.getSyms()) {
+            if (createdIds.contains(sym.getId())) {
+                leaked.add(sym.getId());
+            }
+        }
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            if (createdIds.contains(bridge.getId())) {
+                leaked.add(bridge.getId());
+            }
+        }
+        assertTrue("Leaked " + leaked, leaked.isEmpty());
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+/**
+ * Configures the relay and starts its shufflers once for all the tests that run in a JVM.
+ *
+ * Configuring the relay again would replace the PortRangeManager while the sockets of the
+ * previous tests are still bound ( the shufflers release the ports of closed syms later ) and
+ * the new manager would hand those ports out again. The tests share the registry so they should
+ * count what they create rather than expect it to be empty.
+ */
+final class RelayTestSupport {
+
+    /*
+     * Below the ephemeral ports of the test peers so they are not taken for self routed
+     * destinations.
+     */
+    static final String PORT_RANGE = "20000:32000";
+
+    static final int SHUFFLER_THREADS = 2;
+
+    private RelayTestSupport() {
+    }
+
+    static synchronized void startRelay() throws Exception {
+        if (SymmitronServer.getPortManager() == null) {
+            SymmitronConfig config = new SymmitronConfig();
+            config.setLocalAddress("127.0.0.1");
+            config.setPortRange(PORT_RANGE);
+            config.setShufflerThreads(SHUFFLER_THREADS);
+            SymmitronServer.setSymmitronConfig(config);
+        }
+        DataShuffler.startShufflers();
+    }
+
+}
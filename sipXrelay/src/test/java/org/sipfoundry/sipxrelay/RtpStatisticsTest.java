@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Sequence loss, jitter and MOS computed from synthetic RTP streams. The statistics are read
+ * after they are published, as the shuffler thread does it.
+ */
+public class RtpStatisticsTest extends TestCase {
+
+    /*
+     * 20 ms of PCMU.
+     */
+    private static final int SAMPLES_PER_PACKET = 160;
+
+    private static final long PACKET_INTERVAL_NANOS = 20 * 1000 * 1000L;
+
+    private ByteBuffer packet = ByteBuffer.allocate(172);
+
+    private void send(RtpStatistics stats, int payloadType, int sequence, int timestamp,
+            long arrivalNanos) {
+        packet.clear();
+        packet.put(0, (byte) 0x80);
+        packet.put(1, (byte) payloadType);
+        packet.putShort(2, (short) sequence);
+        packet.putInt(4, timestamp);
+        packet.putInt(8, 0x12345678);
+        stats.update(packet, 0, packet.limit(), arrivalNanos);
+    }
+
+    public void testNoLossNoJitter() {
+        RtpStatistics stats = new RtpStatistics();
+        assertEquals(-1.0, stats.getMos());
+        for (int i = 0; i < 500; i++) {
+            send(stats, 0, 65000 + i, i * SAMPLES_PER_PACKET, i * PACKET_INTERVAL_NANOS);
+        }
+        stats.publish();
+        assertEquals(500, stats.getRtpPackets());
+        assertEquals(0, stats.getPacketsLost());
+        assertEquals(0.0, stats.getJitterMillis(), 0.2);
+        assertTrue("MOS " + stats.getMos(), stats.getMos() > 4.3);
+    }
+
+    public void testLoss() {
+        RtpStatistics stats = new RtpStatistics();
+        int sent = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 20 == 7) {
+                continue;
+            }
+            sent++;
+            send(stats, 0, i, i * SAMPLES_PER_PACKET, i * PACKET_INTERVAL_NANOS);
+        }
+        stats.publish();
+        assertEquals(sent, stats.getRtpPackets());
+        assertEquals(50, stats.getPacketsLost());
+        assertEquals(5.0, stats.getLossPercent(), 0.1);
+        assertTrue("MOS " + stats.getMos(), stats.getMos() < RtpStatistics.estimateMos(0, 0) - 0.2);
+    }
+
+    public void testJitter() {
+        RtpStatistics stats = new RtpStatistics();
+        for (int i = 0; i < 2000; i++) {
+            /*
+             * Every other packet arrives 10 ms late.
+             */
+            long delay = (i % 2) * 10 * 1000 * 1000L;
+            send(stats, 0, i, i * SAMPLES_PER_PACKET, i * PACKET_INTERVAL_NANOS + delay);
+        }
+        stats.publish();
+        assertEquals(0, stats.getPacketsLost());
+        assertEquals(10.0, stats.getJitterMillis(), 1.0);
+    }
+
+    /*
+     * Without an rtpmap the clock rate of a dynamic payload type is not known.
+     */
+    public void testDynamicPayloadTypeWithoutRtpMap() {
+        RtpStatistics stats = new RtpStatistics();
+        for (int i = 0; i < 100; i++) {
+            send(stats, 96, i, i * 960, i * PACKET_INTERVAL_NANOS);
+        }
+        stats.publish();
+        assertEquals(100, stats.getRtpPackets());
+        assertEquals(-1.0, stats.getJitterMillis());
+        assertTrue("MOS " + stats.getMos(), stats.getMos() > 4.3);
+        assertEquals("-1.00", stats.toMap().get(Symmitron.JITTER));
+    }
+
+    public void testDynamicPayloadTypeFromRtpMap() {
+        RtpStatistics stats = new RtpStatistics();
+        Map<String, Object> rtpMap = new HashMap<String, Object>();
+        rtpMap.put("96", 48000);
+        stats.setClockRates(rtpMap);
+        for (int i = 0; i < 2000; i++) {
+            long delay = (i % 2) * 10 * 1000 * 1000L;
+            send(stats, 96, i, i * 960, i * PACKET_INTERVAL_NANOS + delay);
+        }
+        stats.publish();
+        assertEquals(10.0, stats.getJitterMillis(), 1.0);
+    }
+
+    public void testBadRtpMap() {
+        RtpStatistics stats = new RtpStatistics();
+        Map<String, Object> rtpMap = new HashMap<String, Object>();
+        rtpMap.put("opus", 48000);
+        try {
+            stats.setClockRates(rtpMap);
+            fail("Bad payload type accepted");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /*
+     * Other threads see the first packet and then a snapshot every PUBLISH_INTERVAL_NANOS.
+     */
+    public void testPublishedPeriodically() {
+        RtpStatistics stats = new RtpStatistics();
+        long start = 1000 * 1000 * 1000L;
+        send(stats, 0, 0, 0, start);
+        assertEquals(1, stats.getRtpPackets());
+        int packets = (int) (RtpStatistics.PUBLISH_INTERVAL_NANOS / PACKET_INTERVAL_NANOS);
+        for (int i = 1; i < packets; i++) {
+            send(stats, 0, i, i * SAMPLES_PER_PACKET, start + i * PACKET_INTERVAL_NANOS);
+        }
+        assertEquals(1, stats.getRtpPackets());
+        send(stats, 0, packets, packets * SAMPLES_PER_PACKET, start + packets
+                * PACKET_INTERVAL_NANOS);
+        assertEquals(packets + 1, stats.getRtpPackets());
+    }
+
+    public void testPayloadTypeChangeAndRtcp() {
+        RtpStatistics stats = new RtpStatistics();
+        send(stats, 0, 1, 0, 0);
+        send(stats, 18, 2, 160, PACKET_INTERVAL_NANOS);
+        send(stats, 200, 0, 0, 0);
+        stats.publish();
+        assertEquals(2, stats.getRtpPackets());
+        assertEquals(1, stats.getRtcpPackets());
+        assertEquals(18, stats.getPayloadType());
+        assertEquals(1, stats.getPayloadTypeChanges());
+    }
+
+    public void testSequenceRestart() {
+        RtpStatistics stats = new RtpStatistics();
+        for (int i = 0; i < 10; i++) {
+            send(stats, 0, 100 + i, i * SAMPLES_PER_PACKET, i * PACKET_INTERVAL_NANOS);
+        }
+        for (int i = 0; i < 10; i++) {
+            send(stats, 0, 30000 + i, i * SAMPLES_PER_PACKET, (10 + i) * PACKET_INTERVAL_NANOS);
+        }
+        stats.publish();
+        assertEquals(0, stats.getPacketsLost());
+        assertEquals(20, stats.getPacketsExpected());
+    }
+
+    public void testEstimateMos() {
+        assertTrue(RtpStatistics.estimateMos(0, 0) > 4.3);
+        assertTrue(RtpStatistics.estimateMos(100, 0) < RtpStatistics.estimateMos(10, 0));
+        assertTrue(RtpStatistics.estimateMos(0, 10) < 3.6);
+        assertEquals(1.0, RtpStatistics.estimateMos(0, 100), 0.01);
+    }
+
+}
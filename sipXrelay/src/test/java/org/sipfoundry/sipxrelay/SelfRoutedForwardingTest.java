@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Two bridges chained through the relay: a packet sent by the second sym of the first bridge to
+ * the first sym of the second bridge is self routed, i.e. handed from one bridge to the other
+ * without going through the network.
+ */
+public class SelfRoutedForwardingTest extends TestCase {
+
+    private DatagramChannel caller;
+
+    private DatagramChannel callee;
+
+    private Bridge bridge1;
+
+    private Bridge bridge2;
+
+    private Sym sym2;
+
+    private Sym sym3;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+
+        caller = DatagramChannel.open();
+        caller.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        callee = DatagramChannel.open();
+        callee.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        callee.configureBlocking(false);
+
+        PortRange portRange = SymmitronServer.getPortManager().allocate(4, Parity.EVEN);
+        int port = portRange.getLowerBound();
+        Sym sym1 = createSym(port, caller.socket().getLocalPort());
+        sym2 = createSym(port + 1, port + 2);
+        sym3 = createSym(port + 2, port + 1);
+        Sym sym4 = createSym(port + 3, callee.socket().getLocalPort());
+
+        bridge1 = new Bridge();
+        bridge1.addSym(sym1);
+        bridge1.addSym(sym2);
+        bridge2 = new Bridge();
+        bridge2.addSym(sym3);
+        bridge2.addSym(sym4);
+        bridge1.start();
+        bridge2.start();
+        caller.connect(new InetSocketAddress("127.0.0.1", port));
+        while (!bridge1.getShuffler().isRegistered(sym1.getReceiver().getDatagramChannel())
+                || !bridge2.getShuffler().isRegistered(sym4.getReceiver().getDatagramChannel())) {
+            Thread.sleep(10);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        bridge1.stop();
+        bridge2.stop();
+        caller.close();
+        callee.close();
+    }
+
+    private Sym createSym(int port, int destinationPort) throws Exception {
+        Sym sym = new Sym();
+        sym.setReceiver(new SymReceiverEndpoint(port));
+        SymTransmitterEndpoint transmitter = new SymTransmitterEndpoint();
+        transmitter.setIpAddressAndPort("127.0.0.1", destinationPort);
+        sym.setTransmitter(transmitter);
+        return sym;
+    }
+
+    public void testSelfRoutedLookup() throws Exception {
+        InetSocketAddress sym3Address = new InetSocketAddress("127.0.0.1", sym3.getReceiver()
+                .getPort());
+        assertSame(sym3, DataShuffler.getSelfRoutedSym(sym3Address));
+        assertSame(sym2.getTransmitter(), SymTransmitterEndpoint.getTransmitter(sym3Address));
+        assertNull(DataShuffler.getSelfRoutedSym(new InetSocketAddress("127.0.0.1", 1)));
+    }
+
+    public void testForwardThroughBothBridges() throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        packet.putInt(0, 1234);
+        caller.write(packet);
+
+        ByteBuffer received = ByteBuffer.allocate(2048);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (callee.receive(received) == null) {
+            assertTrue("Packet was not forwarded", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(172, received.position());
+        assertEquals(1234, received.getInt(0));
+        assertEquals("Packet did not go through the second bridge", 1, sym3.packetsReceived);
+    }
+
+    /*
+     * The bridges are pinned round robin, so with two shards the packet crosses from one shard
+     * to the other and must be forwarded by the thread of the second bridge.
+     */
+    public void testForwardAcrossShards() throws Exception {
+        if (DataShuffler.getShufflers().length < 2) {
+            return;
+        }
+        assertNotSame(bridge1.getShuffler(), bridge2.getShuffler());
+        long handedOff1 = bridge1.getShuffler().getPacketsHandedOff();
+        long handedOff2 = bridge2.getShuffler().getPacketsHandedOff();
+        testForwardThroughBothBridges();
+        assertEquals(handedOff1, bridge1.getShuffler().getPacketsHandedOff());
+        assertEquals(handedOff2 + 1, bridge2.getShuffler().getPacketsHandedOff());
+    }
+
+    /*
+     * Wait until the shuffler has gone through its loop, and so sent what was handed off to
+     * it, after the work items queued so far.
+     */
+    private static void waitForLoop(DataShuffler shuffler) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            shuffler.addWorkItem(new WorkItem() {
+                public void doWork() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /*
+     * A busy shard does not queue more hand offs than it has slots for.
+     */
+    public void testHandOffIsBounded() throws Exception {
+        DataShuffler shuffler = bridge2.getShuffler();
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        shuffler.addWorkItem(new WorkItem() {
+            public void doWork() {
+                busy.countDown();
+                try {
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+
+        InetSocketAddress sym3Address = new InetSocketAddress("127.0.0.1", sym3.getReceiver()
+                .getPort());
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        long handedOff = shuffler.getPacketsHandedOff();
+        long dropped = shuffler.getHandOffsDropped();
+        try {
+            for (int i = 0; i < DataShuffler.HANDOFF_CAPACITY + 10; i++) {
+                shuffler.handOffSelfRouted(sym3, sym3Address, packet, System.nanoTime());
+                assertEquals(172, packet.remaining());
+            }
+            shuffler.handOffSelfRouted(sym3, sym3Address, ByteBuffer
+                    .allocate(DataShuffler.HANDOFF_BUFFER_SIZE + 1), System.nanoTime());
+        } finally {
+            done.countDown();
+        }
+        assertEquals(handedOff + DataShuffler.HANDOFF_CAPACITY, shuffler.getPacketsHandedOff());
+        assertEquals(dropped + 11, shuffler.getHandOffsDropped());
+
+        /*
+         * The slots are reused once the packets are sent.
+         */
+        waitForLoop(shuffler);
+        shuffler.handOffSelfRouted(sym3, sym3Address, packet, System.nanoTime());
+        assertEquals(handedOff + DataShuffler.HANDOFF_CAPACITY + 1, shuffler
+                .getPacketsHandedOff());
+        assertEquals(dropped + 11, shuffler.getHandOffsDropped());
+    }
+
+    public void testIndexIsClearedOnClose() throws Exception {
+        InetSocketAddress sym3Address = new InetSocketAddress("127.0.0.1", sym3.getReceiver()
+                .getPort());
+        sym2.close();
+        sym3.close();
+        assertNull(DataShuffler.getSelfRoutedSym(sym3Address));
+        assertNull(SymTransmitterEndpoint.getTransmitter(sym3Address));
+    }
+
+}
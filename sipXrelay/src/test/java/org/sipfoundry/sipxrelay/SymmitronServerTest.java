@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Calls the SymmitronServer directly, without XML-RPC, and checks what it leaves behind. The
+ * registry and the ports are shared with the other tests of the JVM so only what each test
+ * creates is checked.
+ */
+public class SymmitronServerTest extends TestCase {
+
+    private static final String HANDLE = "server-test:1";
+
+    private SymmitronServer symmitronServer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        RelayTestSupport.startRelay();
+        symmitronServer = new SymmitronServer();
+        checkOk(symmitronServer.signIn(HANDLE));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        checkOk(symmitronServer.signOut(HANDLE));
+    }
+
+    private void checkOk(Map<String, Object> retval) {
+        assertEquals("Call failed " + retval, Symmitron.OK, retval.get(Symmitron.STATUS_CODE));
+    }
+
+    /*
+     * A destination port without an address is refused by the shuffler thread, after the
+     * bridge and the syms have been created.
+     */
+    private Object[] badSpecs() {
+        Map<String, Object> spec = new HashMap<String, Object>();
+        spec.put(Symmitron.DESTINATION_PORT, 5000);
+        return new Object[] { null, spec };
+    }
+
+    /*
+     * The shuffler threads release the ports of the syms they close on their next wakeup, also
+     * those of the previous tests. Wait until nothing more is released.
+     */
+    private int freePortCount() throws InterruptedException {
+        int count = SymmitronServer.getPortManager().getFreePortCount();
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(100);
+            int next = SymmitronServer.getPortManager().getFreePortCount();
+            if (next == count) {
+                break;
+            }
+            count = next;
+        }
+        return count;
+    }
+
+    private static Set<String> symIds() {
+        Set<String> ids = new HashSet<String>();
+        for (Sym sym : SymmitronServer.getSyms()) {
+            ids.add(sym.getId());
+        }
+        return ids;
+    }
+
+    private static Set<String> bridgeIds() {
+        Set<String> ids = new HashSet<String>();
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            ids.add(bridge.getId());
+        }
+        return ids;
+    }
+
+    /*
+     * The ids in the registry that were not in before.
+     */
+    private static Set<String> added(Set<String> before, Set<String> after) {
+        after.removeAll(before);
+        return after;
+    }
+
+    public void testFailedCreateBridgedSymsIsRolledBack() throws Exception {
+        Set<String> syms = symIds();
+        Set<String> bridges = bridgeIds();
+        int ports = freePortCount();
+
+        Map<String, Object> retval = symmitronServer.createBridgedSyms(HANDLE, "", badSpecs(),
+                true);
+        assertEquals(String.valueOf(Symmitron.ILLEGAL_ARGUMENT), retval.get(Symmitron.ERROR_CODE));
+        assertEquals(new HashSet<String>(), added(syms, symIds()));
+        assertEquals(new HashSet<String>(), added(bridges, bridgeIds()));
+        assertEquals(ports, freePortCount());
+    }
+
+    public void testFailedCreateBridgedSymsKeepsExistingBridge() throws Exception {
+        Map<String, Object> retval = symmitronServer.createBridgedSyms(HANDLE, "",
+                new Object[1], false);
+        checkOk(retval);
+        String bridgeId = (String) retval.get(Symmitron.BRIDGE_ID);
+        Set<String> syms = symIds();
+        int ports = freePortCount();
+
+        retval = symmitronServer.createBridgedSyms(HANDLE, bridgeId, badSpecs(), false);
+        assertEquals(String.valueOf(Symmitron.ILLEGAL_ARGUMENT), retval.get(Symmitron.ERROR_CODE));
+        assertEquals(new HashSet<String>(), added(syms, symIds()));
+        assertEquals(ports, freePortCount());
+        assertEquals(1, findBridge(bridgeId).getSyms().size());
+
+        checkOk(symmitronServer.destroyBridge(HANDLE, bridgeId));
+    }
+
+    public void testDestroyBridgeRecordsQuality() throws Exception {
+        Map<String, Object> retval = symmitronServer.createBridgedSyms(HANDLE, "",
+                new Object[2], true);
+        checkOk(retval);
+        String bridgeId = (String) retval.get(Symmitron.BRIDGE_ID);
+        Bridge bridge = findBridge(bridgeId);
+        Sym sym = bridge.getSyms().iterator().next();
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        packet.put(0, (byte) 0x80);
+        for (int i = 0; i < 100; i++) {
+            packet.putShort(2, (short) i);
+            packet.putInt(4, i * 160);
+            sym.getRtpStatistics().update(packet, 0, packet.limit(), i * 20 * 1000 * 1000L);
+        }
+        long completed = RelayMediaQuality.getInstance().getCompletedBridges();
+
+        checkOk(symmitronServer.destroyBridge(HANDLE, bridgeId));
+        assertEquals(completed + 1, RelayMediaQuality.getInstance().getCompletedBridges());
+        assertEquals(BridgeState.TERMINATED, bridge.getState());
+    }
+
+    /*
+     * A bridge created to send to the sym of another bridge is forwarded by the same shard.
+     */
+    public void testSelfRoutedBridgeIsPinned() throws Exception {
+        Map<String, Object> retval = symmitronServer.createBridgedSyms(HANDLE, "",
+                new Object[2], false);
+        checkOk(retval);
+        String bridgeId = (String) retval.get(Symmitron.BRIDGE_ID);
+        Bridge bridge = findBridge(bridgeId);
+        Sym sym = bridge.getSyms().iterator().next();
+
+        Map<String, Object> spec = new HashMap<String, Object>();
+        spec.put(Symmitron.DESTINATION_IP_ADDRESS, "127.0.0.1");
+        spec.put(Symmitron.DESTINATION_PORT, sym.getReceiver().getPort());
+        for (int i = 0; i < 2 * RelayTestSupport.SHUFFLER_THREADS; i++) {
+            retval = symmitronServer.createBridgedSyms(HANDLE, "", new Object[] { null, spec },
+                    false);
+            checkOk(retval);
+            String pinnedId = (String) retval.get(Symmitron.BRIDGE_ID);
+            assertSame(bridge.getShuffler(), findBridge(pinnedId).getShuffler());
+            checkOk(symmitronServer.destroyBridge(HANDLE, pinnedId));
+        }
+
+        checkOk(symmitronServer.destroyBridge(HANDLE, bridgeId));
+    }
+
+    private Bridge findBridge(String bridgeId) {
+        for (Bridge bridge : SymmitronServer.getBridges()) {
+            if (bridge.getId().equals(bridgeId)) {
+                return bridge;
+            }
+        }
+        fail("Bridge not found " + bridgeId);
+        return null;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Avaya, certain elements licensed under a Contributor Agreement.
+ * Contributors retain copyright to elements licensed under a Contributor Agreement.
+ * Licensed to the User under the LGPL license.
+ */
+package org.sipfoundry.sipxrelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tests for the timing wheel and a comparison with java.util.Timer for timer churn ( schedule and
+ * cancel ) with a large number of live timers.
+ *
+ * The sizes can be overridden with -Dsipxrelay.benchmark.timers=10000,50000,100000
+ */
+public class TimingWheelTest extends TestCase {
+
+    private static Logger logger = Logger.getLogger(TimingWheelTest.class);
+
+    private static final int CHURN = 10000;
+
+    /*
+     * Runs expired tasks on the wheel thread so no shuffler is needed.
+     */
+    private static class InlineTimingWheel extends TimingWheel {
+        InlineTimingWheel() {
+            super("TestTimingWheel", 10, 64);
+        }
+
+        @Override
+        protected void dispatch(Task task) {
+            task.doWork();
+        }
+    }
+
+    private static class CountingTask extends TimingWheel.Task {
+        final AtomicInteger count = new AtomicInteger();
+
+        final CountDownLatch latch;
+
+        CountingTask(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void run() {
+            count.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    private TimingWheel wheel;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        wheel = new InlineTimingWheel();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        wheel.stop();
+    }
+
+    public void testOneShot() throws Exception {
+        CountingTask task = new CountingTask(1);
+        long startTime = System.currentTimeMillis();
+        wheel.schedule(task, 100, 0);
+        assertTrue("Timer did not fire", task.latch.await(2, TimeUnit.SECONDS));
+        assertTrue("Timer fired early", System.currentTimeMillis() - startTime >= 90);
+        Thread.sleep(200);
+        assertEquals(1, task.count.get());
+    }
+
+    public void testBeyondOneRotation() throws Exception {
+        /*
+         * 64 buckets of 10 ms so this goes round the wheel twice.
+         */
+        CountingTask task = new CountingTask(1);
+        long startTime = System.currentTimeMillis();
+        wheel.schedule(task, 1500, 0);
+        assertTrue("Timer did not fire", task.latch.await(3, TimeUnit.SECONDS));
+        assertTrue("Timer fired early", System.currentTimeMillis() - startTime >= 1490);
+    }
+
+    public void testPeriodic() throws Exception {
+        CountingTask task = new CountingTask(5);
+        wheel.schedule(task, 0, 50);
+        assertTrue("Periodic timer did not fire", task.latch.await(2, TimeUnit.SECONDS));
+        task.cancel();
+        Thread.sleep(50);
+        int count = task.count.get();
+        Thread.sleep(200);
+        assertEquals("Timer fired after cancel", count, task.count.get());
+    }
+
+    public void testCancel() throws Exception {
+        CountingTask task = new CountingTask(1);
+        wheel.schedule(task, 100, 0);
+        task.cancel();
+        assertFalse("Cancelled timer fired", task.latch.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    private long wheelChurn(int liveTimers) {
+        TimingWheel wheel = new InlineTimingWheel();
+        try {
+            for (int i = 0; i < liveTimers; i++) {
+                wheel.schedule(new CountingTask(1), 60000, 60000);
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < CHURN; i++) {
+                CountingTask task = new CountingTask(1);
+                wheel.schedule(task, 60000, 60000);
+                task.cancel();
+            }
+            return System.nanoTime() - startTime;
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    private long timerChurn(int liveTimers) {
+        Timer timer = new Timer();
+        try {
+            for (int i = 0; i < liveTimers; i++) {
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                    }
+                }, 60000, 60000);
+            }
+            long startTime = System.nanoTime();
+            for (int i = 0; i < CHURN; i++) {
+                TimerTask task = new TimerTask() {
+                    public void run() {
+                    }
+                };
+                timer.schedule(task, 60000, 60000);
+                task.cancel();
+            }
+            timer.purge();
+            return System.nanoTime() - startTime;
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    public void testChurnBenchmark() throws Exception {
+        String[] sizes = System.getProperty("sipxrelay.benchmark.timers", "10000,50000,100000")
+                .split(",");
+        /*
+         * Warm up.
+         */
+        wheelChurn(1000);
+        timerChurn(1000);
+        List<String> results = new ArrayList<String>();
+        for (String size : sizes) {
+            int liveTimers = Integer.parseInt(size.trim());
+            long wheelTime = wheelChurn(liveTimers);
+            long timerTime = timerChurn(liveTimers);
+            results.add("live timers = " + liveTimers + " schedule+cancel ns/op : wheel = "
+                    + wheelTime / CHURN + " java.util.Timer = " + timerTime / CHURN);
+        }
+        for (String result : results) {
+            logger.info(result);
+        }
+    }
+
+}